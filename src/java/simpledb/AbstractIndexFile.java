@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * AbstractIndexFile holds what the {@link IndexFile} implementations share:
+ * the file and the indexed field, reading and writing pages at their offset
+ * in the file, building the file from the entries of the table on disk,
+ * appending empty pages to it, and the entries of the tuples inserted into
+ * and deleted from the table.  Subclasses say how their pages, of type P,
+ * are created, and how entries are looked up, inserted and removed.
+ *
+ * @see BTreeFile
+ * @see HashFile
+ */
+public abstract class AbstractIndexFile<P extends Page> implements IndexFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File f;
+    private final int tableid, keyField;
+    private final Type keyType;
+    private final TupleDesc td;
+
+    /**
+     * Constructs an index backed by the specified file, on a table that
+     * must already be in the catalog.
+     *
+     * @param f the file that stores the on-disk backing store for the index
+     * @param tableid the id of the indexed table
+     * @param keyField the index of the field of that table that is indexed
+     */
+    protected AbstractIndexFile(File f, int tableid, int keyField) {
+        this.f = f;
+        this.tableid = tableid;
+        this.keyField = keyField;
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+        keyType = tableTd.getFieldType(keyField);
+        td = new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+            new String[] { tableTd.getFieldName(keyField), "page", "slot" });
+    }
+
+    /** @return the id of the page of this file with the given number */
+    protected abstract PageId pageId(int pageNo);
+
+    /** @return the page with the given number and contents */
+    protected abstract P createPage(int pageNo, byte[] data) throws IOException;
+
+    /** @return the contents of an empty page of the given kind */
+    protected abstract byte[] createEmptyPageData(byte kind);
+
+    /** @return the File backing this index on disk */
+    public File getFile() {
+        return f;
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    public Type getKeyType() {
+        return keyType;
+    }
+
+    /** @return an ID uniquely identifying this file, as for a HeapFile */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    /** @return the schema of the entries of this index */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of pages in this file */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.PAGE_SIZE);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.getTableId() != getId() || pid.pageNumber() < 0
+                || pid.pageNumber() >= numPages())
+            throw new IllegalArgumentException("Invalid Page ID.");
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                raf.seek((long) pid.pageNumber() * BufferPool.PAGE_SIZE);
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            return createPage(pid.pageNumber(), data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + pid, e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.PAGE_SIZE);
+            raf.write(page.getPageData(), 0, BufferPool.PAGE_SIZE);
+        } finally {
+            raf.close();
+        }
+        page.markDirty(false, null);
+    }
+
+    /** @return the entries for the tuples of the indexed table, as on disk */
+    protected List<IndexEntry> readEntries() {
+        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        List<IndexEntry> all = new ArrayList<IndexEntry>();
+        for (int p = 0; p < table.numPages(); p++) {
+            HeapPage hp = (HeapPage) table.readPage(new HeapPageId(tableid, p));
+            Iterator<Tuple> it = hp.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                all.add(new IndexEntry(t.getField(keyField), p,
+                    t.getRecordId().tupleno()));
+            }
+        }
+        return all;
+    }
+
+    /** Adds an empty page of the given kind to those being built. */
+    protected P newPage(List<P> pages, byte kind) throws IOException {
+        P p = createPage(pages.size(), createEmptyPageData(kind));
+        pages.add(p);
+        return p;
+    }
+
+    /** Replaces the contents of the file with the pages built. */
+    protected void writePages(List<P> pages) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            for (P p : pages)
+                raf.write(p.getPageData(), 0, BufferPool.PAGE_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends an empty page of the given kind to the file, and returns it
+     * locked for writing by tid.
+     */
+    protected P newPage(TransactionId tid, byte kind)
+            throws IOException, DbException, TransactionAbortedException {
+        int pageNo;
+        synchronized (this) {
+            pageNo = numPages();
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.seek((long) pageNo * BufferPool.PAGE_SIZE);
+                raf.write(createEmptyPageData(kind), 0, BufferPool.PAGE_SIZE);
+            } finally {
+                raf.close();
+            }
+        }
+        return page(tid, pageNo, Permissions.READ_WRITE);
+    }
+
+    /** @return the page with the given number, locked as perm says */
+    @SuppressWarnings("unchecked")
+    protected P page(TransactionId tid, int pageNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (P) Database.getBufferPool().getPage(tid,
+            pageId(pageNo), perm);
+    }
+
+    /**
+     * Marks a page tid changed dirty right away, rather than leaving it to
+     * the BufferPool once the insert is done, so that it is not evicted
+     * while the insert reads more pages.
+     */
+    protected static void changed(TransactionId tid, Page p, List<Page> dirtied) {
+        p.markDirty(true, tid);
+        if (!dirtied.contains(p))
+            dirtied.add(p);
+    }
+
+    /** @return the entry for a tuple of the indexed table */
+    protected IndexEntry entryOf(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("Tuple has no RecordId.");
+        return new IndexEntry(t.getField(keyField),
+            rid.getPageId().pageNumber(), rid.tupleno());
+    }
+
+    /**
+     * Removes the entry for a tuple of the indexed table, which must still
+     * have the RecordId it had in the table.
+     *
+     * @return the page the entry was removed from
+     * @throws DbException if the index has no such entry
+     */
+    public Page deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("Tuple has no RecordId.");
+        return deleteEntry(tid, t.getField(keyField), rid);
+    }
+
+    /** @return the RecordId of the tuple an entry of this index is for */
+    public RecordId getRecordId(Tuple entry) {
+        int page = ((IntField) entry.getField(1)).getValue();
+        int slot = ((IntField) entry.getField(2)).getValue();
+        return new RecordId(new HeapPageId(tableid, page), slot);
+    }
+}
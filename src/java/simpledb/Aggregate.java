@@ -1,19 +1,34 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, are computed
+ * in one pass, grouped by any number of columns.
+ * <p>
+ * When the child is a scan of a heap file and more than one thread is
+ * allowed (see {@link #setParallelism}), the table's pages are handed out
+ * in morsels of {@link #MORSEL_PAGES} pages to a pool of worker threads.
+ * Each worker aggregates the pages it reads into a partial aggregate of its
+ * own, and the partial aggregates, which keep the count, sum, min and max
+ * of every group, are merged once the whole table has been read.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** The number of pages a worker reads at a time in parallel mode */
+    public static final int MORSEL_PAGES = 16;
+
     private DbIterator child, aggIter;
-    private int afield, gfield;
+    private int[] afields, gfields;
     private Aggregator agg;
-    private Aggregator.Op op;
+    private Aggregator.Op[] ops;
+    private int parallelism = 1;
+    // false when the workers read the table instead of the child
+    private boolean childOpen = false;
 
     /**
      * Constructor.
@@ -35,17 +50,45 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+	this(child, new int[] { afield },
+	     gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+	     new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates, computed in one pass over the
+     * child, over groups made of several columns.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; an empty
+     *            array if there is no grouping
+     * @param aops
+     *            The aggregation operator to use over each of afields
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields,
+		     Aggregator.Op[] aops) {
 	this.child = child;
-	this.afield = afield;
-	this.gfield = gfield;
-	op = aop;
-	Type gbfield = null;
-	if (gfield != Aggregator.NO_GROUPING)
-	    gbfield = child.getTupleDesc().getFieldType(gfield);
-	if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE)
-	    agg = new StringAggregator(gfield, gbfield, afield, op);
+	this.afields = afields;
+	this.gfields = gfields;
+	ops = aops;
+	TupleDesc td = child.getTupleDesc();
+	if (afields.length == 1 && gfields.length <= 1)
+	    {
+		int gfield = groupField();
+		Type gbfield = null;
+		if (gfield != Aggregator.NO_GROUPING)
+		    gbfield = td.getFieldType(gfield);
+		if (td.getFieldType(afields[0]) == Type.STRING_TYPE)
+		    agg = new StringAggregator(gfield, gbfield, afields[0], ops[0]);
+		else
+		    agg = new IntegerAggregator(gfield, gbfield, afields[0], ops[0]);
+	    }
 	else
-	    agg = new IntegerAggregator(gfield, gbfield, afield, op);
+	    agg = new MultiAggregator(td, gfields, afields, ops);
     }
 
     /**
@@ -55,7 +98,18 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 	// some code goes here
-	return gfield;
+	if (gfields.length == 0)
+	    return Aggregator.NO_GROUPING;
+	return gfields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, which
+     *         are the first fields of the output tuples; an empty array if
+     *         there is no grouping
+     */
+    public int[] groupFields() {
+	return gfields;
     }
 
     /**
@@ -65,9 +119,16 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-	if (gfield == Aggregator.NO_GROUPING)
+	if (gfields.length == 0)
 	    return null;
-	return child.getTupleDesc().getFieldName(gfield);
+	return groupFieldName(0);
+    }
+
+    /**
+     * @return the name of the i-th groupby field in the <b>OUTPUT</b> tuples
+     */
+    public String groupFieldName(int i) {
+	return child.getTupleDesc().getFieldName(gfields[i]);
     }
 
     /**
@@ -75,7 +136,15 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-	return afield;
+	return afields[0];
+    }
+
+    /**
+     * @return the aggregate fields, in the order of the aggregate values in
+     *         the output tuples
+     */
+    public int[] aggregateFields() {
+	return afields;
     }
 
     /**
@@ -84,7 +153,15 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	return child.getTupleDesc().getFieldName(afield);
+	return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of the i-th aggregate field in the <b>OUTPUT</b>
+     *         tuples
+     */
+    public String aggregateFieldName(int i) {
+	return child.getTupleDesc().getFieldName(afields[i]);
     }
 
     /**
@@ -92,7 +169,27 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	return op;
+	return ops[0];
+    }
+
+    /**
+     * @return the aggregate operator over each of the aggregate fields
+     */
+    public Aggregator.Op[] aggregateOps() {
+	return ops;
+    }
+
+    /**
+     * Sets the number of threads that may aggregate the child at once.
+     * Only a child that is a {@link SeqScan} over a heap file is read in
+     * parallel; any other child is always read on the calling thread.
+     */
+    public void setParallelism(int threads) {
+	parallelism = threads;
+    }
+
+    public int getParallelism() {
+	return parallelism;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -103,19 +200,125 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
 	// some code goes here
 	super.open();
+	if (parallelism > 1 && child instanceof SeqScan
+	    && ((SeqScan) child).numPages() >= 0)
+	    {
+		// the workers have read the whole table; the child is not opened
+		agg = aggregateInParallel((SeqScan) child);
+		aggIter = agg.iterator();
+		aggIter.open();
+		return;
+	    }
 	child.open();
-	while (child.hasNext())
-	    agg.mergeTupleIntoGroup(child.next());
+	childOpen = true;
+	TupleBatch batch;
+	while ((batch = TupleBatch.next(child)) != null)
+	    {
+		if (agg instanceof IntegerAggregator)
+		    ((IntegerAggregator) agg).mergeBatchIntoGroup(batch);
+		else if (agg instanceof MultiAggregator)
+		    ((MultiAggregator) agg).mergeBatchIntoGroup(batch);
+		else
+		    for (int i = 0 ; i < batch.size() ; i++)
+			agg.mergeTupleIntoGroup(batch.getTuple(i));
+	    }
 	aggIter = agg.iterator();
 	aggIter.open();
     }
 
+    /**
+     * Aggregates the table scan reads with a pool of worker threads, each
+     * taking the next morsel of pages until there are none left.
+     *
+     * @return the merged aggregate of the whole table
+     */
+    private MultiAggregator aggregateInParallel(final SeqScan scan)
+	throws DbException, TransactionAbortedException {
+	final int numPages = scan.numPages();
+	final AtomicInteger nextPage = new AtomicInteger(0);
+	final TupleDesc td = scan.getTupleDesc();
+	ExecutorService pool = ParallelSeqScan.newPool(parallelism);
+	List<Future<MultiAggregator>> partials = new ArrayList<Future<MultiAggregator>>();
+	for (int i = 0 ; i < parallelism ; i++)
+	    partials.add(pool.submit(new Callable<MultiAggregator>() {
+		    public MultiAggregator call() throws Exception {
+			MultiAggregator partial = new MultiAggregator(td, gfields, afields, ops);
+			TupleBatch batch = new TupleBatch(td);
+			int first;
+			try
+			    {
+				while ((first = nextPage.getAndAdd(MORSEL_PAGES)) < numPages)
+				    {
+					DbFileIterator it = scan.iterator(first,
+					    Math.min(first + MORSEL_PAGES, numPages));
+					it.open();
+					while (it.hasNext())
+					    {
+						batch.addTuple(it.next());
+						if (batch.isFull())
+						    {
+							partial.mergeBatchIntoGroup(batch);
+							batch.clear();
+						    }
+					    }
+					it.close();
+				    }
+				partial.mergeBatchIntoGroup(batch);
+			    }
+			catch (Exception e)
+			    {
+				partial.close();
+				throw e;
+			    }
+			return partial;
+		    }
+		}));
+	pool.shutdown();
+	MultiAggregator merged = null;
+	boolean done = false;
+	try
+	    {
+		for (Future<MultiAggregator> f : partials)
+		    {
+			if (merged == null)
+			    merged = ParallelSeqScan.getResult(f);
+			else
+			    merged.merge(ParallelSeqScan.getResult(f));
+		    }
+		done = true;
+	    }
+	finally
+	    {
+		if (!done)
+		    {
+			// stop the other workers, and delete what they spilled
+			nextPage.set(numPages);
+			if (merged != null)
+			    merged.close();
+			for (Future<MultiAggregator> f : partials)
+			    {
+				try
+				    {
+					f.get().close();
+				    }
+				catch (Exception e)
+				    {
+					// a failed worker deleted its own files
+				    }
+			    }
+		    }
+	    }
+	return merged;
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
      * result of computing the aggregate, If there is no group by field, then
      * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * aggregate. With several group by fields or aggregates, the group by
+     * fields come first, followed by the aggregates in the order they were
+     * given. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
@@ -128,7 +331,8 @@ public class Aggregate extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
-	child.rewind();
+	if (childOpen)
+	    child.rewind();
 	aggIter.rewind();
     }
 
@@ -141,22 +345,35 @@ public class Aggregate extends Operator {
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * iterator.  With several group by fields or aggregates, the group by
+     * fields come first, followed by the aggregate value columns.
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
 	TupleDesc td = child.getTupleDesc();
-	if (gfield == Aggregator.NO_GROUPING)
-	    return new TupleDesc(new Type[] { td.getFieldType(afield) }, 
-				 new String[] { op.toString() + "(" + td.getFieldName(afield) + ")" });
-	return new TupleDesc(new Type[] { td.getFieldType(gfield), td.getFieldType(afield) }, 
-			     new String[] { td.getFieldName(gfield), op.toString() + "(" + td.getFieldName(afield) + ")" } );
+	int n = gfields.length;
+	Type[] types = new Type[n + afields.length];
+	String[] names = new String[types.length];
+	for (int i = 0 ; i < n ; i++)
+	    {
+		types[i] = td.getFieldType(gfields[i]);
+		names[i] = td.getFieldName(gfields[i]);
+	    }
+	for (int i = 0 ; i < afields.length ; i++)
+	    {
+		types[n + i] = Type.INT_TYPE;  // every aggregate is an int
+		names[n + i] = ops[i].toString() + "(" + td.getFieldName(afields[i]) + ")";
+	    }
+	return new TupleDesc(types, names);
     }
 
     public void close() {
 	// some code goes here
-	child.close();
+	if (childOpen)
+	    child.close();
+	childOpen = false;
 	aggIter.close();
+	agg.close();
     }
 
     @Override
@@ -0,0 +1,420 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * AggregateTable is a hash table from group keys to the running count, sum,
+ * min and max of the values aggregated into each group, which is enough to
+ * compute any {@link Aggregator.Op} over integers.  A group key may be made
+ * of several fields, and each group may aggregate several values.
+ * <p>
+ * Groups are stored in slots numbered from 0 in order of first appearance.
+ * The keys are kept in flat primitive arrays, int key fields in one and
+ * string key fields in another, with a fixed number of entries per slot,
+ * and likewise the accumulators of each value; slots are found by open
+ * addressing.  Folding a value into an existing group allocates nothing.
+ */
+public class AggregateTable {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private final Type[] keyTypes;
+    // the position of each key field among the int or the string key fields
+    private final int[] keyPos;
+    private final int nInts, nStrings, nValues;
+    private int[] intKeys;
+    private String[] stringKeys;
+    private long[] counts, sums;
+    private int[] mins, maxs;
+    private int size = 0, capacity = INITIAL_SLOTS;
+
+    // slot + 1 for each occupied bucket, 0 for an empty one
+    private int[] index;
+    private int mask;
+
+    /**
+     * Creates an empty table with a single key field and a single value.
+     *
+     * @param keyType
+     *            the type of the group keys; Type.INT_TYPE (also used for a
+     *            single group when there is no grouping) or Type.STRING_TYPE
+     */
+    public AggregateTable(Type keyType) {
+        this(new Type[] { keyType == null ? Type.INT_TYPE : keyType }, 1);
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param keyTypes
+     *            the types of the fields of the group keys; an empty array
+     *            for a table with a single group
+     * @param nValues
+     *            the number of values aggregated for each group
+     */
+    public AggregateTable(Type[] keyTypes, int nValues) {
+        this.keyTypes = keyTypes;
+        this.nValues = nValues;
+        keyPos = new int[keyTypes.length];
+        int ints = 0, strings = 0;
+        for (int i = 0; i < keyTypes.length; i++)
+            keyPos[i] = keyTypes[i] == Type.STRING_TYPE ? strings++ : ints++;
+        nInts = ints;
+        nStrings = strings;
+        intKeys = new int[capacity * nInts];
+        stringKeys = new String[capacity * nStrings];
+        counts = new long[capacity * nValues];
+        sums = new long[capacity * nValues];
+        mins = new int[capacity * nValues];
+        maxs = new int[capacity * nValues];
+        index = new int[2 * capacity];
+        mask = index.length - 1;
+    }
+
+    /** @return the number of groups in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of fields in a group key */
+    public int numKeyFields() {
+        return keyTypes.length;
+    }
+
+    /** @return the number of values aggregated for each group */
+    public int numValues() {
+        return nValues;
+    }
+
+    /** Removes all groups from the table. */
+    public void clear() {
+        Arrays.fill(index, 0);
+        Arrays.fill(stringKeys, 0, size * nStrings, null);
+        size = 0;
+    }
+
+    private static int hash(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of the group with the given key, adding an empty
+     *         group for it if there is none yet; for tables with a single
+     *         int key field
+     */
+    public int find(int key) {
+        int b = hash(key) & mask;
+        while (index[b] != 0) {
+            int slot = index[b] - 1;
+            if (intKeys[slot] == key)
+                return slot;
+            b = (b + 1) & mask;
+        }
+        int slot = newSlot();
+        intKeys[slot] = key;
+        insert(b, slot);
+        return slot;
+    }
+
+    /** @see #find(int) */
+    public int find(String key) {
+        int b = hash(key.hashCode()) & mask;
+        while (index[b] != 0) {
+            int slot = index[b] - 1;
+            if (stringKeys[slot].equals(key))
+                return slot;
+            b = (b + 1) & mask;
+        }
+        int slot = newSlot();
+        stringKeys[slot] = key;
+        insert(b, slot);
+        return slot;
+    }
+
+    /** @return the slot of the group with the key in the given field */
+    public int find(Field key) {
+        if (keyTypes[0] == Type.STRING_TYPE)
+            return find(((StringField) key).getValue());
+        return find(((IntField) key).getValue());
+    }
+
+    /**
+     * @return the slot of the group whose key is made of the given fields
+     *         of t, adding an empty group for it if there is none yet
+     */
+    public int find(Tuple t, int[] fields) {
+        int h = 0;
+        for (int i = 0; i < fields.length; i++)
+            h = 31 * h + t.getField(fields[i]).hashCode();
+        int b = hash(h) & mask;
+        while (index[b] != 0) {
+            int slot = index[b] - 1;
+            if (matches(slot, t, fields))
+                return slot;
+            b = (b + 1) & mask;
+        }
+        int slot = newSlot();
+        for (int i = 0; i < fields.length; i++) {
+            Field f = t.getField(fields[i]);
+            if (keyTypes[i] == Type.STRING_TYPE)
+                stringKeys[slot * nStrings + keyPos[i]] = ((StringField) f).getValue();
+            else
+                intKeys[slot * nInts + keyPos[i]] = ((IntField) f).getValue();
+        }
+        insert(b, slot);
+        return slot;
+    }
+
+    private boolean matches(int slot, Tuple t, int[] fields) {
+        for (int i = 0; i < fields.length; i++) {
+            Field f = t.getField(fields[i]);
+            if (keyTypes[i] == Type.STRING_TYPE) {
+                if (!stringKeys[slot * nStrings + keyPos[i]].equals(((StringField) f).getValue()))
+                    return false;
+            } else if (intKeys[slot * nInts + keyPos[i]] != ((IntField) f).getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the group whose key is made of the given columns
+     *         of a row of batch, adding an empty group for it if there is
+     *         none yet
+     */
+    public int find(TupleBatch batch, int row, int[] fields) {
+        int h = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (keyTypes[i] == Type.STRING_TYPE)
+                h = 31 * h + batch.getStringColumn(fields[i])[row].hashCode();
+            else
+                h = 31 * h + batch.getIntColumn(fields[i])[row];
+        }
+        int b = hash(h) & mask;
+        while (index[b] != 0) {
+            int slot = index[b] - 1;
+            if (matches(slot, batch, row, fields))
+                return slot;
+            b = (b + 1) & mask;
+        }
+        int slot = newSlot();
+        for (int i = 0; i < fields.length; i++) {
+            if (keyTypes[i] == Type.STRING_TYPE)
+                stringKeys[slot * nStrings + keyPos[i]] = batch.getStringColumn(fields[i])[row];
+            else
+                intKeys[slot * nInts + keyPos[i]] = batch.getIntColumn(fields[i])[row];
+        }
+        insert(b, slot);
+        return slot;
+    }
+
+    private boolean matches(int slot, TupleBatch batch, int row, int[] fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (keyTypes[i] == Type.STRING_TYPE) {
+                if (!stringKeys[slot * nStrings + keyPos[i]].equals(batch.getStringColumn(fields[i])[row]))
+                    return false;
+            } else if (intKeys[slot * nInts + keyPos[i]] != batch.getIntColumn(fields[i])[row]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the group with the same key as the group in slot
+     *         of other, a table with the same key types, adding an empty
+     *         group for it if there is none yet
+     */
+    public int find(AggregateTable other, int slot) {
+        int b = hash(other.hashOf(slot)) & mask;
+        while (index[b] != 0) {
+            int s = index[b] - 1;
+            if (matches(s, other, slot))
+                return s;
+            b = (b + 1) & mask;
+        }
+        int s = newSlot();
+        System.arraycopy(other.intKeys, slot * nInts, intKeys, s * nInts, nInts);
+        System.arraycopy(other.stringKeys, slot * nStrings, stringKeys,
+                s * nStrings, nStrings);
+        insert(b, s);
+        return s;
+    }
+
+    private boolean matches(int s, AggregateTable other, int slot) {
+        for (int i = 0; i < nInts; i++)
+            if (intKeys[s * nInts + i] != other.intKeys[slot * nInts + i])
+                return false;
+        for (int i = 0; i < nStrings; i++)
+            if (!stringKeys[s * nStrings + i].equals(other.stringKeys[slot * nStrings + i]))
+                return false;
+        return true;
+    }
+
+    /** Allocates the next slot, with empty accumulators; the key is unset. */
+    private int newSlot() {
+        int slot = size++;
+        if (slot == capacity) {
+            capacity *= 2;
+            intKeys = Arrays.copyOf(intKeys, capacity * nInts);
+            stringKeys = Arrays.copyOf(stringKeys, capacity * nStrings);
+            counts = Arrays.copyOf(counts, capacity * nValues);
+            sums = Arrays.copyOf(sums, capacity * nValues);
+            mins = Arrays.copyOf(mins, capacity * nValues);
+            maxs = Arrays.copyOf(maxs, capacity * nValues);
+        }
+        for (int i = slot * nValues; i < (slot + 1) * nValues; i++) {
+            counts[i] = 0;
+            sums[i] = 0;
+            mins[i] = Integer.MAX_VALUE;
+            maxs[i] = Integer.MIN_VALUE;
+        }
+        return slot;
+    }
+
+    /** @return the hash of the key of the group in slot */
+    private int hashOf(int slot) {
+        int h = 0;
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (keyTypes[i] == Type.STRING_TYPE)
+                h = 31 * h + stringKeys[slot * nStrings + keyPos[i]].hashCode();
+            else
+                h = 31 * h + intKeys[slot * nInts + keyPos[i]];
+        }
+        return h;
+    }
+
+    /**
+     * Points the empty bucket b at slot, and doubles the index if it is now
+     * over half full.
+     */
+    private void insert(int b, int slot) {
+        index[b] = slot + 1;
+        if (2 * size <= index.length)
+            return;
+        index = new int[2 * index.length];
+        mask = index.length - 1;
+        for (int i = 0; i < size; i++) {
+            int c = hash(hashOf(i)) & mask;
+            while (index[c] != 0)
+                c = (c + 1) & mask;
+            index[c] = i + 1;
+        }
+    }
+
+    /** Folds a single value into the first value of the group in slot. */
+    public void add(int slot, int v) {
+        add(slot, 0, 1, v, v, v);
+    }
+
+    /**
+     * Folds a summary of count values, with the given sum, min and max, into
+     * the first value of the group in slot.
+     */
+    public void add(int slot, long count, long sum, int min, int max) {
+        add(slot, 0, count, sum, min, max);
+    }
+
+    /**
+     * Folds a summary of count values, with the given sum, min and max, into
+     * the given value of the group in slot.
+     */
+    public void add(int slot, int value, long count, long sum, int min, int max) {
+        int i = slot * nValues + value;
+        counts[i] += count;
+        sums[i] += sum;
+        if (min < mins[i])
+            mins[i] = min;
+        if (max > maxs[i])
+            maxs[i] = max;
+    }
+
+    /**
+     * Folds every value of the group in slot of other, a table with the
+     * same number of values, into the group in slot s of this table.
+     */
+    public void addAll(int s, AggregateTable other, int slot) {
+        for (int v = 0; v < nValues; v++) {
+            int i = slot * nValues + v;
+            add(s, v, other.counts[i], other.sums[i], other.mins[i],
+                    other.maxs[i]);
+        }
+    }
+
+    public int getIntKey(int slot) {
+        return intKeys[slot * nInts];
+    }
+
+    public String getStringKey(int slot) {
+        return stringKeys[slot * nStrings];
+    }
+
+    /** @return the key of the group in slot as a field */
+    public Field getKey(int slot) {
+        return getKey(slot, 0);
+    }
+
+    /** @return the given field of the key of the group in slot */
+    public Field getKey(int slot, int field) {
+        if (keyTypes[field] == Type.STRING_TYPE)
+            return new StringField(stringKeys[slot * nStrings + keyPos[field]],
+                    Type.STRING_LEN);
+        return new IntField(intKeys[slot * nInts + keyPos[field]]);
+    }
+
+    public long getCount(int slot) {
+        return counts[slot * nValues];
+    }
+
+    public long getSum(int slot) {
+        return sums[slot * nValues];
+    }
+
+    public int getMin(int slot) {
+        return mins[slot * nValues];
+    }
+
+    public int getMax(int slot) {
+        return maxs[slot * nValues];
+    }
+
+    public long getCount(int slot, int value) {
+        return counts[slot * nValues + value];
+    }
+
+    public long getSum(int slot, int value) {
+        return sums[slot * nValues + value];
+    }
+
+    public int getMin(int slot, int value) {
+        return mins[slot * nValues + value];
+    }
+
+    public int getMax(int slot, int value) {
+        return maxs[slot * nValues + value];
+    }
+
+    /** @return the value of aggregate op over the group in slot */
+    public int getValue(int slot, Aggregator.Op op) {
+        return getValue(slot, 0, op);
+    }
+
+    /** @return the value of aggregate op over the given value of a group */
+    public int getValue(int slot, int value, Aggregator.Op op) {
+        int i = slot * nValues + value;
+        switch (op) {
+        case MIN:
+            return mins[i];
+        case MAX:
+            return maxs[i];
+        case SUM:
+            return (int) sums[i];
+        case AVG:
+            return (int) (sums[i] / counts[i]);
+        default:
+            return (int) counts[i];
+        }
+    }
+}
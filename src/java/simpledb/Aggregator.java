@@ -54,13 +54,20 @@ public interface Aggregator extends Serializable {
      * been encountered.
      *
      * @param tup the Tuple containing an aggregate field and a group-by field
+     * @throws DbException if groups had to be spilled to disk and could not be
      */
-    public void mergeTupleIntoGroup(Tuple tup);
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException;
 
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
+
+    /**
+     * Empties the aggregator and deletes whatever it spilled to disk.
+     * Iterators over its results must not be used afterwards.
+     */
+    public void close();
     
 }
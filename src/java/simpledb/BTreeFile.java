@@ -0,0 +1,310 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeFile is a B+ tree index on one field of a table stored in a
+ * {@link HeapFile}.  It maps each tuple's value of that field, its key, to
+ * the tuple's RecordId; the tuples it returns are its entries, with the
+ * key, the page number and the slot of the indexed tuple as fields.  Its
+ * entries can be read in key order, a range of keys at a time.
+ * <p>
+ * Page 0 of the file is a meta page pointing to the root; the other pages
+ * are the nodes of the tree, described in {@link BTreePage}.  Pages are read
+ * through the BufferPool and locked like heap pages: readers lock the pages
+ * on their way down and along the leaves they read for reading, writers
+ * lock the leaf they change for writing, and the parents that take a new
+ * separator when it splits.  Pages are split when they overflow, but never
+ * merged, so a leaf that entries are deleted from may become empty.
+ *
+ * @see BTreePage
+ * @see Catalog#addIndex
+ */
+public class BTreeFile extends AbstractIndexFile<BTreePage> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs an index backed by the specified file, on a table that
+     * must already be in the catalog.  A new index must be filled with
+     * {@link #build} before it is used.
+     *
+     * @param f the file that stores the on-disk backing store for the index
+     * @param tableid the id of the indexed table
+     * @param keyField the index of the field of that table that is indexed
+     */
+    public BTreeFile(File f, int tableid, int keyField) {
+        super(f, tableid, keyField);
+    }
+
+    protected PageId pageId(int pageNo) {
+        return new BTreePageId(getId(), pageNo);
+    }
+
+    protected BTreePage createPage(int pageNo, byte[] data) throws IOException {
+        return new BTreePage(new BTreePageId(getId(), pageNo), data);
+    }
+
+    protected byte[] createEmptyPageData(byte kind) {
+        return BTreePage.createEmptyPageData(kind);
+    }
+
+    /** @return true: the entries of a range of keys are read in order */
+    public boolean isOrdered() {
+        return true;
+    }
+
+    /**
+     * @return the number of levels of the tree, as on disk, counting the
+     *         leaves
+     */
+    public int height() {
+        if (numPages() == 0)
+            return 1;
+        BTreePage meta = (BTreePage) readPage(new BTreePageId(getId(), 0));
+        return meta.getRootLevel() + 1;
+    }
+
+    /**
+     * Fills this index with an entry for each tuple of its table, as the
+     * table is on disk, replacing whatever the file held.  The leaves are
+     * filled completely, and the nodes above them built a level at a time.
+     * The index must be in the catalog, and none of its pages cached.
+     */
+    public synchronized void build() throws IOException {
+        List<IndexEntry> all = readEntries();
+        Collections.sort(all);
+
+        List<BTreePage> pages = new ArrayList<BTreePage>();
+        BTreePage meta = newPage(pages, BTreePage.META);
+        // the pages of the level being built, and the smallest entry under
+        // each of them
+        List<Integer> level = new ArrayList<Integer>();
+        List<IndexEntry> mins = new ArrayList<IndexEntry>();
+        int maxLeaf = BTreePage.maxEntries(getKeyType(), BTreePage.LEAF);
+        int i = 0;
+        do {
+            BTreePage leaf = newPage(pages, BTreePage.LEAF);
+            int end = Math.min(i + maxLeaf, all.size());
+            for (int j = i; j < end; j++)
+                leaf.insertEntry(j - i, all.get(j));
+            if (!level.isEmpty())
+                pages.get(level.get(level.size() - 1)).setNext(leaf.getId().pageNumber());
+            level.add(leaf.getId().pageNumber());
+            mins.add(i < end ? all.get(i) : null);
+            i = end;
+        } while (i < all.size());
+
+        int maxChildren = BTreePage.maxEntries(getKeyType(), BTreePage.INTERNAL) + 1;
+        int height = 0;
+        while (level.size() > 1) {
+            height++;
+            List<Integer> up = new ArrayList<Integer>();
+            List<IndexEntry> upMins = new ArrayList<IndexEntry>();
+            for (int j = 0; j < level.size(); j += maxChildren) {
+                BTreePage node = newPage(pages, BTreePage.INTERNAL);
+                node.initInternal(height, level.get(j));
+                int end = Math.min(j + maxChildren, level.size());
+                for (int k = j + 1; k < end; k++)
+                    node.insertChild(k - j - 1, mins.get(k), level.get(k));
+                up.add(node.getId().pageNumber());
+                upMins.add(mins.get(j));
+            }
+            level = up;
+            mins = upMins;
+        }
+        meta.setRoot(level.get(0), height);
+        writePages(pages);
+    }
+
+    /**
+     * Finds the leaf an entry belongs on, locking the nodes on the way for
+     * reading and the leaf with the given permissions.
+     *
+     * @param e the entry, or null for the first leaf
+     * @param path if not null, gets the nodes on the way, root first
+     */
+    private BTreePage findLeaf(TransactionId tid, IndexEntry e,
+            Permissions perm, List<BTreePage> path)
+            throws DbException, TransactionAbortedException {
+        BTreePage meta = page(tid, 0, Permissions.READ_ONLY);
+        int pageNo = meta.getRoot(), level = meta.getRootLevel();
+        while (true) {
+            BTreePage p = page(tid, pageNo, level == 0 ? perm : Permissions.READ_ONLY);
+            if (p.isLeaf())
+                return p;
+            if (path != null)
+                path.add(p);
+            pageNo = p.getChild(e == null ? 0 : p.childIndex(e));
+            level = p.getLevel() - 1;
+        }
+    }
+
+    /**
+     * Adds an entry for a tuple of the indexed table, which must have been
+     * inserted into the table already, splitting the pages that overflow.
+     *
+     * @param tid The transaction performing the update
+     * @param t The tuple of the indexed table
+     * @return the pages of this file that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        IndexEntry e = entryOf(t);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        List<BTreePage> path = new ArrayList<BTreePage>();
+        BTreePage node = findLeaf(tid, e, Permissions.READ_WRITE, path);
+        node.insertEntry(node.lowerBound(e), e);
+        changed(tid, node, dirtied);
+        while (node.isOverfull()) {
+            BTreePage right = newPage(tid, node.getKind());
+            IndexEntry separator = node.split(right);
+            changed(tid, right, dirtied);
+            if (path.isEmpty()) {
+                // the root split: grow the tree by a level
+                BTreePage meta = page(tid, 0, Permissions.READ_WRITE);
+                BTreePage root = newPage(tid, BTreePage.INTERNAL);
+                root.initInternal(node.getLevel() + 1, node.getId().pageNumber());
+                root.insertChild(0, separator, right.getId().pageNumber());
+                meta.setRoot(root.getId().pageNumber(), root.getLevel());
+                changed(tid, root, dirtied);
+                changed(tid, meta, dirtied);
+                break;
+            }
+            BTreePage parent = path.remove(path.size() - 1);
+            parent = page(tid, parent.getId().pageNumber(), Permissions.READ_WRITE);
+            parent.insertChild(parent.childIndex(separator), separator,
+                right.getId().pageNumber());
+            changed(tid, parent, dirtied);
+            node = parent;
+        }
+        return dirtied;
+    }
+
+    /**
+     * Removes the entry for the tuple of the indexed table with the given
+     * key and RecordId, such as a tuple that has just been deleted from it.
+     *
+     * @return the leaf the entry was removed from
+     * @throws DbException if the index has no such entry
+     */
+    public Page deleteEntry(TransactionId tid, Field key, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        IndexEntry e = new IndexEntry(key, rid.getPageId().pageNumber(),
+            rid.tupleno());
+        BTreePage leaf = findLeaf(tid, e, Permissions.READ_WRITE, null);
+        int i = leaf.lowerBound(e);
+        if (i == leaf.numEntries() || leaf.getEntry(i).compareTo(e) != 0)
+            throw new DbException("Tuple not found in index.");
+        leaf.removeEntry(i);
+        return leaf;
+    }
+
+    /** @return an iterator over the entries with the given key */
+    public DbFileIterator iterator(TransactionId tid, Field key) {
+        return iterator(tid, key, true, key, true);
+    }
+
+    /** @return an iterator over every entry of this index, in key order */
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null, false, null, false);
+    }
+
+    /**
+     * Returns an iterator over the entries with keys in a range, in key
+     * order.
+     *
+     * @param tid the transaction reading the index
+     * @param low the smallest key, or null for no lower bound
+     * @param lowInclusive whether entries with key low are returned
+     * @param high the largest key, or null for no upper bound
+     * @param highInclusive whether entries with key high are returned
+     */
+    public DbFileIterator iterator(TransactionId tid, Field low,
+            boolean lowInclusive, Field high, boolean highInclusive) {
+        return new RangeIterator(tid, low, lowInclusive, high, highInclusive);
+    }
+
+    private class RangeIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TransactionId tid;
+        private final Field high;
+        private final boolean highInclusive;
+        // the entry to start from, or null to start from the first
+        private final IndexEntry start;
+        // the entries of the leaf being read from where the scan started on
+        // it, copied so that the scan's own transaction may change the leaf,
+        // the position of the next one, and the leaf after it, or -1
+        private List<IndexEntry> entries = Collections.emptyList();
+        private int pos, nextLeaf = -1;
+        private Tuple next;
+
+        RangeIterator(TransactionId tid, Field low, boolean lowInclusive,
+                Field high, boolean highInclusive) {
+            this.tid = tid;
+            this.high = high;
+            this.highInclusive = highInclusive;
+            if (low == null)
+                start = null;
+            else if (lowInclusive)
+                start = new IndexEntry(low, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            else
+                start = new IndexEntry(low, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+
+        private void read(BTreePage leaf, int from) {
+            entries = leaf.entriesFrom(from);
+            pos = 0;
+            nextLeaf = leaf.getNext();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            BTreePage leaf = findLeaf(tid, start, Permissions.READ_ONLY, null);
+            read(leaf, start == null ? 0 : leaf.lowerBound(start));
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null) {
+                if (pos == entries.size()) {
+                    if (nextLeaf < 0)
+                        break;
+                    read(page(tid, nextLeaf, Permissions.READ_ONLY), 0);
+                    continue;
+                }
+                IndexEntry e = entries.get(pos++);
+                if (high != null) {
+                    int c = IndexEntry.compareKeys(e.key, high);
+                    if (c > 0 || (c == 0 && !highInclusive)) {
+                        close();
+                        break;
+                    }
+                }
+                next = e.toTuple(getTupleDesc());
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            entries = Collections.emptyList();
+            nextLeaf = -1;
+            next = null;
+        }
+    }
+}
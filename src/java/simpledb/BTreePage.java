@@ -0,0 +1,303 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of BTreePage stores one node of a {@link BTreeFile}, or its
+ * meta page, and implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page starts with a byte giving its kind.  The meta page, page 0 of the
+ * file, then holds the number of the root page and the root's level.  A
+ * leaf holds its number of entries, the number of the next leaf (or -1),
+ * and its entries in order.  An internal node holds its number of
+ * separators n, its level (its children's level plus one, leaves being at
+ * level 0), the separators in order, and the numbers of its n + 1 child
+ * pages.  The entries of the subtree under child i are at least separator
+ * i - 1 and less than separator i.
+ *
+ * @see BTreeFile
+ * @see BufferPool
+ */
+public class BTreePage implements Page {
+
+    public static final byte META = 0, LEAF = 1, INTERNAL = 2;
+
+    // kind, then root and root level, or count and next leaf or level
+    private static final int HEADER_SIZE = 9;
+
+    private final BTreePageId pid;
+    private final Type keyType;
+    private byte kind;
+    // META: the root page and its level
+    private int root, rootLevel;
+    // LEAF: the next leaf, or -1; INTERNAL: the level
+    private int next, level;
+    private ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+    private ArrayList<Integer> children = new ArrayList<Integer>();
+
+    private byte[] oldData;
+    private volatile TransactionId dirtier;
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk, in the
+     * format described above.  The type of the keys is that of the
+     * {@link BTreeFile} the page belongs to, which must be in the catalog.
+     */
+    public BTreePage(BTreePageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.keyType = ((BTreeFile) Database.getCatalog().getDbFile(id.getTableId())).getKeyType();
+        if (data.length < BufferPool.PAGE_SIZE)
+            throw new IOException("page data too short");
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        kind = dis.readByte();
+        try {
+            if (kind == META) {
+                root = dis.readInt();
+                rootLevel = dis.readInt();
+            } else {
+                int n = dis.readInt();
+                if (kind == LEAF)
+                    next = dis.readInt();
+                else
+                    level = dis.readInt();
+                for (int i = 0; i < n; i++)
+                    entries.add(new IndexEntry(keyType.parse(dis), dis.readInt(), dis.readInt()));
+                if (kind == INTERNAL)
+                    for (int i = 0; i <= n; i++)
+                        children.add(dis.readInt());
+            }
+        } catch (ParseException e) {
+            throw new IOException("could not parse key on " + id);
+        }
+        oldData = data.clone();
+    }
+
+    /**
+     * @return the bytes of an empty page of the given kind: a meta page
+     *         pointing to page 0, a leaf with no next leaf, or an internal
+     *         node with no separators and one child, page 0
+     */
+    static byte[] createEmptyPageData(byte kind) {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        data[0] = kind;
+        if (kind == LEAF)
+            Arrays.fill(data, 5, 9, (byte) 0xff);
+        return data;
+    }
+
+    /**
+     * @return the most entries a page of the given kind holds, for keys of
+     *         the given type
+     */
+    static int maxEntries(Type keyType, byte kind) {
+        int entrySize = keyType.getLen() + 8;
+        if (kind == INTERNAL)
+            entrySize += 4;
+        return (BufferPool.PAGE_SIZE - HEADER_SIZE) / entrySize;
+    }
+
+    /** @return true if this page holds more entries than fit on disk, and
+        must be split */
+    synchronized boolean isOverfull() {
+        return entries.size() > maxEntries(keyType, kind);
+    }
+
+    public BTreePageId getId() {
+        return pid;
+    }
+
+    synchronized byte getKind() {
+        return kind;
+    }
+
+    synchronized boolean isLeaf() {
+        return kind == LEAF;
+    }
+
+    /** @return the number of the root page, if this is the meta page */
+    synchronized int getRoot() {
+        return root;
+    }
+
+    /** @return the level of the root page, if this is the meta page */
+    synchronized int getRootLevel() {
+        return rootLevel;
+    }
+
+    /** Points this meta page to a new root. */
+    synchronized void setRoot(int root, int rootLevel) {
+        this.root = root;
+        this.rootLevel = rootLevel;
+    }
+
+    /** @return the level of this node; 0 for a leaf */
+    synchronized int getLevel() {
+        return kind == LEAF ? 0 : level;
+    }
+
+    /** Makes this page an internal node at the given level whose only
+        child is the given page. */
+    synchronized void initInternal(int level, int child) {
+        kind = INTERNAL;
+        this.level = level;
+        entries.clear();
+        children.clear();
+        children.add(child);
+    }
+
+    /** @return the number of the next leaf, or -1 if this is the last */
+    synchronized int getNext() {
+        return next;
+    }
+
+    synchronized void setNext(int next) {
+        this.next = next;
+    }
+
+    /** @return the number of entries of a leaf, or separators of a node */
+    synchronized int numEntries() {
+        return entries.size();
+    }
+
+    synchronized IndexEntry getEntry(int i) {
+        return entries.get(i);
+    }
+
+    /** @return a copy of the entries of this page from position i on */
+    synchronized List<IndexEntry> entriesFrom(int i) {
+        return new ArrayList<IndexEntry>(entries.subList(i, entries.size()));
+    }
+
+    synchronized int getChild(int i) {
+        return children.get(i);
+    }
+
+    /** @return the position of the first entry at least e, or
+        numEntries() if there is none */
+    synchronized int lowerBound(IndexEntry e) {
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).compareTo(e) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the position of the child of this node whose subtree e
+        belongs in */
+    synchronized int childIndex(IndexEntry e) {
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).compareTo(e) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** Puts an entry on a leaf at the given position. */
+    synchronized void insertEntry(int i, IndexEntry e) {
+        entries.add(i, e);
+    }
+
+    synchronized void removeEntry(int i) {
+        entries.remove(i);
+    }
+
+    /** Adds a separator at position i of a node, and the page of the
+        subtree of entries from that separator on as child i + 1. */
+    synchronized void insertChild(int i, IndexEntry separator, int child) {
+        entries.add(i, separator);
+        children.add(i + 1, child);
+    }
+
+    /**
+     * Moves the upper half of this page's entries to right, an empty page
+     * of the same kind that becomes this one's right sibling.
+     *
+     * @return the separator between the two pages, which is the smallest
+     *         entry of right's subtree; for a node, it is taken out of this
+     *         page's separators rather than moved
+     */
+    synchronized IndexEntry split(BTreePage right) {
+        int n = entries.size(), mid = n / 2;
+        right.kind = kind;
+        right.entries.clear();
+        right.children.clear();
+        if (kind == LEAF) {
+            right.entries.addAll(entries.subList(mid, n));
+            entries.subList(mid, n).clear();
+            right.next = next;
+            next = right.pid.pageNumber();
+            return right.entries.get(0);
+        }
+        IndexEntry up = entries.get(mid);
+        right.level = level;
+        right.entries.addAll(entries.subList(mid + 1, n));
+        right.children.addAll(children.subList(mid + 1, n + 1));
+        entries.subList(mid, n).clear();
+        children.subList(mid + 1, n + 1).clear();
+        return up;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in
+     * the format the constructor reads.
+     */
+    public synchronized byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(kind);
+            if (kind == META) {
+                dos.writeInt(root);
+                dos.writeInt(rootLevel);
+            } else {
+                dos.writeInt(entries.size());
+                dos.writeInt(kind == LEAF ? next : level);
+                for (IndexEntry e : entries) {
+                    e.key.serialize(dos);
+                    dos.writeInt(e.page);
+                    dos.writeInt(e.slot);
+                }
+                if (kind == INTERNAL)
+                    for (int child : children)
+                        dos.writeInt(child);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.PAGE_SIZE);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public BTreePage getBeforeImage() {
+        try {
+            return new BTreePage(pid, oldData);
+        } catch (IOException e) {
+            // we parsed it before, so this should never happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+}
@@ -0,0 +1,24 @@
+package simpledb;
+
+/**
+ * BatchDbIterator is a DbIterator that can also hand out its tuples a batch
+ * at a time, stored column by column, so that operators can work through a
+ * whole batch in a tight loop instead of paying a few virtual calls per
+ * tuple.  A consumer should use either {@link #nextBatch} or
+ * <code>hasNext</code>/<code>next</code> between an open (or rewind) and a
+ * close, not both.
+ *
+ * @see TupleBatch#next
+ */
+public interface BatchDbIterator extends DbIterator {
+
+    /**
+     * Returns the next batch of tuples.  The batch holds at least one tuple
+     * and at most {@link TupleBatch#DEFAULT_SIZE}; the caller owns it and may
+     * modify it.
+     *
+     * @return the next batch, or null if there are no more tuples.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
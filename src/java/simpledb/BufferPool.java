@@ -22,10 +22,56 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of record locks a transaction may hold on one table before
+        they are escalated to a single table lock. */
+    public static final int LOCK_ESCALATION_THRESHOLD = 1000;
+
     private Map<PageId, Page> pMap;
     private Map<PageId, Date> times;
     private int max;
     private LockManager lockManager;
+    /** Running transactions that have asked to write, with the pages they
+        have inserted into or deleted from.  Transactions not listed are
+        read-only so far. */
+    private Map<TransactionId, Set<PageId>> writtenPages;
+
+    /** Whether scans read snapshots instead of taking locks. */
+    private boolean multiVersion;
+    /** Timestamp of the latest commit; commits are numbered from 1. */
+    private long commitClock;
+    /** Snapshot of each running transaction: the commitClock it started at. */
+    private Map<TransactionId, Long> snapshots;
+    /** Timestamps handed to transactions that are committing. */
+    private Map<TransactionId, Long> commitTimes;
+    /** Commit timestamp of the current committed contents of each page;
+        pages not listed have been unchanged since before timestamp 0. */
+    private Map<PageId, Long> pageTimes;
+    /** Older committed versions of pages still visible to some snapshot,
+        keyed by the commit timestamp that produced them. */
+    private Map<PageId, TreeMap<Long, Page>> versions;
+
+    /** State of the running optimistic transactions. */
+    private Map<TransactionId, Workspace> workspaces;
+
+    /** The LSM table each running transaction has changed, which keeps
+        its changes itself until it completes. */
+    private Map<TransactionId, LsmFile> lsmWrites;
+
+    /**
+     * What an optimistic transaction has done so far: the version of every
+     * page it has read, and private copies of the pages it has changed,
+     * with the version each copy was made from.
+     */
+    private static class Workspace {
+	Map<PageId, Long> reads = new HashMap<PageId, Long>();
+	Map<PageId, Long> bases = new HashMap<PageId, Long>();
+	Map<PageId, HeapPage> copies = new HashMap<PageId, HeapPage>();
+    }
+
+    /** File the resident page ids are dumped to for warm restarts, or null
+        if warm restart is disabled. */
+    private File pageDumpFile;
+    private Thread pageLoader;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -36,7 +82,14 @@ public class BufferPool {
 	pMap = new HashMap<PageId, Page>();
 	times = new HashMap<PageId, Date>();
 	max = numPages;
-	lockManager = new LockManager();
+	lockManager = new LockManager(LOCK_ESCALATION_THRESHOLD);
+	writtenPages = new HashMap<TransactionId, Set<PageId>>();
+	snapshots = new HashMap<TransactionId, Long>();
+	commitTimes = new HashMap<TransactionId, Long>();
+	pageTimes = new HashMap<PageId, Long>();
+	versions = new HashMap<PageId, TreeMap<Long, Page>>();
+	workspaces = new HashMap<TransactionId, Workspace>();
+	lsmWrites = new HashMap<TransactionId, LsmFile>();
     }
 
     /**
@@ -57,8 +110,426 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+	if (isOptimistic(tid))
+	    return workspacePage(tid, pid, true);
+	waitForLock(tid, pid, perm, false);
+	if (!perm.equals(Permissions.READ_ONLY))
+	    noteWriter(tid);
+	return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page that is never changed once written, such as a page of
+     * a run of an {@link LsmFile}.  No lock is taken on the page: its
+     * readers lock the whole table with {@link #lockTable}.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getImmutablePage(PageId pid) throws DbException {
+	return fetchPage(pid);
+    }
+
+    /**
+     * Locks a whole table, for tables such as an {@link LsmFile} whose
+     * changes are not made to pages: S to read it, X to change it while
+     * excluding every other transaction.  Will
+     * block if the lock is held by another transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY to read the table, READ_WRITE to change it
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+	throws TransactionAbortedException {
+	if (isOptimistic(tid))
+	    return;
+	waitForLock(tid, new LockManager.TableKey(tableId), perm, false);
+    }
+
+    /**
+     * Takes an IX lock on an {@link LsmFile} tid is about to change.  Its
+     * changes are kept apart until it completes, so other transactions may
+     * change the table at the same time; a scan's S lock still excludes
+     * them, and a transaction that scans the table and changes it ends up
+     * holding SIX.
+     */
+    private void lockTableForChanges(TransactionId tid, int tableId)
+	throws TransactionAbortedException {
+	if (!isOptimistic(tid))
+	    waitForLock(tid, new LockManager.TableKey(tableId), Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * Retrieve the specified page for reading or changing individual
+     * records on it.  Only intention locks are taken on the page and its
+     * table; the caller must lock each record it touches with
+     * {@link #lockRecord} or {@link #tryLockRecord}, so several
+     * transactions may change different records of the same page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm whether records of the page will be read or changed
+     */
+    public Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+	if (isOptimistic(tid))
+	    return workspacePage(tid, pid, perm.equals(Permissions.READ_ONLY));
+	waitForLock(tid, pid, perm, true);
+	if (!perm.equals(Permissions.READ_ONLY))
+	    noteWriter(tid);
+	return fetchPage(pid);
+    }
+
+    /**
+     * Locks a single record, blocking if another transaction holds a
+     * conflicting lock on it.  The page must have been retrieved with
+     * {@link #getPageForRecords} first.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the record to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+	if (!isOptimistic(tid))
+	    waitForLock(tid, rid, perm, false);
+    }
+
+    /**
+     * Like {@link #lockRecord}, but returns false instead of waiting if the
+     * lock cannot be granted right away.
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm) {
+	if (isOptimistic(tid))
+	    return true;
+	return lockManager.lockRecord(tid, rid, perm);
+    }
+
+    /**
+     * Turns multi-version reads on or off.  With multi-version reads on, a
+     * transaction reads every page it has not changed itself as of the
+     * moment it first touched the database, without taking any locks, so
+     * readers and writers never wait for each other.  Writers still lock
+     * the records they change, and a transaction that deletes a record on
+     * a page committed to after its snapshot is aborted, so the first
+     * committer wins.
+     */
+    public synchronized void setMultiVersion(boolean on) {
+	multiVersion = on;
+    }
+
+    /**
+     * Return true if tid should read the page from its snapshot with
+     * {@link #getSnapshotTuples} instead of locking it.
+     */
+    public synchronized boolean readsSnapshot(TransactionId tid, PageId pid) {
+	Workspace ws = workspaces.get(tid);
+	if (ws != null)
+	    return !ws.copies.containsKey(pid);
+	if (!multiVersion)
+	    return false;
+	Set<PageId> written = writtenPages.get(tid);
+	return written == null || !written.contains(pid);
+    }
+
+    /**
+     * Return true if tid may read heap pages from a snapshot or a private
+     * copy, which indexes know nothing about, so that tid cannot use them.
+     */
+    public synchronized boolean readsSnapshots(TransactionId tid) {
+	return multiVersion || workspaces.containsKey(tid);
+    }
+
+    /**
+     * Returns the tuples of a heap page as of tid's snapshot.  No locks
+     * are taken: the tuples come from an older version of the page if it
+     * was committed to since the snapshot, from its before image if it has
+     * uncommitted changes, and from the cached page otherwise.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the requested page
+     */
+    public synchronized Iterator<Tuple> getSnapshotTuples(TransactionId tid, HeapPageId pid)
+	throws DbException {
+	Workspace ws = workspaces.get(tid);
+	if (ws != null)
+	    {
+		if (!ws.reads.containsKey(pid))
+		    ws.reads.put(pid, pageTime(pid));
+		return committedPage(pid).iterator();
+	    }
+	long snapshot = snapshotOf(tid);
+	Long committed = pageTimes.get(pid);
+	if (committed != null && committed > snapshot)
+	    {
+		TreeMap<Long, Page> v = versions.get(pid);
+		Map.Entry<Long, Page> e = v == null ? null : v.floorEntry(snapshot);
+		if (e == null)
+		    throw new DbException("No version of " + pid + " old enough for snapshot.");
+		return ((HeapPage) e.getValue()).iterator();
+	    }
+	return committedPage(pid).iterator();
+    }
+
+    /**
+     * Returns the committed contents of a heap page: the cached page
+     * itself if nobody has uncommitted changes on it, else its before
+     * image.  The cached page is only safe to read under this monitor.
+     */
+    private HeapPage committedPage(PageId pid) throws DbException {
+	HeapPage hp = (HeapPage) fetchPage(pid);
+	synchronized (hp)
+	    {
+		// writers change records under the page's monitor, so checking
+		// here means nothing uncommitted slips through
+		if (hp.isDirty() == null && hp.rowWriters().isEmpty())
+		    return hp;
+	    }
+	return hp.getBeforeImage();
+    }
+
+    private long pageTime(PageId pid) {
+	Long ts = pageTimes.get(pid);
+	return ts == null ? 0 : ts;
+    }
+
+    /**
+     * Makes tid an optimistic transaction: instead of locking, it works on
+     * private copies of the pages it changes, and {@link #validate} checks
+     * at commit that nothing it read or changed was committed to by
+     * someone else in the meantime.
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+	if (!workspaces.containsKey(tid))
+	    workspaces.put(tid, new Workspace());
+    }
+
+    /** Return true if tid is running optimistically */
+    public synchronized boolean isOptimistic(TransactionId tid) {
+	return workspaces.containsKey(tid);
+    }
+
+    /**
+     * Returns tid's private copy of a page, copying its committed contents
+     * the first time.
+     *
+     * @param read whether tid is going to read the page, so that
+     *   validation should check nobody committed to it since the copy
+     */
+    private synchronized Page workspacePage(TransactionId tid, PageId pid, boolean read)
+	throws DbException {
+	Workspace ws = workspaces.get(tid);
+	HeapPage copy = ws.copies.get(pid);
+	if (copy == null)
+	    {
+		HeapPage committed = committedPage(pid);
+		try
+		    {
+			copy = new HeapPage((HeapPageId) pid, committed.getPageData());
+		    }
+		catch (IOException e)
+		    {
+			throw new DbException("Could not copy " + pid);
+		    }
+		ws.copies.put(pid, copy);
+		ws.bases.put(pid, pageTime(pid));
+	    }
+	if (read && !ws.reads.containsKey(pid))
+	    ws.reads.put(pid, ws.bases.get(pid));
+	return copy;
+    }
+
+    /**
+     * Validates an optimistic transaction that is about to commit, and if
+     * it passes, installs its changes into the cached pages so they are
+     * flushed and logged like any other transaction's.  Validation fails
+     * if a page tid read has been committed to since, or if a slot tid
+     * changed no longer holds what tid's copy started from.  The slots
+     * are X-locked without waiting, so uncommitted changes by locking
+     * transactions count as conflicts too.  Does nothing for transactions
+     * that are not optimistic.
+     *
+     * @throws TransactionAbortedException if tid conflicts with another
+     *   transaction; the caller must then abort it
+     */
+    public void validate(TransactionId tid)
+	throws TransactionAbortedException, DbException {
+	List<Tuple> removed = new ArrayList<Tuple>(), added = new ArrayList<Tuple>();
+	List<RecordId> removedFrom = new ArrayList<RecordId>();
+	installWorkspace(tid, removed, removedFrom, added);
+	// tid is no longer optimistic, so it locks the index pages it changes
+	// like any other transaction
+	for (int i = 0 ; i < removed.size() ; i++)
+	    {
+		RecordId rid = removedFrom.get(i);
+		updateIndexes(tid, rid.getPageId().getTableId(), removed.get(i), rid);
+	    }
+	for (Tuple t : added)
+	    updateIndexes(tid, t.getRecordId().getPageId().getTableId(), t, null);
+    }
+
+    /**
+     * The part of {@link #validate} done holding the buffer pool's monitor:
+     * checks tid's workspace and installs it.
+     *
+     * @param removed gets the tuples tid's changes took out of slots
+     * @param removedFrom gets the RecordIds those tuples had
+     * @param added gets the tuples tid's changes put into slots
+     */
+    private synchronized void installWorkspace(TransactionId tid, List<Tuple> removed,
+					       List<RecordId> removedFrom, List<Tuple> added)
+	throws TransactionAbortedException, DbException {
+	Workspace ws = workspaces.get(tid);
+	if (ws == null)
+	    return;
+	for (Map.Entry<PageId, Long> read : ws.reads.entrySet())
+	    if (pageTime(read.getKey()) != read.getValue())
+		throw new TransactionAbortedException();
+
+	Map<PageId, Map<Integer, Boolean>> changes = new HashMap<PageId, Map<Integer, Boolean>>();
+	for (HeapPage copy : ws.copies.values())
+	    {
+		PageId pid = copy.getId();
+		Map<Integer, Boolean> slots = copy.changedSlots(tid);
+		if (slots.isEmpty())
+		    continue;
+		if (!lockManager.lockPageForRecords(tid, pid, Permissions.READ_WRITE))
+		    throw new TransactionAbortedException();
+		boolean moved = pageTime(pid) != ws.bases.get(pid);
+		HeapPage committed = moved ? committedPage(pid) : null;
+		for (Map.Entry<Integer, Boolean> slot : slots.entrySet())
+		    {
+			if (!lockManager.lockRecord(tid, new RecordId(pid, slot.getKey()), Permissions.READ_WRITE))
+			    throw new TransactionAbortedException();
+			if (moved && committed.isSlotUsed(slot.getKey()) != slot.getValue())
+			    throw new TransactionAbortedException();
+		    }
+		changes.put(pid, slots);
+	    }
+
+	// no conflicts: copy the changed slots into the cached pages
+	if (!changes.isEmpty())
+	    noteWriter(tid);
+	for (Map.Entry<PageId, Map<Integer, Boolean>> e : changes.entrySet())
+	    {
+		PageId pid = e.getKey();
+		HeapPage copy = ws.copies.get(pid);
+		HeapPage hp = (HeapPage) fetchPage(pid);
+		synchronized (hp)
+		    {
+			for (int slot : e.getValue().keySet())
+			    {
+				Tuple old = hp.getTuple(slot);
+				if (old != null)
+				    {
+					removed.add(old);
+					removedFrom.add(old.getRecordId());
+					hp.deleteTuple(old, tid);
+				    }
+				Tuple t = copy.getTuple(slot);
+				if (t != null)
+				    {
+					hp.insertTuple(t, slot, tid);
+					added.add(t);
+				    }
+			    }
+		    }
+		hp.markDirty(true, tid);
+		times.put(pid, new Date());
+		noteWritten(tid, pid);
+	    }
+	workspaces.remove(tid);
+    }
+
+    private long snapshotOf(TransactionId tid) {
+	Long snapshot = snapshots.get(tid);
+	if (snapshot == null)
+	    {
+		snapshot = commitClock;
+		snapshots.put(tid, snapshot);
+	    }
+	return snapshot;
+    }
+
+    /**
+     * Aborts tid if the page has been committed to since tid's snapshot:
+     * whatever tid read of it may have changed underneath.
+     */
+    private synchronized void checkWriteConflict(TransactionId tid, PageId pid)
+	throws TransactionAbortedException {
+	Long committed = pageTimes.get(pid);
+	if (committed != null && committed > snapshotOf(tid))
+	    throw new TransactionAbortedException();
+    }
+
+    /**
+     * Stamps a page with tid's commit timestamp, first keeping its current
+     * committed contents as a version if a running snapshot still needs them.
+     */
+    private void stampVersion(TransactionId tid, Page p) {
+	Long ts = commitTimes.get(tid);
+	if (ts == null)
+	    {
+		ts = ++commitClock;
+		commitTimes.put(tid, ts);
+	    }
+	PageId pid = p.getId();
+	Long old = pageTimes.get(pid);
+	long oldTs = old == null ? 0 : old;
+	for (Map.Entry<TransactionId, Long> e : snapshots.entrySet())
+	    if (e.getValue() >= oldTs && e.getValue() < ts && e.getKey() != tid)
+		{
+		    TreeMap<Long, Page> v = versions.get(pid);
+		    if (v == null)
+			{
+			    v = new TreeMap<Long, Page>();
+			    versions.put(pid, v);
+			}
+		    v.put(oldTs, p.getBeforeImage());
+		    break;
+		}
+	pageTimes.put(pid, ts);
+    }
+
+    /**
+     * Drops page versions that no running snapshot can see any more.
+     */
+    private void collectVersions() {
+	if (versions.isEmpty())
+	    return;
+	long oldest = Long.MAX_VALUE;
+	for (Long snapshot : snapshots.values())
+	    oldest = Math.min(oldest, snapshot);
+	Iterator<Map.Entry<PageId, TreeMap<Long, Page>>> it = versions.entrySet().iterator();
+	while (it.hasNext())
+	    {
+		Map.Entry<PageId, TreeMap<Long, Page>> e = it.next();
+		TreeMap<Long, Page> v = e.getValue();
+		// a version is visible to snapshots from its own timestamp up
+		// to the next version's, or the page's current one
+		Long next = pageTimes.get(e.getKey());
+		for (Long ts : new ArrayList<Long>(v.descendingKeySet()))
+		    {
+			if (next <= oldest)
+			    v.remove(ts);
+			next = ts;
+		    }
+		if (v.isEmpty())
+		    it.remove();
+	    }
+    }
+
+    /**
+     * Polls the lock manager until the lock on key is granted, aborting
+     * the transaction if it waits too long.
+     *
+     * @param forRecords if key is a PageId or a table, take only intention
+     *   locks on it
+     */
+    private void waitForLock(TransactionId tid, Object key, Permissions perm, boolean forRecords)
+	throws TransactionAbortedException {
 	long initTime = System.currentTimeMillis();
-	boolean hazLock = lockManager.setLock(pid, tid, perm);
+	boolean hazLock = tryLock(tid, key, perm, forRecords);
 	while (!hazLock)
 	    {
 		long currTime = System.currentTimeMillis();
@@ -67,20 +538,37 @@ public class BufferPool {
 		try
 		    {
 			Thread.sleep(15);
-			hazLock = lockManager.setLock(pid, tid, perm);
+			hazLock = tryLock(tid, key, perm, forRecords);
 		    }
 		catch (InterruptedException e)
 		    {
 			e.printStackTrace();
 		    }
 	    }
+    }
 
+    private boolean tryLock(TransactionId tid, Object key, Permissions perm, boolean forRecords) {
+	if (key instanceof LockManager.TableKey && forRecords)
+	    return lockManager.lockTableForRecords(tid, (LockManager.TableKey) key, perm);
+	if (key instanceof LockManager.TableKey)
+	    return lockManager.lockTable(tid, (LockManager.TableKey) key, perm);
+	if (key instanceof RecordId)
+	    return lockManager.lockRecord(tid, (RecordId) key, perm);
+	if (forRecords)
+	    return lockManager.lockPageForRecords(tid, (PageId) key, perm);
+	return lockManager.lockPage(tid, (PageId) key, perm);
+    }
 
-        if (pMap.containsKey(pid))
+    /**
+     * Returns the cached copy of a page, reading it in (and evicting
+     * another page if needed) if it is not resident.
+     */
+    private synchronized Page fetchPage(PageId pid) throws DbException {
+	if (pMap.containsKey(pid))
 	    {
 		times.put(pid, new Date());
 		return pMap.get(pid);
-	    }		
+	    }
 	Catalog cat = Database.getCatalog();
 	Page p = cat.getDbFile(pid.getTableId()).readPage(pid);
 	if (pMap.size() >= max)
@@ -99,10 +587,19 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
-    public  void releasePage(TransactionId tid, PageId pid) {
+    public synchronized void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for proj1
-	lockManager.releaseLock(pid, tid);
+	Workspace ws = workspaces.get(tid);
+	if (ws != null)
+	    {
+		// an untouched private copy is not worth keeping
+		HeapPage copy = ws.copies.get(pid);
+		if (copy != null && !ws.reads.containsKey(pid) && copy.changedSlots(tid).isEmpty())
+		    ws.copies.remove(pid);
+		return;
+	    }
+	lockManager.release(tid, pid);
     }
 
     /**
@@ -117,45 +614,230 @@ public class BufferPool {
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
-    public boolean holdsLock(TransactionId tid, PageId p) {
+    public synchronized boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for proj1
-        return lockManager.holdsLock(p, tid);
+	Workspace ws = workspaces.get(tid);
+	if (ws != null)
+	    return ws.copies.containsKey(p);
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  If the changes tid made to LSM tables cannot be
+     * committed, the transaction is aborted instead.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws IOException if tid was to commit but its changes to an LSM
+     *   table could not be; it has been aborted
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for proj1
-	Collection<Page> pagesss = pMap.values();
 	if (commit)
 	    {
-		for (Page p : pagesss)
+		try
 		    {
-			if (p.isDirty() != null && p.isDirty().equals(tid))
-			    {
-				flushPage(p.getId());
-				p.setBeforeImage();
-			    }
-			if (p.isDirty() == null)
-			    p.setBeforeImage();
+			commitLsmWrites(tid);
+		    }
+		catch (IOException e)
+		    {
+			completePages(tid, false);
+			throw e;
 		    }
-		lockManager.releaseAllLocks(tid);
+	    }
+	completePages(tid, commit);
+    }
+
+    /**
+     * Commits the changes tid made to an LSM table, forcing them to the
+     * table's log.  As a transaction that changes an LSM table changes
+     * nothing else (see {@link #insertTuple}), this is its commit point,
+     * and it logs no COMMIT record.  Runs outside this pool's lock, as the
+     * table may have to wait for the background thread to write out a
+     * memtable.
+     *
+     * @throws IOException if the changes could not be committed; tid must
+     *   then be aborted
+     */
+    public void commitLsmWrites(TransactionId tid) throws IOException {
+	LsmFile lsm;
+	synchronized (this)
+	    {
+		lsm = lsmWrites.remove(tid);
+	    }
+	if (lsm != null)
+	    lsm.commit(tid);
+    }
+
+    /**
+     * Commits or aborts the pages tid changed, drops whatever changes to
+     * LSM tables it has not committed, and releases its locks.
+     */
+    private synchronized void completePages(TransactionId tid, boolean commit)
+	throws IOException {
+	workspaces.remove(tid);
+	if (snapshots.remove(tid) != null)
+	    collectVersions();
+	LsmFile lsm = lsmWrites.remove(tid);
+	if (lsm != null)
+	    lsm.abort(tid);
+	if (!writtenPages.containsKey(tid))
+	    {
+		// read-only: there is nothing to flush or undo
+		lockManager.releaseAll(tid);
+		return;
+	    }
+	Set<PageId> pids = pagesWrittenBy(tid);
+	writtenPages.remove(tid);
+	if (commit)
+	    {
+		commitPages(tid, pids);
+		for (Page p : pMap.values())
+		    if (p.isDirty() == null)
+			p.setBeforeImage();
 	    }
 	else
 	    {
-		for (Page p :pagesss)
-		    if (p.isDirty() != null && p.isDirty().equals(tid))
-			pMap.put(p.getId(), p.getBeforeImage());
-		lockManager.releaseAllLocks(tid);
+		for (PageId pid : pids)
+		    abortPage(tid, pid);
+	    }
+	commitTimes.remove(tid);
+	lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Returns the resident pages tid has changed: those it dirtied last,
+     * plus those it changed records on alongside other transactions.
+     */
+    private Set<PageId> pagesWrittenBy(TransactionId tid) {
+	Set<PageId> pids = new HashSet<PageId>();
+	Set<PageId> written = writtenPages.get(tid);
+	if (written != null)
+	    pids.addAll(written);
+	for (Page p : pMap.values())
+	    if (p.isDirty() != null && p.isDirty().equals(tid))
+		pids.add(p.getId());
+	return pids;
+    }
+
+    /**
+     * Writes tid's changes to the given pages to disk.  All the UPDATE
+     * records are appended first and the log is forced once; then the
+     * pages are written in file and page order, so that runs of
+     * consecutive pages go out in one write.  If other transactions still
+     * have uncommitted record changes on a page, those are left out of
+     * what is written, and stay in the cached page.
+     */
+    private synchronized void commitPages(TransactionId tid, Collection<PageId> pids)
+	throws IOException {
+	List<Page> cached = new ArrayList<Page>();
+	List<Page> images = new ArrayList<Page>();
+	List<TransactionId> heirs = new ArrayList<TransactionId>();
+	for (PageId pid : pids)
+	    {
+		Page p = pMap.get(pid);
+		if (p == null)
+		    continue;
+		Set<TransactionId> others = new HashSet<TransactionId>();
+		if (p instanceof HeapPage)
+		    others = ((HeapPage) p).rowWriters();
+		boolean wrote = others.remove(tid);
+		if (!wrote && (p.isDirty() == null || !p.isDirty().equals(tid)))
+		    continue;
+		stampVersion(tid, p);
+		Page image = p;
+		if (!others.isEmpty())
+		    image = ((HeapPage) p).committedImage(tid);
+		else if (p.isDirty() == null)
+		    {
+			// already written out by flushAllPages
+			((HeapPage) p).forgetRowChanges(tid);
+			continue;
+		    }
+		Database.getLogFile().logWrite(tid, p.getBeforeImage(), image);
+		cached.add(p);
+		images.add(image);
+		heirs.add(others.isEmpty() ? null : others.iterator().next());
+	    }
+	if (images.isEmpty())
+	    return;
+	Database.getLogFile().force();
+	writePages(images);
+
+	for (int i = 0 ; i < cached.size() ; i++)
+	    {
+		Page p = cached.get(i);
+		if (p instanceof HeapPage)
+		    ((HeapPage) p).forgetRowChanges(tid);
+		if (heirs.get(i) == null)
+		    {
+			p.setBeforeImage();
+			continue;
+		    }
+		// the page stays dirty with the other writers' changes
+		((HeapPage) p).setBeforeImage(images.get(i).getPageData());
+		if (p.isDirty() != null && p.isDirty().equals(tid))
+		    p.markDirty(true, heirs.get(i));
+	    }
+    }
+
+    /**
+     * Writes pages to their files, sorted by table and page number.  Heap
+     * files get all their pages in one call so contiguous pages can be
+     * written together.
+     */
+    private void writePages(List<Page> pages) throws IOException {
+	List<Page> sorted = new ArrayList<Page>(pages);
+	Collections.sort(sorted, new Comparator<Page>() {
+		public int compare(Page a, Page b) {
+		    int ta = a.getId().getTableId(), tb = b.getId().getTableId();
+		    if (ta != tb)
+			return ta < tb ? -1 : 1;
+		    return a.getId().pageNumber() - b.getId().pageNumber();
+		}
+	    });
+	int i = 0;
+	while (i < sorted.size())
+	    {
+		int tableId = sorted.get(i).getId().getTableId();
+		int j = i;
+		while (j < sorted.size() && sorted.get(j).getId().getTableId() == tableId)
+		    j++;
+		DbFile file = Database.getCatalog().getDbFile(tableId);
+		if (file instanceof HeapFile)
+		    ((HeapFile) file).writePages(sorted.subList(i, j));
+		else
+		    for (Page p : sorted.subList(i, j))
+			file.writePage(p);
+		i = j;
+	    }
+    }
+
+    /**
+     * Reverts tid's changes to a page.  Record changes made alongside other
+     * transactions are undone one by one; a page tid had to itself is
+     * simply replaced by its before image.
+     */
+    private synchronized void abortPage(TransactionId tid, PageId pid) {
+	Page p = pMap.get(pid);
+	if (p == null)
+	    return;
+	if (p instanceof HeapPage && !lockManager.holdsExclusive(tid, pid))
+	    {
+		HeapPage hp = (HeapPage) p;
+		hp.undoRowChanges(tid);
+		Set<TransactionId> others = hp.rowWriters();
+		if (others.isEmpty())
+		    hp.markDirty(false, null);
+		else if (hp.isDirty() != null && hp.isDirty().equals(tid))
+		    hp.markDirty(true, others.iterator().next());
 	    }
+	else if (p.isDirty() != null && p.isDirty().equals(tid))
+	    pMap.put(pid, p.getBeforeImage());
     }
 
     /**
@@ -167,6 +849,11 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * An {@link LsmFile} takes an IX lock on the table, and keeps the tuple
+     * with tid's other changes to it instead, until tid completes, and
+     * changes no page.  A transaction that changes an LSM table may change
+     * no other table, LSM or not: the table commits its changes on its own,
+     * which is only atomic if they are all the transaction made.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -177,13 +864,63 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
 	// proj2
-	HeapFile hf = (HeapFile) (Database.getCatalog().getDbFile(tableId));
-	ArrayList<Page> pages = hf.insertTuple(tid, t);
+	DbFile file = Database.getCatalog().getDbFile(tableId);
+	if (file instanceof LsmFile)
+	    {
+		lockTableForChanges(tid, tableId);
+		noteLsmWrite(tid, (LsmFile) file);
+		file.insertTuple(tid, t);
+		return;
+	    }
+	ArrayList<Page> pages = file.insertTuple(tid, t);
+	// an optimistic transaction changed its private copies; nothing to do
+	// until it commits
+	if (isOptimistic(tid))
+	    return;
+	markWritten(tid, pages);
+	updateIndexes(tid, tableId, t, null);
+    }
+
+    /**
+     * Marks pages tid changed as dirty, and caches them if they were added
+     * to their file.
+     */
+    private synchronized void markWritten(TransactionId tid, List<Page> pages)
+	throws DbException {
 	for (Page pagina : pages)
 	    {
 		pagina.markDirty(true, tid);
 		pMap.put(pagina.getId(), pagina);
 		times.put(pagina.getId(), new Date());
+		noteWritten(tid, pagina.getId());
+	    }
+    }
+
+    /**
+     * Adds the entries of a tuple just inserted into a table to the table's
+     * indexes, or removes those of a tuple just deleted from it.
+     *
+     * @param deleted the RecordId the tuple had if it was deleted, which it
+     *   has lost; null if it was inserted
+     */
+    private void updateIndexes(TransactionId tid, int tableId, Tuple t, RecordId deleted)
+	throws DbException, TransactionAbortedException {
+	for (IndexFile index : Database.getCatalog().getIndexes(tableId))
+	    {
+		if (deleted != null)
+		    {
+			Page page = index.deleteEntry(tid, t.getField(index.getKeyField()), deleted);
+			markWritten(tid, Collections.singletonList(page));
+			continue;
+		    }
+		try
+		    {
+			markWritten(tid, index.insertTuple(tid, t));
+		    }
+		catch (IOException e)
+		    {
+			throw new DbException("Could not extend index: " + e.getMessage());
+		    }
 	    }
     }
 
@@ -195,7 +932,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
      * been dirtied, as it is not possible that a new page was created during the deletion
-     * (note difference from addTuple).
+     * (note difference from addTuple).  As for {@link #insertTuple}, an
+     * {@link LsmFile} keeps the deletion itself until tid completes.
      *
      * @param tid the transaction adding the tuple.
      * @param t the tuple to add
@@ -205,15 +943,91 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
 	// proj2
-	int tabID = t.getRecordId().getPageId().getTableId();
-	HeapFile hf = (HeapFile) (Database.getCatalog().getDbFile(tabID));
-	Page pa = hf.deleteTuple(tid, t);
-	times.put(pa.getId(), new Date());
-	pa.markDirty(true, tid);
+	RecordId rid = t.getRecordId();
+	int tabID = rid.getPageId().getTableId();
+	DbFile file = Database.getCatalog().getDbFile(tabID);
+	if (file instanceof LsmFile)
+	    {
+		// a delete reads the tuple first, so holds SIX on the table
+		lockTable(tid, tabID, Permissions.READ_ONLY);
+		lockTableForChanges(tid, tabID);
+		noteLsmWrite(tid, (LsmFile) file);
+		file.deleteTuple(tid, t);
+		return;
+	    }
+	if (multiVersion && !isOptimistic(tid))
+	    checkWriteConflict(tid, rid.getPageId());
+	Page pa = file.deleteTuple(tid, t);
+	if (isOptimistic(tid))
+	    return;
+	synchronized (this)
+	    {
+		times.put(pa.getId(), new Date());
+		pa.markDirty(true, tid);
+		noteWritten(tid, pa.getId());
+	    }
+	// someone may have committed to the page while we waited for the lock
+	if (multiVersion)
+	    checkWriteConflict(tid, pa.getId());
+	updateIndexes(tid, tabID, t, rid);
+    }
+
+    /**
+     * Records that tid has changed an LSM table, which has to be told when
+     * tid completes.  The table keeps the changes, not any page, so they
+     * are not flushed here.  The table's log commits them on its own, so
+     * tid may change no other table, as its changes to it could then be
+     * committed when those to the other are not.
+     *
+     * @throws DbException if tid has changed another table
+     */
+    private synchronized void noteLsmWrite(TransactionId tid, LsmFile file)
+	throws DbException {
+	LsmFile current = lsmWrites.get(tid);
+	if (writtenPages.containsKey(tid) || (current != null && current != file))
+	    throw new DbException("A transaction that changes an LSM table cannot change other tables.");
+	lsmWrites.put(tid, file);
+    }
+
+    private void noteWritten(TransactionId tid, PageId pid) throws DbException {
+	noteWriter(tid).add(pid);
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Records that tid writes, and on its first write, has the log write
+     * the BEGIN record it deferred.  This must happen before tid changes
+     * any page, as recovery cannot make sense of UPDATE records without a
+     * BEGIN; if the BEGIN cannot be written, tid is not recorded as a
+     * writer and the change must not be made.
+     *
+     * @return the pages tid has inserted into or deleted from so far
+     * @throws DbException if the BEGIN record could not be written, or tid
+     *   has changed an LSM table (see {@link #noteLsmWrite})
+     */
+    private synchronized Set<PageId> noteWriter(TransactionId tid) throws DbException {
+	Set<PageId> pids = writtenPages.get(tid);
+	if (pids == null)
+	    {
+		if (lsmWrites.containsKey(tid))
+		    throw new DbException("A transaction that changes an LSM table cannot change other tables.");
+		try
+		    {
+			Database.getLogFile().logDeferredBegin(tid);
+		    }
+		catch (IOException e)
+		    {
+			throw new DbException("Could not log the start of transaction "
+					      + tid.getId() + ": " + e.getMessage());
+		    }
+		pids = new HashSet<PageId>();
+		writtenPages.put(tid, pids);
+	    }
+	return pids;
+    }
+
+    /**
+     * Flush all dirty pages to disk, and the zone maps of heap files, which
+     * writing pages only widens in memory.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
@@ -224,6 +1038,14 @@ public class BufferPool {
 	Set<PageId> pids = pMap.keySet();
 	for (PageId pid : pids)
 	    flushPage(pid);
+	Catalog cat = Database.getCatalog();
+	Iterator<Integer> it = cat.tableIdIterator();
+	while (it.hasNext())
+	    {
+		DbFile file = cat.getDbFile(it.next());
+		if (file instanceof HeapFile)
+		    ((HeapFile) file).saveZoneMap();
+	    }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -236,6 +1058,7 @@ public class BufferPool {
 	// not necessary for proj1
 	// proj2
 	pMap.remove(pid);
+	times.remove(pid);
     }
 
     /**
@@ -263,10 +1086,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
 	// proj2
-	Collection<Page> pages = pMap.values();
-	for (Page p : pages)
-	    if (p.isDirty() != null && p.isDirty().equals(tid))
-		flushPage(p.getId());
+	commitPages(tid, pagesWrittenBy(tid));
     }
 
     /**
@@ -319,131 +1139,149 @@ public class BufferPool {
 	    }
     }
 
-    private class LockManager{
-	private Map<PageId, TransactionId> exclusiveLocks;
-	private Map<TransactionId, Set<PageId>> exclusiveLockPages;
-	private Map<PageId, Set<TransactionId>> sharedLocks;
-	private Map<TransactionId, Set<PageId>> sharedLockPages;
-
-	public LockManager()
-	{
-	    exclusiveLocks = new HashMap<PageId, TransactionId>();
-	    exclusiveLockPages = new HashMap<TransactionId, Set<PageId>>();
-	    sharedLocks = new HashMap<PageId, Set<TransactionId>>();
-	    sharedLockPages = new HashMap<TransactionId, Set<PageId>>();
-	}
-
-	public synchronized boolean setLock(PageId p, TransactionId tid, Permissions per)
-	{
-	    if (!per.equals(Permissions.READ_ONLY))
-		return setExclusiveLock(p, tid);
-	    else
-		return setSharedLock(p, tid);
-	}
-
-	private synchronized boolean setExclusiveLock(PageId p, TransactionId tid)
-	{
-	    //some code goes here
-	    TransactionId eLocks = exclusiveLocks.get(p);
-	    Set<TransactionId> sLocks = sharedLocks.get(p);
-	    
-	    if (sLocks != null && (sLocks.size() > 1 ||
-				   sLocks.size() == 1 && !sLocks.contains(tid))
-		|| eLocks != null && !eLocks.equals(tid))
-		return false;
-	    
-	    exclusiveLocks.put(p, tid);
-	    Set<PageId> xlp = exclusiveLockPages.get(tid);
-	    if (xlp == null)
-		xlp = new HashSet<PageId>();
-	    xlp.add(p);
-	    exclusiveLockPages.put(tid, xlp);
-	    return true;
-	}
-
-	private synchronized boolean setSharedLock(PageId p, TransactionId tid)
-	{
-	    //some code goes here
-	    TransactionId eLock = exclusiveLocks.get(p);
-	    Set<TransactionId> sLocks = sharedLocks.get(p);
-	    
-	    if (eLock == null || eLock.equals(tid))
-		{
-		    if (sLocks == null)
-			sLocks = new HashSet<TransactionId>();
-		    sLocks.add(tid);
-		    sharedLocks.put(p, sLocks);
-		    Set<PageId> slp = sharedLockPages.get(tid);
-		    if (slp == null)
-			slp = new HashSet<PageId>();
-		    slp.add(p);
-		    sharedLockPages.put(tid, slp);
-		    return true;
-		}
-	    return false;
-	}
-
-	public void releaseLock(PageId p, TransactionId tid)
-	{
-	    //some code goes here
-	    Set<PageId> slp = sharedLockPages.get(tid);
-	    Set<TransactionId> slt = sharedLocks.get(p);
-	    if (slp != null)
-		{
-		    slp.remove(p);
-		    sharedLockPages.put(tid, slp);
-		}
-	    if (slt != null)
-		{
-		    slt.remove(tid);
-		    sharedLocks.put(p, slt);
-		}
-	    Set<PageId> elp = exclusiveLockPages.get(tid);
-	    if (elp != null)
-		{
-		    elp.remove(p);
-		    exclusiveLockPages.put(tid, elp);
-		}
-	    exclusiveLocks.remove(p);
-	}
-
-	public boolean holdsLock(PageId p, TransactionId tid)
-	{
-	    //some code goes here
-	    Set<TransactionId> tids = sharedLocks.get(p);
-	    if (tids != null && tids.contains(tid))
-		return true;
-	    TransactionId eltid = exclusiveLocks.get(p);
-	    if (eltid != null && eltid.equals(tid))
-		return true;
-	    return false;
-	}
-
-	public synchronized void releaseAllLocks(TransactionId tid)
-	{
-	    //some code goes here
-	    Set<PageId> kSet = new HashSet<PageId>();
-	    for (PageId meow : exclusiveLocks.keySet())
-		kSet.add(meow);
-	    for (PageId rem : kSet)
-		{
-		    TransactionId t2r = exclusiveLocks.get(rem);
-		    if (t2r != null && t2r.equals(tid))
-			exclusiveLocks.remove(rem);
+    /**
+     * Enables warm restarts: the ids of resident pages will be written to
+     * dumpFile by {@link #dumpPageIds}, and if dumpFile was left behind by a
+     * previous run, a background thread starts prefetching the pages listed
+     * in it.  Prefetching never evicts pages, so it stops once the buffer
+     * pool is full.
+     *
+     * @param dumpFile the file to dump page ids to and load them from
+     */
+    public synchronized void enableWarmRestart(File dumpFile) {
+	pageDumpFile = dumpFile;
+	if (!dumpFile.exists() || pageLoader != null)
+	    return;
+	final List<PageId> pids;
+	try
+	    {
+		pids = readPageDump(dumpFile);
+	    }
+	catch (IOException e)
+	    {
+		e.printStackTrace();
+		return;
+	    }
+	pageLoader = new Thread("BufferPool page loader") {
+		public void run() {
+		    long base = System.currentTimeMillis();
+		    for (int i = 0 ; i < pids.size() ; i++)
+			if (!prefetchPage(pids.get(i), new Date(base - i)))
+			    break;
 		}
-	    exclusiveLockPages.remove(tid);
+	    };
+	pageLoader.setDaemon(true);
+	pageLoader.start();
+    }
 
-	    for (PageId spid : sharedLocks.keySet())
-		{
-		    Set<TransactionId> tids = sharedLocks.get(spid);
-		    if (tids != null)
-			{
-			    tids.remove(tid);
-			    sharedLocks.put(spid, tids);
-			}
+    /**
+     * Writes the ids of all resident pages, most recently used first, to the
+     * file set by {@link #enableWarmRestart}.  Does nothing if warm restart
+     * is not enabled.  Called on checkpoints and at shutdown.
+     */
+    public synchronized void dumpPageIds() throws IOException {
+	if (pageDumpFile == null)
+	    return;
+	List<PageId> pids = new ArrayList<PageId>(pMap.keySet());
+	Collections.sort(pids, new Comparator<PageId>() {
+		public int compare(PageId a, PageId b) {
+		    return times.get(b).compareTo(times.get(a));
 		}
-	    sharedLockPages.remove(tid);
-	}
+	    });
+
+	// write to a temporary file first so a crash never leaves a torn dump
+	File tmp = new File(pageDumpFile.getPath() + ".tmp");
+	DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	dos.writeInt(pids.size());
+	for (PageId pid : pids)
+	    {
+		int[] data = pid.serialize();
+		dos.writeUTF(pid.getClass().getName());
+		dos.writeInt(data.length);
+		for (int i = 0 ; i < data.length ; i++)
+		    dos.writeInt(data[i]);
+	    }
+	dos.close();
+	pageDumpFile.delete();
+	if (!tmp.renameTo(pageDumpFile))
+	    throw new IOException("Could not write page dump " + pageDumpFile);
+    }
+
+    /**
+     * Reads a page dump written by {@link #dumpPageIds}.  The page id
+     * classes are reconstructed the same way LogFile does, through their
+     * integer constructor.
+     */
+    private static List<PageId> readPageDump(File f) throws IOException {
+	List<PageId> pids = new ArrayList<PageId>();
+	DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try
+	    {
+		int count = dis.readInt();
+		for (int i = 0 ; i < count ; i++)
+		    {
+			String idClassName = dis.readUTF();
+			Object[] args = new Object[dis.readInt()];
+			for (int j = 0 ; j < args.length ; j++)
+			    args[j] = dis.readInt();
+			try
+			    {
+				Class<?> idClass = Class.forName(idClassName);
+				pids.add((PageId) idClass.getDeclaredConstructors()[0].newInstance(args));
+			    }
+			catch (Exception e)
+			    {
+				// unknown or incompatible page id; skip it
+			    }
+		    }
+	    }
+	catch (EOFException e)
+	    {
+		// truncated dump; use what we have
+	    }
+	finally
+	    {
+		dis.close();
+	    }
+	return pids;
+    }
+
+    /**
+     * Reads a page into the buffer pool without locking it, on behalf of the
+     * warm restart loader.  Pages that are already resident, or that belong
+     * to tables no longer in the catalog, are skipped.  The page is read
+     * while holding the buffer pool's monitor, as {@link #fetchPage} does,
+     * so it cannot be changed, written out and evicted between being read
+     * and being cached, which would cache a stale copy.
+     *
+     * @return false if the buffer pool is full and prefetching should stop
+     */
+    private synchronized boolean prefetchPage(PageId pid, Date stamp) {
+	if (pMap.size() >= max)
+	    return false;
+	if (pMap.containsKey(pid))
+	    return true;
+	try
+	    {
+		DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+		if (file instanceof HeapFile && pid.pageNumber() >= ((HeapFile) file).numPages())
+		    return true;
+		Page p = file.readPage(pid);
+		if (p != null)
+		    {
+			pMap.put(pid, p);
+			times.put(pid, stamp);
+		    }
+	    }
+	catch (NoSuchElementException e)
+	    {
+		// table was dropped since the dump was taken
+	    }
+	catch (IllegalArgumentException e)
+	    {
+		// page no longer exists
+	    }
+	return true;
     }
 
 }
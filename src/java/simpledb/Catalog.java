@@ -19,6 +19,8 @@ public class Catalog {
     ArrayList<DbFile> file;
     ArrayList<Integer> tid;
     ArrayList<String> name, key;
+    // the indexes on the tables, by the ids of the index files
+    Map<Integer, IndexFile> indexes;
 
     /**
      * Constructor.
@@ -31,6 +33,7 @@ public class Catalog {
 	tid = new ArrayList<Integer>();
 	name = new ArrayList<String>();
 	key = new ArrayList<String>();
+	indexes = new LinkedHashMap<Integer, IndexFile>();
     }
 
     /**
@@ -120,9 +123,48 @@ public class Catalog {
         // some code goes here
         if (tid.contains(tableid))
 	    return file.get(tid.indexOf(tableid));
+	if (indexes.containsKey(tableid))
+	    return indexes.get(tableid);
 	throw new NoSuchElementException();
     }
 
+    /**
+     * Add an index to the catalog.  Its pages are read through
+     * {@link #getDbFile} like those of a table, and inserts and deletes
+     * through the BufferPool keep it up to date, but it is not a table of
+     * its own: {@link #tableIdIterator} does not return it.
+     * @param index the index, on a table that is already in the catalog
+     */
+    public void addIndex(IndexFile index) {
+	indexes.put(index.getId(), index);
+    }
+
+    /**
+     * Returns the indexes on the specified table, in the order they were
+     * added.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<IndexFile> getIndexes(int tableid) {
+	List<IndexFile> ans = new ArrayList<IndexFile>();
+	for (IndexFile index : indexes.values())
+	    if (index.getTableId() == tableid)
+		ans.add(index);
+	return ans;
+    }
+
+    /**
+     * @return the index on the given field of the specified table, the
+     *     first one added if there are several, or null if the field is not
+     *     indexed
+     */
+    public IndexFile getIndex(int tableid, int field) {
+	for (IndexFile index : indexes.values())
+	    if (index.getTableId() == tableid && index.getKeyField() == field)
+		return index;
+	return null;
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
 	if (tid.contains(tableid))
@@ -149,6 +191,7 @@ public class Catalog {
 	name.clear();
 	key.clear();
 	tid.clear();
+	indexes.clear();
     }
 
     // public List<Table> getAllTables()
@@ -158,6 +201,14 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A field may be annotated with pk, to make it the primary key, with
+     * index, to give it a {@link BTreeFile} index kept in the file
+     * name.field.idx next to the table, and with hash, to give it a
+     * {@link HashFile} index kept in the file name.field.hash; an index is
+     * built from the table if its file does not exist yet.  A table with a
+     * field annotated with lsm is stored as an {@link LsmFile} sorted on that
+     * field, with its manifest in name.lsm, instead of in name.dat; such a
+     * table cannot have indexes.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -175,6 +226,9 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
+                ArrayList<Integer> hashed = new ArrayList<Integer>();
+                ArrayList<Integer> sorted = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -186,11 +240,17 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexed.add(names.size() - 1);
+                        else if (els2[i].trim().equals("hash"))
+                            hashed.add(names.size() - 1);
+                        else if (els2[i].trim().equals("lsm"))
+                            sorted.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -200,10 +260,36 @@ public class Catalog {
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
 		if (baseFolder == null)
 		    baseFolder = ".";
-		HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+		DbFile tabHf;
+		if (sorted.isEmpty())
+		    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+		else if (sorted.size() == 1 && indexed.isEmpty() && hashed.isEmpty())
+		    tabHf = new LsmFile(new File(baseFolder+"/"+name + ".lsm"), t, sorted.get(0));
+		else
+		    {
+			System.out.println("An LSM table takes one lsm field and no indexes: " + line);
+			System.exit(0);
+			return;
+		    }
 		//HeapFile tabHf = new HeapFile(new File("./"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    File idxFile = new File(baseFolder+"/"+name+"."+namesAr[field]+".idx");
+                    BTreeFile index = new BTreeFile(idxFile, tabHf.getId(), field);
+                    addIndex(index);
+                    if (!idxFile.exists())
+                        index.build();
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
+                for (int field : hashed) {
+                    File idxFile = new File(baseFolder+"/"+name+"."+namesAr[field]+".hash");
+                    HashFile index = new HashFile(idxFile, tabHf.getId(), field);
+                    addIndex(index);
+                    if (!idxFile.exists())
+                        index.build();
+                    System.out.println("Added hash index on " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
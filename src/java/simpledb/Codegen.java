@@ -0,0 +1,590 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+/**
+ * Codegen compiles the predicates of a query and its projections into
+ * classes of their own, so that the JIT sees one small, monomorphic method
+ * per filter or projection instead of the loops over lists of predicates and
+ * fields, and the switch on {@link Predicate.Op}, of the generic code.
+ * <p>
+ * The classes are written out as class files by a tiny bytecode emitter and
+ * defined by a class loader of their own.  A compiled filter compares the
+ * INT_TYPE fields that are tested against IntFields directly, with the
+ * operand baked into the code, both on decoded tuples and on the bytes of a
+ * heap page; any other predicate is called through {@link Predicate#filter}.
+ * A compiled projection copies a fixed list of fields.
+ * <p>
+ * Classes are cached by the shape of what they compile, so queries that
+ * filter or project the same way share them.  Should a class fail to be
+ * generated, or codegen be turned off (by setting the system property
+ * simpledb.codegen to false, or {@link #enabled}), the same interfaces are
+ * implemented by interpreters instead.
+ */
+public class Codegen {
+
+    /** False to always use the interpreters */
+    public static boolean enabled =
+        !"false".equals(System.getProperty("simpledb.codegen"));
+
+    /** The number of generated classes kept in the cache */
+    public static final int CACHE_SIZE = 256;
+
+    private static final String PACKAGE = "simpledb/gen/";
+    private static int classes = 0;
+
+    private static final Map<String, Constructor<?>> cache =
+        new LinkedHashMap<String, Constructor<?>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Constructor<?>> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /**
+     * @param filters
+     *            predicates over tuples with the given schema
+     * @param td
+     *            the schema of the tuples to filter
+     * @return a filter that passes the tuples that pass every one of filters
+     */
+    public static TupleFilter compileFilter(List<Predicate> filters,
+            TupleDesc td) {
+        Predicate[] preds = filters.toArray(new Predicate[filters.size()]);
+        if (enabled && preds.length > 0) {
+            int[] offsets = fieldOffsets(td);
+            StringBuilder key = new StringBuilder("filter");
+            for (Predicate p : preds) {
+                if (inlined(p, td))
+                    key.append(";i").append(offsets[p.getField()]).append(',')
+                        .append(p.getField()).append(p.getOp()).append(
+                            ((IntField) p.getOperand()).getValue());
+                else
+                    key.append(";p");
+            }
+            try {
+                Constructor<?> c = lookup(key.toString());
+                if (c == null) {
+                    c = define(filterClass(preds, td, offsets),
+                        Predicate[].class);
+                    store(key.toString(), c);
+                }
+                return (TupleFilter) c.newInstance((Object) preds);
+            } catch (Exception e) {
+                // fall through to the interpreter
+            } catch (LinkageError e) {
+                // likewise
+            }
+        }
+        return new InterpretedFilter(preds, td);
+    }
+
+    /**
+     * @param fields
+     *            the fields of the input tuples to keep, in the order of the
+     *            output tuples
+     * @param outTd
+     *            the schema of the output tuples
+     * @return a projector that copies those fields into tuples of outTd
+     */
+    public static TupleProjector compileProjection(int[] fields,
+            TupleDesc outTd) {
+        if (enabled && fields.length > 0) {
+            String key = "project" + Arrays.toString(fields);
+            try {
+                Constructor<?> c = lookup(key);
+                if (c == null) {
+                    c = define(projectClass(fields), TupleDesc.class);
+                    store(key, c);
+                }
+                return (TupleProjector) c.newInstance(outTd);
+            } catch (Exception e) {
+                // fall through to the interpreter
+            } catch (LinkageError e) {
+                // likewise
+            }
+        }
+        return new InterpretedProjector(fields.clone(), outTd);
+    }
+
+    /** @return the INT_TYPE value encoded at data[off..off+3] */
+    static int readInt(byte[] data, int off) {
+        return (data[off] << 24) | ((data[off + 1] & 0xff) << 16)
+            | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /** @return where each field of a tuple of td starts in its encoding */
+    static int[] fieldOffsets(TupleDesc td) {
+        int[] offsets = new int[td.numFields()];
+        for (int j = 1; j < offsets.length; j++)
+            offsets[j] = offsets[j - 1] + td.getFieldType(j - 1).getLen();
+        return offsets;
+    }
+
+    /**
+     * @return true if p compares an INT_TYPE field to an IntField, and so
+     *         can be applied without going through Field.compare
+     */
+    static boolean inlined(Predicate p, TupleDesc td) {
+        return td.getFieldType(p.getField()) == Type.INT_TYPE
+            && p.getOperand() instanceof IntField;
+    }
+
+    private static synchronized Constructor<?> lookup(String key) {
+        return cache.get(key);
+    }
+
+    private static synchronized void store(String key, Constructor<?> c) {
+        cache.put(key, c);
+    }
+
+    private static synchronized String nextName(String kind) {
+        return PACKAGE + kind + (classes++);
+    }
+
+    /**
+     * Defines a generated class, in a loader of its own so that it can be
+     * unloaded once it falls out of the cache.
+     *
+     * @return the constructor of the class taking the given argument
+     */
+    private static Constructor<?> define(ClassFile cf, Class<?> arg)
+            throws Exception {
+        byte[] bytes = cf.toByteArray();
+        Class<?> c = new Loader(Codegen.class.getClassLoader()).define(
+            cf.name.replace('/', '.'), bytes);
+        return c.getConstructor(arg);
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // opcodes
+    private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10,
+        SIPUSH = 0x11, LDC_W = 0x13, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+        ALOAD_2 = 0x2c, ILOAD_2 = 0x1c, AALOAD = 0x32, BALOAD = 0x33,
+        ASTORE_2 = 0x4d, DUP = 0x59, IADD = 0x60, ISHL = 0x78, IAND = 0x7e,
+        IOR = 0x80, IFEQ = 0x99, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0,
+        IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+        IF_ICMPLE = 0xa4, IRETURN = 0xac, ARETURN = 0xb0, RETURN = 0xb1,
+        GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6,
+        INVOKESPECIAL = 0xb7, NEW = 0xbb, CHECKCAST = 0xc0;
+
+    private static final String TUPLE = "simpledb/Tuple";
+    private static final String GET_FIELD = "(I)Lsimpledb/Field;";
+
+    /**
+     * @return the branch that jumps when an int comparison with the given
+     *         operator fails
+     */
+    private static int failBranch(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return IF_ICMPNE;
+        case NOT_EQUALS:
+            return IF_ICMPEQ;
+        case GREATER_THAN:
+            return IF_ICMPLE;
+        case GREATER_THAN_OR_EQ:
+            return IF_ICMPLT;
+        case LESS_THAN:
+            return IF_ICMPGE;
+        case LESS_THAN_OR_EQ:
+            return IF_ICMPGT;
+        }
+        throw new IllegalArgumentException("unknown operator " + op);
+    }
+
+    /**
+     * Generates a TupleFilter over the given predicates:
+     *
+     * <pre>
+     * filter(t):            for each predicate i on field k
+     *   inlined:              if (((IntField) t.getField(k)).getValue() !op C) return false
+     *   otherwise:            if (!p[i].filter(t)) return false
+     *                       return true
+     * filterBytes(d, off):  for each inlined predicate
+     *                         if (readInt(d, off + offset(k)) !op C) return false
+     *                       return true
+     * </pre>
+     */
+    private static ClassFile filterClass(Predicate[] preds, TupleDesc td,
+            int[] offsets) {
+        ClassFile cf = new ClassFile(nextName("Filter"), "simpledb/TupleFilter");
+        int p = cf.fieldRef(cf.name, "p", "[Lsimpledb/Predicate;");
+        cf.field("p", "[Lsimpledb/Predicate;");
+        cf.constructor("[Lsimpledb/Predicate;", p);
+
+        ClassFile.Code code = cf.new Code();
+        boolean bytesOnly = true;
+        for (int i = 0; i < preds.length; i++) {
+            Predicate pred = preds[i];
+            if (inlined(pred, td)) {
+                code.op(ALOAD_1);
+                code.push(pred.getField());
+                code.op(INVOKEVIRTUAL).u2(cf.methodRef(TUPLE, "getField", GET_FIELD));
+                code.op(CHECKCAST).u2(cf.classRef("simpledb/IntField"));
+                code.op(INVOKEVIRTUAL).u2(
+                    cf.methodRef("simpledb/IntField", "getValue", "()I"));
+                code.push(((IntField) pred.getOperand()).getValue());
+                code.fail(failBranch(pred.getOp()));
+            } else {
+                bytesOnly = false;
+                code.op(ALOAD_0).op(GETFIELD).u2(p);
+                code.push(i);
+                code.op(AALOAD).op(ALOAD_1);
+                code.op(INVOKEVIRTUAL).u2(cf.methodRef("simpledb/Predicate",
+                    "filter", "(Lsimpledb/Tuple;)Z"));
+                code.fail(IFEQ);
+            }
+        }
+        code.returnTrueOrFalse();
+        cf.method("filter", "(Lsimpledb/Tuple;)Z", code, 4, 2);
+
+        code = cf.new Code();
+        for (Predicate pred : preds) {
+            if (!inlined(pred, td))
+                continue;
+            int off = offsets[pred.getField()];
+            for (int b = 0; b < 4; b++) {
+                code.op(ALOAD_1).op(ILOAD_2);
+                code.push(off + b);
+                code.op(IADD).op(BALOAD);
+                if (b > 0) {
+                    code.push(0xff);
+                    code.op(IAND);
+                }
+                if (b < 3) {
+                    code.push(24 - 8 * b);
+                    code.op(ISHL);
+                }
+                if (b > 0)
+                    code.op(IOR);
+            }
+            code.push(((IntField) pred.getOperand()).getValue());
+            code.fail(failBranch(pred.getOp()));
+        }
+        code.returnTrueOrFalse();
+        cf.method("filterBytes", "([BI)Z", code, 5, 3);
+
+        code = cf.new Code();
+        code.op(bytesOnly ? ICONST_1 : ICONST_0).op(IRETURN);
+        cf.method("bytesOnly", "()Z", code, 1, 1);
+        return cf;
+    }
+
+    /**
+     * Generates a TupleProjector copying the given fields:
+     *
+     * <pre>
+     * project(t):  Tuple out = new Tuple(td)
+     *              out.setField(i, t.getField(fields[i])), unrolled
+     *              out.setRecordId(t.getRecordId())
+     *              return out
+     * </pre>
+     */
+    private static ClassFile projectClass(int[] fields) {
+        ClassFile cf = new ClassFile(nextName("Project"),
+            "simpledb/TupleProjector");
+        int td = cf.fieldRef(cf.name, "td", "Lsimpledb/TupleDesc;");
+        cf.field("td", "Lsimpledb/TupleDesc;");
+        cf.constructor("Lsimpledb/TupleDesc;", td);
+
+        ClassFile.Code code = cf.new Code();
+        code.op(NEW).u2(cf.classRef(TUPLE)).op(DUP);
+        code.op(ALOAD_0).op(GETFIELD).u2(td);
+        code.op(INVOKESPECIAL).u2(
+            cf.methodRef(TUPLE, "<init>", "(Lsimpledb/TupleDesc;)V"));
+        code.op(ASTORE_2);
+        int getField = cf.methodRef(TUPLE, "getField", GET_FIELD);
+        int setField = cf.methodRef(TUPLE, "setField", "(ILsimpledb/Field;)V");
+        for (int i = 0; i < fields.length; i++) {
+            code.op(ALOAD_2);
+            code.push(i);
+            code.op(ALOAD_1);
+            code.push(fields[i]);
+            code.op(INVOKEVIRTUAL).u2(getField);
+            code.op(INVOKEVIRTUAL).u2(setField);
+        }
+        code.op(ALOAD_2).op(ALOAD_1);
+        code.op(INVOKEVIRTUAL).u2(
+            cf.methodRef(TUPLE, "getRecordId", "()Lsimpledb/RecordId;"));
+        code.op(INVOKEVIRTUAL).u2(
+            cf.methodRef(TUPLE, "setRecordId", "(Lsimpledb/RecordId;)V"));
+        code.op(ALOAD_2).op(ARETURN);
+        cf.method("project", "(Lsimpledb/Tuple;)Lsimpledb/Tuple;", code, 4, 3);
+        return cf;
+    }
+
+    /**
+     * A class file under construction: a public final class extending Object
+     * and implementing one interface.  Version 49 class files are written,
+     * as they need no stack map frames.
+     */
+    private static class ClassFile {
+
+        final String name;
+        private final int thisClass, superClass, iface;
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int poolSize = 1;
+        private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+        private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+        private int numFields = 0;
+        private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        private final DataOutputStream methods = new DataOutputStream(methodBytes);
+        private int numMethods = 0;
+
+        ClassFile(String name, String iface) {
+            this.name = name;
+            thisClass = classRef(name);
+            superClass = classRef("java/lang/Object");
+            this.iface = classRef(iface);
+        }
+
+        /** @return the index of a constant, adding it to the pool if needed */
+        private int constant(String key, int tag, Object... args) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                pool.writeByte(tag);
+                for (Object a : args) {
+                    if (a instanceof String)
+                        pool.writeUTF((String) a);
+                    else if (tag == 3)
+                        pool.writeInt((Integer) a);
+                    else
+                        pool.writeShort((Integer) a);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            entries.put(key, poolSize);
+            return poolSize++;
+        }
+
+        int utf8(String s) {
+            return constant("U" + s, 1, s);
+        }
+
+        int integer(int v) {
+            return constant("I" + v, 3, v);
+        }
+
+        int classRef(String internalName) {
+            int n = utf8(internalName);
+            return constant("C" + internalName, 7, n);
+        }
+
+        private int nameAndType(String name, String desc) {
+            int n = utf8(name), d = utf8(desc);
+            return constant("N" + name + ":" + desc, 12, n, d);
+        }
+
+        int fieldRef(String owner, String name, String desc) {
+            int c = classRef(owner), nt = nameAndType(name, desc);
+            return constant("F" + owner + "." + name + ":" + desc, 9, c, nt);
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            int c = classRef(owner), nt = nameAndType(name, desc);
+            return constant("M" + owner + "." + name + ":" + desc, 10, c, nt);
+        }
+
+        /** Adds a private final field. */
+        void field(String name, String desc) {
+            try {
+                fields.writeShort(0x0002 | 0x0010);
+                fields.writeShort(utf8(name));
+                fields.writeShort(utf8(desc));
+                fields.writeShort(0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            numFields++;
+        }
+
+        /** Adds a public constructor that stores its argument in a field. */
+        void constructor(String argDesc, int field) {
+            Code code = new Code();
+            code.op(ALOAD_0).op(INVOKESPECIAL).u2(
+                methodRef("java/lang/Object", "<init>", "()V"));
+            code.op(ALOAD_0).op(ALOAD_1).op(PUTFIELD).u2(field);
+            code.op(RETURN);
+            method("<init>", "(" + argDesc + ")V", code, 2, 2);
+        }
+
+        /** Adds a public method. */
+        void method(String name, String desc, Code code, int maxStack,
+                int maxLocals) {
+            byte[] bytes = code.toByteArray();
+            try {
+                methods.writeShort(0x0001);
+                methods.writeShort(utf8(name));
+                methods.writeShort(utf8(desc));
+                methods.writeShort(1);
+                methods.writeShort(utf8("Code"));
+                methods.writeInt(12 + bytes.length);
+                methods.writeShort(maxStack);
+                methods.writeShort(maxLocals);
+                methods.writeInt(bytes.length);
+                methods.write(bytes);
+                methods.writeShort(0); // exception table
+                methods.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            numMethods++;
+        }
+
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(numFields);
+            out.write(fieldBytes.toByteArray());
+            out.writeShort(numMethods);
+            out.write(methodBytes.toByteArray());
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * The bytecode of a method.  Branches to the method's "return false"
+         * are collected and patched in by {@link #returnTrueOrFalse}.
+         */
+        class Code {
+            private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+            private final List<Integer> failBranches = new ArrayList<Integer>();
+
+            Code op(int opcode) {
+                code.write(opcode);
+                return this;
+            }
+
+            Code u2(int v) {
+                code.write(v >> 8);
+                code.write(v);
+                return this;
+            }
+
+            /** Pushes an int constant. */
+            void push(int v) {
+                if (v >= -1 && v <= 5)
+                    op(ICONST_0 + v);
+                else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+                    op(BIPUSH).op(v & 0xff);
+                else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+                    op(SIPUSH).u2(v & 0xffff);
+                else
+                    op(LDC_W).u2(integer(v));
+            }
+
+            /** Adds a branch to the method's "return false". */
+            void fail(int branch) {
+                failBranches.add(code.size());
+                op(branch).u2(0);
+            }
+
+            /** Ends the method with "return true", then "return false". */
+            void returnTrueOrFalse() {
+                op(ICONST_1).op(IRETURN);
+                int target = code.size();
+                op(ICONST_0).op(IRETURN);
+                byte[] bytes = code.toByteArray();
+                for (int at : failBranches) {
+                    int delta = target - at;
+                    bytes[at + 1] = (byte) (delta >> 8);
+                    bytes[at + 2] = (byte) delta;
+                }
+                code.reset();
+                code.write(bytes, 0, bytes.length);
+            }
+
+            byte[] toByteArray() {
+                return code.toByteArray();
+            }
+        }
+    }
+
+    /** Applies a list of predicates one after another. */
+    static class InterpretedFilter implements TupleFilter {
+        private final Predicate[] preds;
+        // the predicates that can be applied to undecoded tuples
+        private final Predicate[] intPreds;
+        private final int[] offsets;
+
+        InterpretedFilter(Predicate[] preds, TupleDesc td) {
+            this.preds = preds;
+            int[] fieldOffsets = fieldOffsets(td);
+            List<Predicate> ints = new ArrayList<Predicate>();
+            for (Predicate p : preds)
+                if (inlined(p, td))
+                    ints.add(p);
+            intPreds = ints.toArray(new Predicate[ints.size()]);
+            offsets = new int[intPreds.length];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = fieldOffsets[intPreds[i].getField()];
+        }
+
+        public boolean filter(Tuple t) {
+            for (int i = 0; i < preds.length; i++)
+                if (!preds[i].filter(t))
+                    return false;
+            return true;
+        }
+
+        public boolean filterBytes(byte[] data, int offset) {
+            for (int i = 0; i < intPreds.length; i++)
+                if (!intPreds[i].filter(readInt(data, offset + offsets[i])))
+                    return false;
+            return true;
+        }
+
+        public boolean bytesOnly() {
+            return intPreds.length == preds.length;
+        }
+    }
+
+    /** Copies a list of fields one after another. */
+    static class InterpretedProjector implements TupleProjector {
+        private final int[] fields;
+        private final TupleDesc td;
+
+        InterpretedProjector(int[] fields, TupleDesc td) {
+            this.fields = fields;
+            this.td = td;
+        }
+
+        public Tuple project(Tuple t) {
+            Tuple p = new Tuple(td);
+            for (int i = 0; i < fields.length; i++)
+                p.setField(i, t.getField(fields[i]));
+            p.setRecordId(t.getRecordId());
+            return p;
+        }
+    }
+}
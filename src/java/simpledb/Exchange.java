@@ -0,0 +1,460 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exchange moves tuples between threads, in the style of Volcano's exchange
+ * operator, so that the operators below it run in parallel with each other
+ * and with the operators above it.  Each of its producers (a subtree of the
+ * plan) is run by a thread of its own, and the tuples it produces are
+ * routed, a batch at a time, to one or more consumers:
+ * <ul>
+ * <li>GATHER merges the output of all producers into a single consumer;</li>
+ * <li>HASH repartitions it among several consumers by the hash of a field,
+ * so that equal values end up at the same consumer;</li>
+ * <li>BROADCAST sends every tuple to every consumer.</li>
+ * </ul>
+ * Each consumer is an Exchange operator of its own, created by
+ * {@link #gather}, {@link #repartition} or {@link #broadcast}; the producers
+ * start when the first consumer is opened, and are stopped and closed once
+ * every consumer has been closed.
+ * <p>
+ * Batches pass through a bounded lock-free queue per consumer.  A producer
+ * whose consumer's queue is full waits for it to drain, so a slow consumer
+ * holds back the producers instead of letting batches pile up; the batches
+ * for a consumer that has been closed are dropped.
+ * <p>
+ * A gathering Exchange is rewound by running its producers again.  The
+ * consumers of a HASH or BROADCAST exchange cannot be rewound on their own.
+ * A consumer whose parent rewinds it, such as the inner side of a
+ * nested-loop join, must be made rewindable with {@link #setRewindable}:
+ * it then keeps the batches it has returned, and replays them on rewind.
+ * Other consumers keep nothing, so memory stays bounded by the queues.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Mode {
+        GATHER, HASH, BROADCAST
+    }
+
+    /** The number of batches queued for a consumer before producers wait */
+    public static final int QUEUE_BATCHES = 8;
+    // how long a thread waiting on a queue sleeps before looking again
+    private static final long WAIT_NANOS = 50000;
+
+    private Hub hub;
+    private int consumer;
+    private boolean rewindable;
+
+    // for a rewindable consumer of a hub with several, the batches returned
+    // so far, and the next one to replay after a rewind
+    transient private List<TupleBatch> spool;
+    transient private int replay;
+    // true once this consumer has taken a batch since it was opened
+    transient private boolean taken;
+    transient private TupleBatch current;
+    transient private int row;
+
+    private Exchange(Hub hub, int consumer) {
+        this.hub = hub;
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return a single consumer of the tuples of all of producers, which
+     *         must have the same TupleDesc
+     */
+    public static Exchange gather(DbIterator[] producers) {
+        return new Hub(producers, Mode.GATHER, -1, 1).consumers[0];
+    }
+
+    /**
+     * @return consumers of the tuples of producers, where each tuple goes to
+     *         the consumer picked by the hash of the given field
+     */
+    public static Exchange[] repartition(DbIterator[] producers, int field,
+            int consumers) {
+        return new Hub(producers, Mode.HASH, field, consumers).consumers;
+    }
+
+    /**
+     * @return consumers that each get every tuple of producers
+     */
+    public static Exchange[] broadcast(DbIterator[] producers, int consumers) {
+        return new Hub(producers, Mode.BROADCAST, -1, consumers).consumers;
+    }
+
+    public Mode getMode() {
+        return hub.mode;
+    }
+
+    /** @return the field tuples are repartitioned on, or -1 */
+    public int getField() {
+        return hub.field;
+    }
+
+    /** @return the number of consumers of this exchange's producers */
+    public int numConsumers() {
+        return hub.consumers.length;
+    }
+
+    /** @return the position of this consumer among them */
+    public int getConsumer() {
+        return consumer;
+    }
+
+    /** @return the other consumers of this exchange's producers, and itself */
+    public Exchange[] getConsumers() {
+        return hub.consumers;
+    }
+
+    /**
+     * Sets whether this consumer can be rewound once it has returned
+     * tuples, which for a consumer of a HASH or BROADCAST exchange means
+     * keeping every batch it returns.  Must be called before it is opened.
+     */
+    public void setRewindable(boolean rewindable) {
+        this.rewindable = rewindable;
+    }
+
+    /** @return a short description of the exchange, for query plans */
+    public String getName() {
+        String name = hub.mode.toString().toLowerCase();
+        if (hub.mode == Mode.HASH)
+            name += "(" + hub.td.getFieldName(hub.field) + ")";
+        return "exchange(" + name + "," + hub.producers.length + "->"
+            + hub.consumers.length + ")";
+    }
+
+    /** @return the consumer that picks the tuples with the given field */
+    public static int partitionOf(Field f, int consumers) {
+        return ((f.hashCode() * 0x9E3779B9) >>> 1) % consumers;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        spool = hub.consumers.length > 1 && rewindable
+            ? new ArrayList<TupleBatch>() : null;
+        replay = 0;
+        taken = false;
+        current = null;
+        super.open();
+        hub.open(consumer);
+    }
+
+    public void close() {
+        super.close();
+        hub.close(consumer);
+        spool = null;
+        current = null;
+    }
+
+    /**
+     * @throws DbException if this consumer shares its producers with others,
+     *         has returned tuples, and was not made rewindable
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (spool != null) {
+            replay = 0;
+        } else if (hub.consumers.length == 1) {
+            hub.restart();
+        } else if (taken) {
+            throw new DbException("consumer " + consumer + " of " + getName()
+                    + " was not made rewindable");
+        }
+        current = null;
+    }
+
+    /** @return the next batch for this consumer, or null at the end */
+    private TupleBatch takeBatch() throws DbException,
+            TransactionAbortedException {
+        taken = true;
+        if (spool == null)
+            return hub.take(consumer);
+        if (replay < spool.size())
+            return spool.get(replay++);
+        TupleBatch batch = hub.take(consumer);
+        if (batch != null) {
+            spool.add(batch);
+            replay++;
+        }
+        return batch;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || row >= current.size()) {
+            current = takeBatch();
+            row = 0;
+            if (current == null)
+                return null;
+        }
+        return current.getTuple(row++);
+    }
+
+    /**
+     * Hands out the batches the producers built, unless they are kept for
+     * replaying, in which case they are copied.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        if (spool != null || (current != null && row < current.size()))
+            return super.fetchNextBatch();
+        current = null;
+        return takeBatch();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return hub.td;
+    }
+
+    /** @return the producers, which are shared by all the consumers */
+    @Override
+    public DbIterator[] getChildren() {
+        return hub.producers;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        hub.producers = children;
+    }
+
+    /**
+     * The producer side of an exchange: the threads running the producers,
+     * and a queue for each consumer.
+     */
+    private static class Hub {
+
+        DbIterator[] producers;
+        Mode mode;
+        int field;
+        TupleDesc td;
+        Exchange[] consumers;
+
+        private BatchQueue[] queues;
+        // 1 for each consumer that has been closed
+        private AtomicIntegerArray closed;
+        private int open = 0;
+        private Thread[] threads = null;
+        private volatile boolean stopped;
+        private AtomicInteger finished;
+        private AtomicReference<Throwable> error;
+
+        Hub(DbIterator[] producers, Mode mode, int field, int n) {
+            this.producers = producers;
+            this.mode = mode;
+            this.field = field;
+            td = producers[0].getTupleDesc();
+            consumers = new Exchange[n];
+            for (int i = 0; i < n; i++)
+                consumers[i] = new Exchange(this, i);
+            closed = new AtomicIntegerArray(n);
+        }
+
+        synchronized void open(int consumer) {
+            closed.set(consumer, 0);
+            open++;
+            if (threads == null)
+                start();
+        }
+
+        synchronized void close(int consumer) {
+            closed.set(consumer, 1);
+            if (--open <= 0) {
+                open = 0;
+                stop();
+            }
+        }
+
+        synchronized void restart() {
+            stop();
+            start();
+        }
+
+        private void start() {
+            queues = new BatchQueue[consumers.length];
+            for (int i = 0; i < queues.length; i++)
+                queues[i] = new BatchQueue(QUEUE_BATCHES);
+            stopped = false;
+            finished = new AtomicInteger(0);
+            error = new AtomicReference<Throwable>(null);
+            threads = new Thread[producers.length];
+            for (int i = 0; i < producers.length; i++) {
+                final int p = i;
+                threads[i] = new Thread("exchange producer " + i) {
+                    public void run() {
+                        produce(p);
+                    }
+                };
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        /** Stops the producers and waits for them to close their subtrees. */
+        private void stop() {
+            if (threads == null)
+                return;
+            stopped = true;
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            threads = null;
+        }
+
+        /** Runs producer p, routing its tuples to the consumers' queues. */
+        private void produce(int p) {
+            DbIterator it = producers[p];
+            TupleBatch[] out = new TupleBatch[consumers.length];
+            try {
+                it.open();
+                while (!stopped && it.hasNext()) {
+                    Tuple t = it.next();
+                    if (mode == Mode.BROADCAST) {
+                        for (int c = 0; c < out.length; c++)
+                            add(out, c, t);
+                    } else if (mode == Mode.HASH) {
+                        add(out, partitionOf(t.getField(field), out.length), t);
+                    } else {
+                        add(out, 0, t);
+                    }
+                }
+                for (int c = 0; c < out.length; c++)
+                    if (out[c] != null)
+                        put(c, out[c]);
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                it.close();
+                finished.incrementAndGet();
+            }
+        }
+
+        private void add(TupleBatch[] out, int c, Tuple t) {
+            if (out[c] == null)
+                out[c] = new TupleBatch(td);
+            out[c].addTuple(t);
+            if (out[c].isFull()) {
+                put(c, out[c]);
+                out[c] = null;
+            }
+        }
+
+        /**
+         * Queues a batch for consumer c, waiting while its queue is full;
+         * the batch is dropped if the consumer is closed meanwhile.
+         */
+        private void put(int c, TupleBatch batch) {
+            while (!queues[c].offer(batch)) {
+                if (stopped || closed.get(c) == 1)
+                    return;
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+        }
+
+        /**
+         * Waits for the next batch for consumer c.
+         *
+         * @return the batch, or null once every producer has finished and
+         *         all their batches have been taken
+         */
+        TupleBatch take(int c) throws DbException, TransactionAbortedException {
+            BatchQueue q = queues[c];
+            while (true) {
+                TupleBatch batch = q.poll();
+                if (batch != null)
+                    return batch;
+                checkError();
+                // producers queue their last batches before they finish
+                if (finished.get() == producers.length) {
+                    batch = q.poll();
+                    if (batch == null)
+                        checkError();
+                    return batch;
+                }
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+        }
+
+        /** Rethrows what a producer threw, if any did. */
+        private void checkError() throws DbException,
+                TransactionAbortedException {
+            Throwable e = error.get();
+            if (e == null)
+                return;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new DbException("Exchange producer failed: " + e);
+        }
+    }
+
+    /**
+     * A bounded lock-free queue of batches for any number of threads on
+     * either end.  Each slot carries a sequence number that tells whether
+     * it is free for the producer whose turn it is, or full for the
+     * consumer whose turn it is.
+     */
+    static class BatchQueue {
+
+        private final AtomicReferenceArray<TupleBatch> items;
+        private final AtomicLongArray seqs;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong(0), tail = new AtomicLong(0);
+
+        /** @param capacity the size of the queue, a power of two */
+        BatchQueue(int capacity) {
+            items = new AtomicReferenceArray<TupleBatch>(capacity);
+            seqs = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                seqs.set(i, i);
+        }
+
+        /** @return false if the queue is full */
+        boolean offer(TupleBatch batch) {
+            while (true) {
+                long t = tail.get();
+                int i = (int) t & mask;
+                long seq = seqs.get(i);
+                if (seq == t) {
+                    if (tail.compareAndSet(t, t + 1)) {
+                        items.set(i, batch);
+                        seqs.set(i, t + 1);
+                        return true;
+                    }
+                } else if (seq < t) {
+                    return false;
+                }
+            }
+        }
+
+        /** @return the oldest batch in the queue, or null if it is empty */
+        TupleBatch poll() {
+            while (true) {
+                long h = head.get();
+                int i = (int) h & mask;
+                long seq = seqs.get(i);
+                if (seq == h + 1) {
+                    if (head.compareAndSet(h, h + 1)) {
+                        TupleBatch batch = items.get(i);
+                        items.set(i, null);
+                        seqs.set(i, h + mask + 1);
+                        return batch;
+                    }
+                } else if (seq < h + 1) {
+                    return null;
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class Filter extends Operator {
     DbIterator iter;
     private TupleDesc td;
     private Predicate pred;
+    // the predicate compiled by Codegen, once opened
+    transient private TupleFilter compiled;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -41,6 +43,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+	compiled = Codegen.compileFilter(Arrays.asList(pred), td);
 	super.open();
 	iter.open();
     }
@@ -71,12 +74,32 @@ public class Filter extends Operator {
 	while (iter.hasNext())
 	    {
 		Tuple tup = iter.next();
-		if (pred.filter(tup))
+		if (compiled.filter(tup))
 		    return tup;
 	    }
         return null;
     }
 
+    /**
+     * Filters whole batches of the child's tuples, returning the first batch
+     * in which some tuple passes.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+	TupleBatch batch;
+	while ((batch = TupleBatch.next(iter)) != null)
+	    {
+		int[] rows = new int[batch.size()];
+		int n = pred.filter(batch, rows);
+		if (n > 0)
+		    {
+			batch.select(rows, n);
+			return batch;
+		    }
+	    }
+	return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
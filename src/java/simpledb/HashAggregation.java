@@ -0,0 +1,367 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * HashAggregation groups values by key for the aggregators, keeping at most
+ * MAX_GROUPS groups in memory.  When an {@link AggregateTable} fills up, the
+ * partial aggregates of its groups (not the tuples that went into them) are
+ * written to temporary files, partitioned by a hash of the group key, and
+ * the table starts over empty.  On output, each partition is read back and
+ * its partial aggregates merged in a table of their own, so that only one
+ * partition's groups are in memory at a time.
+ * <p>
+ * A group key may be made of several fields, and each group may aggregate
+ * several values, so that any number of aggregates are computed in one pass.
+ */
+public class HashAggregation {
+
+    /** The most groups kept in memory before they are spilled to disk */
+    public final static int MAX_GROUPS = 100000;
+    /** log2 of the number of partitions groups are spilled into */
+    private final static int PARTITION_BITS = 6;
+    private final static int NUM_PARTITIONS = 1 << PARTITION_BITS;
+
+    private Type[] keyTypes;
+    private int nValues;
+    private AggregateTable groups;
+    // the spilled partial aggregates, or null if nothing has been spilled
+    private TupleFile[] parts = null;
+    // the key fields, then for each value its count and sum (each as high
+    // and low int halves), min and max
+    private TupleDesc partTD;
+    // the key fields of partTD
+    private int[] keyCols;
+
+    /**
+     * Creates an empty aggregation of a single value per group.
+     *
+     * @param keyType
+     *            the type of the group keys, or null if there is no grouping
+     */
+    public HashAggregation(Type keyType) {
+        this(new Type[] { keyType == null ? Type.INT_TYPE : keyType }, 1);
+    }
+
+    /**
+     * Creates an empty aggregation.
+     *
+     * @param keyTypes
+     *            the types of the fields of the group keys; an empty array
+     *            if there is no grouping
+     * @param nValues
+     *            the number of values aggregated for each group
+     */
+    public HashAggregation(Type[] keyTypes, int nValues) {
+        this.keyTypes = keyTypes;
+        this.nValues = nValues;
+        groups = new AggregateTable(keyTypes, nValues);
+        Type[] types = new Type[keyTypes.length + 6 * nValues];
+        keyCols = new int[keyTypes.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = i < keyTypes.length ? keyTypes[i] : Type.INT_TYPE;
+        for (int i = 0; i < keyCols.length; i++)
+            keyCols[i] = i;
+        partTD = new TupleDesc(types);
+    }
+
+    /** Folds a single value into the group with the given key. */
+    public void add(int key, int v) throws DbException {
+        groups.add(groups.find(key), v);
+        checkSize();
+    }
+
+    /** @see #add(int, int) */
+    public void add(String key, int v) throws DbException {
+        groups.add(groups.find(key), v);
+        checkSize();
+    }
+
+    /** @see #add(int, int) */
+    public void add(Field key, int v) throws DbException {
+        groups.add(groups.find(key), v);
+        checkSize();
+    }
+
+    /**
+     * Folds a summary of count values, with the given sum, min and max, into
+     * the group with the given key.
+     */
+    public void add(int key, long count, long sum, int min, int max)
+            throws DbException {
+        groups.add(groups.find(key), count, sum, min, max);
+        checkSize();
+    }
+
+    /**
+     * Folds vals[i] into the i-th value of the group whose key is made of
+     * the given fields of t.
+     */
+    public void add(Tuple t, int[] fields, int[] vals) throws DbException {
+        int slot = groups.find(t, fields);
+        for (int i = 0; i < vals.length; i++)
+            groups.add(slot, i, 1, vals[i], vals[i], vals[i]);
+        checkSize();
+    }
+
+    /**
+     * Folds vals[i] into the i-th value of the group whose key is made of
+     * the given columns of a row of batch.
+     */
+    public void add(TupleBatch batch, int row, int[] fields, int[] vals)
+            throws DbException {
+        int slot = groups.find(batch, row, fields);
+        for (int i = 0; i < vals.length; i++)
+            groups.add(slot, i, 1, vals[i], vals[i], vals[i]);
+        checkSize();
+    }
+
+    private void checkSize() throws DbException {
+        if (groups.size() >= MAX_GROUPS)
+            spill();
+    }
+
+    /** @return the partition a group key belongs to */
+    private static int partitionOf(int hash) {
+        // use the high bits of a scrambled hash, as AggregateTable indexes
+        // its buckets by the low ones
+        return (hash * 0x9E3779B9) >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * Folds all the groups of other, an aggregation with the same key types
+     * and number of values, into this one, leaving other empty.  This is how
+     * partial aggregates built by separate threads are combined.
+     */
+    public void addAll(HashAggregation other) throws DbException,
+            TransactionAbortedException {
+        AggregateTable table = other.groups;
+        for (int slot = 0; slot < table.size(); slot++) {
+            groups.addAll(groups.find(table, slot), table, slot);
+            checkSize();
+        }
+        table.clear();
+        if (other.parts == null)
+            return;
+        // both partition spilled groups the same way, and partitions are
+        // merged by key when read back, so other's can just be appended
+        try {
+            createPartitions();
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                DbIterator it = other.parts[i].iterator();
+                it.open();
+                while (it.hasNext())
+                    parts[i].add(it.next());
+                it.close();
+                other.parts[i].delete();
+            }
+        } catch (IOException e) {
+            throw new DbException("Could not merge aggregate partitions: " + e);
+        }
+        other.parts = null;
+    }
+
+    /**
+     * Empties the aggregation and deletes its partition files.  Iterators
+     * over it must not be used afterwards.
+     */
+    public void close() {
+        groups.clear();
+        if (parts != null)
+            for (TupleFile part : parts)
+                part.delete();
+        parts = null;
+    }
+
+    private void createPartitions() throws IOException {
+        if (parts == null) {
+            parts = new TupleFile[NUM_PARTITIONS];
+            for (int i = 0; i < NUM_PARTITIONS; i++)
+                parts[i] = new TupleFile(partTD);
+        }
+    }
+
+    /**
+     * Writes the partial aggregates in the table to the partition files.
+     *
+     * @throws DbException if the partition files could not be written
+     */
+    private void spill() throws DbException {
+        try {
+            createPartitions();
+            Tuple t = new Tuple(partTD);
+            int nKeys = keyTypes.length;
+            for (int slot = 0; slot < groups.size(); slot++) {
+                int h = 0;
+                for (int i = 0; i < nKeys; i++) {
+                    Field key = groups.getKey(slot, i);
+                    t.setField(i, key);
+                    h = 31 * h + key.hashCode();
+                }
+                for (int v = 0; v < nValues; v++) {
+                    long count = groups.getCount(slot, v);
+                    long sum = groups.getSum(slot, v);
+                    int c = nKeys + 6 * v;
+                    t.setField(c, new IntField((int) (count >>> 32)));
+                    t.setField(c + 1, new IntField((int) count));
+                    t.setField(c + 2, new IntField((int) (sum >>> 32)));
+                    t.setField(c + 3, new IntField((int) sum));
+                    t.setField(c + 4, new IntField(groups.getMin(slot, v)));
+                    t.setField(c + 5, new IntField(groups.getMax(slot, v)));
+                }
+                parts[partitionOf(h)].add(t);
+            }
+        } catch (IOException e) {
+            throw new DbException("Could not spill aggregate groups: " + e);
+        }
+        groups.clear();
+    }
+
+    private static long toLong(Tuple t, int high) {
+        return ((long) ((IntField) t.getField(high)).getValue() << 32)
+            | (((IntField) t.getField(high + 1)).getValue() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads one partition's partial aggregates back into table.
+     */
+    private void merge(TupleFile part, AggregateTable table)
+            throws DbException, TransactionAbortedException {
+        DbIterator it;
+        try {
+            it = part.iterator();
+        } catch (IOException e) {
+            throw new DbException("Could not read aggregate partition: " + e);
+        }
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int slot = table.find(t, keyCols);
+            for (int v = 0; v < nValues; v++) {
+                int c = keyCols.length + 6 * v;
+                table.add(slot, v, toLong(t, c), toLong(t, c + 2),
+                        ((IntField) t.getField(c + 4)).getValue(),
+                        ((IntField) t.getField(c + 5)).getValue());
+            }
+        }
+        it.close();
+    }
+
+    /**
+     * @return the result tuple for the group in slot of table: its key
+     *         fields, then the value of each aggregate
+     */
+    private static Tuple result(AggregateTable table, int slot,
+            Aggregator.Op[] ops, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        int nKeys = td.numFields() - ops.length;
+        for (int i = 0; i < nKeys; i++)
+            t.setField(i, table.getKey(slot, i));
+        for (int v = 0; v < ops.length; v++)
+            t.setField(nKeys + v, new IntField(table.getValue(slot, v, ops[v])));
+        return t;
+    }
+
+    /**
+     * Returns an iterator over the aggregate of each group.
+     *
+     * @param op
+     *            the aggregate to compute
+     * @param td
+     *            the TupleDesc of the results: the group key and the
+     *            aggregate value, or just the aggregate value if there is no
+     *            grouping
+     */
+    public DbIterator iterator(Aggregator.Op op, TupleDesc td) {
+        return iterator(new Aggregator.Op[] { op }, td);
+    }
+
+    /**
+     * Returns an iterator over the aggregates of each group.
+     *
+     * @param ops
+     *            the aggregate to compute over each value
+     * @param td
+     *            the TupleDesc of the results: the fields of the group key,
+     *            then the value of each aggregate
+     */
+    public DbIterator iterator(Aggregator.Op[] ops, TupleDesc td) {
+        List<Tuple> tups = new ArrayList<Tuple>();
+        if (td.numFields() == ops.length) {
+            // a single group, which is never spilled
+            Tuple t = new Tuple(td);
+            if (groups.size() > 0)
+                for (int v = 0; v < ops.length; v++)
+                    t.setField(v, new IntField(groups.getValue(0, v, ops[v])));
+            tups.add(t);
+            return new TupleIterator(td, tups);
+        }
+        if (parts == null) {
+            for (int slot = 0; slot < groups.size(); slot++)
+                tups.add(result(groups, slot, ops, td));
+            return new TupleIterator(td, tups);
+        }
+        return new PartitionIterator(ops, td);
+    }
+
+    /**
+     * Iterates over the results of the spilled partitions, one partition at
+     * a time.  The groups still in memory are spilled too when it is
+     * opened, so that every group is read back from its partition.
+     */
+    private class PartitionIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        private Aggregator.Op[] ops;
+        private TupleDesc td;
+        private AggregateTable table = null;
+        private int part, slot;
+
+        PartitionIterator(Aggregator.Op[] ops, TupleDesc td) {
+            this.ops = ops;
+            this.td = td;
+        }
+
+        public void open() throws DbException {
+            if (groups.size() > 0)
+                spill();
+            table = new AggregateTable(keyTypes, nValues);
+            part = -1;
+            slot = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (table == null)
+                throw new IllegalStateException("Iterator not yet open");
+            while (slot >= table.size()) {
+                if (++part >= NUM_PARTITIONS)
+                    return false;
+                table.clear();
+                slot = 0;
+                merge(parts[part], table);
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return result(table, slot++, ops, td);
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            table = null;
+        }
+    }
+}
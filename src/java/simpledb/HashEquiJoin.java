@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -51,47 +52,191 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+
+    /**
+     * The most tuples of the build side (child1) held in memory at once.  If
+     * child1 has more, both children are partitioned to temporary files by
+     * the hash of their join field, and each pair of partitions is joined
+     * separately.
+     */
     public final static int MAP_SIZE = 20000;
+    /** log2 of the number of partitions each child is split into */
+    private final static int PARTITION_BITS = 6;
+    private final static int NUM_PARTITIONS = 1 << PARTITION_BITS;
+
+    // the inputs currently being joined: the children themselves, or a
+    // pair of their partitions
+    transient private DbIterator build, probe;
+    transient private TupleFile[] buildParts = null, probeParts = null;
+    transient private int part;
+    transient private boolean done;
 
+    /**
+     * Loads up to MAP_SIZE tuples of the build input into the hash table.
+     *
+     * @return true if any tuples were loaded
+     */
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
+        while (cnt < MAP_SIZE && build.hasNext()) {
+            t1 = build.next();
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
                 list = new ArrayList<Tuple>();
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            cnt++;
         }
         return cnt > 0;
+    }
+
+    /**
+     * Starts the join over the children.  If child1 does not fit in the
+     * hash table, both children are partitioned first.
+     */
+    private void start() throws DbException, TransactionAbortedException {
+        dropPartitions();
+        build = child1;
+        probe = child2;
+        listIt = null;
+        resetBatches();
+        done = !loadMap();
+        if (!done && build.hasNext())
+            done = !partition();
+    }
+
+    /** @return the partition a join field value belongs to */
+    private static int partitionOf(Field f) {
+        // use the high bits of a scrambled hash: the hash tables built for
+        // each partition index their buckets by the low bits
+        return (f.hashCode() * 0x9E3779B9) >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * Writes the hash table and the rest of child1, and then all of child2,
+     * to partition files, and moves on to the first pair of partitions.
+     *
+     * @return false if there is nothing to join
+     */
+    private boolean partition() throws DbException, TransactionAbortedException {
+        buildParts = new TupleFile[NUM_PARTITIONS];
+        probeParts = new TupleFile[NUM_PARTITIONS];
+        try {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i] = new TupleFile(child1.getTupleDesc());
+                probeParts[i] = new TupleFile(child2.getTupleDesc());
+            }
+            for (ArrayList<Tuple> list : map.values())
+                for (Tuple t : list)
+                    buildParts[partitionOf(t.getField(pred.getField1()))].add(t);
+            map.clear();
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                buildParts[partitionOf(t.getField(pred.getField1()))].add(t);
+            }
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                probeParts[partitionOf(t.getField(pred.getField2()))].add(t);
+            }
+        } catch (IOException e) {
+            dropPartitions();
+            throw new DbException("Could not partition join inputs: " + e);
+        }
+        part = -1;
+        return nextPartition();
+    }
+
+    /**
+     * Moves on to the next pair of partitions that both hold tuples, and
+     * loads the hash table from its build partition.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        closePartition();
+        while (++part < NUM_PARTITIONS) {
+            if (buildParts[part].size() == 0 || probeParts[part].size() == 0)
+                continue;
+            try {
+                build = buildParts[part].iterator();
+                probe = probeParts[part].iterator();
+            } catch (IOException e) {
+                throw new DbException("Could not read join partition: " + e);
+            }
+            build.open();
+            probe.open();
+            if (loadMap())
+                return true;
+        }
+        return false;
+    }
 
+    /** Closes and deletes the partition files currently being joined. */
+    private void closePartition() {
+        if (buildParts == null || part < 0 || part >= NUM_PARTITIONS)
+            return;
+        build.close();
+        probe.close();
+        buildParts[part].delete();
+        probeParts[part].delete();
     }
 
+    private void dropPartitions() {
+        if (buildParts == null)
+            return;
+        closePartition();
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            if (buildParts[i] != null)
+                buildParts[i].delete();
+            if (probeParts[i] != null)
+                probeParts[i].delete();
+        }
+        buildParts = null;
+        probeParts = null;
+    }
+
+    /**
+     * Called when the probe input is exhausted: loads the next chunk of the
+     * build input, or moves on to the next pair of partitions.  The probe
+     * input is only rewound if there is a next chunk to probe, so a child
+     * that is read once is never rewound.
+     *
+     * @return false if the join is finished
+     */
+    private boolean advance() throws DbException, TransactionAbortedException {
+        if (build.hasNext()) {
+            probe.rewind();
+            return loadMap();
+        }
+        return buildParts != null && nextPartition();
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        super.open();
+        start();
     }
 
     public void close() {
         super.close();
+        dropPartitions();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        resetBatches();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -116,48 +261,72 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        return new JoinedTuple(comboTD, t1, t2);
 
     }
 
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            if (listIt != null && listIt.hasNext())
+                return processList();
+            listIt = null;
+            if (done)
+                return null;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            if (probe.hasNext()) {
+                t2 = probe.next();
+                // if match, create a combined tuple and fill it with the
+                // values from both tuples
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                if (l != null)
+                    listIt = l.iterator();
                 continue;
-            listIt = l.iterator();
-
-            return processList();
+            }
 
+            done = !advance();
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
+    // state of the batch-at-a-time probe, kept across calls to
+    // fetchNextBatch() when the output batch fills up
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchPos;
 
-        return null;
+    private void resetBatches() {
+        probeBatch = null;
+        matches = null;
+    }
+
+    /**
+     * Probes the hash table with whole batches of the probe input, filling
+     * an output batch with the joined tuples.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch out = new TupleBatch(comboTD);
+        int field2 = pred.getField2();
+        while (!out.isFull()) {
+            if (matches != null && matchPos < matches.size()) {
+                out.addJoined(matches.get(matchPos++), probeBatch, probeRow);
+                continue;
+            }
+            matches = null;
+            if (probeBatch != null && ++probeRow < probeBatch.size()) {
+                matches = map.get(probeBatch.getField(field2, probeRow));
+                matchPos = 0;
+                continue;
+            }
+            if (done)
+                break;
+            probeBatch = TupleBatch.next(probe);
+            probeRow = -1;
+            if (probeBatch == null)
+                done = !advance();
+        }
+        return out.size() == 0 ? null : out;
     }
 
     @Override
@@ -169,6 +338,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(DbIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
     
 
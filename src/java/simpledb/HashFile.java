@@ -0,0 +1,350 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an extendible hash index on one field of a table stored in a
+ * {@link HeapFile}.  Like a {@link BTreeFile}, it maps each tuple's key to
+ * the tuple's RecordId, and its entries have the key, the page number and
+ * the slot of the indexed tuple as fields; but it only looks up the entries
+ * of one key at a time, which takes a read of the directory and of one
+ * bucket, however large the table.
+ * <p>
+ * Page 0 of the file is the directory; the other pages are buckets,
+ * described in {@link HashPage}.  A bucket that fills up is split in two on
+ * the next bit of its keys' hashes, doubling the directory first if the
+ * bucket already uses all of its bits.  A bucket whose keys all hash alike,
+ * or that uses as many bits as the largest directory that fits on a page
+ * has, cannot be split, and continues on overflow pages instead.  Buckets
+ * are never merged.  Pages are read through the BufferPool and locked like
+ * heap pages: readers lock the directory and the pages of the bucket they
+ * read for reading, writers lock the pages of the bucket they change for
+ * writing, and the directory too when it changes.
+ *
+ * @see HashPage
+ * @see Catalog#addIndex
+ */
+public class HashFile extends AbstractIndexFile<HashPage> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs an index backed by the specified file, on a table that
+     * must already be in the catalog.  A new index must be filled with
+     * {@link #build} before it is used.
+     *
+     * @param f the file that stores the on-disk backing store for the index
+     * @param tableid the id of the indexed table
+     * @param keyField the index of the field of that table that is indexed
+     */
+    public HashFile(File f, int tableid, int keyField) {
+        super(f, tableid, keyField);
+    }
+
+    protected PageId pageId(int pageNo) {
+        return new HashPageId(getId(), pageNo);
+    }
+
+    protected HashPage createPage(int pageNo, byte[] data) throws IOException {
+        return new HashPage(new HashPageId(getId(), pageNo), data);
+    }
+
+    protected byte[] createEmptyPageData(byte kind) {
+        return HashPage.createEmptyPageData(kind);
+    }
+
+    /** @return false: only the entries of one key are looked up at a time */
+    public boolean isOrdered() {
+        return false;
+    }
+
+    /** @return 2: the directory, then the bucket of a key */
+    public int height() {
+        return 2;
+    }
+
+    /**
+     * @return the hash of a key, with the bits of Field.hashCode() mixed so
+     *         that the low ones, which select a bucket, depend on all of them
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Fills this index with an entry for each tuple of its table, as the
+     * table is on disk, replacing whatever the file held.  The directory is
+     * made deep enough for the buckets to be about three quarters full, if
+     * it fits on a page.  The index must be in the catalog, and none of its
+     * pages cached.
+     */
+    public synchronized void build() throws IOException {
+        List<IndexEntry> all = readEntries();
+
+        int perBucket = Math.max(1, HashPage.maxEntries(getKeyType()) * 3 / 4);
+        int depth = 0;
+        while ((1 << depth) * perBucket < all.size() && depth < HashPage.maxDepth())
+            depth++;
+        List<HashPage> pages = new ArrayList<HashPage>();
+        HashPage dir = newPage(pages, HashPage.DIRECTORY);
+        for (int i = 0; i < depth; i++)
+            dir.grow();
+        // the last page of each bucket
+        HashPage[] last = new HashPage[1 << depth];
+        for (int i = 0; i < last.length; i++) {
+            last[i] = newPage(pages, HashPage.BUCKET);
+            last[i].setDepth(depth);
+            dir.setBucket(i, last[i].getId().pageNumber());
+        }
+        for (IndexEntry e : all) {
+            int b = hash(e.key) & ((1 << depth) - 1);
+            if (last[b].isFull()) {
+                HashPage overflow = newPage(pages, HashPage.BUCKET);
+                overflow.setDepth(depth);
+                last[b].setNext(overflow.getId().pageNumber());
+                last[b] = overflow;
+            }
+            last[b].addEntry(e);
+        }
+        writePages(pages);
+    }
+
+    /**
+     * Appends an empty bucket page with the given depth to the file, and
+     * returns it locked for writing by tid.
+     */
+    private HashPage newBucket(TransactionId tid, int depth, List<Page> dirtied)
+            throws IOException, DbException, TransactionAbortedException {
+        HashPage p = newPage(tid, HashPage.BUCKET);
+        p.setDepth(depth);
+        changed(tid, p, dirtied);
+        return p;
+    }
+
+    /**
+     * @return the pages of the bucket a hash selects, its first page first,
+     *         locked with the given permissions
+     */
+    private List<HashPage> bucket(TransactionId tid, int hash, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        HashPage dir = page(tid, 0, Permissions.READ_ONLY);
+        List<HashPage> chain = new ArrayList<HashPage>();
+        for (int p = dir.getBucket(hash); p >= 0; p = chain.get(chain.size() - 1).getNext())
+            chain.add(page(tid, p, perm));
+        return chain;
+    }
+
+    /**
+     * Adds an entry for a tuple of the indexed table, which must have been
+     * inserted into the table already, splitting its bucket if it is full
+     * and can be split, or giving it an overflow page if not.
+     *
+     * @param tid The transaction performing the update
+     * @param t The tuple of the indexed table
+     * @return the pages of this file that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        IndexEntry e = entryOf(t);
+        int hash = hash(e.key);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        while (true) {
+            List<HashPage> chain = bucket(tid, hash, Permissions.READ_WRITE);
+            for (HashPage p : chain) {
+                if (!p.isFull()) {
+                    p.addEntry(e);
+                    changed(tid, p, dirtied);
+                    return dirtied;
+                }
+            }
+            HashPage first = chain.get(0);
+            if (!splittable(chain, hash)) {
+                HashPage last = chain.get(chain.size() - 1);
+                HashPage overflow = newBucket(tid, first.getDepth(), dirtied);
+                last.setNext(overflow.getId().pageNumber());
+                changed(tid, last, dirtied);
+                overflow.addEntry(e);
+                return dirtied;
+            }
+            split(tid, chain, dirtied);
+        }
+    }
+
+    /**
+     * @return true if splitting a full bucket would make room for an entry
+     *         with the given hash: the bucket has fewer bits than the
+     *         largest directory, and not all its keys hash alike
+     */
+    private static boolean splittable(List<HashPage> chain, int hash) {
+        if (chain.get(0).getDepth() >= HashPage.maxDepth())
+            return false;
+        for (HashPage p : chain)
+            for (IndexEntry e : p.entries())
+                if (hash(e.key) != hash)
+                    return true;
+        return false;
+    }
+
+    /**
+     * Splits a bucket on the next bit of its keys' hashes: the entries with
+     * that bit set move to a new bucket, which the directory entries with
+     * that bit set now select.
+     *
+     * @param chain the pages of the bucket, locked for writing
+     */
+    private void split(TransactionId tid, List<HashPage> chain, List<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPage dir = page(tid, 0, Permissions.READ_WRITE);
+        HashPage first = chain.get(0);
+        int depth = first.getDepth();
+        if (depth == dir.getDepth())
+            dir.grow();
+        HashPage sibling = newBucket(tid, depth + 1, dirtied);
+        int bit = 1 << depth;
+        for (int i = 0; i < dir.numBuckets(); i++)
+            if ((i & bit) != 0 && dir.getBucket(i) == first.getId().pageNumber())
+                dir.setBucket(i, sibling.getId().pageNumber());
+        changed(tid, dir, dirtied);
+
+        List<IndexEntry> stay = new ArrayList<IndexEntry>();
+        List<IndexEntry> move = new ArrayList<IndexEntry>();
+        for (HashPage p : chain) {
+            for (IndexEntry e : p.entries())
+                ((hash(e.key) & bit) == 0 ? stay : move).add(e);
+            p.clearEntries();
+            p.setDepth(depth + 1);
+            changed(tid, p, dirtied);
+        }
+        fill(tid, chain, stay, dirtied);
+        fill(tid, new ArrayList<HashPage>(Collections.singletonList(sibling)),
+            move, dirtied);
+    }
+
+    /**
+     * Puts entries on the pages of an empty bucket in order, adding overflow
+     * pages if they do not fit.
+     */
+    private void fill(TransactionId tid, List<HashPage> chain,
+            List<IndexEntry> entries, List<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        int i = 0;
+        for (IndexEntry e : entries) {
+            HashPage p = chain.get(i);
+            if (p.isFull()) {
+                if (++i == chain.size()) {
+                    HashPage overflow = newBucket(tid, p.getDepth(), dirtied);
+                    p.setNext(overflow.getId().pageNumber());
+                    chain.add(overflow);
+                }
+                p = chain.get(i);
+            }
+            p.addEntry(e);
+        }
+    }
+
+    public Page deleteEntry(TransactionId tid, Field key, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        IndexEntry e = new IndexEntry(key, rid.getPageId().pageNumber(),
+            rid.tupleno());
+        for (HashPage p : bucket(tid, hash(key), Permissions.READ_WRITE)) {
+            for (int i = 0; i < p.numEntries(); i++) {
+                if (p.getEntry(i).compareTo(e) == 0) {
+                    p.removeEntry(i);
+                    return p;
+                }
+            }
+        }
+        throw new DbException("Tuple not found in index.");
+    }
+
+    /** @return an iterator over every entry of this index, bucket by bucket */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BucketIterator(tid, null);
+    }
+
+    public DbFileIterator iterator(TransactionId tid, Field key) {
+        return new BucketIterator(tid, key);
+    }
+
+    private class BucketIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TransactionId tid;
+        // the key whose entries are returned, or null for all of them
+        private final Field key;
+        // the first pages of the buckets still to be read
+        private LinkedList<Integer> buckets = new LinkedList<Integer>();
+        // the entries of the page being read, copied so that the scan's own
+        // transaction may change the page, the position of the next one,
+        // and the page after it in its bucket, or -1
+        private List<IndexEntry> entries = Collections.emptyList();
+        private int pos, nextPage = -1;
+        private Tuple next;
+
+        BucketIterator(TransactionId tid, Field key) {
+            this.tid = tid;
+            this.key = key;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            close();
+            HashPage dir = page(tid, 0, Permissions.READ_ONLY);
+            if (key != null) {
+                buckets.add(dir.getBucket(hash(key)));
+            } else {
+                Set<Integer> seen = new LinkedHashSet<Integer>();
+                for (int i = 0; i < dir.numBuckets(); i++)
+                    seen.add(dir.getBucket(i));
+                buckets.addAll(seen);
+            }
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null) {
+                if (pos == entries.size()) {
+                    int p = nextPage >= 0 ? nextPage
+                        : (buckets.isEmpty() ? -1 : buckets.removeFirst());
+                    if (p < 0)
+                        break;
+                    HashPage page = page(tid, p, Permissions.READ_ONLY);
+                    entries = page.entries();
+                    pos = 0;
+                    nextPage = page.getNext();
+                    continue;
+                }
+                IndexEntry e = entries.get(pos++);
+                if (key != null && IndexEntry.compareKeys(e.key, key) != 0)
+                    continue;
+                next = e.toTuple(getTupleDesc());
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            buckets.clear();
+            entries = Collections.emptyList();
+            nextPage = -1;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of HashPage stores the directory or a bucket of a
+ * {@link HashFile}, and implements the Page interface that is used by
+ * BufferPool.
+ * <p>
+ * A page starts with a byte giving its kind.  The directory, page 0 of the
+ * file, then holds its global depth d and the page numbers of the 2^d
+ * buckets that the low d bits of a key's hash select.  A bucket holds its
+ * local depth, the number of low bits of the hash that all of its keys
+ * share, its number of entries, the number of the overflow page its
+ * entries continue on (or -1), and its entries in no particular order.
+ * Overflow pages are buckets too, with the depth of the bucket they extend.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashPage implements Page {
+
+    public static final byte DIRECTORY = 0, BUCKET = 1;
+
+    // kind, then depth, and count and overflow page for a bucket
+    private static final int HEADER_SIZE = 13;
+
+    private final HashPageId pid;
+    private final Type keyType;
+    private byte kind;
+    private int depth;
+    // DIRECTORY: the bucket of each value of the low depth bits of a hash
+    private ArrayList<Integer> buckets = new ArrayList<Integer>();
+    // BUCKET: the overflow page, or -1
+    private int next;
+    private ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+
+    private byte[] oldData;
+    private volatile TransactionId dirtier;
+
+    /**
+     * Create a HashPage from a set of bytes of data read from disk, in the
+     * format described above.  The type of the keys is that of the
+     * {@link HashFile} the page belongs to, which must be in the catalog.
+     */
+    public HashPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.keyType = ((IndexFile) Database.getCatalog().getDbFile(id.getTableId())).getKeyType();
+        if (data.length < BufferPool.PAGE_SIZE)
+            throw new IOException("page data too short");
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        kind = dis.readByte();
+        depth = dis.readInt();
+        try {
+            if (kind == DIRECTORY) {
+                for (int i = 0; i < 1 << depth; i++)
+                    buckets.add(dis.readInt());
+            } else {
+                int n = dis.readInt();
+                next = dis.readInt();
+                for (int i = 0; i < n; i++)
+                    entries.add(new IndexEntry(keyType.parse(dis), dis.readInt(), dis.readInt()));
+            }
+        } catch (ParseException e) {
+            throw new IOException("could not parse key on " + id);
+        }
+        oldData = data.clone();
+    }
+
+    /**
+     * @return the bytes of an empty page of the given kind: a directory of
+     *         depth 0 whose bucket is page 1, or a bucket of depth 0 with no
+     *         overflow page
+     */
+    static byte[] createEmptyPageData(byte kind) {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        data[0] = kind;
+        if (kind == DIRECTORY)
+            data[8] = 1;
+        else
+            Arrays.fill(data, 9, 13, (byte) 0xff);
+        return data;
+    }
+
+    /** @return the most entries a bucket holds, for keys of the given type */
+    static int maxEntries(Type keyType) {
+        return (BufferPool.PAGE_SIZE - HEADER_SIZE) / (keyType.getLen() + 8);
+    }
+
+    /** @return the largest global depth whose directory fits on a page */
+    static int maxDepth() {
+        int d = 0;
+        while (5 + 4 * (2 << d) <= BufferPool.PAGE_SIZE)
+            d++;
+        return d;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    synchronized byte getKind() {
+        return kind;
+    }
+
+    /** @return the global depth of a directory, or local depth of a bucket */
+    synchronized int getDepth() {
+        return depth;
+    }
+
+    synchronized void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /** @return the number of directory entries, 2^depth */
+    synchronized int numBuckets() {
+        return buckets.size();
+    }
+
+    /** @return the bucket page a hash selects, by its low depth bits */
+    synchronized int getBucket(int hash) {
+        return buckets.get(hash & ((1 << depth) - 1));
+    }
+
+    synchronized void setBucket(int i, int bucket) {
+        buckets.set(i, bucket);
+    }
+
+    /**
+     * Doubles a directory, adding a bit to its depth; each new entry
+     * selects the same bucket as the entry it differs from in that bit.
+     */
+    synchronized void grow() {
+        buckets.addAll(new ArrayList<Integer>(buckets));
+        depth++;
+    }
+
+    /** @return the overflow page of a bucket, or -1 if there is none */
+    synchronized int getNext() {
+        return next;
+    }
+
+    synchronized void setNext(int next) {
+        this.next = next;
+    }
+
+    synchronized int numEntries() {
+        return entries.size();
+    }
+
+    synchronized IndexEntry getEntry(int i) {
+        return entries.get(i);
+    }
+
+    /** @return a copy of the entries of this bucket */
+    synchronized List<IndexEntry> entries() {
+        return new ArrayList<IndexEntry>(entries);
+    }
+
+    /** @return true if this bucket has no room for another entry */
+    synchronized boolean isFull() {
+        return entries.size() >= maxEntries(keyType);
+    }
+
+    synchronized void addEntry(IndexEntry e) {
+        entries.add(e);
+    }
+
+    synchronized void removeEntry(int i) {
+        entries.remove(i);
+    }
+
+    synchronized void clearEntries() {
+        entries.clear();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in
+     * the format the constructor reads.
+     */
+    public synchronized byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(kind);
+            dos.writeInt(depth);
+            if (kind == DIRECTORY) {
+                for (int b : buckets)
+                    dos.writeInt(b);
+            } else {
+                dos.writeInt(entries.size());
+                dos.writeInt(next);
+                for (IndexEntry e : entries) {
+                    e.key.serialize(dos);
+                    dos.writeInt(e.page);
+                    dos.writeInt(e.slot);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.PAGE_SIZE);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashPage getBeforeImage() {
+        try {
+            return new HashPage(pid, oldData);
+        } catch (IOException e) {
+            // we parsed it before, so this should never happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+}
@@ -0,0 +1,60 @@
+package simpledb;
+
+/** Unique identifier for HashPage objects. */
+public class HashPageId implements PageId {
+
+    private final int tableId, pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific index file.
+     *
+     * @param tableId The id of the {@link HashFile} being referenced
+     * @param pgNo The page number in that file
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the id of the index file associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the file getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return (tableId << 16) + pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @return true if o is a HashPageId with the same file and page number
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId pid = (HashPageId) o;
+        return tableId == pid.tableId && pgNo == pid.pgNo;
+    }
+
+    public String toString() {
+        return "HashPageId(" + tableId + ", " + pgNo + ")";
+    }
+
+    /**
+     * Return a representation of this object as an array of integers, for
+     * writing to disk; they are the arguments of the constructor.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, pgNo };
+    }
+}
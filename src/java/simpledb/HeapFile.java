@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,6 +19,8 @@ public class HeapFile implements DbFile {
 
     private File f;
     private TupleDesc td;
+    // the zone map of this file, or null if it has none
+    private volatile ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +33,81 @@ public class HeapFile implements DbFile {
         // some code goes here
 	this.f = f;
 	this.td = td;
+	zoneMap = ZoneMap.read(zoneMapFile(), f, td);
+    }
+
+    /** @return the side file this file's zone map is kept in */
+    private File zoneMapFile() {
+	return new File(f.getPath() + ".zm");
+    }
+
+    /**
+     * Gives this file a zone map, if it has none, and writes it out.  The
+     * map learns the bounds of each page as scans read it.
+     *
+     * @return the zone map
+     * @see ZoneMap
+     */
+    public synchronized ZoneMap createZoneMap() throws IOException {
+	if (zoneMap == null)
+	    {
+		ZoneMap zm = new ZoneMap(td);
+		zm.save(zoneMapFile(), f);
+		zoneMap = zm;
+	    }
+	return zoneMap;
+    }
+
+    /** @return the zone map of this file, or null if it has none */
+    public ZoneMap getZoneMap() {
+	return zoneMap;
+    }
+
+    /**
+     * @return the number of pages a scan with the given filters reads, the
+     *         others being skipped thanks to the zone map
+     * @param filters predicates over tuples of this file's schema
+     */
+    public int numPagesToScan(List<Predicate> filters) {
+	ZoneMap zm = zoneMap;
+	if (zm == null || filters.isEmpty())
+	    return numPages();
+	return zm.pagesToScan(filters, numPages());
+    }
+
+    /**
+     * Writes the zone map out to its side file, if it has learned bounds
+     * since it was last written.  Pages written to this file only widen
+     * the map in memory, so this is done when a scan is closed and when
+     * the BufferPool flushes every page.
+     */
+    public void saveZoneMap() throws IOException {
+	ZoneMap zm = zoneMap;
+	if (zm != null)
+	    zm.save(zoneMapFile(), f);
+    }
+
+    /**
+     * Writes pages to this file, with the zone map told before, so that its
+     * side file stops vouching for the pages, and widened after to cover
+     * them, as they may not have been changed through this file.
+     */
+    private void write(List<Page> pages) throws IOException {
+	ZoneMap zm = zoneMap;
+	if (zm == null)
+	    {
+		writeData(pages);
+		return;
+	    }
+	zm.startWrite(zoneMapFile(), f);
+	try
+	    {
+		writeData(pages);
+	    }
+	finally
+	    {
+		zm.endWrite(pages);
+	    }
     }
 
     /**
@@ -94,16 +173,52 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for proj1
 	// proj2
-	int pageNo = page.getId().pageNumber();
-	byte[] data = page.getPageData();
-	RandomAccessFile raf = new RandomAccessFile(f, "rw");
-	int pgSize = BufferPool.PAGE_SIZE;
-	raf.seek(pageNo * pgSize);
-	raf.write(data, 0, pgSize);
-	raf.close();
+	write(Collections.singletonList(page));
 	page.markDirty(false, null);
     }
 
+    /**
+     * Writes several pages of this file, opening it once.  Each run of
+     * consecutive page numbers goes out in a single gathered write.
+     *
+     * @param pages the pages to write, sorted by page number
+     */
+    public void writePages(List<Page> pages) throws IOException {
+	write(pages);
+	for (Page p : pages)
+	    p.markDirty(false, null);
+    }
+
+    /** Writes pages, sorted by page number, to the file on disk. */
+    private void writeData(List<Page> pages) throws IOException {
+	int pgSize = BufferPool.PAGE_SIZE;
+	RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	try
+	    {
+		FileChannel ch = raf.getChannel();
+		int i = 0;
+		while (i < pages.size())
+		    {
+			int j = i + 1;
+			while (j < pages.size()
+			       && pages.get(j).getId().pageNumber() == pages.get(j - 1).getId().pageNumber() + 1)
+			    j++;
+			ByteBuffer[] run = new ByteBuffer[j - i];
+			for (int k = i ; k < j ; k++)
+			    run[k - i] = ByteBuffer.wrap(pages.get(k).getPageData(), 0, pgSize);
+			ch.position((long) pages.get(i).getId().pageNumber() * pgSize);
+			long left = (long) (j - i) * pgSize;
+			while (left > 0)
+			    left -= ch.write(run);
+			i = j;
+		    }
+	    }
+	finally
+	    {
+		raf.close();
+	    }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -118,29 +233,50 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for proj1
 	// proj2
+	// only the slot the tuple goes into is locked, so other transactions
+	// can keep inserting into (and reading) the same pages
+	BufferPool bp = Database.getBufferPool();
 	ArrayList<Page> ans = new ArrayList<Page>();
-	int pageNo;
-	for (pageNo = 0 ; pageNo < numPages() ; pageNo++)
+	int pageNo = 0;
+	while (true)
 	    {
-		PageId pid = new HeapPageId(getId(), pageNo);
-		HeapPage hp = (HeapPage) (Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE));
-		if (hp.getNumEmptySlots() != 0)
+		for ( ; pageNo < numPages() ; pageNo++)
 		    {
-			hp.insertTuple(t);
-			ans.add(hp);
-			return ans;
+			HeapPageId pid = new HeapPageId(getId(), pageNo);
+			boolean wasLocked = bp.holdsLock(tid, pid);
+			HeapPage hp = (HeapPage) (bp.getPageForRecords(tid, pid, Permissions.READ_WRITE));
+			synchronized (hp)
+			    {
+				if (hp.getNumEmptySlots() != 0)
+				    for (int slot = 0 ; slot < hp.getNumSlots() ; slot++)
+					if (!hp.isSlotUsed(slot)
+					    && bp.tryLockRecord(tid, new RecordId(pid, slot), Permissions.READ_WRITE))
+					    {
+						// readers must not skip the page
+						// once the tuple is on it
+						if (zoneMap != null)
+						    zoneMap.add(pageNo, t);
+						hp.insertTuple(t, slot, tid);
+						ans.add(hp);
+						return ans;
+					    }
+			    }
+			// nothing was done to this page, so nobody depends on our lock
+			if (!wasLocked)
+			    bp.releasePage(tid, pid);
+		    }
+		// every page is full; extend the file with an empty page and retry
+		synchronized (this)
+		    {
+			if (numPages() == pageNo)
+			    {
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				raf.seek(pageNo * BufferPool.PAGE_SIZE);
+				raf.write(HeapPage.createEmptyPageData(), 0, BufferPool.PAGE_SIZE);
+				raf.close();
+			    }
 		    }
 	    }
-	HeapPageId newPid = new HeapPageId(getId(), pageNo);
-	HeapPage newP = new HeapPage(newPid, HeapPage.createEmptyPageData());
-	newP.insertTuple(t);
-	int pgSize = BufferPool.PAGE_SIZE;
-	RandomAccessFile raf = new RandomAccessFile(f, "rw");
-	raf.seek(pageNo * pgSize);
-	raf.write(newP.getPageData(), 0, pgSize);
-	raf.close();
-	ans.add(newP);
-	return ans;
     }
 
     // see DbFile.java for javadocs
@@ -149,11 +285,33 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for proj1
 	// proj2
-	HeapPage hp = (HeapPage) (Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE));
-	hp.deleteTuple(t);
+	RecordId rid = t.getRecordId();
+	if (rid == null)
+	    throw new DbException("Tuple not found.");
+	BufferPool bp = Database.getBufferPool();
+	HeapPage hp = (HeapPage) (bp.getPageForRecords(tid, rid.getPageId(), Permissions.READ_WRITE));
+	bp.lockRecord(tid, rid, Permissions.READ_WRITE);
+	hp.deleteTuple(t, tid);
+	if (zoneMap != null)
+	    zoneMap.invalidate(rid.getPageId().pageNumber());
 	return hp;
     }
 
+    /**
+     * Returns the tuple with the given RecordId, such as one found through
+     * an index, locking it for reading.
+     *
+     * @return the tuple, or null if its slot is empty, as it is once an
+     *         insert the index was told about has been rolled back
+     */
+    public Tuple readTuple(TransactionId tid, RecordId rid)
+	throws DbException, TransactionAbortedException {
+	BufferPool bp = Database.getBufferPool();
+	HeapPage hp = (HeapPage) (bp.getPageForRecords(tid, rid.getPageId(), Permissions.READ_ONLY));
+	bp.lockRecord(tid, rid, Permissions.READ_ONLY);
+	return hp.getTuple(rid.tupleno());
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
@@ -183,9 +341,73 @@ public class HeapFile implements DbFile {
 	// ans = new HeapFileIterator(td, tups);
 	// System.out.println(tups.size());
 	// return ans;
-	return new HeapFileIterator(tid);
+	return iterator(tid, 0, -1);
+    }
+
+    /**
+     * Returns an iterator over the tuples on a range of pages of this file,
+     * so that several threads can each scan part of it.
+     *
+     * @param tid the transaction reading the pages
+     * @param firstPage the number of the first page to read
+     * @param endPage the number of the page after the last one to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+	return iterator(tid, firstPage, endPage, new ArrayList<Predicate>());
     }
-    
+
+    /**
+     * Returns an iterator over the tuples on a range of pages of this file
+     * that pass every one of the given filters.  The filters are applied
+     * to each page before its tuples are decoded, and a tuple that fails
+     * them is never decoded.  Each page is read with an S lock on the whole
+     * page, held until tid completes, so the tuples tested cannot change
+     * under the scan.  The filters are compiled into one class by
+     * {@link Codegen}.
+     *
+     * @param tid the transaction reading the pages
+     * @param firstPage the number of the first page to read
+     * @param endPage the number of the page after the last one to read, or
+     *        -1 to read to the end of the file
+     * @param filters predicates over tuples of this file's schema
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage,
+				   List<Predicate> filters) {
+	return iterator(tid, firstPage, endPage, filters, null);
+    }
+
+    /**
+     * Returns an iterator over some of the fields of the tuples on a range
+     * of pages of this file that pass every one of the given filters.  The
+     * fields that are not asked for are not decoded.
+     *
+     * @param columns the fields to return, in the order to return them, or
+     *        null for all of them; the filters number fields as in the
+     *        whole tuple whichever are returned
+     * @see #iterator(TransactionId, int, int, List)
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage,
+				   List<Predicate> filters, int[] columns) {
+	return new HeapFileIterator(tid, firstPage, endPage, filters, columns);
+    }
+
+    /**
+     * @return the schema of the given fields of this file's tuples, or the
+     *         whole schema if columns is null
+     */
+    TupleDesc project(int[] columns) {
+	if (columns == null)
+	    return td;
+	Type[] types = new Type[columns.length];
+	String[] names = new String[columns.length];
+	for (int i = 0 ; i < columns.length ; i++)
+	    {
+		types[i] = td.getFieldType(columns[i]);
+		names[i] = td.getFieldName(columns[i]);
+	    }
+	return new TupleDesc(types, names);
+    }
+
     private class HeapFileIterator implements DbFileIterator
     {
 
@@ -195,21 +417,102 @@ public class HeapFile implements DbFile {
 	private Iterator<Tuple> iter;
 	private int pageNo;
 	private boolean open;
+	// the range of pages read; endPage is -1 to read to the end of the
+	// file as it grows
+	private int firstPage, endPage;
+	// the filters, and the same compiled, or null if there are none
+	private List<Predicate> filters;
+	private TupleFilter filter;
+	// the fields returned, or null for all of them, their schema, and the
+	// projection building them out of whole tuples
+	private int[] columns;
+	private TupleDesc projected;
+	private TupleProjector projector;
+	// true once the zone map has learned the bounds of a page
+	private boolean built;
 
-	public HeapFileIterator(TransactionId transId)
+	public HeapFileIterator(TransactionId transId, int firstPage, int endPage,
+				List<Predicate> filters, int[] columns)
 	{
 	    this.tid = transId;
-	    pageNo = 0;
+	    this.firstPage = firstPage;
+	    this.endPage = endPage;
+	    this.filters = filters;
+	    if (!filters.isEmpty())
+		filter = Codegen.compileFilter(filters, td);
+	    this.columns = columns;
+	    projected = project(columns);
+	    if (columns != null)
+		projector = Codegen.compileProjection(columns, projected);
+	    pageNo = firstPage;
+	}
+
+	private int endPage()
+	{
+	    return endPage < 0 ? numPages() : endPage;
 	}
 
 	@Override
 	public void open() throws DbException, TransactionAbortedException
 	{
-	    HeapPage hp = (HeapPage) (Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY));
-	    iter = hp.iterator();
+	    if (endPage < 0 || pageNo < endPage)
+		iter = readPage(pageNo);
 	    open = true;
 	}
 
+	/**
+	 * Locks a page for reading and returns the tuples on it, or reads them
+	 * from our snapshot in multi-version mode.  A scan reads every record
+	 * of the page, so it takes one S lock on the page rather than one on
+	 * each record, which would soon be escalated to a lock on the whole
+	 * table; point reads and writes still lock single records.
+	 */
+	private Iterator<Tuple> readPage(int pageNo) throws DbException, TransactionAbortedException
+	{
+	    BufferPool bp = Database.getBufferPool();
+	    HeapPageId pid = new HeapPageId(getId(), pageNo);
+	    List<Tuple> tups = new ArrayList<Tuple>();
+	    if (bp.readsSnapshot(tid, pid))
+		{
+		    Iterator<Tuple> it = bp.getSnapshotTuples(tid, pid);
+		    if (filter == null && columns == null)
+			return it;
+		    while (it.hasNext())
+			{
+			    Tuple t = it.next();
+			    if (filter == null || filter.filter(t))
+				tups.add(columns == null ? t : projector.project(t));
+			}
+		    return tups.iterator();
+		}
+	    // a page the zone map rules out has nothing to lock or read;
+	    // snapshots may see older versions of it, which the map need not
+	    // cover any more
+	    ZoneMap zm = zoneMap;
+	    if (zm != null && filter != null && !zm.mayMatch(pageNo, filters))
+		return tups.iterator();
+	    HeapPage hp = (HeapPage) (bp.getPage(tid, pid, Permissions.READ_ONLY));
+	    if (zm != null && zm.needsBuild(pageNo))
+		synchronized (hp)
+		    {
+			if (hp.isDirty() == null && hp.rowWriters().isEmpty())
+			    {
+				zm.setPage(hp);
+				built = true;
+			    }
+		    }
+	    for (int i = 0 ; i < hp.getNumSlots() ; i++)
+		{
+		    if (!hp.isSlotUsed(i) || (filter != null && !hp.matches(i, filter)))
+			continue;
+		    Tuple t = columns == null ? hp.getTuple(i)
+			: hp.getTuple(i, columns, projected);
+		    if (t != null)
+			tups.add(t);
+		}
+	    return tups.iterator();
+	}
+
 	@Override
 	public boolean hasNext() throws DbException, TransactionAbortedException
 	{
@@ -219,13 +522,10 @@ public class HeapFile implements DbFile {
 			return false;
 		    if (iter.hasNext())
 			return true;
-		    BufferPool bp = Database.getBufferPool();
-		    while (pageNo < numPages() - 1)
+		    while (pageNo < endPage() - 1)
 			{
 			    pageNo++;
-			    HeapPageId meep = new HeapPageId(getId(),pageNo);
-			    HeapPage hp = (HeapPage) (bp.getPage(tid, meep, Permissions.READ_ONLY));
-			    iter = hp.iterator();
+			    iter = readPage(pageNo);
 			    if (iter.hasNext())
 				return true;
 			}
@@ -244,9 +544,22 @@ public class HeapFile implements DbFile {
 	@Override
 	public void close()
 	{
-	    pageNo = 0;
+	    pageNo = firstPage;
 	    iter = null;
 	    open = false;
+	    // keep the bounds of the pages this scan computed
+	    if (built)
+		{
+		    built = false;
+		    try
+			{
+			    saveZoneMap();
+			}
+		    catch (IOException e)
+			{
+			    e.printStackTrace();
+			}
+		}
 	}
 
 	@Override
@@ -20,11 +20,38 @@ public class HeapPage implements Page {
     Tuple tuples[];
     int numSlots;
 
+    // the page as read from disk; the tuple in a used slot is decoded from
+    // it the first time it is asked for, and decoded[slot] is set once
+    // tuples[slot] holds it or the slot has been changed since
+    private byte[] data;
+    private boolean[] decoded;
+    // where each field starts within a tuple
+    private int[] fieldOffsets;
+    /** bytes a tuple takes in the page data, as HeapFileEncoder lays it out */
+    private int slotSize;
+
     byte[] oldData;
 
     boolean dirty;
     TransactionId tid;
 
+    /** Slot changes made through record locks, per transaction, oldest
+        first, so that one transaction's changes can be undone or committed
+        without touching those of the others sharing this page. */
+    private Map<TransactionId, List<SlotChange>> rowChanges;
+
+    /** Undo information for one slot: the tuple it held before the change,
+        or null if it was empty. */
+    private static class SlotChange {
+        final int slot;
+        final Tuple before;
+
+        SlotChange(int slot, Tuple before) {
+            this.slot = slot;
+            this.before = before;
+        }
+    }
+
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -45,25 +72,22 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.fieldOffsets = Codegen.fieldOffsets(td);
+        this.slotSize = slotSize(td);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.PAGE_SIZE)
+            throw new IOException("page data too short");
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        // the records are decoded when they are first read; data is never
+        // changed, so it is also the page's before image
+        this.data = data;
+        tuples = new Tuple[numSlots];
+        decoded = new boolean[numSlots];
+        oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,7 +95,15 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return (int) (Math.floor(8.0 * BufferPool.PAGE_SIZE / (8.0 * td.getSize() + 1)));
+        return (int) (Math.floor(8.0 * BufferPool.PAGE_SIZE / (8.0 * slotSize + 1)));
+    }
+
+    /** @return the bytes a tuple of td takes: the encoded length of each field */
+    private static int slotSize(TupleDesc td) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            size += td.getFieldType(j).getLen();
+        return size;
     }
 
     /**
@@ -100,6 +132,13 @@ public class HeapPage implements Page {
         oldData = getPageData().clone();
     }
 
+    /** Sets the before image to the given page contents, rather than the
+        current ones -- used when committing a page that other transactions
+        still have uncommitted changes on. */
+    void setBeforeImage(byte[] data) {
+        oldData = data.clone();
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -108,22 +147,29 @@ public class HeapPage implements Page {
 	return pid;
     }
 
+    /** @return where the tuple in the given slot starts in the page data */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * slotSize;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a slot, decoding it from the page data if it has
+     * not been already; null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple tuple(int slotId) {
+        if (!decoded[slotId]) {
+            tuples[slotId] = isSlotUsed(slotId) ? readTuple(slotId) : null;
+            decoded[slotId] = true;
         }
+        return tuples[slotId];
+    }
+
+    /**
+     * Suck up a tuple from the page data.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, slotOffset(slotId), slotSize));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -142,6 +188,23 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Returns true if the tuple in a used slot passes a filter.  If the
+     * tuple has not been decoded yet, the filter is applied to the page data
+     * first, so a tuple that fails its INT_TYPE comparisons is never decoded.
+     *
+     * @param filter a filter over tuples with this page's schema
+     */
+    public synchronized boolean matches(int slotId, TupleFilter filter) {
+        if (!decoded[slotId]) {
+            if (!filter.filterBytes(data, slotOffset(slotId)))
+                return false;
+            if (filter.bytesOnly())
+                return true;
+        }
+        return filter.filter(tuple(slotId));
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -153,7 +216,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.PAGE_SIZE;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -173,7 +236,7 @@ public class HeapPage implements Page {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
+                for (int j=0; j<slotSize; j++) {
                     try {
                         dos.writeByte(0);
                     } catch (IOException e) {
@@ -184,7 +247,15 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot, copied as it was read if it was never decoded
+            if (!decoded[i]) {
+                try {
+                    dos.write(data, slotOffset(i), slotSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -197,7 +268,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.PAGE_SIZE - (header.length + slotSize * tuples.length);
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -235,7 +306,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
 	// proj2
@@ -256,7 +327,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
 	// proj2
@@ -280,9 +351,132 @@ public class HeapPage implements Page {
 	int tupNo = byteNo * 8 + bitNo;
 	t.setRecordId(new RecordId(pid, tupNo));
 	tuples[tupNo] = t;
+	decoded[tupNo] = true;
 	markSlotUsed(tupNo, true);
     }
 
+    /**
+     * Adds the specified tuple to the given slot on behalf of a transaction
+     * holding the X lock on that slot, remembering how to undo the change.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t, int slot, TransactionId tid) throws DbException {
+	if (isSlotUsed(slot))
+	    throw new DbException("Tuple slot in use.");
+	if (!t.getTupleDesc().equals(td))
+	    throw new DbException("TupleDesc's do not match.");
+	logSlotChange(tid, slot, null);
+	t.setRecordId(new RecordId(pid, slot));
+	tuples[slot] = t;
+	decoded[slot] = true;
+	markSlotUsed(slot, true);
+    }
+
+    /**
+     * Deletes the specified tuple on behalf of a transaction holding the X
+     * lock on its slot, remembering how to undo the change.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+	if (t.getRecordId() == null || !t.getRecordId().getPageId().equals(pid))
+	    throw new DbException("Tuple not found.");
+	int slot = t.getRecordId().tupleno();
+	if (!isSlotUsed(slot))
+	    throw new DbException("Tuple slot empty.");
+	logSlotChange(tid, slot, tuple(slot));
+	deleteTuple(t);
+    }
+
+    private void logSlotChange(TransactionId tid, int slot, Tuple before) {
+	if (rowChanges == null)
+	    rowChanges = new HashMap<TransactionId, List<SlotChange>>();
+	List<SlotChange> changes = rowChanges.get(tid);
+	if (changes == null)
+	    {
+		changes = new ArrayList<SlotChange>();
+		rowChanges.put(tid, changes);
+	    }
+	changes.add(new SlotChange(slot, before));
+    }
+
+    /**
+     * Returns the transactions with uncommitted slot changes on this page.
+     */
+    public synchronized Set<TransactionId> rowWriters() {
+	if (rowChanges == null)
+	    return Collections.emptySet();
+	return new HashSet<TransactionId>(rowChanges.keySet());
+    }
+
+    /**
+     * Returns the slots tid has changed on this page, each once, and
+     * whether each was in use before tid's first change to it.
+     */
+    public synchronized Map<Integer, Boolean> changedSlots(TransactionId tid) {
+	Map<Integer, Boolean> slots = new LinkedHashMap<Integer, Boolean>();
+	List<SlotChange> changes = rowChanges == null ? null : rowChanges.get(tid);
+	if (changes != null)
+	    for (SlotChange c : changes)
+		if (!slots.containsKey(c.slot))
+		    slots.put(c.slot, c.before != null);
+	return slots;
+    }
+
+    /**
+     * Reverts the slot changes tid made to this page, newest first.
+     */
+    public synchronized void undoRowChanges(TransactionId tid) {
+	List<SlotChange> changes = rowChanges == null ? null : rowChanges.remove(tid);
+	if (changes != null)
+	    undo(changes, true);
+    }
+
+    /**
+     * Forgets the slot changes tid made to this page, once they are
+     * committed.
+     */
+    public synchronized void forgetRowChanges(TransactionId tid) {
+	if (rowChanges != null)
+	    rowChanges.remove(tid);
+    }
+
+    /**
+     * Returns a copy of this page as it should be written when tid commits:
+     * tid's changes are kept, and the slot changes of every other
+     * transaction are undone.
+     */
+    public synchronized HeapPage committedImage(TransactionId tid) throws IOException {
+	HeapPage image = new HeapPage(pid, getPageData());
+	if (rowChanges != null)
+	    for (Map.Entry<TransactionId, List<SlotChange>> e : rowChanges.entrySet())
+		if (!e.getKey().equals(tid))
+		    image.undo(e.getValue(), false);
+	return image;
+    }
+
+    /**
+     * Reverts changes, newest first.  If restoreIds is false the restored
+     * tuples are shared with another page and their record ids are left
+     * alone.
+     */
+    private void undo(List<SlotChange> changes, boolean restoreIds) {
+	for (int i = changes.size() - 1 ; i >= 0 ; i--)
+	    {
+		SlotChange c = changes.get(i);
+		if (c.before == null)
+		    markSlotUsed(c.slot, false);
+		else
+		    {
+			if (restoreIds)
+			    c.before.setRecordId(new RecordId(pid, c.slot));
+			tuples[c.slot] = c.before;
+			decoded[c.slot] = true;
+			markSlotUsed(c.slot, true);
+		    }
+	    }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -327,6 +521,55 @@ public class HeapPage implements Page {
 	return empty;
     }
 
+    /**
+     * Returns the number of tuple slots on this page.
+     */
+    public int getNumSlots() {
+	return numSlots;
+    }
+
+    /**
+     * Returns the tuple in the given slot, or null if the slot is empty.
+     */
+    public synchronized Tuple getTuple(int i) {
+	return isSlotUsed(i) ? tuple(i) : null;
+    }
+
+    /**
+     * Returns some of the fields of the tuple in the given slot as a new
+     * tuple, or null if the slot is empty.  If the tuple has not been
+     * decoded, only the fields asked for are parsed from the page data; the
+     * others are skipped over.  The new tuple is not kept by the page.
+     *
+     * @param columns the fields to return, in the order to return them
+     * @param td the schema of the returned tuple
+     */
+    public synchronized Tuple getTuple(int i, int[] columns, TupleDesc td) {
+	if (!isSlotUsed(i))
+	    return null;
+	Tuple t = new Tuple(td);
+	t.setRecordId(new RecordId(pid, i));
+	if (decoded[i])
+	    {
+		for (int j = 0 ; j < columns.length ; j++)
+		    t.setField(j, tuples[i].getField(columns[j]));
+		return t;
+	    }
+	try {
+	    for (int j = 0 ; j < columns.length ; j++)
+		{
+		    Type type = this.td.getFieldType(columns[j]);
+		    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+			data, slotOffset(i) + fieldOffsets[columns[j]], type.getLen()));
+		    t.setField(j, type.parse(dis));
+		}
+	} catch (java.text.ParseException e) {
+	    e.printStackTrace();
+	    throw new NoSuchElementException("parsing error!");
+	}
+	return t;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -361,12 +604,12 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         // some code goes here
         List<Tuple> list = new ArrayList<Tuple>();
 	    for (int i = 0 ; i < tuples.length ; i++)
 		if (isSlotUsed(i))
-		    list.add(tuples[i]);
+		    list.add(tuple(i));
 	return list.iterator();
     }
 
@@ -0,0 +1,47 @@
+package simpledb;
+
+/**
+ * An entry of an {@link IndexFile}: a key, and the page number and slot of
+ * the tuple of the indexed table it was taken from.  Entries are ordered by
+ * key, then by page and slot, so that no two are alike even when keys are.
+ *
+ * @see BTreePage
+ * @see HashPage
+ */
+final class IndexEntry implements Comparable<IndexEntry> {
+    final Field key;
+    final int page, slot;
+
+    IndexEntry(Field key, int page, int slot) {
+        this.key = key;
+        this.page = page;
+        this.slot = slot;
+    }
+
+    public int compareTo(IndexEntry e) {
+        int c = compareKeys(key, e.key);
+        if (c != 0)
+            return c;
+        if (page != e.page)
+            return page < e.page ? -1 : 1;
+        return slot < e.slot ? -1 : (slot == e.slot ? 0 : 1);
+    }
+
+    /** @return this entry as a tuple with the given schema, that of the
+        entries of the index it belongs to */
+    Tuple toTuple(TupleDesc td) {
+        Tuple t = new Tuple(td);
+        t.setField(0, key);
+        t.setField(1, new IntField(page));
+        t.setField(2, new IntField(slot));
+        return t;
+    }
+
+    /** @return a negative number, zero or a positive number as a is less
+        than, equal to or greater than b */
+    static int compareKeys(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+    }
+}
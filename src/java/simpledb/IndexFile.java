@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * An IndexFile is a DbFile that indexes one field of a table stored in a
+ * {@link HeapFile}.  It maps each tuple's value of that field, its key, to
+ * the tuple's RecordId; the tuples it returns are its entries, with the
+ * key, the page number and the slot of the indexed tuple as fields.
+ * Indexes are added to the catalog with {@link Catalog#addIndex}, after
+ * which the BufferPool keeps them up to date as tuples are inserted into
+ * and deleted from their tables.
+ *
+ * @see BTreeFile
+ * @see HashFile
+ */
+public interface IndexFile extends DbFile {
+
+    /** @return the id of the table this is an index on */
+    public int getTableId();
+
+    /** @return the index of the field of the table this is an index on */
+    public int getKeyField();
+
+    /** @return the type of the keys of this index */
+    public Type getKeyType();
+
+    /**
+     * @return true if the entries of a range of keys can be read in key
+     *         order, with {@link BTreeFile#iterator(TransactionId, Field,
+     *         boolean, Field, boolean)}; false if only the entries of one
+     *         key can be looked up
+     */
+    public boolean isOrdered();
+
+    /**
+     * @return the number of pages a lookup reads to find the first entry
+     *         with a key, counting the page that holds it
+     */
+    public int height();
+
+    /**
+     * Fills this index with an entry for each tuple of its table, as the
+     * table is on disk, replacing whatever the file held.  The index must be
+     * in the catalog, and none of its pages cached.
+     */
+    public void build() throws IOException;
+
+    /** @return an iterator over the entries with the given key */
+    public DbFileIterator iterator(TransactionId tid, Field key);
+
+    /**
+     * Removes the entry for the tuple of the indexed table with the given
+     * key and RecordId, such as a tuple that has just been deleted from it.
+     *
+     * @return the page the entry was removed from
+     * @throws DbException if the index has no such entry
+     */
+    public Page deleteEntry(TransactionId tid, Field key, RecordId rid)
+        throws DbException, TransactionAbortedException;
+
+    /** @return the RecordId of the tuple an entry of this index is for */
+    public RecordId getRecordId(Tuple entry);
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin evaluates equality joins whose inner input is a table
+ * with an index on its join field.  Rather than reading the whole inner
+ * table for each outer tuple, as {@link Join} does, it looks up the inner
+ * tuples with the outer tuple's key through the index, with
+ * {@link IndexScan#lookup}.  The outer input is streamed, and the output
+ * follows its order.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private IndexScan child2;
+    private TupleDesc comboTD;
+
+    transient private Tuple t1 = null;
+    // the inner tuples with t1's key
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor. Accepts the outer child, the scan of the inner table,
+     * and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be <code>EQUALS</code>
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The scan of the right(inner) relation, whose index must be
+     *            on the field of the table that field 2 of p is
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            IndexScan child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("not an equality predicate: "
+                    + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the field of the table scan reads that field of its TupleDesc
+     *         is, once the scan's columns are taken into account
+     */
+    public static int tableField(SeqScan scan, int field) {
+        int[] columns = scan.getColumns();
+        return columns == null ? field : columns[field];
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Opens the outer input only: the inner table is never scanned, just
+     * looked up in.
+     */
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        t1 = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        child1.close();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        child1.rewind();
+        t1 = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The tuples returned are the concatenation of the joining
+     * outer and inner tuples, as for {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                Tuple t2 = matches.next();
+                // a lookup from a snapshot returns the whole table
+                if (pred.filter(t1, t2))
+                    return new JoinedTuple(comboTD, t1, t2);
+                continue;
+            }
+            closeMatches();
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            matches = child2.lookup(t1.getField(pred.getField1()));
+            matches.open();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexScan) children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a table whose value of an indexed field is
+ * in a range, by looking them up through a {@link BTreeFile} rather than
+ * reading the whole table.  The range is given by the scan's filters on
+ * that field that compare it to a constant with =, &lt;, &lt;=, &gt; or
+ * &gt;=; every filter is still tested on each tuple that is found.  The
+ * scan returns the same tuples as a SeqScan with the same filters and
+ * columns would, in the order of their keys.
+ * <p>
+ * Through an index that only looks up single keys, such as a
+ * {@link HashFile}, only a filter comparing the field to a constant with =
+ * narrows the scan; without one, the scan reads the whole table.
+ * <p>
+ * Indexes only cover the committed and locked state of their tables, so a
+ * transaction that reads from snapshots scans the table instead.
+ */
+public class IndexScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private final IndexFile index;
+
+    /**
+     * Creates a scan of the table an index is on, as a part of the specified
+     * transaction.  Filters are added with {@link #addFilter} as for a
+     * SeqScan.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look tuples up through
+     * @param tableAlias
+     *            the alias of the table, as for {@link SeqScan}
+     */
+    public IndexScan(TransactionId tid, IndexFile index, String tableAlias) {
+        super(tid, index.getTableId(), tableAlias);
+        this.index = index;
+    }
+
+    /** @return the index tuples are looked up through */
+    public IndexFile getIndex() {
+        return index;
+    }
+
+    /**
+     * @return true if the predicate narrows the range of keys an index
+     *         scan on the given field reads
+     */
+    public static boolean narrowsRange(Predicate p, int field) {
+        if (p.getField() != field)
+            return false;
+        switch (p.getOp()) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the predicate narrows the entries an index scan
+     *         through the given index reads: a comparison of its key field
+     *         with a constant that the index can look up
+     */
+    public static boolean narrows(IndexFile index, Predicate p) {
+        if (index.isOrdered())
+            return narrowsRange(p, index.getKeyField());
+        return p.getField() == index.getKeyField()
+            && p.getOp() == Predicate.Op.EQUALS;
+    }
+
+    /** @return -1: an index scan is not read a range of pages at a time */
+    public int numPages() {
+        return -1;
+    }
+
+    protected DbFileIterator fileIterator() throws DbException,
+            TransactionAbortedException {
+        TransactionId tid = getTransactionId();
+        if (Database.getBufferPool().readsSnapshots(tid))
+            return super.fileIterator();
+        if (!index.isOrdered()) {
+            for (Predicate p : getFilters())
+                if (narrows(index, p))
+                    return new LookupIterator(index.iterator(tid, p.getOperand()));
+            return super.fileIterator();
+        }
+        Field low = null, high = null;
+        boolean lowInclusive = false, highInclusive = false;
+        for (Predicate p : getFilters()) {
+            if (!narrowsRange(p, index.getKeyField()))
+                continue;
+            Field v = p.getOperand();
+            Predicate.Op op = p.getOp();
+            if (op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ) {
+                boolean inclusive = op != Predicate.Op.GREATER_THAN;
+                int c = low == null ? 1 : IndexEntry.compareKeys(v, low);
+                if (c > 0 || (c == 0 && !inclusive)) {
+                    low = v;
+                    lowInclusive = inclusive;
+                }
+            }
+            if (op != Predicate.Op.GREATER_THAN && op != Predicate.Op.GREATER_THAN_OR_EQ) {
+                boolean inclusive = op != Predicate.Op.LESS_THAN;
+                int c = high == null ? -1 : IndexEntry.compareKeys(v, high);
+                if (c < 0 || (c == 0 && !inclusive)) {
+                    high = v;
+                    highInclusive = inclusive;
+                }
+            }
+        }
+        return new LookupIterator(((BTreeFile) index).iterator(tid, low,
+            lowInclusive, high, highInclusive));
+    }
+
+    /**
+     * Returns an iterator over the tuples this scan returns whose indexed
+     * field equals key, without opening the scan itself.  A transaction
+     * that reads from snapshots gets every tuple the scan returns instead,
+     * so callers must still compare the field with key.
+     *
+     * @param key the value of the indexed field to look up
+     * @return the iterator, not yet open
+     */
+    public DbFileIterator lookup(Field key) throws DbException,
+            TransactionAbortedException {
+        TransactionId tid = getTransactionId();
+        if (Database.getBufferPool().readsSnapshots(tid))
+            return super.fileIterator();
+        return new LookupIterator(index.iterator(tid, key));
+    }
+
+    /**
+     * Reads the tuple each entry of an index iterator points to, skipping
+     * those that fail the scan's filters, and keeps the scan's columns of
+     * the others.
+     */
+    private class LookupIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final DbFileIterator entries;
+        private final HeapFile table = (HeapFile) Database.getCatalog()
+            .getDbFile(getTableId());
+        private final TupleFilter filter = getFilters().isEmpty() ? null
+            : Codegen.compileFilter(getFilters(), getTableTupleDesc());
+        private final TupleProjector projector = getColumns() == null ? null
+            : Codegen.compileProjection(getColumns(), getTupleDesc());
+        private Tuple next = null;
+
+        LookupIterator(DbFileIterator entries) {
+            this.entries = entries;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null && entries.hasNext()) {
+                RecordId rid = index.getRecordId(entries.next());
+                Tuple t = table.readTuple(getTransactionId(), rid);
+                if (t != null && (filter == null || filter.filter(t)))
+                    next = projector == null ? t : projector.project(t);
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            next = null;
+            entries.rewind();
+        }
+
+        public void close() {
+            next = null;
+            entries.close();
+        }
+    }
+}
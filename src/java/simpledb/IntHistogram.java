@@ -103,7 +103,35 @@ public class IntHistogram {
 	    }
 	return ((double) yes) / population;
     }
-    
+
+    /**
+     * Estimate the selectivity of a join predicate between the values in this
+     * histogram and those in another one: the fraction of pairs (x, y), x
+     * from this histogram and y from other, for which "x op y" holds.
+     *
+     * Each bucket of other is treated as if all its values were at the middle
+     * of the bucket.
+     *
+     * @param op Operator
+     * @param other The histogram of the right-hand side of the predicate
+     * @return Predicted selectivity of the join predicate
+     */
+    public double estimateJoinSelectivity(Predicate.Op op, IntHistogram other) {
+	if (other.population == 0)
+	    return 0;
+	double sel = 0;
+	for (int i = 1 ; i <= other.buckets ; i++)
+	    {
+		int count = other.hist.get(i);
+		if (count == 0)
+		    continue;
+		int lo = other.min + (i - 1) * other.buckWidth;
+		int hi = Math.min(lo + other.buckWidth - 1, other.max);
+		sel += count * estimateSelectivity(op, lo + (hi - lo) / 2);
+	    }
+	return sel / other.population;
+    }
+
     /**
      * @return
      *     the average selectivity of this histogram.
@@ -111,11 +139,28 @@ public class IntHistogram {
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
      *     implement a more efficient optimization
+     *
+     *     This is the chance that two values taken at random from the
+     *     histogram are equal, the values of a bucket being spread evenly
+     *     over its range.
      * */
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+	if (population == 0)
+	    return 0;
+	double sel = 0;
+	for (int i = 1 ; i <= buckets ; i++)
+	    {
+		int count = hist.get(i);
+		if (count == 0)
+		    continue;
+		int lo = min + (i - 1) * buckWidth;
+		int width = Math.min(buckWidth, max - lo + 1);
+		double frac = (double) count / population;
+		sel += frac * frac / width;
+	    }
+	return sel;
     }
     
     /**
@@ -1,7 +1,5 @@
 package simpledb;
 
-import java.util.*;
-
 /**
  * Knows how to compute some aggregate over a set of IntFields.
  */
@@ -12,8 +10,7 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private Op op;
     
-    private Map<Field, Field> agg;
-    private Map<Field, Integer> sums, counts; // For AVG.
+    private HashAggregation groups;
 
     private String aggName, gbName;
 
@@ -38,9 +35,7 @@ public class IntegerAggregator implements Aggregator {
 	this.gbfieldtype = gbfieldtype;
 	this.afield = afield;
 	op = what;
-	agg = new HashMap<Field, Field>();
-	sums = new HashMap<Field, Integer>();
-	counts = new HashMap<Field, Integer>();
+	groups = new HashAggregation(gbfieldtype);
 	aggName = new String();
 	gbName = new String();
     }
@@ -52,69 +47,61 @@ public class IntegerAggregator implements Aggregator {
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException {
         // some code goes here
 	aggName = tup.getTupleDesc().getFieldName(afield);
-	Field key;
+	int v = ((IntField) tup.getField(afield)).getValue();
 	if (gbfield != NO_GROUPING)
 	    {
-		key = tup.getField(gbfield);
+		groups.add(tup.getField(gbfield), v);
 		gbName = tup.getTupleDesc().getFieldName(gbfield);
 	    }
 	else
-	    key = new IntField(NO_GROUPING);
-	IntField aggField = (IntField) (tup.getField(afield)), 
-	    aggVal = (IntField) (agg.get(key));
-	
-	if (op.equals(Op.COUNT))
-	    {
-		int count = 1;
-		if (aggVal != null)
-		    count = aggVal.getValue() + 1;
-		agg.put(key, new IntField(count));
-	    }
-
-	if (op.equals(Op.SUM))
-	    {
-		int sum = 0;
-		if (aggVal != null)
-		    sum = aggVal.getValue();
-		agg.put(key, new IntField(sum + aggField.getValue()));
-	    }
+	    groups.add(NO_GROUPING, v);
+    }
 
-	if (op.equals(Op.MAX))
+    /**
+     * Merges a whole batch into the aggregate.  Without grouping, the
+     * aggregate column is summarized in one pass over its values and folded
+     * in once; otherwise the group keys are read straight from their column.
+     *
+     * @param batch
+     *            tuples containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) throws DbException {
+	int n = batch.size();
+	if (n == 0)
+	    return;
+	aggName = batch.getTupleDesc().getFieldName(afield);
+	int[] vals = batch.getIntColumn(afield);
+	if (gbfield == NO_GROUPING)
 	    {
-		int max = aggField.getValue();
-		if (aggVal != null)
-		    max = Math.max(max, aggVal.getValue());
-		agg.put(key, new IntField(max));
+		long sum = 0;
+		int min = vals[0], max = vals[0];
+		for (int i = 0 ; i < n ; i++)
+		    {
+			int v = vals[i];
+			sum += v;
+			if (v < min)
+			    min = v;
+			if (v > max)
+			    max = v;
+		    }
+		groups.add(NO_GROUPING, n, sum, min, max);
+		return;
 	    }
-
-	if (op.equals(Op.MIN))
+	gbName = batch.getTupleDesc().getFieldName(gbfield);
+	if (gbfieldtype == Type.STRING_TYPE)
 	    {
-		int min = aggField.getValue();
-		if (aggVal != null)
-		    min = Math.min(min, aggVal.getValue());
-		agg.put(key, new IntField(min));
+		String[] keys = batch.getStringColumn(gbfield);
+		for (int i = 0 ; i < n ; i++)
+		    groups.add(keys[i], vals[i]);
 	    }
-
-	if (op.equals(Op.AVG))
+	else
 	    {
-		int count = 1, avg = aggField.getValue(), sum = aggField.getValue();
-		if (aggVal == null)
-		    {
-			counts.put(key, count);
-			sums.put(key, sum);
-		    }
-		else
-		    {
-			count = counts.get(key) + 1;
-			sum = sums.get(key) + aggField.getValue();
-			avg = sum / count;
-			counts.put(key, count);
-			sums.put(key, sum);
-		    }
-		agg.put(key, new IntField(avg));
+		int[] keys = batch.getIntColumn(gbfield);
+		for (int i = 0 ; i < n ; i++)
+		    groups.add(keys[i], vals[i]);
 	    }
     }
 
@@ -128,30 +115,18 @@ public class IntegerAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         // some code goes here
-	List<Tuple> tups = new ArrayList<Tuple>();
 	TupleDesc td;
 	if (gbfield == NO_GROUPING)
-	    {
-		td = new TupleDesc(new Type[] { Type.INT_TYPE }, 
-				  new String[] { aggName });
-		Tuple t = new Tuple(td);
-		t.setField(0, agg.get(new IntField(NO_GROUPING)));
-		tups.add(t);
-	    }
+	    td = new TupleDesc(new Type[] { Type.INT_TYPE }, 
+			       new String[] { aggName });
 	else
-	    {
-		td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE },
-				   new String[] { gbName, aggName });
-		Set<Field> meep = agg.keySet();
-		for (Field f : meep)
-		    {
-			Tuple t = new Tuple(td);
-			t.setField(0, f);
-			t.setField(1, agg.get(f));
-			tups.add(t);
-		    }
-	    }
-	return new TupleIterator(td, tups);
+	    td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE },
+			       new String[] { gbName, aggName });
+	return groups.iterator(op, td);
+    }
+
+    public void close() {
+	groups.close();
     }
 
 }
@@ -12,6 +12,7 @@ public class Join extends Operator {
     private JoinPredicate jp;
     private DbIterator i1, i2;
     private Tuple in, out; // for fetchNext() method
+    private TupleDesc td; // the merged schema, computed once
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -29,6 +30,7 @@ public class Join extends Operator {
 	jp = p;
 	i1 = child1;
 	i2 = child2;
+	td = TupleDesc.merge(i1.getTupleDesc(), i2.getTupleDesc());
 	in = null;
 	out = null;
     }
@@ -64,7 +66,7 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return TupleDesc.merge(i1.getTupleDesc(), i2.getTupleDesc());
+        return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
@@ -116,16 +118,7 @@ public class Join extends Operator {
 		    {
 			in = i2.next();
 			if (jp.filter(out, in))
-			    {
-				int i = 0;
-				Tuple joined = new Tuple(TupleDesc.merge(out.getTupleDesc(), in.getTupleDesc()));
-				for (i = 0 ; i < out.getTupleDesc().numFields() ; i++)
-				    joined.setField(i, out.getField(i));
-				for (int j = 0 ; j < in.getTupleDesc().numFields() ; j++)
-				    joined.setField(i + j, in.getField(j));
-				//System.out.println(joined.toString());
-				return joined;
-			    }
+			    return new JoinedTuple(td, out, in);
 		    }
 		if (i1.hasNext())
 		    out = i1.next();
@@ -147,6 +140,7 @@ public class Join extends Operator {
         // some code goes here
 	i1 = children[0];
 	i2 = children[1];
+	td = TupleDesc.merge(i1.getTupleDesc(), i2.getTupleDesc());
     }
 
 }
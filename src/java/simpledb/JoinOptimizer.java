@@ -45,6 +45,35 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, false);
+    }
+
+    /**
+     * Return the iterator for computing a given logical join.  A
+     * {@link SortMergeJoin} is used when the optimizer estimated it to be
+     * the cheapest algorithm for lj (see {@link LogicalJoinNode#sortMerge}),
+     * when both subplans already produce their
+     * tuples in order of the join fields, so the merge needs no sorting, or
+     * when keepOrder asks for the output to be in order of the join field
+     * (for instance because the query is ordered by it), so that the sort a
+     * later ORDER BY would need is done by the join instead.  Otherwise an
+     * equality join whose right subplan is a scan of a table with an index
+     * on its join field is an {@link IndexNestedLoopJoin}, an inequality
+     * join is a {@link RangeJoin}, and any other join is a nested loops
+     * {@link Join}.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param keepOrder
+     *            true if the result should be sorted on the join field
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, boolean keepOrder)
+            throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -69,12 +98,51 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        boolean mergeable = !(lj instanceof LogicalSubplanJoinNode)
+                && SortMergeJoin.supports(lj.p);
+        if (mergeable && (lj.sortMerge || keepOrder
+                || (SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id))))
+            j = new SortMergeJoin(p, plan1, plan2);
+        else if (lj.p == Predicate.Op.EQUALS
+                && joinIndex(plan2, t2id) != null)
+            j = new IndexNestedLoopJoin(p, plan1, lookupScan(plan2, t2id));
+        else if (RangeJoin.supports(lj.p))
+            j = new RangeJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * @return the index on the field of the table plan scans that is field
+     *         of its TupleDesc, or null if plan is not a scan of a table or
+     *         there is no such index
+     */
+    private static IndexFile joinIndex(DbIterator plan, int field) {
+        if (!(plan instanceof SeqScan) || plan instanceof ParallelSeqScan)
+            return null;
+        SeqScan scan = (SeqScan) plan;
+        return Database.getCatalog().getIndex(scan.getTableId(),
+                IndexNestedLoopJoin.tableField(scan, field));
+    }
+
+    /**
+     * @return a scan with the filters and columns of plan, a scan, that
+     *         looks tuples up through the index {@link #joinIndex} finds
+     */
+    private static IndexScan lookupScan(DbIterator plan, int field) {
+        SeqScan scan = (SeqScan) plan;
+        IndexScan is = new IndexScan(scan.getTransactionId(),
+                joinIndex(plan, field), scan.getAlias());
+        for (Predicate f : scan.getFilters())
+            is.addFilter(f);
+        is.setColumns(scan.getColumns());
+        return is;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -103,6 +171,24 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, null);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does, for a join whose right-hand side may
+     * be a scan of a table.  If it is, and the join is an equality on a
+     * field of that table with an index, the join is an
+     * {@link IndexNestedLoopJoin}, which looks the inner tuples of each outer
+     * tuple up through the index instead of scanning the table.
+     * 
+     * @param innerStats
+     *            the statistics of the table on the right-hand side, if that
+     *            side is a scan of it, or null if it is the result of other
+     *            joins
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, TableStats innerStats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Project 3.
@@ -112,10 +198,46 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic nested-loops
             // join.
+            IndexFile index = innerStats == null ? null : innerIndex(j);
+            if (index != null)
+                return cost1 + card1 * innerStats.estimateIndexLookupCost(index);
+            if (RangeJoin.supports(j.p)) {
+                // sort the inner side once, then binary search it per outer tuple
+                double log2 = Math.log(card2 + 1) / Math.log(2);
+                return cost1 + cost2 + (card1 + card2) * log2;
+            }
             return card1 * (cost2 + card2) + cost1;
         }
     }
 
+    /**
+     * Estimate the cost of computing a join with a {@link SortMergeJoin}: a
+     * scan of each side, a sort of the inner side, a sort of the outer side
+     * unless it is already in order of its join field, and a linear merge
+     * of the two.
+     * 
+     * @param outerSorted
+     *            true if the left-hand side produces its tuples in order of
+     *            its join field
+     * @return the estimated cost, in the units of
+     *         {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)},
+     *         or infinity if a SortMergeJoin cannot compute j
+     */
+    public double estimateSortMergeCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean outerSorted) {
+        if (j instanceof LogicalSubplanJoinNode || !SortMergeJoin.supports(j.p))
+            return Double.POSITIVE_INFINITY;
+        double cost = cost1 + cost2 + card1 + card2 + sortCost(card2);
+        if (!outerSorted)
+            cost += sortCost(card1);
+        return cost;
+    }
+
+    /** @return the cost of sorting card tuples in memory */
+    private static double sortCost(int card) {
+        return card * (Math.log(card + 1) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -163,10 +285,44 @@ public class JoinOptimizer {
 		    return card1;
 		return card2;
 	    }
-	int ans = (int) (card1 * card2 * 0.30);
+	double sel = estimateJoinSelectivity(joinOp, table1Alias, table2Alias,
+		field1PureName, field2PureName, stats, tableAliasToId);
+	int ans = (int) (card1 * card2 * sel);
 	return ans;
     }
 
+    /**
+     * Estimate the selectivity of a join predicate other than equality from
+     * the histograms of its two fields.  Falls back to a fixed 30% when they
+     * are not both integer fields of tables with statistics.
+     */
+    private static double estimateJoinSelectivity(Predicate.Op joinOp,
+            String table1Alias, String table2Alias, String field1PureName,
+            String field2PureName, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer id1 = table1Alias == null ? null : tableAliasToId.get(table1Alias);
+        Integer id2 = table2Alias == null ? null : tableAliasToId.get(table2Alias);
+        if (joinOp == Predicate.Op.LIKE || id1 == null || id2 == null)
+            return 0.30;
+        TableStats s1 = stats.get(Database.getCatalog().getTableName(id1));
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(id2));
+        if (s1 == null || s2 == null)
+            return 0.30;
+        TupleDesc td1 = Database.getCatalog().getTupleDesc(id1);
+        TupleDesc td2 = Database.getCatalog().getTupleDesc(id2);
+        int f1, f2;
+        try {
+            f1 = td1.fieldNameToIndex(field1PureName);
+            f2 = td2.fieldNameToIndex(field2PureName);
+        } catch (NoSuchElementException e) {
+            return 0.30;
+        }
+        if (td1.getFieldType(f1) != Type.INT_TYPE
+                || td2.getFieldType(f2) != Type.INT_TYPE)
+            return 0.30;
+        return s1.estimateJoinSelectivity(f1, joinOp, s2, f2);
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -273,6 +429,40 @@ public class JoinOptimizer {
 
     // ===================== Private Methods =================================
 
+    /**
+     * @return the index on the field of the right-hand table of j that an
+     *         equality join looks tuples up through, or null if j is not an
+     *         equality or there is no index on that field
+     */
+    private IndexFile innerIndex(LogicalJoinNode j) {
+        if (j.p != Predicate.Op.EQUALS || j.t2Alias == null)
+            return null;
+        int tableid = p.getTableId(j.t2Alias);
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableid)
+                    .fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return Database.getCatalog().getIndex(tableid, field);
+    }
+
+    /**
+     * @return the cost of scanning the table with the given alias, which
+     *         skips the pages its zone map rules out for the filters the
+     *         plan hands its scan, or of looking its tuples up through the
+     *         index the plan scans it with
+     */
+    private double scanCost(Map<String, TableStats> stats, String tableName,
+            String alias) {
+        IndexFile index = p.getScanIndex(alias);
+        if (index != null)
+            return stats.get(tableName).estimateIndexScanCost(index,
+                    p.getScanFilters(alias));
+        return stats.get(tableName).estimateScanCost(p.getScanFilters(alias));
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
@@ -333,21 +523,26 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // the statistics of each side that is a scan of a table, for joins
+        // that look its tuples up through an index
+        TableStats t1stats = null, t2stats = null;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = scanCost(stats, table1Name, j.t1Alias);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : scanCost(stats, table2Name,
+                    table2Alias);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
+            t1stats = stats.get(table1Name);
+            t2stats = table2Alias == null ? null : stats.get(table2Name);
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -369,13 +564,14 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats,
+                        table2Name, j.t2Alias);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                t2stats = j.t2Alias == null ? null : stats.get(table2Name);
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -385,10 +581,11 @@ public class JoinOptimizer {
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
 
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = scanCost(stats, table1Name, j.t1Alias);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
+                t1stats = stats.get(table1Name);
 
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
@@ -398,10 +595,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2stats);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t1stats);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -410,6 +609,30 @@ public class JoinOptimizer {
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+
+        // a sort-merge join may beat either order of the other algorithms;
+        // it streams its outer side when that side is a sort-merge join
+        // whose output is already in order of the join field
+        double smCost1 = estimateSortMergeCost(joinToRemove, t1card, t2card,
+                t1cost, t2cost, sortedOn(prevBest, joinToRemove.t1Alias,
+                        joinToRemove.f1QuantifiedName));
+        double smCost2 = estimateSortMergeCost(j2, t2card, t1card, t2cost,
+                t1cost, sortedOn(prevBest, j2.t1Alias, j2.f1QuantifiedName));
+        if (Math.min(smCost1, smCost2) < cost1) {
+            boolean swapped = j == j2;
+            if (smCost2 < smCost1) {
+                j = j2.sortMerged();
+                cost1 = smCost2;
+            } else {
+                j = joinToRemove.sortMerged();
+                cost1 = smCost1;
+            }
+            if (swapped != (smCost2 < smCost1)) {
+                boolean tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+            }
+        }
         if (cost1 >= bestCostSoFar)
             return null;
 
@@ -423,6 +646,21 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * Return true if the result of the joins in joinlist, if they include
+     * table, is in order of field, because the last of them is computed by
+     * a {@link SortMergeJoin} on that field
+     */
+    private boolean sortedOn(Vector<LogicalJoinNode> joinlist, String table,
+            String field) {
+        if (joinlist.isEmpty() || !doesJoin(joinlist, table))
+            return false;
+        LogicalJoinNode last = joinlist.lastElement();
+        return last.sortMerge && (field.equals(last.f1QuantifiedName)
+                || (last.p == Predicate.Op.EQUALS
+                    && field.equals(last.f2QuantifiedName)));
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -525,7 +763,7 @@ public class JoinOptimizer {
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(stats, table1Name, j.t1Alias)
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -544,8 +782,8 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + scanCost(stats, table2Name,
+                                                j.t2Alias)
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
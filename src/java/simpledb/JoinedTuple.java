@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * JoinedTuple is the concatenation of two tuples, as a join produces it.  It
+ * refers to the tuples it joins instead of copying their fields, so that a
+ * join allocates one small object per match however wide its inputs are.
+ * <p>
+ * Changing a field copies the fields into the JoinedTuple first, so that the
+ * tuples it joins, which may be part of other matches, are left alone.
+ */
+public class JoinedTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+    private Tuple left, right;
+    // the number of fields of left
+    private int split;
+    // the fields, once one of them has been changed
+    private Field[] copy = null;
+
+    /**
+     * @param td
+     *            the merge of the schemas of left and right, which the join
+     *            computes once for all its matches
+     * @param left
+     *            the tuple whose fields come first
+     * @param right
+     *            the tuple whose fields follow those of left
+     */
+    public JoinedTuple(TupleDesc td, Tuple left, Tuple right) {
+        super(td, null);
+        this.left = left;
+        this.right = right;
+        split = td.numFields() - right.getTupleDesc().numFields();
+    }
+
+    public Field getField(int i) {
+        if (copy != null)
+            return copy[i];
+        return i < split ? left.getField(i) : right.getField(i - split);
+    }
+
+    public void setField(int i, Field f) {
+        if (copy == null) {
+            Field[] fields = new Field[getTupleDesc().numFields()];
+            for (int j = 0; j < fields.length; j++)
+                fields[j] = getField(j);
+            copy = fields;
+        }
+        copy[i] = f;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int n = getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            sb.append(getField(i)).append(i < n - 1 ? "\t" : "\n");
+        return sb.toString();
+    }
+
+    public Iterator<Field> fields() {
+        Field[] fields = new Field[getTupleDesc().numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = getField(i);
+        return Arrays.asList(fields).iterator();
+    }
+}
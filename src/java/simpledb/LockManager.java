@@ -0,0 +1,334 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager keeps track of the locks held by transactions on tables, pages
+ * and individual records.  Locks form a hierarchy: before locking a page or a
+ * record in S or X mode, a transaction takes an intention lock (IS or IX) on
+ * every coarser level, so that a conflicting table or page lock can be
+ * detected without looking at every record lock underneath it.
+ * <p>
+ * None of the methods here block; BufferPool polls them and decides when a
+ * transaction has waited long enough.
+ *
+ * @see BufferPool
+ */
+class LockManager {
+
+    /** Lock modes, from weakest to strongest. */
+    enum Mode {
+	IS, IX, S, SIX, X;
+
+	private static final boolean[][] COMPATIBLE = {
+	    //            IS     IX     S      SIX    X
+	    /* IS  */ { true,  true,  true,  true,  false },
+	    /* IX  */ { true,  true,  false, false, false },
+	    /* S   */ { true,  false, true,  false, false },
+	    /* SIX */ { true,  false, false, false, false },
+	    /* X   */ { false, false, false, false, false },
+	};
+
+	/** @return true if this lock may be held while another transaction holds other */
+	boolean compatible(Mode other) {
+	    return COMPATIBLE[ordinal()][other.ordinal()];
+	}
+
+	/** @return the weakest mode that grants everything this and other do */
+	Mode combine(Mode other) {
+	    if (covers(other))
+		return this;
+	    if (other.covers(this))
+		return other;
+	    // the only incomparable pair is S and IX
+	    return SIX;
+	}
+
+	/** @return true if holding this mode grants everything other does */
+	boolean covers(Mode other) {
+	    if (this == other || this == X)
+		return true;
+	    switch (other)
+		{
+		case IS:
+		    return true;
+		case IX:
+		    return this == SIX;
+		case S:
+		    return this == SIX;
+		default:
+		    return false;
+		}
+	}
+
+	/** @return the mode a page or record lock needs for perm */
+	static Mode forPermissions(Permissions perm) {
+	    return perm.equals(Permissions.READ_ONLY) ? S : X;
+	}
+
+	/** @return the intention mode the enclosing levels need for perm */
+	static Mode intentionFor(Permissions perm) {
+	    return perm.equals(Permissions.READ_ONLY) ? IS : IX;
+	}
+    }
+
+    /** Lock key for a whole table. */
+    static class TableKey {
+	private final int tableId;
+
+	TableKey(int tableId) {
+	    this.tableId = tableId;
+	}
+
+	public boolean equals(Object o) {
+	    return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+	}
+
+	public int hashCode() {
+	    return tableId;
+	}
+    }
+
+    private final int escalationThreshold;
+
+    /** lock key (TableKey, PageId or RecordId) -> holders and their modes */
+    private Map<Object, Map<TransactionId, Mode>> locks;
+    /** transaction -> every key it holds a lock on */
+    private Map<TransactionId, Set<Object>> held;
+    /** transaction -> table id -> number of record locks held on that table */
+    private Map<TransactionId, Map<Integer, Integer>> rowCounts;
+
+    /**
+     * @param escalationThreshold the number of record locks a transaction
+     *   may hold on one table before we try to replace them with a single
+     *   table lock
+     */
+    LockManager(int escalationThreshold) {
+	this.escalationThreshold = escalationThreshold;
+	locks = new HashMap<Object, Map<TransactionId, Mode>>();
+	held = new HashMap<TransactionId, Set<Object>>();
+	rowCounts = new HashMap<TransactionId, Map<Integer, Integer>>();
+    }
+
+    /**
+     * Tries to lock a page in S or X mode, taking the matching intention
+     * lock on its table.  Does nothing if a table lock already covers perm.
+     *
+     * @return true if the locks were granted
+     */
+    synchronized boolean lockPage(TransactionId tid, PageId pid, Permissions perm) {
+	TableKey table = new TableKey(pid.getTableId());
+	if (covered(tid, table, Mode.forPermissions(perm)))
+	    return true;
+	return acquire(tid, table, Mode.intentionFor(perm))
+	    && acquire(tid, pid, Mode.forPermissions(perm));
+    }
+
+    /**
+     * Tries to lock a whole table in S or X mode, for tables whose changes
+     * are not made to pages.
+     *
+     * @return true if the lock was granted
+     */
+    synchronized boolean lockTable(TransactionId tid, TableKey table, Permissions perm) {
+	return acquire(tid, table, Mode.forPermissions(perm));
+    }
+
+    /**
+     * Tries to take an intention lock on a whole table, for tables whose
+     * changes are not made to pages but kept by each transaction until it
+     * completes: IS or IX, so that transactions changing the table do not
+     * wait for each other, but do for one that holds S or X on it.
+     *
+     * @return true if the lock was granted
+     */
+    synchronized boolean lockTableForRecords(TransactionId tid, TableKey table, Permissions perm) {
+	return acquire(tid, table, Mode.intentionFor(perm));
+    }
+
+    /**
+     * Tries to take intention locks on a page and its table, as needed
+     * before locking records of the page.
+     *
+     * @return true if the locks were granted
+     */
+    synchronized boolean lockPageForRecords(TransactionId tid, PageId pid, Permissions perm) {
+	TableKey table = new TableKey(pid.getTableId());
+	if (covered(tid, table, Mode.forPermissions(perm)))
+	    return true;
+	return acquire(tid, table, Mode.intentionFor(perm))
+	    && acquire(tid, pid, Mode.intentionFor(perm));
+    }
+
+    /**
+     * Tries to lock a record in S or X mode.  The caller must already hold
+     * the intention locks from {@link #lockPageForRecords}.  Once a
+     * transaction holds more record locks on a table than the escalation
+     * threshold, we try to trade them for one table lock; if that would
+     * conflict, the record locks are kept and we try again later.
+     *
+     * @return true if the lock was granted
+     */
+    synchronized boolean lockRecord(TransactionId tid, RecordId rid, Permissions perm) {
+	int tableId = rid.getPageId().getTableId();
+	TableKey table = new TableKey(tableId);
+	Mode mode = Mode.forPermissions(perm);
+	if (covered(tid, table, mode) || covered(tid, rid.getPageId(), mode))
+	    return true;
+	Map<TransactionId, Mode> holders = locks.get(rid);
+	boolean fresh = holders == null || !holders.containsKey(tid);
+	if (!acquire(tid, rid, mode))
+	    return false;
+	if (fresh)
+	    {
+		Map<Integer, Integer> counts = rowCounts.get(tid);
+		if (counts == null)
+		    {
+			counts = new HashMap<Integer, Integer>();
+			rowCounts.put(tid, counts);
+		    }
+		Integer count = counts.get(tableId);
+		int c = count == null ? 1 : count + 1;
+		counts.put(tableId, c);
+		if (c % escalationThreshold == 0)
+		    escalate(tid, tableId);
+	    }
+	return true;
+    }
+
+    /**
+     * @return the mode tid holds on key, or null if it holds no lock on it
+     */
+    synchronized Mode heldMode(TransactionId tid, Object key) {
+	Map<TransactionId, Mode> holders = locks.get(key);
+	return holders == null ? null : holders.get(tid);
+    }
+
+    /**
+     * @return true if tid holds a lock on the page, either directly or
+     *   through its table
+     */
+    synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+	return heldMode(tid, pid) != null
+	    || covered(tid, new TableKey(pid.getTableId()), Mode.S);
+    }
+
+    /**
+     * @return true if tid holds a lock on the record, either directly or
+     *   through its page or table
+     */
+    synchronized boolean holdsLock(TransactionId tid, RecordId rid) {
+	return heldMode(tid, rid) != null
+	    || covered(tid, rid.getPageId(), Mode.S)
+	    || covered(tid, new TableKey(rid.getPageId().getTableId()), Mode.S);
+    }
+
+    /**
+     * @return true if tid holds an X lock on the page or its table, so no
+     *   other transaction can be using the page
+     */
+    synchronized boolean holdsExclusive(TransactionId tid, PageId pid) {
+	return heldMode(tid, pid) == Mode.X
+	    || heldMode(tid, new TableKey(pid.getTableId())) == Mode.X;
+    }
+
+    /** Releases whatever lock tid holds on key. */
+    synchronized void release(TransactionId tid, Object key) {
+	Map<TransactionId, Mode> holders = locks.get(key);
+	if (holders == null || holders.remove(tid) == null)
+	    return;
+	if (holders.isEmpty())
+	    locks.remove(key);
+	Set<Object> keys = held.get(tid);
+	if (keys != null)
+	    keys.remove(key);
+	if (key instanceof RecordId)
+	    {
+		int tableId = ((RecordId) key).getPageId().getTableId();
+		Map<Integer, Integer> counts = rowCounts.get(tid);
+		Integer count = counts == null ? null : counts.get(tableId);
+		if (count != null)
+		    counts.put(tableId, count - 1);
+	    }
+    }
+
+    /** Releases every lock held by tid. */
+    synchronized void releaseAll(TransactionId tid) {
+	Set<Object> keys = held.remove(tid);
+	rowCounts.remove(tid);
+	if (keys == null)
+	    return;
+	for (Object key : keys)
+	    {
+		Map<TransactionId, Mode> holders = locks.get(key);
+		if (holders != null)
+		    {
+			holders.remove(tid);
+			if (holders.isEmpty())
+			    locks.remove(key);
+		    }
+	    }
+    }
+
+    /**
+     * Grants tid the given mode on key, upgrading any lock it already holds,
+     * unless that conflicts with another transaction's lock.
+     */
+    private boolean acquire(TransactionId tid, Object key, Mode mode) {
+	Map<TransactionId, Mode> holders = locks.get(key);
+	if (holders == null)
+	    {
+		holders = new HashMap<TransactionId, Mode>();
+		locks.put(key, holders);
+	    }
+	Mode current = holders.get(tid);
+	Mode wanted = current == null ? mode : current.combine(mode);
+	if (wanted == current)
+	    return true;
+	for (Map.Entry<TransactionId, Mode> h : holders.entrySet())
+	    if (!same(h.getKey(), tid) && !wanted.compatible(h.getValue()))
+		return false;
+	holders.put(tid, wanted);
+	Set<Object> keys = held.get(tid);
+	if (keys == null)
+	    {
+		keys = new HashSet<Object>();
+		held.put(tid, keys);
+	    }
+	keys.add(key);
+	return true;
+    }
+
+    /** Transaction ids may be null when reading outside of a transaction. */
+    private static boolean same(TransactionId a, TransactionId b) {
+	return a == null ? b == null : a.equals(b);
+    }
+
+    /** @return true if the lock tid holds on key grants mode */
+    private boolean covered(TransactionId tid, Object key, Mode mode) {
+	Mode current = heldMode(tid, key);
+	return current != null && current.covers(mode);
+    }
+
+    /**
+     * Tries to replace tid's record locks on a table with a table lock: X if
+     * it has been writing to the table, S otherwise.
+     */
+    private void escalate(TransactionId tid, int tableId) {
+	List<Object> rows = new ArrayList<Object>();
+	Mode mode = Mode.S;
+	for (Object key : held.get(tid))
+	    if (key instanceof RecordId
+		&& ((RecordId) key).getPageId().getTableId() == tableId)
+		{
+		    rows.add(key);
+		    if (locks.get(key).get(tid) == Mode.X)
+			mode = Mode.X;
+		}
+	if (!acquire(tid, new TableKey(tableId), mode))
+	    return;
+	for (Object key : rows)
+	    release(tid, key);
+	rowCounts.get(tid).remove(tableId);
+    }
+}
@@ -92,6 +92,9 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** Transactions that have started but whose BEGIN record has not been
+        written, because they have not written anything yet. */
+    HashSet<Long> deferredBegins = new HashSet<Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -316,6 +319,37 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
+    /** Note that the specified transaction has begun, but only write its
+        BEGIN record once it first writes (see {@link #logDeferredBegin}).
+        Transactions that never write leave no trace in the log.
+        @param tid The transaction that is beginning
+    */
+    public synchronized void deferXactionBegin(TransactionId tid) {
+        deferredBegins.add(tid.getId());
+    }
+
+    /** Write the BEGIN record deferred by {@link #deferXactionBegin}, if
+        there is one.  Called by the buffer pool on a transaction's
+        first write.
+        @param tid The transaction that is writing
+    */
+    public synchronized void logDeferredBegin(TransactionId tid)
+        throws IOException {
+        if (tid != null && deferredBegins.remove(tid.getId()))
+            logXactionBegin(tid);
+    }
+
+    /** @return true if a BEGIN record has been written for the specified
+        transaction and it has not committed or aborted yet. */
+    public synchronized boolean hasBegun(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Forget a transaction that finished without writing anything. */
+    public synchronized void forgetXaction(TransactionId tid) {
+        deferredBegins.remove(tid.getId());
+    }
+
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
@@ -328,6 +362,7 @@ public class LogFile {
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
+                Database.getBufferPool().dumpPageIds();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
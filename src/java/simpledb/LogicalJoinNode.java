@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the optimizer found a {@link SortMergeJoin} the cheapest way
+     * to compute this join; see {@link #sortMerged}. */
+    public boolean sortMerge;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +67,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a new LogicalJoinNode for the same join that is to be
+     * computed by a {@link SortMergeJoin}. */
+    public LogicalJoinNode sortMerged() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName,p);
+        j2.sortMerge = true;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
@@ -2,19 +2,23 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.List;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * LogicalPlans can represent queries with any number of aggregates,
+ * each over a single field, grouped by any number of fields; all of
+ * them are computed by a single Aggregate operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,13 +33,14 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private int parallelism = 1;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -47,6 +52,9 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         this.query = "";
     }
 
@@ -66,6 +74,24 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of threads the physical plan may use to run the
+        query.  With more than one, tables are read by a
+        {@link ParallelSeqScan} with that many workers, an aggregate
+        over a single table aggregates it in parallel, and equality joins
+        and grouped aggregates over joins run on that many partitions,
+        connected by {@link Exchange} operators.
+
+        @param threads the degree of parallelism of the query
+    */
+    public void setParallelism(int threads) {
+        parallelism = threads;
+    }
+
+    /** Get the degree of parallelism set via {@link #setParallelism}. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDbFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -186,21 +212,43 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Any number of aggregates may be added; they are all
+        computed in one pass, grouped by every field added with
+        {@link #addGroupByField} or passed here.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
         hasAgg = true;
+        if (aggregateIndex(op, afield) >= 0)
+            return;
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
+    }
+
+    /** Add a field to the GROUP BY list of the query.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of the aggregate op over the (disambiguated)
+        field afield among the aggregates of the query, or -1 if there is
+        no such aggregate */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++)
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        return -1;
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -271,6 +319,57 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the filters handed to the scan of the table with the given
+     *         alias by {@link #physicalPlan}, or none if it has no scan
+     */
+    public List<Predicate> getScanFilters(String alias) {
+        DbIterator subplan = subplanMap.get(alias);
+        if (subplan instanceof SeqScan)
+            return ((SeqScan) subplan).getFilters();
+        return new ArrayList<Predicate>();
+    }
+
+    /**
+     * @return the index the table with the given alias is looked up through
+     *         by {@link #physicalPlan}, or null if it is scanned
+     */
+    public IndexFile getScanIndex(String alias) {
+        DbIterator subplan = subplanMap.get(alias);
+        if (subplan instanceof IndexScan)
+            return ((IndexScan) subplan).getIndex();
+        return null;
+    }
+
+    /**
+     * @return an index scan with the filters of the given scan, through the
+     *         index on the table that is cheapest to look its tuples up in,
+     *         or null if scanning the table is cheaper
+     */
+    private IndexScan indexScan(TransactionId t, SeqScan ss, TableStats s) {
+        List<Predicate> filters = ss.getFilters();
+        double best = s.estimateScanCost(filters);
+        IndexFile bestIndex = null;
+        for (IndexFile index : Database.getCatalog().getIndexes(ss.getTableId())) {
+            boolean narrows = false;
+            for (Predicate p : filters)
+                narrows |= IndexScan.narrows(index, p);
+            if (!narrows)
+                continue;
+            double cost = s.estimateIndexScanCost(index, filters);
+            if (cost < best) {
+                best = cost;
+                bestIndex = index;
+            }
+        }
+        if (bestIndex == null)
+            return null;
+        IndexScan is = new IndexScan(t, bestIndex, ss.getAlias());
+        for (Predicate p : filters)
+            is.addFilter(p);
+        return is;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -294,7 +393,11 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                 int id = Database.getCatalog().getDbFile(table.t).getId();
+                 if (parallelism > 1 && Database.getCatalog().getDbFile(id) instanceof HeapFile)
+                     ss = new ParallelSeqScan(t, id, table.alias, parallelism, false);
+                 else
+                     ss = new SeqScan(t, id, table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,7 +437,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a scan tests its filters on the page bytes before decoding
+            // tuples, so simple filters on a table are handed to its scan
+            if (subplan instanceof SeqScan)
+                ((SeqScan) subplan).addFilter(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -344,10 +452,60 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // a table with filters on an indexed field may be cheaper to look
+        // up through the index than to scan
+        for (Map.Entry<String, DbIterator> e : subplanMap.entrySet()) {
+            if (!(e.getValue() instanceof SeqScan))
+                continue;
+            SeqScan ss = (SeqScan) e.getValue();
+            TableStats s = statsMap.get(ss.getTableName());
+            if (s == null || ss.getFilters().isEmpty())
+                continue;
+            IndexScan is = indexScan(t, ss, s);
+            if (is != null)
+                e.setValue(is);
+        }
+
+        // scans decode only the fields that the rest of the plan refers to;
+        // filters were handed to the scans, so they need none of their own
+        Set<String> used = referencedFields();
+        if (used != null) {
+            for (DbIterator subplan : subplanMap.values()) {
+                if (!(subplan instanceof SeqScan))
+                    continue;
+                SeqScan ss = (SeqScan) subplan;
+                TupleDesc td = ss.getTableTupleDesc();
+                ArrayList<Integer> cols = new ArrayList<Integer>();
+                for (int i = 0; i < td.numFields(); i++)
+                    if (used.contains(td.getFieldName(i)))
+                        cols.add(i);
+                if (cols.size() == td.numFields())
+                    continue;
+                // a tuple needs at least one field
+                if (cols.isEmpty())
+                    cols.add(0);
+                int[] columns = new int[cols.size()];
+                for (int i = 0; i < columns.length; i++)
+                    columns[i] = cols.get(i);
+                ss.setColumns(columns);
+            }
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // if the output is to be sorted on the key of the last join, that
+        // join can produce the order itself
+        LogicalJoinNode orderedJoin = null;
+        if (hasOrderBy && oByAsc && !hasAgg && joins.size() > 0) {
+            LogicalJoinNode last = joins.lastElement();
+            if (oByField.equals(last.f1QuantifiedName)
+                    || (last.p == Predicate.Op.EQUALS
+                        && oByField.equals(last.f2QuantifiedName)))
+                orderedJoin = last;
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -382,7 +540,11 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            if (parallelism > 1 && !isSubqueryJoin && lj != orderedJoin
+                    && lj.p == Predicate.Op.EQUALS)
+                j = parallelJoin(lj, plan1, plan2);
+            else
+                j = jo.instantiateJoin(lj,plan1,plan2,lj == orderedJoin);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,7 +576,10 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the query");
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +591,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,25 +628,106 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[afields.length];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                if (parallelism > 1 && gfields.length > 0
+                        && !(node instanceof SeqScan)) {
+                    // groups never span partitions, so each consumer can
+                    // aggregate its own and their results be concatenated
+                    Exchange[] parts = Exchange.repartition(producersOf(node),
+                            gfields[0], parallelism);
+                    DbIterator[] aggs = new DbIterator[parallelism];
+                    for (int i = 0; i < parallelism; i++)
+                        aggs[i] = new Aggregate(parts[i], afields, gfields, aops);
+                    node = Exchange.gather(aggs);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                    aggNode.setParallelism(parallelism);
+                    node = aggNode;
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (!oByAsc || !SortMergeJoin.isSortedOn(node, oByIndex))
+                node = new OrderBy(oByIndex, oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return the (disambiguated) names of the fields the select list,
+     *         aggregates, GROUP BY, ORDER BY and joins of this plan refer
+     *         to, or null if it selects every field
+     */
+    private Set<String> referencedFields() {
+        Set<String> used = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            used.add(si.fname);
+        used.addAll(aggFields);
+        used.addAll(groupByFields);
+        if (hasOrderBy)
+            used.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            used.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                used.add(lj.f2QuantifiedName);
+        }
+        for (String name : used)
+            if (name == null || name.endsWith("*"))
+                return null;
+        return used;
+    }
+
+    /**
+     * Builds an equality join that runs on {@link #getParallelism} threads:
+     * both inputs are repartitioned on their join fields, so that matching
+     * tuples meet at the same consumer, each pair of partitions is joined
+     * with a {@link HashEquiJoin} of its own, and the results are gathered.
+     */
+    private DbIterator parallelJoin(LogicalJoinNode lj, DbIterator plan1,
+            DbIterator plan2) throws ParsingException {
+        int f1, f2;
+        try {
+            f1 = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+            f2 = plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in join " + lj.f1QuantifiedName
+                    + " = " + lj.f2QuantifiedName);
+        }
+        Exchange[] left = Exchange.repartition(producersOf(plan1), f1, parallelism);
+        Exchange[] right = Exchange.repartition(producersOf(plan2), f2, parallelism);
+        DbIterator[] joins = new DbIterator[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            joins[i] = new HashEquiJoin(new JoinPredicate(f1, lj.p, f2),
+                    left[i], right[i]);
+        return Exchange.gather(joins);
+    }
+
+    /**
+     * @return the subplans that produce the tuples of plan in parallel: the
+     *         producers of a gathering Exchange, or else plan itself
+     */
+    private static DbIterator[] producersOf(DbIterator plan) {
+        if (plan instanceof Exchange
+                && ((Exchange) plan).getMode() == Exchange.Mode.GATHER)
+            return ((Exchange) plan).getChildren();
+        return new DbIterator[] { plan };
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,833 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LsmFile stores a table as a log-structured merge tree, for tables that
+ * are mostly appended to.  Its tuples are kept sorted on one of their
+ * fields, the key: committed tuples first go to the memtable, a sorted set
+ * in memory that is also appended to a log on disk, and once the memtable
+ * is full it is written out as a sorted run, a file of {@link LsmPage}s
+ * that is never changed again.  A background thread writes memtables out
+ * and merges runs: each run has a level, runs written from memtables being
+ * at level 0, and whenever the newest {@link #FANOUT} runs are at the same
+ * level they are merged into one run at the next level.  A scan merges the
+ * memtables and runs as it reads them, in key order.
+ * <p>
+ * Every tuple is given a row id when it is inserted.  Deleting a tuple adds
+ * a tombstone with its key and row id, which hides the tuple in older
+ * memtables and runs, until a merge that includes the oldest run drops
+ * both.  The RecordIds of the tuples only hold the table and the row id,
+ * as a tuple moves from run to run; deleting a tuple takes all of its
+ * fields.
+ * <p>
+ * Transactions lock the whole table through the BufferPool: S to scan
+ * it, IX to change it, so that transactions inserting into it do not wait
+ * for each other, and SIX to delete from it, as a delete reads the table
+ * first.  A transaction's inserts and deletes are kept apart until it
+ * commits, and are then appended to the log, which is forced to disk, and
+ * applied to the memtable.  The forced log is what commits the
+ * transaction, so a transaction that changes an LSM table may change no
+ * other table; see {@link BufferPool#insertTuple}.  A scan sees the table
+ * as it was committed when the scan was opened, plus its own
+ * transaction's changes.
+ * <p>
+ * If the background thread fails to write out a memtable or merge runs,
+ * the table takes no more changes until it is opened again: inserts,
+ * deletes and commits fail with the error.
+ * <p>
+ * The table's files are kept next to its manifest, the file the table is
+ * created with, which lists its runs: run n is in the file with ".n"
+ * appended to the manifest's name, and the log of the memtable that
+ * becomes run n in the one with ".n.log".  Logs whose memtables were not
+ * written out are replayed when the table is opened.
+ *
+ * @see LsmPage
+ * @see BufferPool#insertTuple
+ */
+public class LsmFile implements DbFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x4c534d31;
+
+    /** Default size of a memtable, in pages' worth of entries. */
+    public static final int DEFAULT_MEMTABLE_PAGES = 256;
+
+    /** Number of runs at a level that are merged into one at the next. */
+    public static final int FANOUT = 4;
+
+    // memtables waiting to be written out before commits wait for them
+    private static final int MAX_FROZEN = 2;
+
+    // the daemon thread that writes out memtables and merges runs, for
+    // every LSM table
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LSM compaction");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Committed entries held in memory, and the number of the log that
+     * holds them too, which is also that of the run they are written to.
+     * Once a scan is reading the entries, they are never changed: the next
+     * commit changes a copy instead.
+     */
+    private static class Memtable {
+        final int number;
+        TreeSet<LsmPage.Entry> entries = new TreeSet<LsmPage.Entry>();
+        boolean shared = false;
+
+        Memtable(int number) {
+            this.number = number;
+        }
+
+        /** @return the entries, for a scan to read as they are now */
+        TreeSet<LsmPage.Entry> share() {
+            shared = true;
+            return entries;
+        }
+
+        /** Adds an entry, in place of an alike one. */
+        void put(LsmPage.Entry e) {
+            if (shared) {
+                entries = new TreeSet<LsmPage.Entry>(entries);
+                shared = false;
+            }
+            entries.remove(e);
+            entries.add(e);
+        }
+    }
+
+    /** A run on disk, and how many scans are reading it. */
+    private static class Run {
+        final int number, level, pages;
+        int readers = 0;
+        // merged into another run, so that its file goes once unread
+        boolean obsolete = false;
+
+        Run(int number, int level, int pages) {
+            this.number = number;
+            this.level = level;
+            this.pages = pages;
+        }
+    }
+
+    private final File f;
+    private final TupleDesc td;
+    private final int keyField;
+    private int memtablePages = DEFAULT_MEMTABLE_PAGES;
+    // the row id of the next tuple inserted, and the number of the next
+    // memtable or run
+    private int nextId = 0, nextNumber = 0;
+    private Memtable memtable;
+    private transient FileOutputStream log;
+    // memtables waiting to be written out, oldest first
+    private final List<Memtable> frozen = new ArrayList<Memtable>();
+    // oldest first
+    private final List<Run> runs = new ArrayList<Run>();
+    // the changes of each running transaction
+    private final Map<TransactionId, TreeSet<LsmPage.Entry>> pending =
+        new HashMap<TransactionId, TreeSet<LsmPage.Entry>>();
+    // the first error the background thread or a commit ran into, after
+    // which the table takes no more changes
+    private IOException failure = null;
+
+    /**
+     * Opens the table whose manifest is the specified file, creating an
+     * empty one if the file does not exist.  The memtables of logs left
+     * behind are written out as runs, and files left behind by runs that
+     * were being written or merged are deleted.
+     *
+     * @param f the manifest of the table
+     * @param td the schema of the table
+     * @param keyField the index of the field the tuples are sorted on
+     */
+    public LsmFile(File f, TupleDesc td, int keyField) throws IOException {
+        this.f = f;
+        this.td = td;
+        this.keyField = keyField;
+        readManifest();
+
+        Set<Integer> live = new HashSet<Integer>();
+        for (Run r : runs)
+            live.add(r.number);
+        List<Integer> logs = new ArrayList<Integer>();
+        String prefix = f.getName() + ".";
+        File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+        for (File other : files == null ? new File[0] : files) {
+            String name = other.getName();
+            if (!name.startsWith(prefix))
+                continue;
+            String rest = name.substring(prefix.length());
+            boolean isLog = rest.endsWith(".log");
+            if (isLog)
+                rest = rest.substring(0, rest.length() - ".log".length());
+            int number;
+            try {
+                number = Integer.parseInt(rest);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextNumber = Math.max(nextNumber, number + 1);
+            if (isLog && !live.contains(number))
+                logs.add(number);
+            else if (isLog || !live.contains(number))
+                other.delete();
+        }
+
+        Collections.sort(logs);
+        Memtable replayed = new Memtable(nextNumber++);
+        for (int number : logs)
+            replay(logFile(number), replayed);
+        if (!replayed.entries.isEmpty())
+            runs.add(writeRun(flushing(replayed), replayed.number, 0));
+        newMemtable();
+        writeManifest();
+        for (int number : logs)
+            logFile(number).delete();
+        schedule();
+    }
+
+    /** @return the File holding this table's manifest */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the index of the field the tuples are sorted on */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /** @return an ID uniquely identifying this file, as for a HeapFile */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Sets how many entries a memtable holds before it is written out, in
+     * pages' worth.  Takes effect from the next commit.
+     */
+    public synchronized void setMemtablePages(int pages) {
+        memtablePages = pages;
+    }
+
+    /**
+     * @return the number of pages of the table's runs, plus those its
+     *         memtables would take if written out
+     */
+    public synchronized int numPages() {
+        int entries = memtable.entries.size();
+        for (Memtable m : frozen)
+            entries += m.entries.size();
+        int max = LsmPage.maxEntries(td);
+        int pages = (entries + max - 1) / max;
+        for (Run r : runs)
+            pages += r.pages;
+        return pages;
+    }
+
+    /** @return the number of runs the table has on disk */
+    synchronized int numRuns() {
+        return runs.size();
+    }
+
+    /** @return the RecordId of the tuple with the given row id */
+    RecordId recordId(int id) {
+        return new RecordId(new LsmPageId(getId(), -1, 0), id);
+    }
+
+    private File runFile(int number) {
+        return new File(f.getPath() + "." + number);
+    }
+
+    private File logFile(int number) {
+        return new File(f.getPath() + "." + number + ".log");
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (!(pid instanceof LsmPageId) || pid.getTableId() != getId())
+            throw new IllegalArgumentException("Invalid Page ID.");
+        File run = runFile(((LsmPageId) pid).getRun());
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(run, "r");
+            try {
+                raf.seek((long) pid.pageNumber() * BufferPool.PAGE_SIZE);
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            return new LsmPage((LsmPageId) pid, data, this);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + pid, e);
+        }
+    }
+
+    /**
+     * Runs are never changed once written, so their pages are never dirty
+     * and never written back.
+     *
+     * @throws IOException always
+     */
+    public void writePage(Page p) throws IOException {
+        throw new IOException("The runs of an LSM table are never rewritten.");
+    }
+
+    /**
+     * Gives the tuple a row id and adds it to tid's changes, to be applied
+     * to the memtable when tid commits.  No page is changed.
+     *
+     * @return an empty list
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("Tuple does not match the schema of the table.");
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        synchronized (this) {
+            checkWritable();
+            RecordId rid = recordId(nextId++);
+            copy.setRecordId(rid);
+            t.setRecordId(rid);
+            change(tid, new LsmPage.Entry(copy, keyField, rid.tupleno(), false));
+        }
+        return new ArrayList<Page>();
+    }
+
+    /**
+     * Adds a tombstone for the tuple to tid's changes, to be applied to the
+     * memtable when tid commits.  No page is changed.
+     *
+     * @return null
+     * @throws DbException if the tuple is not from this table, or lacks
+     *         some of its fields
+     */
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("Tuple is not a member of this table.");
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("Only whole tuples of an LSM table can be deleted.");
+        synchronized (this) {
+            checkWritable();
+            change(tid, new LsmPage.Entry(t, keyField, rid.tupleno(), true));
+        }
+        return null;
+    }
+
+    /** @throws DbException if the table takes no more changes */
+    private void checkWritable() throws DbException {
+        if (failure != null)
+            throw new DbException("LSM table " + f + " failed: " + failure.getMessage());
+    }
+
+    private void change(TransactionId tid, LsmPage.Entry e) {
+        TreeSet<LsmPage.Entry> changes = pending.get(tid);
+        if (changes == null) {
+            changes = new TreeSet<LsmPage.Entry>();
+            pending.put(tid, changes);
+        }
+        changes.remove(e);
+        changes.add(e);
+    }
+
+    /**
+     * Commits tid's changes: appends them to the log, forces it to disk,
+     * and applies them to the memtable.  A memtable that has filled up is
+     * frozen, to be written out in the background; if too many are waiting
+     * already, this waits for one to be written first.  Called by the
+     * BufferPool before tid's COMMIT record is logged, and not under the
+     * BufferPool's lock.
+     *
+     * @throws IOException if the changes could not be logged, or the table
+     *         takes no more changes; tid's changes are dropped
+     */
+    synchronized void commit(TransactionId tid) throws IOException {
+        TreeSet<LsmPage.Entry> changes = pending.remove(tid);
+        if (changes == null || changes.isEmpty())
+            return;
+        if (failure != null)
+            throw failure;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(changes.size());
+        for (LsmPage.Entry e : changes)
+            LsmPage.writeEntry(dos, e);
+        try {
+            log.write(baos.toByteArray());
+            log.getFD().sync();
+        } catch (IOException e) {
+            // the log may end in a torn record, which nothing may follow
+            failure = e;
+            throw e;
+        }
+        for (LsmPage.Entry e : changes)
+            memtable.put(e);
+        if (memtable.entries.size() >= memtablePages * LsmPage.maxEntries(td))
+            freeze();
+    }
+
+    /** Forgets tid's changes.  Called by the BufferPool when tid aborts. */
+    synchronized void abort(TransactionId tid) {
+        pending.remove(tid);
+    }
+
+    /**
+     * Freezes the memtable, whatever its size, to be written out as a run
+     * in the background.  Does nothing if it is empty.
+     */
+    public synchronized void flushMemtable() throws IOException {
+        if (!memtable.entries.isEmpty())
+            freeze();
+    }
+
+    private void freeze() throws IOException {
+        while (frozen.size() >= MAX_FROZEN && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for a memtable to be written.");
+            }
+        }
+        if (failure != null)
+            throw failure;
+        log.close();
+        frozen.add(memtable);
+        newMemtable();
+        schedule();
+    }
+
+    /** Starts an empty memtable, and its log. */
+    private void newMemtable() throws IOException {
+        memtable = new Memtable(nextNumber++);
+        log = new FileOutputStream(logFile(memtable.number));
+    }
+
+    /**
+     * Adds the entries of the transactions a log holds to a memtable.  A
+     * transaction whose entries were not all written is left out.
+     */
+    private void replay(File logFile, Memtable m) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(logFile)));
+        try {
+            while (true) {
+                List<LsmPage.Entry> changes = new ArrayList<LsmPage.Entry>();
+                int n = in.readInt();
+                for (int i = 0; i < n; i++)
+                    changes.add(LsmPage.readEntry(in, this));
+                for (LsmPage.Entry e : changes) {
+                    nextId = Math.max(nextId, e.id + 1);
+                    m.entries.remove(e);
+                    m.entries.add(e);
+                }
+            }
+        } catch (EOFException e) {
+            // the end of the log, or of what was written of it
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Queues a task for the background thread to write out and merge runs. */
+    private void schedule() {
+        background.execute(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        });
+    }
+
+    /**
+     * Waits until the background thread has written out the memtables
+     * frozen so far, and merged the runs that needed it.
+     */
+    public void awaitBackground() throws InterruptedException {
+        try {
+            background.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes out the frozen memtables, oldest first, then merges runs.  Runs
+     * on the background thread, the only one that changes the list of runs
+     * once the table is open.  An error is kept, to fail the next change.
+     */
+    private void maintain() {
+        try {
+            while (true) {
+                Memtable m;
+                synchronized (this) {
+                    if (frozen.isEmpty())
+                        break;
+                    m = frozen.get(0);
+                }
+                Run run = writeRun(flushing(m), m.number, 0);
+                synchronized (this) {
+                    runs.add(run);
+                    writeManifest();
+                    frozen.remove(0);
+                    notifyAll();
+                }
+                logFile(m.number).delete();
+            }
+            compact();
+        } catch (IOException e) {
+            synchronized (this) {
+                if (failure == null)
+                    failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Merges the newest runs into one while {@link #FANOUT} of them are at
+     * the same level.  The runs merged are levels below all older ones, so
+     * the merged run takes their place in age.  Tombstones are only dropped
+     * if no older run is left that they might hide tuples in.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            List<Run> group;
+            boolean oldest;
+            int number;
+            synchronized (this) {
+                int from = runs.size();
+                if (from == 0)
+                    return;
+                int level = runs.get(from - 1).level;
+                while (from > 0 && runs.get(from - 1).level == level)
+                    from--;
+                if (runs.size() - from < FANOUT)
+                    return;
+                group = new ArrayList<Run>(runs.subList(from, runs.size()));
+                oldest = from == 0;
+                number = nextNumber++;
+            }
+            List<Source> sources = new ArrayList<Source>();
+            for (int i = group.size() - 1; i >= 0; i--)
+                sources.add(new RunSource(sources.size(), group.get(i), true));
+            Run merged = writeRun(new Merger(sources, !oldest), number,
+                group.get(0).level + 1);
+            synchronized (this) {
+                int from = runs.indexOf(group.get(0));
+                runs.subList(from, from + group.size()).clear();
+                runs.add(from, merged);
+                writeManifest();
+                for (Run r : group) {
+                    r.obsolete = true;
+                    dispose(r);
+                }
+            }
+        }
+    }
+
+    /** Deletes the file of a run that has been merged, once unread. */
+    private void dispose(Run r) {
+        if (r.obsolete && r.readers == 0)
+            runFile(r.number).delete();
+    }
+
+    /** @return a merger over the entries of a memtable, tombstones and all */
+    private Merger flushing(Memtable m) {
+        List<Source> sources = new ArrayList<Source>();
+        sources.add(new ListSource(0, m.entries.iterator()));
+        return new Merger(sources, true);
+    }
+
+    /**
+     * Writes the entries a merger returns to a new run, and forces it to
+     * disk.
+     */
+    private Run writeRun(Merger entries, int number, int level) throws IOException {
+        FileOutputStream fos = new FileOutputStream(runFile(number));
+        int pages = 0;
+        try {
+            OutputStream out = new BufferedOutputStream(fos);
+            int max = LsmPage.maxEntries(td);
+            List<LsmPage.Entry> page = new ArrayList<LsmPage.Entry>();
+            LsmPage.Entry e;
+            do {
+                e = entries.next();
+                if (e != null)
+                    page.add(e);
+                if (page.size() == max || (e == null && !page.isEmpty())) {
+                    out.write(LsmPage.createPageData(page));
+                    pages++;
+                    page.clear();
+                }
+            } while (e != null);
+            out.flush();
+            fos.getFD().sync();
+        } catch (DbException e) {
+            throw new IOException("Could not read the runs being merged: " + e.getMessage());
+        } finally {
+            fos.close();
+        }
+        return new Run(number, level, pages);
+    }
+
+    /**
+     * Reads the manifest, or the new one written in its place, if writing
+     * was interrupted after the old one was deleted.
+     */
+    private void readManifest() throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        File from = f.exists() || !tmp.exists() ? f : tmp;
+        if (!from.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(from)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(from + " is not the manifest of an LSM table");
+            nextNumber = in.readInt();
+            nextId = in.readInt();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++)
+                runs.add(new Run(in.readInt(), in.readInt(), in.readInt()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the manifest, to a temporary file first so a crash never
+     * leaves a torn one.
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(nextNumber);
+            out.writeInt(nextId);
+            out.writeInt(runs.size());
+            for (Run r : runs) {
+                out.writeInt(r.number);
+                out.writeInt(r.level);
+                out.writeInt(r.pages);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        f.delete();
+        if (!tmp.renameTo(f))
+            throw new IOException("Could not write " + f);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LsmIterator(tid);
+    }
+
+    /** A sorted sequence of entries being merged, and the next one of them. */
+    private abstract static class Source {
+        // 0 for the newest source; of alike entries, the newest's is kept
+        final int age;
+        LsmPage.Entry head;
+
+        Source(int age) {
+            this.age = age;
+        }
+
+        /** @return the next entry of the sequence, or null at its end */
+        abstract LsmPage.Entry read() throws DbException;
+    }
+
+    /** The entries of a memtable, or of a transaction's changes. */
+    private static class ListSource extends Source {
+        private final Iterator<LsmPage.Entry> it;
+
+        ListSource(int age, Iterator<LsmPage.Entry> it) {
+            super(age);
+            this.it = it;
+        }
+
+        LsmPage.Entry read() {
+            return it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /**
+     * The entries of a run, a page at a time: through the BufferPool for
+     * scans, or straight from the file for merges, which must not wait for
+     * the BufferPool while commits may be waiting for them.
+     */
+    private class RunSource extends Source {
+        private final Run run;
+        private final boolean direct;
+        private int page = 0;
+        private Iterator<LsmPage.Entry> entries = null;
+
+        RunSource(int age, Run run, boolean direct) {
+            super(age);
+            this.run = run;
+            this.direct = direct;
+        }
+
+        LsmPage.Entry read() throws DbException {
+            while (entries == null || !entries.hasNext()) {
+                if (page == run.pages)
+                    return null;
+                LsmPageId pid = new LsmPageId(getId(), run.number, page++);
+                LsmPage p;
+                try {
+                    p = (LsmPage) (direct ? readPage(pid)
+                        : Database.getBufferPool().getImmutablePage(pid));
+                } catch (IllegalArgumentException e) {
+                    throw new DbException(e.getMessage());
+                }
+                entries = p.entries().iterator();
+            }
+            return entries.next();
+        }
+    }
+
+    /**
+     * Merges sources of entries into one sorted sequence, keeping only the
+     * newest of alike entries, and dropping tombstones unless asked to keep
+     * them.
+     */
+    private static class Merger {
+        private final List<Source> sources;
+        private final boolean tombstones;
+        private PriorityQueue<Source> queue = null;
+
+        Merger(List<Source> sources, boolean tombstones) {
+            this.sources = sources;
+            this.tombstones = tombstones;
+        }
+
+        /** @return the next entry, or null if there are no more */
+        LsmPage.Entry next() throws DbException {
+            if (queue == null) {
+                queue = new PriorityQueue<Source>(Math.max(1, sources.size()),
+                    new Comparator<Source>() {
+                        public int compare(Source a, Source b) {
+                            int c = a.head.compareTo(b.head);
+                            return c != 0 ? c : a.age - b.age;
+                        }
+                    });
+                for (Source s : sources)
+                    advance(s);
+            }
+            while (!queue.isEmpty()) {
+                Source s = queue.poll();
+                LsmPage.Entry e = s.head;
+                advance(s);
+                while (!queue.isEmpty() && queue.peek().head.compareTo(e) == 0)
+                    advance(queue.poll());
+                if (tombstones || !e.deleted)
+                    return e;
+            }
+            return null;
+        }
+
+        private void advance(Source s) throws DbException {
+            s.head = s.read();
+            if (s.head != null)
+                queue.add(s);
+        }
+    }
+
+    /**
+     * Merges the table's memtables, runs and the scanning transaction's own
+     * changes, as they were when the iterator was opened, which locks the
+     * table for reading.  The runs are kept from being deleted until it is
+     * closed.
+     */
+    private class LsmIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TransactionId tid;
+        private List<Run> reading = null;
+        private Merger merger = null;
+        private Tuple next = null;
+
+        LsmIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            close();
+            Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_ONLY);
+            List<Source> sources = new ArrayList<Source>();
+            synchronized (LsmFile.this) {
+                TreeSet<LsmPage.Entry> changes = pending.get(tid);
+                if (changes != null)
+                    sources.add(new ListSource(sources.size(),
+                        new ArrayList<LsmPage.Entry>(changes).iterator()));
+                sources.add(new ListSource(sources.size(), memtable.share().iterator()));
+                for (int i = frozen.size() - 1; i >= 0; i--)
+                    sources.add(new ListSource(sources.size(), frozen.get(i).entries.iterator()));
+                reading = new ArrayList<Run>(runs);
+                for (int i = reading.size() - 1; i >= 0; i--) {
+                    reading.get(i).readers++;
+                    sources.add(new RunSource(sources.size(), reading.get(i), false));
+                }
+            }
+            merger = new Merger(sources, false);
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null && merger != null) {
+                LsmPage.Entry e = merger.next();
+                if (e != null)
+                    next = e.tuple;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            if (reading != null) {
+                synchronized (LsmFile.this) {
+                    for (Run r : reading) {
+                        r.readers--;
+                        dispose(r);
+                    }
+                }
+            }
+            reading = null;
+            merger = null;
+            next = null;
+        }
+    }
+}
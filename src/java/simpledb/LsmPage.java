@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of LsmPage stores a page of a sorted run of an
+ * {@link LsmFile}, and implements the Page interface that is used by
+ * BufferPool.  Runs are never changed once written, so neither are their
+ * pages.
+ * <p>
+ * A page holds its number of entries, then the entries, in order.  Each
+ * entry is the row id of a tuple of the table, a byte that is 1 if the
+ * entry records that the tuple was deleted, and the tuple's fields, in the
+ * same format as on a heap page.  The entries of the table's memtable and
+ * its log have the same format.
+ *
+ * @see LsmFile
+ * @see BufferPool
+ */
+public class LsmPage implements Page {
+
+    /**
+     * An entry of an LSM table: a tuple and its row id, or a tombstone
+     * saying the tuple was deleted.  Entries are ordered by the key of
+     * their tuple, then by row id; the entries for a tuple and for its
+     * deletion are alike, so that the newer hides the older.
+     */
+    static final class Entry implements Comparable<Entry> {
+        final Field key;
+        final int id;
+        final boolean deleted;
+        final Tuple tuple;
+
+        Entry(Tuple tuple, int keyField, int id, boolean deleted) {
+            this.key = tuple.getField(keyField);
+            this.id = id;
+            this.deleted = deleted;
+            this.tuple = tuple;
+        }
+
+        public int compareTo(Entry e) {
+            int c = IndexEntry.compareKeys(key, e.key);
+            if (c != 0)
+                return c;
+            return id < e.id ? -1 : (id == e.id ? 0 : 1);
+        }
+    }
+
+    private final LsmPageId pid;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Create an LsmPage from a set of bytes of data read from disk, in the
+     * format described above.  The schema of its tuples is that of the
+     * {@link LsmFile} the page belongs to, which must be in the catalog.
+     */
+    public LsmPage(LsmPageId id, byte[] data) throws IOException {
+        this(id, data, (LsmFile) Database.getCatalog().getDbFile(id.getTableId()));
+    }
+
+    LsmPage(LsmPageId id, byte[] data, LsmFile file) throws IOException {
+        this.pid = id;
+        if (data.length < BufferPool.PAGE_SIZE)
+            throw new IOException("page data too short");
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int n = dis.readInt();
+        for (int i = 0; i < n; i++)
+            entries.add(readEntry(dis, file));
+    }
+
+    /** @return the number of bytes an entry of a table takes */
+    static int entrySize(TupleDesc td) {
+        return 5 + td.getSize();
+    }
+
+    /** @return the most entries a page holds, for a table of the given schema */
+    static int maxEntries(TupleDesc td) {
+        return (BufferPool.PAGE_SIZE - 4) / entrySize(td);
+    }
+
+    /** Writes an entry in the format described above. */
+    static void writeEntry(DataOutputStream dos, Entry e) throws IOException {
+        dos.writeInt(e.id);
+        dos.writeByte(e.deleted ? 1 : 0);
+        for (int i = 0; i < e.tuple.getTupleDesc().numFields(); i++)
+            e.tuple.getField(i).serialize(dos);
+    }
+
+    /**
+     * Reads an entry of the given table in the format described above, and
+     * gives its tuple the RecordId for its row id.
+     */
+    static Entry readEntry(DataInputStream dis, LsmFile file) throws IOException {
+        TupleDesc td = file.getTupleDesc();
+        int id = dis.readInt();
+        boolean deleted = dis.readByte() != 0;
+        Tuple t = new Tuple(td);
+        t.setRecordId(file.recordId(id));
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(dis));
+        } catch (ParseException e) {
+            throw new IOException("could not parse entry " + id);
+        }
+        return new Entry(t, file.getKeyField(), id, deleted);
+    }
+
+    /**
+     * @return the bytes of a page holding the given entries, at most
+     *         {@link #maxEntries} of them
+     */
+    static byte[] createPageData(List<Entry> entries) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(entries.size());
+            for (Entry e : entries)
+                writeEntry(dos, e);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.PAGE_SIZE);
+    }
+
+    public LsmPageId getId() {
+        return pid;
+    }
+
+    /** @return the entries of this page, in order */
+    List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in
+     * the format the constructor reads.
+     */
+    public byte[] getPageData() {
+        return createPageData(entries);
+    }
+
+    /** @return this page: it never changes */
+    public LsmPage getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+    }
+
+    /** Does nothing: the pages of runs are never changed. */
+    public void markDirty(boolean dirty, TransactionId tid) {
+    }
+
+    /** @return null: the pages of runs are never changed */
+    public TransactionId isDirty() {
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+/** Unique identifier for LsmPage objects. */
+public class LsmPageId implements PageId {
+
+    private final int tableId, run, pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific run of an LSM table.
+     *
+     * @param tableId The id of the {@link LsmFile} being referenced
+     * @param run The number of the run the page belongs to
+     * @param pgNo The page number in that run
+     */
+    public LsmPageId(int tableId, int run, int pgNo) {
+        this.tableId = tableId;
+        this.run = run;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the id of the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the number of the run of the table this page belongs to */
+    public int getRun() {
+        return run;
+    }
+
+    /**
+     * @return the page number in the run getRun() associated with this
+     *   PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return (tableId << 16) + (run << 10) + pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @return true if o is an LsmPageId with the same table, run and page
+     *   number
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof LsmPageId))
+            return false;
+        LsmPageId pid = (LsmPageId) o;
+        return tableId == pid.tableId && run == pid.run && pgNo == pid.pgNo;
+    }
+
+    public String toString() {
+        return "LsmPageId(" + tableId + ", " + run + ", " + pgNo + ")";
+    }
+
+    /**
+     * Return a representation of this object as an array of integers, for
+     * writing to disk; they are the arguments of the constructor.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, run, pgNo };
+    }
+}
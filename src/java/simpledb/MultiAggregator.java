@@ -0,0 +1,124 @@
+package simpledb;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number of
+ * fields.  Integer fields may be aggregated with any operator; string fields
+ * can only be counted.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private int[] gbfields, afields;
+    private Op[] ops;
+    // the aggregate fields that are strings, which are only counted
+    private boolean[] counted;
+    private TupleDesc td;
+
+    private HashAggregation groups;
+    // the values of the aggregate fields of the tuple being merged
+    private int[] vals;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple; an
+     *            empty array if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param what
+     *            the aggregation operator for each aggregate field
+     * @throws IllegalArgumentException
+     *             if a string field is aggregated with anything but COUNT
+     */
+    public MultiAggregator(TupleDesc childTd, int[] gbfields, int[] afields,
+            Op[] what) {
+        this.gbfields = gbfields;
+        this.afields = afields;
+        ops = what;
+        counted = new boolean[afields.length];
+        vals = new int[afields.length];
+        Type[] gbtypes = new Type[gbfields.length];
+        Type[] types = new Type[gbfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            gbtypes[i] = childTd.getFieldType(gbfields[i]);
+            types[i] = gbtypes[i];
+            names[i] = childTd.getFieldName(gbfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            counted[i] = childTd.getFieldType(afields[i]) == Type.STRING_TYPE;
+            if (counted[i] && what[i] != Op.COUNT)
+                throw new IllegalArgumentException(
+                        "Operator must be COUNT for string fields.");
+            types[gbfields.length + i] = Type.INT_TYPE;
+            names[gbfields.length + i] = what[i].toString() + "("
+                + childTd.getFieldName(afields[i]) + ")";
+        }
+        td = new TupleDesc(types, names);
+        groups = new HashAggregation(gbtypes, afields.length);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException {
+        for (int i = 0; i < afields.length; i++)
+            vals[i] = counted[i] ? 0
+                : ((IntField) tup.getField(afields[i])).getValue();
+        groups.add(tup, gbfields, vals);
+    }
+
+    /**
+     * Merges a whole batch into the aggregates, reading the aggregate
+     * values and group keys straight from their columns.
+     *
+     * @param batch
+     *            tuples containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) throws DbException {
+        int[][] cols = new int[afields.length][];
+        for (int i = 0; i < afields.length; i++)
+            if (!counted[i])
+                cols[i] = batch.getIntColumn(afields[i]);
+        for (int row = 0; row < batch.size(); row++) {
+            for (int i = 0; i < afields.length; i++)
+                vals[i] = counted[i] ? 0 : cols[i][row];
+            groups.add(batch, row, gbfields, vals);
+        }
+    }
+
+    /**
+     * Folds the groups of other, an aggregator built with the same
+     * arguments, into this one; other is left empty.  Threads that each
+     * aggregate part of the input are combined this way.
+     */
+    public void merge(MultiAggregator other) throws DbException,
+            TransactionAbortedException {
+        groups.addAll(other.groups);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group-by fields followed by
+     *         the value of each aggregate, in the order given in the
+     *         constructor
+     */
+    public DbIterator iterator() {
+        return groups.iterator(ops, td);
+    }
+
+    public void close() {
+        groups.close();
+    }
+
+}
@@ -5,9 +5,11 @@ import java.util.NoSuchElementException;
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>open</code> and <code>readNext</code>; batches are then built from
+ * <code>readNext</code> unless the subclass overrides
+ * <code>fetchNextBatch</code>.
  */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements BatchDbIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +46,39 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        if (next != null) {
+            // hasNext() already fetched a tuple
+            TupleBatch batch = new TupleBatch(getTupleDesc());
+            batch.addTuple(next);
+            next = null;
+            return batch;
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>.  The
+     * default fills a batch by calling <code>fetchNext</code>; operators that
+     * can work on whole batches of their children should override it.
+     *
+     * @return the next batch, holding at least one tuple, or null if the
+     *         iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        Tuple t;
+        while (!batch.isFull() && (t = fetchNext()) != null)
+            batch.addTuple(t);
+        return batch.size() == 0 ? null : batch;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -25,13 +25,36 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof RangeJoin) {
+            RangeJoin j = (RangeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof Exchange) {
+            return updateExchangeCardinality((Exchange) o, tableAliasToId,
+                    tableStats);
         } else {
             DbIterator[] children = o.getChildren();
             int childC = 1;
@@ -42,9 +65,7 @@ public class OperatorCardinality {
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
                 } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                    childC = scanCardinality((SeqScan) children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -78,9 +99,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -88,7 +108,12 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    /**
+     * Estimates the cardinality of any of the join operators, given its
+     * predicate and the quantified names of its join fields.
+     */
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate jp, String field1Name, String field2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,11 +123,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -121,8 +146,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -133,72 +157,57 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                jp.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-            Map<String, Integer> tableAliasToId,
+    /**
+     * @return the estimated number of tuples a scan returns, after the
+     *         filters it applies itself
+     */
+    private static int scanCardinality(SeqScan s,
             Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        double selectivity = 1.0;
+        for (Predicate p : s.getFilters())
+            selectivity *= stats.estimateSelectivity(p.getField(), p.getOp(),
+                    p.getOperand());
+        return stats.estimateTableCardinality(selectivity);
+    }
 
-        DbIterator[] children = j.getChildren();
-        DbIterator child1 = children[0];
-        DbIterator child2 = children[1];
-        int child1Card = 1;
-        int child2Card = 1;
-
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
-        String tableAlias1 = tmp1[0];
-        String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
-        String tableAlias2 = tmp2[0];
-        String pureFieldName2 = tmp2[1];
-
-        boolean child1HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias1))
-                .equals(pureFieldName1);
-        ;
-        boolean child2HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias2))
-                .equals(pureFieldName2);
-        ;
-
-        if (child1 instanceof Operator) {
-            Operator child1O = (Operator) child1;
-            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
-                    tableStats);
-            child1HasJoinPK = pk || child1HasJoinPK;
-            child1Card = child1O.getEstimatedCardinality();
-            child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        if (child2 instanceof Operator) {
-            Operator child2O = (Operator) child2;
-            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
-                    tableStats);
-            child2HasJoinPK = pk || child2HasJoinPK;
-            child2Card = child2O.getEstimatedCardinality();
-            child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+    /**
+     * Estimates the cardinality of each consumer of an exchange from the
+     * total of its producers.  All the consumers of the same producers are
+     * estimated at once, so that the producers are visited only once.
+     */
+    private static boolean updateExchangeCardinality(Exchange e,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        if (e.getEstimatedCardinality() > 0)
+            return false;
+        int card = 0;
+        boolean hasJoinPK = false;
+        for (DbIterator child : e.getChildren()) {
+            if (child instanceof Operator) {
+                Operator oChild = (Operator) child;
+                hasJoinPK |= updateOperatorCardinality(oChild, tableAliasToId,
+                        tableStats);
+                card += oChild.getEstimatedCardinality();
+            } else if (child instanceof SeqScan) {
+                card += scanCardinality((SeqScan) child, tableStats);
+            }
         }
-
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
-        return child1HasJoinPK || child2HasJoinPK;
+        if (e.getMode() == Exchange.Mode.HASH)
+            card = card / e.numConsumers() + 1;
+        for (Exchange consumer : e.getConsumers())
+            consumer.setEstimatedCardinality(card);
+        return hasJoinPK;
     }
 
     private static boolean updateAggregateCardinality(Aggregate a,
@@ -220,28 +229,31 @@ public class OperatorCardinality {
         }
 
         if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // the number of groups is at most the product of the number of
+        // distinct values of each group field
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = a.groupFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
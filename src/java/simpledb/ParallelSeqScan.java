@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelSeqScan is a sequential scan whose pages are read by a pool of
+ * worker threads.  The table is split into morsels of
+ * {@link Aggregate#MORSEL_PAGES} pages; each worker decodes the pages of a
+ * morsel into batches, dropping the tuples that fail the scan's filters,
+ * and the batches are handed to the consumer one morsel at a time.
+ * <p>
+ * At most two morsels per thread are read ahead of the consumer, so a slow
+ * consumer holds back the workers instead of letting finished morsels pile
+ * up in memory.  An ordered scan returns the morsels in page order, as
+ * {@link SeqScan} does; an unordered one returns each morsel as soon as it
+ * has been read.
+ * <p>
+ * The worker threads are started when the scan is opened and stopped when
+ * it is closed.  Rewinding the scan, as the inner side of a nested-loop
+ * join does for every outer tuple, only starts it over from the first page
+ * with the same threads.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private int threads;
+    private boolean ordered;
+
+    private transient ExecutorService pool;
+    // the morsels being read, in page order
+    private transient LinkedList<Future<List<TupleBatch>>> pending;
+    // the morsels being read, as they finish, for an unordered scan
+    private transient CompletionService<List<TupleBatch>> finished;
+    private int numPages, nextPage, outstanding;
+    // the batches of the morsel being returned, and the position in it
+    private Iterator<TupleBatch> batches;
+    private TupleBatch current;
+    private int row;
+
+    /**
+     * Creates a parallel scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, as for {@link SeqScan}
+     * @param threads
+     *            the number of worker threads to read pages with
+     * @param ordered
+     *            true to return the tuples in page order, false to return
+     *            them in whatever order the workers finish
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int threads, boolean ordered) {
+        super(tid, tableid, tableAlias);
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    /** @return the number of worker threads pages are read with */
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (numPages() < 0)
+            throw new DbException("Table cannot be scanned in parallel.");
+        if (pool == null)
+            pool = newPool(threads);
+        start();
+    }
+
+    /** Starts reading the table from its first page. */
+    private void start() {
+        pending = new LinkedList<Future<List<TupleBatch>>>();
+        finished = new ExecutorCompletionService<List<TupleBatch>>(pool);
+        numPages = numPages();
+        nextPage = 0;
+        outstanding = 0;
+        batches = null;
+        current = null;
+        submitMorsels();
+    }
+
+    /** Starts reading morsels until two per thread are under way. */
+    private void submitMorsels() {
+        while (outstanding < 2 * threads && nextPage < numPages) {
+            final int first = nextPage;
+            final int end = Math.min(first + Aggregate.MORSEL_PAGES, numPages);
+            Callable<List<TupleBatch>> morsel = new Callable<List<TupleBatch>>() {
+                public List<TupleBatch> call() throws Exception {
+                    return readMorsel(first, end);
+                }
+            };
+            if (ordered)
+                pending.add(pool.submit(morsel));
+            else
+                pending.add(finished.submit(morsel));
+            nextPage = end;
+            outstanding++;
+        }
+    }
+
+    /** @return the filtered tuples of pages [first, end), in batches */
+    private List<TupleBatch> readMorsel(int first, int end)
+            throws DbException, TransactionAbortedException {
+        TupleDesc td = getTupleDesc();
+        List<TupleBatch> out = new ArrayList<TupleBatch>();
+        TupleBatch batch = new TupleBatch(td);
+        DbFileIterator it = iterator(first, end);
+        it.open();
+        while (it.hasNext()) {
+            if (batch.isFull()) {
+                out.add(batch);
+                batch = new TupleBatch(td);
+            }
+            batch.addTuple(it.next());
+        }
+        it.close();
+        if (batch.size() > 0)
+            out.add(batch);
+        return out;
+    }
+
+    /**
+     * Waits for the next morsel to be read.
+     *
+     * @return the batches of the next morsel, or null if every morsel has
+     *         been returned
+     */
+    private Iterator<TupleBatch> nextMorsel() throws DbException,
+            TransactionAbortedException {
+        if (outstanding == 0)
+            return null;
+        Future<List<TupleBatch>> f;
+        if (ordered) {
+            f = pending.removeFirst();
+        } else {
+            try {
+                f = finished.take();
+                pending.remove(f);
+            } catch (InterruptedException e) {
+                throw new DbException("Interrupted while scanning: " + e);
+            }
+        }
+        outstanding--;
+        List<TupleBatch> morsel = getResult(f);
+        submitMorsels();
+        return morsel.iterator();
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (pool == null)
+            return false;
+        while (current == null || row >= current.size()) {
+            while (batches == null || !batches.hasNext()) {
+                batches = nextMorsel();
+                if (batches == null)
+                    return false;
+            }
+            current = batches.next();
+            row = 0;
+        }
+        return true;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (pool == null)
+            throw new NoSuchElementException("Iterator not instantiated.");
+        if (!hasNext())
+            throw new NoSuchElementException("No more tuples!");
+        return current.getTuple(row++);
+    }
+
+    /**
+     * Returns the batches the workers built as they are; no tuples are
+     * copied on the consumer's thread.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException,
+            DbException {
+        if (pool == null)
+            throw new IllegalStateException("Iterator not instantiated.");
+        while (batches == null || !batches.hasNext()) {
+            batches = nextMorsel();
+            if (batches == null)
+                return null;
+        }
+        return batches.next();
+    }
+
+    public void close() {
+        if (pool != null)
+            pool.shutdownNow();
+        pool = null;
+        pending = null;
+        finished = null;
+        batches = null;
+        current = null;
+    }
+
+    /**
+     * Starts the scan over, keeping the worker threads.  Morsels not yet
+     * started are cancelled; those being read are left to finish, and what
+     * they read is dropped.
+     */
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (pool == null) {
+            open();
+            return;
+        }
+        for (Future<List<TupleBatch>> f : pending)
+            f.cancel(false);
+        start();
+    }
+
+    /**
+     * @return a pool of daemon threads, so that a plan that is never closed
+     *         does not keep the JVM running
+     */
+    static ExecutorService newPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scan worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Waits for a task run by a worker and returns its result, rethrowing
+     * what it threw.
+     */
+    static <T> T getResult(Future<T> f) throws DbException,
+            TransactionAbortedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new DbException("Interrupted while waiting for a worker: " + e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            throw new DbException("Worker failed: " + e.getCause());
+        }
+    }
+}
@@ -11,6 +11,7 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int parallelism = 1;
 	boolean meep = true;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
@@ -139,6 +140,7 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setParallelism(parallelism);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -183,23 +185,21 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (int i = 0; i < gbs.size(); i++) {
+                ZExp gbe = gbs.elementAt(i);
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
+                lp.addGroupByField(groupByField);
             }
 
         }
@@ -208,8 +208,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -219,20 +218,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
-                        .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggField = ((ZConstant) ((ZExpression) si
+                        .getExpression()).getOperand(0)).getValue();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (groupByFields.size() > 0
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -242,13 +239,9 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByFields.size() > 0 && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
-
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -589,7 +582,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 7) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -599,9 +592,17 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-mvcc] [-parallel threads] [-f queryFile]";
+
+    /** Name of the buffer pool page dump kept next to the catalog file. */
+    static final String PAGE_DUMP_FILE = "pagedump";
 
     protected void shutdown() {
+        try {
+            Database.getBufferPool().dumpPageIds();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -612,6 +613,11 @@ public class Parser {
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
+        // prefetch the pages that were hot when we last shut down
+        File catalogDir = new File(argv[0]).getAbsoluteFile().getParentFile();
+        Database.getBufferPool().enableWarmRestart(
+                new File(catalogDir, PAGE_DUMP_FILE));
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -619,6 +625,17 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-mvcc")) {
+                    Database.getBufferPool().setMultiVersion(true);
+                    System.out.println("Multi-version reads enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected thread count after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    parallelism = Integer.parseInt(argv[i]);
+                    System.out.println("Queries may use " + parallelism + " threads.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -117,6 +117,96 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, oper);
     }
 
+    /**
+     * Applies this predicate to every tuple of a batch.  Comparisons of an
+     * INT_TYPE column against an IntField run directly over the column's
+     * values; anything else goes through Field.compare.
+     * 
+     * @param batch
+     *            the tuples to compare
+     * @param rows
+     *            filled with the indexes of the tuples that pass, in
+     *            increasing order; must have room for batch.size() entries
+     * @return the number of tuples that pass
+     */
+    public int filter(TupleBatch batch, int[] rows) {
+	int n = 0, size = batch.size();
+	int[] col = batch.getIntColumn(field);
+	if (col == null || !(oper instanceof IntField))
+	    {
+		for (int i = 0 ; i < size ; i++)
+		    if (batch.getField(field, i).compare(op, oper))
+			rows[n++] = i;
+		return n;
+	    }
+	int v = ((IntField) oper).getValue();
+	switch (op)
+	    {
+	    case EQUALS:
+	    case LIKE:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] == v)
+			rows[n++] = i;
+		break;
+	    case NOT_EQUALS:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] != v)
+			rows[n++] = i;
+		break;
+	    case GREATER_THAN:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] > v)
+			rows[n++] = i;
+		break;
+	    case GREATER_THAN_OR_EQ:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] >= v)
+			rows[n++] = i;
+		break;
+	    case LESS_THAN:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] < v)
+			rows[n++] = i;
+		break;
+	    case LESS_THAN_OR_EQ:
+		for (int i = 0 ; i < size ; i++)
+		    if (col[i] <= v)
+			rows[n++] = i;
+		break;
+	    }
+	return n;
+    }
+
+    /**
+     * Compares a value of the field this predicate applies to, read as an
+     * int without building a Field for it, to the operand, which must be an
+     * IntField.  Scans use this to test tuples before decoding them.
+     * 
+     * @param value
+     *            the value of the field
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(int value) {
+	int v = ((IntField) oper).getValue();
+	switch (op)
+	    {
+	    case EQUALS:
+	    case LIKE:
+		return value == v;
+	    case NOT_EQUALS:
+		return value != v;
+	    case GREATER_THAN:
+		return value > v;
+	    case GREATER_THAN_OR_EQ:
+		return value >= v;
+	    case LESS_THAN:
+		return value < v;
+	    case LESS_THAN_OR_EQ:
+		return value <= v;
+	    }
+	return false;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
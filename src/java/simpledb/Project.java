@@ -11,6 +11,8 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    // the projection compiled by Codegen, once opened
+    transient private TupleProjector projector;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -47,6 +49,7 @@ public class Project extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        projector = Codegen.compileProjection(fieldArray(), td);
         child.open();
         super.open();
     }
@@ -68,18 +71,31 @@ public class Project extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
+        if (child.hasNext())
+            return projector.project(child.next());
         return null;
     }
 
+    /** @return the ids of the fields projected out, as an array */
+    private int[] fieldArray() {
+        int[] cols = new int[outFieldIds.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = outFieldIds.get(i);
+        return cols;
+    }
+
+    /**
+     * Projects a whole batch of the child's tuples at once; the output shares
+     * the child batch's column arrays.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch = TupleBatch.next(child);
+        if (batch == null)
+            return null;
+        return batch.project(fieldArray(), td);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
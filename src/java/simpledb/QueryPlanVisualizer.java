@@ -9,6 +9,9 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String RANGE_JOIN = "⨝(range)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
@@ -26,7 +29,9 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin
+                || o instanceof SortMergeJoin || o instanceof RangeJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -74,6 +79,15 @@ public class QueryPlanVisualizer {
                 alias = " " + alias;
             else
                 alias = "";
+            if (s instanceof IndexScan) {
+                IndexFile index = ((IndexScan) s).getIndex();
+                alias += (index.isOrdered() ? ",index " : ",hash ")
+                        + s.getTableTupleDesc().getFieldName(index.getKeyField());
+            }
+            // the filters the scan applies itself
+            for (Predicate p : s.getFilters())
+                alias += "," + s.getTableTupleDesc().getFieldName(p.getField())
+                        + p.getOp() + p.getOperand();
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
@@ -136,18 +150,34 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin
+                    || plan instanceof SortMergeJoin
+                    || plan instanceof RangeJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                JoinPredicate jp;
+                String name;
+                if (plan instanceof HashEquiJoin) {
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                    name = HASH_JOIN;
+                } else if (plan instanceof SortMergeJoin) {
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                    name = MERGE_JOIN;
+                } else if (plan instanceof RangeJoin) {
+                    jp = ((RangeJoin) plan).getJoinPredicate();
+                    name = RANGE_JOIN;
+                } else {
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                    name = INDEX_JOIN;
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +186,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -171,15 +201,23 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                String aggs = "";
+                for (int i = 0; i < a.aggregateFields().length; i++) {
+                    if (i > 0)
+                        aggs += ", ";
+                    aggs += a.aggregateOps()[i] + "(" + a.aggregateFieldName(i) + ")";
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = a.groupFieldName(0);
+                    for (int i = 1; i < a.groupFields().length; i++)
+                        groups += "," + a.groupFieldName(i);
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -261,7 +299,8 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
+            else if (plan instanceof Exchange
+                    || plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
                 try {
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * RangeJoin evaluates inequality joins (<code>LESS_THAN</code>,
+ * <code>GREATER_THAN</code> and the OR_EQ forms).  The inner input (child2)
+ * is read into memory and sorted on its join field; for each outer tuple,
+ * the inner tuples it joins with form one contiguous range of that order,
+ * which is found by binary search.  The outer input is streamed, and the
+ * output follows its order.
+ */
+public class RangeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+
+    transient private ArrayList<Tuple> inner = null;
+    // the join fields of inner, in the same order
+    transient private Field[] keys = null;
+    transient private Tuple t1 = null;
+    // the inner tuples still to be joined with t1
+    transient private int pos, end;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; see
+     *            {@link #supports}
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public RangeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("not a range predicate: " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if op is one of the inequalities a RangeJoin evaluates */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+            || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        inner = new ArrayList<Tuple>();
+        while (child2.hasNext())
+            inner.add(child2.next());
+        Collections.sort(inner, new TupleComparator(pred.getField2(), true));
+        keys = new Field[inner.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = inner.get(i).getField(pred.getField2());
+        t1 = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        inner = null;
+        keys = null;
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        t1 = null;
+    }
+
+    /**
+     * @return the index of the first inner key that is greater than key, or
+     *         greater than or equal to it if orEqual is set
+     */
+    private int search(Field key, boolean orEqual) {
+        Predicate.Op before = orEqual ? Predicate.Op.LESS_THAN
+            : Predicate.Op.LESS_THAN_OR_EQ;
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compare(before, key))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The tuples returned are the concatenation of the joining
+     * outer and inner tuples, as for {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (t1 == null || pos >= end) {
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            Field key = t1.getField(pred.getField1());
+            switch (pred.getOperator()) {
+            case LESS_THAN:
+                pos = search(key, false);
+                end = keys.length;
+                break;
+            case LESS_THAN_OR_EQ:
+                pos = search(key, true);
+                end = keys.length;
+                break;
+            case GREATER_THAN:
+                pos = 0;
+                end = search(key, true);
+                break;
+            default:
+                pos = 0;
+                end = search(key, false);
+                break;
+            }
+        }
+        return new JoinedTuple(comboTD, t1, inner.get(pos++));
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
@@ -69,7 +69,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return this.pid.hashCode() * this.tupleno;
+        return this.pid.hashCode() * 31 + this.tupleno;
 
     }
 
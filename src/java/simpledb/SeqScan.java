@@ -8,13 +8,16 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchDbIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId transID;
     private int tableID;
     private String tableAlias;
     private DbFileIterator iterator;
+    private List<Predicate> filters = new ArrayList<Predicate>();
+    // the fields of the table the scan returns, or null for all of them
+    private int[] columns = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -74,28 +77,132 @@ public class SeqScan implements DbIterator {
         // some code goes here
 	tableID = tableid;
 	this.tableAlias = tableAlias;
+	columns = null;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Adds a predicate of the form field op constant that the scan applies
+     * to each tuple itself; only tuples that pass every filter are
+     * returned.  Over a {@link HeapFile}, INT_TYPE comparisons are made on
+     * the bytes of each page, so tuples that fail them are never decoded.
+     *
+     * @param p a predicate over tuples with the TupleDesc of the whole
+     *        table, {@link #getTableTupleDesc}
+     */
+    public void addFilter(Predicate p) {
+	filters.add(p);
+    }
+
+    /** @return the predicates added with {@link #addFilter} */
+    public List<Predicate> getFilters() {
+	return filters;
+    }
+
+    /**
+     * Restricts the scan to some of the fields of the table; the others are
+     * never decoded.  The scan's TupleDesc then only has those fields, while
+     * its filters still number fields as in the whole table.
+     *
+     * @param columns the indexes of the fields to return, in the order to
+     *        return them, or null to return every field
+     */
+    public void setColumns(int[] columns) {
+	this.columns = columns;
+    }
+
+    /** @return the fields set with {@link #setColumns}, or null */
+    public int[] getColumns() {
+	return columns;
+    }
+
+    /**
+     * @return the number of pages of the table, or -1 if its file cannot be
+     *         read a range of pages at a time
+     */
+    public int numPages() {
+	DbFile file = Database.getCatalog().getDbFile(tableID);
+	if (!(file instanceof HeapFile))
+	    return -1;
+	return ((HeapFile) file).numPages();
+    }
+
+    /**
+     * Returns an iterator over the tuples on a range of pages of the table,
+     * as part of this scan's transaction; the tuples have the schema of the
+     * file, not of this scan.  Several of these may be read at once by
+     * different threads.
+     *
+     * @param firstPage the number of the first page to read
+     * @param endPage the number of the page after the last one to read
+     * @see #numPages
+     */
+    public DbFileIterator iterator(int firstPage, int endPage) {
+	HeapFile file = (HeapFile) Database.getCatalog().getDbFile(tableID);
+	return file.iterator(transID, firstPage, endPage, filters, columns);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-	iterator = Database.getCatalog().getDbFile(tableID).iterator(transID);
+	iterator = fileIterator();
 	iterator.open();
     }
 
+    /**
+     * @return an iterator over the tuples this scan returns, with the
+     *         scan's filters and columns applied, but not yet open
+     */
+    protected DbFileIterator fileIterator() throws DbException,
+	    TransactionAbortedException {
+	DbFile file = Database.getCatalog().getDbFile(tableID);
+	if (file instanceof HeapFile)
+	    return ((HeapFile) file).iterator(transID, 0, -1, filters, columns);
+	if (!filters.isEmpty() || columns != null)
+	    return new FilteredIterator(file.iterator(transID));
+	return file.iterator(transID);
+    }
+
+    /** @return the id of the table this scan reads */
+    public int getTableId() {
+	return tableID;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+	return transID;
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
      * becomes useful when joining tables containing a field(s) with the same
-     * name.
+     * name.  Only the fields set with {@link #setColumns} are included.
      * 
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
+	TupleDesc all = getTableTupleDesc();
+	if (columns == null)
+	    return all;
+	Type[] types = new Type[columns.length];
+	String[] names = new String[columns.length];
+	for (int i = 0 ; i < columns.length ; i++)
+	    {
+		types[i] = all.getFieldType(columns[i]);
+		names[i] = all.getFieldName(columns[i]);
+	    }
+	return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the TupleDesc of every field of the table, prefixed with the
+     *         table alias, whichever fields the scan returns
+     */
+    public TupleDesc getTableTupleDesc() {
         // some code goes here
 	TupleDesc teedee = Database.getCatalog().getTupleDesc(tableID);
 	int arrsize = teedee.numFields();
@@ -128,8 +235,25 @@ public class SeqScan implements DbIterator {
 	return ans;
     }
 
+    /**
+     * Fills a batch straight from the file iterator.  The tuples handed out
+     * by the file are the ones cached in its pages, so no copies are made
+     * before their fields are laid out in columns.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException,
+            DbException {
+	if (iterator == null)
+	    throw new IllegalStateException("Iterator not instantiated.");
+	TupleBatch batch = new TupleBatch(getTupleDesc());
+	while (!batch.isFull() && iterator.hasNext())
+	    batch.addTuple(iterator.next());
+	return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         // some code goes here
+	if (iterator != null)
+	    iterator.close();
 	iterator = null;
     }
 
@@ -139,4 +263,55 @@ public class SeqScan implements DbIterator {
 	iterator.close();
 	iterator.open();
     }
+
+    /**
+     * Skips the tuples of a file iterator that fail the scan's filters, and
+     * keeps only the scan's columns of the others.
+     */
+    private class FilteredIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+        private DbFileIterator it;
+        private TupleFilter filter = filters.isEmpty() ? null
+            : Codegen.compileFilter(filters, getTableTupleDesc());
+        private TupleProjector projector = columns == null ? null
+            : Codegen.compileProjection(columns, getTupleDesc());
+        private Tuple next = null;
+
+        FilteredIterator(DbFileIterator it) {
+            this.it = it;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null && it.hasNext()) {
+                Tuple t = it.next();
+                if (filter == null || filter.filter(t))
+                    next = projector == null ? t : projector.project(t);
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            next = null;
+            it.rewind();
+        }
+
+        public void close() {
+            next = null;
+            it.close();
+        }
+    }
 }
@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs by walking both in order of their join
+ * fields.  It handles equality as well as the range predicates
+ * (<code>LESS_THAN</code>, <code>GREATER_THAN</code> and the OR_EQ forms) and
+ * <code>NOT_EQUALS</code>.  The inner input (child2) is read into memory and
+ * sorted; the outer input (child1) is streamed if it is already sorted on its
+ * join field, and sorted in memory otherwise.
+ * <p>
+ * The output comes out in ascending order of the outer join field, and for
+ * equality joins also of the inner one; see {@link #isSortedOn}.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // the outer tuples in order: child1 itself, or a sorted copy of it
+    transient private DbIterator outer = null;
+    transient private ArrayList<Tuple> inner = null;
+    transient private Tuple t1 = null;
+    // the first inner tuples whose join field is >= and > t1's
+    transient private int lower, upper;
+    // the inner tuples still to be joined with t1
+    transient private int pos, end;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; anything but
+     *            <code>LIKE</code>
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if a SortMergeJoin can evaluate op */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if the tuples of it come out in ascending order of field
+     *         (as far as can be told from the operators it is made of)
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (it instanceof SortMergeJoin)
+            return ((SortMergeJoin) it).isSortedOn(field);
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        return false;
+    }
+
+    /**
+     * @return true if the output of this join is in ascending order of the
+     *         given output field
+     */
+    public boolean isSortedOn(int field) {
+        if (field == pred.getField1())
+            return true;
+        return pred.getOperator() == Predicate.Op.EQUALS
+            && field == child1.getTupleDesc().numFields() + pred.getField2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** Reads all of it into a list sorted on field. */
+    private static ArrayList<Tuple> sorted(DbIterator it, int field)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        while (it.hasNext())
+            tups.add(it.next());
+        Collections.sort(tups, new TupleComparator(field, true));
+        return tups;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        inner = sorted(child2, pred.getField2());
+        if (isSortedOn(child1, pred.getField1())) {
+            outer = child1;
+        } else {
+            outer = new TupleIterator(child1.getTupleDesc(),
+                    sorted(child1, pred.getField1()));
+            outer.open();
+        }
+        t1 = null;
+        lower = upper = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        if (outer != null && outer != child1)
+            outer.close();
+        outer = null;
+        inner = null;
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        t1 = null;
+        lower = upper = 0;
+    }
+
+    /** @return the sign of the inner tuple's join field minus key */
+    private int compareInner(int i, Field key) {
+        Field f = inner.get(i).getField(pred.getField2());
+        if (f.compare(Predicate.Op.EQUALS, key))
+            return 0;
+        return f.compare(Predicate.Op.LESS_THAN, key) ? -1 : 1;
+    }
+
+    /**
+     * Moves on to the next outer tuple: advances the lower and upper bounds
+     * past its join value, and sets up the range of inner tuples it joins.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean nextOuter() throws DbException, TransactionAbortedException {
+        if (!outer.hasNext())
+            return false;
+        t1 = outer.next();
+        Field key = t1.getField(pred.getField1());
+        int n = inner.size();
+        // the outer keys are ascending, so the bounds only ever move forward
+        while (lower < n && compareInner(lower, key) < 0)
+            lower++;
+        if (upper < lower)
+            upper = lower;
+        while (upper < n && compareInner(upper, key) <= 0)
+            upper++;
+
+        switch (pred.getOperator()) {
+        case EQUALS:
+            pos = lower;
+            end = upper;
+            break;
+        case LESS_THAN:
+            pos = upper;
+            end = n;
+            break;
+        case LESS_THAN_OR_EQ:
+            pos = lower;
+            end = n;
+            break;
+        case GREATER_THAN:
+            pos = 0;
+            end = lower;
+            break;
+        case GREATER_THAN_OR_EQ:
+            pos = 0;
+            end = upper;
+            break;
+        default:
+            // NOT_EQUALS: everything but [lower, upper), which fetchNext skips
+            pos = 0;
+            end = n;
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The tuples returned are the concatenation of the joining
+     * outer and inner tuples, as for {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null) {
+                if (pred.getOperator() == Predicate.Op.NOT_EQUALS
+                        && pos == lower)
+                    pos = Math.max(pos, upper);
+                if (pos < end) {
+                    return new JoinedTuple(comboTD, t1, inner.get(pos++));
+                }
+            }
+            if (!nextOuter())
+                return null;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
@@ -1,7 +1,5 @@
 package simpledb;
 
-import java.util.*;
-
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
@@ -11,7 +9,7 @@ public class StringAggregator implements Aggregator {
     private int gbfield, afield;
     private Type gbfieldtype;
     
-    private Map<Field, Field> agg;
+    private HashAggregation groups;
 
     private String aggName, gbName;
 
@@ -31,7 +29,7 @@ public class StringAggregator implements Aggregator {
 	this.gbfield = gbfield;
 	this.gbfieldtype = gbfieldtype;
 	this.afield = afield;
-	agg = new HashMap<Field, Field>();
+	groups = new HashAggregation(gbfieldtype);
 	aggName = new String();
 	gbName = new String();
     }
@@ -40,20 +38,16 @@ public class StringAggregator implements Aggregator {
      * Merge a new tuple into the aggregate, grouping as indicated in the constructor
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException {
         // some code goes here
 	aggName = tup.getTupleDesc().getFieldName(afield);
-	Field key = new IntField(NO_GROUPING);
 	if (gbfield != NO_GROUPING)
 	    {
-		key = tup.getField(gbfield);
+		groups.add(tup.getField(gbfield), 0);
 		gbName = tup.getTupleDesc().getFieldName(gbfield);
 	    }
-	int count = 1;
-	IntField aggVal = (IntField) (agg.get(key));
-	if (aggVal != null)
-	    count = aggVal.getValue() + 1;
-	agg.put(key, new IntField(count));
+	else
+	    groups.add(NO_GROUPING, 0);
     }
 
     /**
@@ -66,30 +60,18 @@ public class StringAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         // some code goes here
-	List<Tuple> tups = new ArrayList<Tuple>();
 	TupleDesc td;
 	if (gbfield == NO_GROUPING)
-	    {
-		td = new TupleDesc(new Type[] { Type.INT_TYPE }, 
-				  new String[] { aggName });
-		Tuple t = new Tuple(td);
-		t.setField(0, agg.get(new IntField(NO_GROUPING)));
-		tups.add(t);
-	    }
+	    td = new TupleDesc(new Type[] { Type.INT_TYPE }, 
+			       new String[] { aggName });
 	else
-	    {
-		td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE },
-				   new String[] { gbName, aggName });
-		Set<Field> meep = agg.keySet();
-		for (Field f : meep)
-		    {
-			Tuple t = new Tuple(td);
-			t.setField(0, f);
-			t.setField(1, agg.get(f));
-			tups.add(t);
-		    }
-	    }
-	return new TupleIterator(td, tups);
+	    td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE },
+			       new String[] { gbName, aggName });
+	return groups.iterator(Op.COUNT, td);
+    }
+
+    public void close() {
+	groups.close();
     }
 
 }
@@ -69,7 +69,7 @@ public class TableStats {
     static final int NUM_HIST_BINS = 100;
     
     private ArrayList<Object> hist;
-    private HeapFile hf;
+    private DbFile file;
     private DbFileIterator iter;
     private int io, population;
     private HashMap<String, Integer> min, max;
@@ -101,8 +101,8 @@ public class TableStats {
 
 	Transaction trans = new Transaction();
 	trans.start();
-	this.hf = (HeapFile) (Database.getCatalog().getDbFile(tableid));
-	this.iter = hf.iterator(trans.getId());
+	this.file = Database.getCatalog().getDbFile(tableid);
+	this.iter = file.iterator(trans.getId());
 	try
 	    {
 		iter.open();
@@ -126,6 +126,10 @@ public class TableStats {
 	    {
 		e3.printStackTrace();
 	    }
+	catch (TransactionAbortedException e4)
+	    {
+		e4.printStackTrace();
+	    }
     }
 
     private void bounds() throws TransactionAbortedException, DbException
@@ -192,6 +196,16 @@ public class TableStats {
 	    }
     }
 
+    /**
+     * @return the number of pages of the table: of its file, or for an
+     *         {@link LsmFile}, of its runs and memtables
+     */
+    private int numPages() {
+	if (file instanceof LsmFile)
+	    return ((LsmFile) file).numPages();
+	return ((HeapFile) file).numPages();
+    }
+
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
@@ -206,7 +220,61 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return (double) (this.io * hf.numPages());
+        return (double) (this.io * numPages());
+    }
+
+    /**
+     * Estimates the cost of a sequential scan of the file with the given
+     * filters, which skips the pages the file's zone map rules out.  Only
+     * heap files have zone maps.
+     *
+     * @param filters
+     *            predicates over tuples of the table
+     * @return The estimated cost of scanning the table.
+     * @see ZoneMap
+     */
+    public double estimateScanCost(List<Predicate> filters) {
+        if (!(file instanceof HeapFile))
+            return estimateScanCost();
+        return (double) (this.io * ((HeapFile) file).numPagesToScan(filters));
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples of the table that pass the
+     * given filters through an index, with an {@link IndexScan}: the pages
+     * of the index a lookup reads, {@link IndexFile#height}, then a page of
+     * the table for each tuple whose key is in the range the filters give,
+     * as tuples with neighbouring keys need not be on the same page.
+     *
+     * @param index
+     *            an index on the table
+     * @param filters
+     *            predicates over tuples of the table
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(IndexFile index, List<Predicate> filters) {
+	double selectivity = 1.0;
+	for (Predicate p : filters)
+	    if (IndexScan.narrows(index, p))
+		selectivity *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+	return (double) this.io * (index.height() + selectivity * population);
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples of the table with one
+     * value of the field an index is on, as an {@link IndexNestedLoopJoin}
+     * does for each outer tuple: the pages of the index a lookup reads,
+     * then a page of the table for each tuple with a value, as many as
+     * equal a value taken at random from the field's histogram.
+     *
+     * @param index
+     *            an index on the table
+     * @return The estimated cost of one lookup.
+     */
+    public double estimateIndexLookupCost(IndexFile index) {
+	double matches = avgSelectivity(index.getKeyField(), Predicate.Op.EQUALS)
+	    * population;
+	return (double) this.io * (index.height() + matches);
     }
 
     /**
@@ -235,7 +303,7 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        if (hf.getTupleDesc().getFieldType(field).equals(Type.INT_TYPE))
+        if (file.getTupleDesc().getFieldType(field).equals(Type.INT_TYPE))
 	    {
 		IntHistogram ih = (IntHistogram) (hist.get(field));
 		return ih.avgSelectivity();
@@ -275,6 +343,28 @@ public class TableStats {
 	    }
     }
 
+    /**
+     * Estimate the selectivity of the join predicate
+     * <tt>field op other.otherField</tt>, the fraction of pairs of tuples
+     * from the two tables that satisfy it.  Both fields must be integer
+     * fields.
+     *
+     * @param field
+     *            The field of this table on the left of the predicate
+     * @param op
+     *            The logical operation in the predicate
+     * @param other
+     *            The statistics of the table on the right of the predicate
+     * @param otherField
+     *            The field of that table
+     * @return The estimated selectivity of the predicate
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op,
+            TableStats other, int otherField) {
+	IntHistogram ih = (IntHistogram) (hist.get(field));
+	return ih.estimateJoinSelectivity(op, (IntHistogram) (other.hist.get(otherField)));
+    }
+
     /**
      * return the total number of tuples in this table
      * */
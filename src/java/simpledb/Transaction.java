@@ -10,27 +10,54 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean optimistic = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Run this transaction optimistically: it takes no locks, and is
+     * validated against the transactions that committed while it ran when
+     * it commits.  Must be called before start.
+     */
+    public void setOptimistic() {
+        optimistic = true;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
-        try {
-            Database.getLogFile().logXactionBegin(tid);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        if (optimistic)
+            Database.getBufferPool().beginOptimistic(tid);
+        // the BEGIN record is written when we first write, so read-only
+        // transactions never touch the log
+        Database.getLogFile().deferXactionBegin(tid);
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if this transaction is optimistic
+     *   and conflicts with one that committed first; it has been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            } catch (DbException e) {
+                e.printStackTrace();
+                transactionComplete(true);
+                throw new TransactionAbortedException();
+            }
+        }
         transactionComplete(false);
     }
 
@@ -39,12 +66,32 @@ public class Transaction {
         transactionComplete(true);
     }
 
-    /** Handle the details of transaction commit / abort */
+    /**
+     * Handle the details of transaction commit / abort
+     *
+     * @throws IOException if the transaction was to commit but its changes
+     *   to an LSM table could not be; it has been aborted
+     */
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            if (!abort) {
+                // a transaction that changed an LSM table changed nothing
+                // else, so forcing its changes to the table's log commits
+                // it, and it has no COMMIT record to write
+                try {
+                    Database.getBufferPool().commitLsmWrites(tid);
+                } catch (IOException e) {
+                    transactionComplete(true);
+                    throw e;
+                }
+            }
+
             //write commit / abort records
-            if (abort) {
+            if (!Database.getLogFile().hasBegun(tid)) {
+                // read-only: nothing to flush or log, just drop the locks
+                Database.getLogFile().forgetXaction(tid);
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
@@ -53,15 +100,11 @@ public class Transaction {
             }
 
             try {
-
                 Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            } catch (IOException e) {
-                e.printStackTrace();
+            } finally {
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
             }
-
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
         }
 
     }
@@ -29,6 +29,15 @@ public class Tuple implements Serializable {
 	fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple that keeps its fields elsewhere; subclasses that use this
+     * must override the methods that read and change the fields.
+     */
+    protected Tuple(TupleDesc td, Field[] fields) {
+	schema = td;
+	this.fields = fields;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
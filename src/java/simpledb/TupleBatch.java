@@ -0,0 +1,249 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples with the same TupleDesc,
+ * stored as one array per column: an int[] for each INT_TYPE field and a
+ * String[] for each STRING_TYPE field.  Batches are passed between operators
+ * by {@link BatchDbIterator#nextBatch}.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples a batch holds unless another size is given. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private TupleDesc td;
+    private int capacity;
+    private int size;
+    private int[][] ints;
+    private String[][] strings;
+    private RecordId[] rids;
+
+    /**
+     * Creates an empty batch of {@link #DEFAULT_SIZE} tuples.
+     *
+     * @param td
+     *            the schema of the tuples in this batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td
+     *            the schema of the tuples in this batch
+     * @param capacity
+     *            the most tuples the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        rids = new RecordId[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int size, int[][] ints,
+            String[][] strings, RecordId[] rids) {
+        this.td = td;
+        this.capacity = capacity;
+        this.size = size;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+    }
+
+    /**
+     * Returns the next batch of tuples from an iterator.  Iterators that
+     * implement {@link BatchDbIterator} are asked for a batch directly; for
+     * any other iterator, up to {@link #DEFAULT_SIZE} tuples are read one at
+     * a time with <code>hasNext</code>/<code>next</code>.
+     *
+     * @param it
+     *            an open iterator
+     * @return the next batch, or null if the iterator has no more tuples.
+     */
+    public static TupleBatch next(DbIterator it) throws DbException,
+            TransactionAbortedException {
+        if (it instanceof BatchDbIterator)
+            return ((BatchDbIterator) it).nextBatch();
+        TupleBatch batch = new TupleBatch(it.getTupleDesc());
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    /** @return the schema of the tuples in this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples in this batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return the most tuples this batch can hold */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return true if no more tuples can be added */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Removes every tuple from this batch. */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the values of an INT_TYPE column; only the first size()
+     *         entries are meaningful.
+     */
+    public int[] getIntColumn(int col) {
+        return ints[col];
+    }
+
+    /**
+     * @return the values of a STRING_TYPE column; only the first size()
+     *         entries are meaningful.
+     */
+    public String[] getStringColumn(int col) {
+        return strings[col];
+    }
+
+    /** @return the value of field col in tuple row, as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return the RecordId of tuple row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /** @return tuple row of this batch, as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Appends a tuple to this batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addTuple(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < ints.length; i++)
+            setField(i, size, t.getField(i));
+        rids[size] = t.getRecordId();
+        size++;
+    }
+
+    /**
+     * Appends the concatenation of a tuple and one tuple of another batch,
+     * as a join produces it.  This batch's schema must be the merge of the
+     * two schemas.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addJoined(Tuple left, TupleBatch right, int row) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            setField(i, size, left.getField(i));
+        for (int i = 0; i < right.ints.length; i++) {
+            if (right.ints[i] != null)
+                ints[n + i][size] = right.ints[i][row];
+            else
+                strings[n + i][size] = right.strings[i][row];
+        }
+        rids[size] = null;
+        size++;
+    }
+
+    /**
+     * Keeps only the given tuples, in the given order, discarding the rest.
+     *
+     * @param rows
+     *            indexes of the tuples to keep, in increasing order
+     * @param n
+     *            the number of entries of rows to use
+     */
+    public void select(int[] rows, int n) {
+        for (int i = 0; i < ints.length; i++) {
+            if (sharesColumn(i))
+                continue;
+            if (ints[i] != null) {
+                int[] col = ints[i];
+                for (int j = 0; j < n; j++)
+                    col[j] = col[rows[j]];
+            } else {
+                String[] col = strings[i];
+                for (int j = 0; j < n; j++)
+                    col[j] = col[rows[j]];
+            }
+        }
+        for (int j = 0; j < n; j++)
+            rids[j] = rids[rows[j]];
+        size = n;
+    }
+
+    /**
+     * Returns a batch holding some of this batch's columns.  The column
+     * arrays are shared rather than copied, so this batch should not be
+     * used afterwards.
+     *
+     * @param cols
+     *            the columns to keep, in output order
+     * @param td
+     *            the schema of the result
+     */
+    public TupleBatch project(int[] cols, TupleDesc td) {
+        int[][] pInts = new int[cols.length][];
+        String[][] pStrings = new String[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            pInts[i] = ints[cols[i]];
+            pStrings[i] = strings[cols[i]];
+        }
+        return new TupleBatch(td, capacity, size, pInts, pStrings, rids);
+    }
+
+    /** @return true if an earlier column uses the same array as col */
+    private boolean sharesColumn(int col) {
+        for (int i = 0; i < col; i++)
+            if ((ints[i] != null && ints[i] == ints[col])
+                    || (strings[i] != null && strings[i] == strings[col]))
+                return true;
+        return false;
+    }
+
+    private void setField(int col, int row, Field f) {
+        if (ints[col] != null)
+            ints[col][row] = ((IntField) f).getValue();
+        else
+            strings[col][row] = ((StringField) f).getValue();
+    }
+}
@@ -0,0 +1,33 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by the value of one of their fields, used to sort the
+ * input of {@link OrderBy}, {@link SortMergeJoin} and {@link RangeJoin}.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int field;
+    boolean asc;
+
+    /**
+     * @param field the index of the field to order by
+     * @param asc true for ascending order, false for descending
+     */
+    public TupleComparator(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        Field t1 = (o1).getField(field);
+        Field t2 = (o2).getField(field);
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+            return asc ? 1 : -1;
+        else
+            return asc ? -1 : 1;
+    }
+    
+}
@@ -159,11 +159,7 @@ public class TupleDesc implements Serializable {
         // some code goes here
         int size = 0;
 	for (TDItem t : fieldItems)
-	    {
-		size += 4;
-		if (t.fieldType.equals(Type.STRING_TYPE))
-		    size += 124;
-	    }
+	    size += t.fieldType.getLen();
 	return size;
     }
 
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleFile is a temporary file of tuples, used by operators that have to
+ * spill intermediate results to disk.  Tuples are appended with
+ * {@link #add} and read back, in the same order, through {@link #iterator};
+ * an iterator returns the tuples added before it was opened.  Each tuple is
+ * stored in the same format as on a heap page.
+ */
+public class TupleFile {
+
+    private TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Creates an empty temporary file for tuples of the given schema.
+     */
+    public TupleFile(TupleDesc td) throws IOException {
+        this.td = td;
+        file = File.createTempFile("simpledb", ".tup");
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+    }
+
+    /** Appends a tuple to the file. */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("file has been deleted");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an iterator over the tuples in the file.  The iterator must be
+     * opened before use.
+     */
+    public DbIterator iterator() throws IOException {
+        return new Reader();
+    }
+
+    /** Deletes the file; iterators over it should be closed first. */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+        }
+        out = null;
+        file.delete();
+    }
+
+    private class Reader implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        private DataInputStream in = null;
+        private byte[] buf = new byte[td.getSize()];
+        private int read, count;
+
+        public void open() throws DbException {
+            try {
+                if (out != null)
+                    out.flush();
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("Could not read " + file);
+            }
+            read = 0;
+            count = size;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("Iterator not yet open");
+            return read < count;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                in.readFully(buf);
+                DataInputStream dis = new DataInputStream(
+                        new ByteArrayInputStream(buf));
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+            } catch (Exception e) {
+                throw new DbException("Could not read " + file);
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+            }
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * A conjunction of predicates over tuples of one schema, as compiled by
+ * {@link Codegen#compileFilter}.
+ */
+public interface TupleFilter {
+
+    /**
+     * @return true if t passes every predicate
+     */
+    public boolean filter(Tuple t);
+
+    /**
+     * Applies the predicates that compare an INT_TYPE field to an IntField
+     * to a tuple that is still encoded as it is on a heap page; the others
+     * are left to {@link #filter}.
+     *
+     * @param data
+     *            the bytes of the page
+     * @param offset
+     *            where the tuple starts in data
+     * @return false if the tuple fails one of those predicates
+     */
+    public boolean filterBytes(byte[] data, int offset);
+
+    /**
+     * @return true if {@link #filterBytes} applies every predicate, so a
+     *         tuple that passes it need not be decoded and filtered again
+     */
+    public boolean bytesOnly();
+}
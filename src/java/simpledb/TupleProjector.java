@@ -0,0 +1,14 @@
+package simpledb;
+
+/**
+ * Builds tuples out of some of the fields of other tuples, as compiled by
+ * {@link Codegen#compileProjection}.
+ */
+public interface TupleProjector {
+
+    /**
+     * @return a new tuple holding the projected fields of t, with t's
+     *         RecordId
+     */
+    public Tuple project(Tuple t);
+}
@@ -0,0 +1,368 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * ZoneMap records, for each page of a heap file, the smallest and largest
+ * value of each of its INT_TYPE fields, so that a scan can skip the pages
+ * on which no tuple can pass its filters.
+ * <p>
+ * The bounds of a page only ever cover more than the page holds, never
+ * less: they are widened before a tuple is inserted, and when a page is
+ * written out, but left alone when a tuple is deleted.  The page is then
+ * marked stale instead, and its bounds are recomputed the next time it is
+ * read with no uncommitted changes on it.  Pages the map knows nothing
+ * about, such as those a file has grown by, are never skipped, and their
+ * bounds are computed the same way.
+ * <p>
+ * A zone map is kept in a side file next to its heap file.  Writing pages
+ * of the heap file only widens the bounds in memory; the map is written
+ * out when a scan that learned bounds is closed, and when the BufferPool
+ * flushes every page, to a temporary file that then replaces the side
+ * file.  Before the heap file is first written after that, the side file
+ * is replaced by one that knows nothing, so that a side file never holds
+ * bounds narrower than the heap file on disk, whenever the process stops.
+ * The side file is stamped with the heap file's length and modification
+ * time, to catch the heap file being changed other than through its
+ * HeapFile, and ends with a checksum of its contents; one that does not
+ * match is ignored, and the map rebuilt a page at a time.
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5a4d4150;
+
+    // the state of a page's bounds
+    private static final byte UNKNOWN = 0, VALID = 1, STALE = 2;
+
+    // the INT_TYPE fields of the file, and their schema on their own
+    private final int[] fields;
+    private final TupleDesc intTd;
+    private byte[] states = new byte[0];
+    // min and max of field j of page p at [2 * (p * fields.length + j)]
+    private int[] bounds = new int[0];
+    // true if the side file holds bounds, which the heap file must not be
+    // written past; if this map knows bounds the side file does not; and
+    // the number of writes to the heap file under way
+    private boolean onDisk, dirty = true;
+    private int writers;
+
+    /**
+     * Creates a zone map that knows nothing about any page yet.
+     *
+     * @param td
+     *            the schema of the heap file
+     */
+    public ZoneMap(TupleDesc td) {
+        List<Integer> ints = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints.add(i);
+        fields = new int[ints.size()];
+        Type[] types = new Type[fields.length];
+        for (int j = 0; j < fields.length; j++) {
+            fields[j] = ints.get(j);
+            types[j] = Type.INT_TYPE;
+        }
+        intTd = fields.length == 0 ? null : new TupleDesc(types);
+    }
+
+    /** Makes room for the entries of pages up to page. */
+    private void ensure(int page) {
+        if (page < states.length)
+            return;
+        int n = Math.max(page + 1, 2 * states.length);
+        states = Arrays.copyOf(states, n);
+        bounds = Arrays.copyOf(bounds, 2 * n * fields.length);
+    }
+
+    /** @return the position of a field among the INT_TYPE fields, or -1 */
+    private int field(int field) {
+        for (int j = 0; j < fields.length; j++)
+            if (fields[j] == field)
+                return j;
+        return -1;
+    }
+
+    /**
+     * @return true if a tuple on the given page may pass every filter,
+     *         false only if the page's bounds rule one of them out
+     * @param filters predicates over tuples of the heap file's schema
+     */
+    public synchronized boolean mayMatch(int page, List<Predicate> filters) {
+        if (page >= states.length || states[page] == UNKNOWN)
+            return true;
+        for (Predicate p : filters) {
+            int j = field(p.getField());
+            if (j < 0 || !(p.getOperand() instanceof IntField))
+                continue;
+            int at = 2 * (page * fields.length + j);
+            int min = bounds[at], max = bounds[at + 1];
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean may;
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                may = min <= v && v <= max;
+                break;
+            case NOT_EQUALS:
+                may = min != v || max != v;
+                break;
+            case GREATER_THAN:
+                may = max > v;
+                break;
+            case GREATER_THAN_OR_EQ:
+                may = max >= v;
+                break;
+            case LESS_THAN:
+                may = min < v;
+                break;
+            default:
+                may = min <= v;
+                break;
+            }
+            if (!may)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of pages among the first numPages that a scan with
+     *         the given filters cannot skip
+     */
+    public synchronized int pagesToScan(List<Predicate> filters, int numPages) {
+        int n = 0;
+        for (int page = 0; page < numPages; page++)
+            if (mayMatch(page, filters))
+                n++;
+        return n;
+    }
+
+    /**
+     * @return true if the page's bounds are unknown or looser than they need
+     *         be, and should be recomputed with {@link #setPage}
+     */
+    public synchronized boolean needsBuild(int page) {
+        return page >= states.length || states[page] != VALID;
+    }
+
+    /** Widens the bounds of a page to cover a tuple about to be put on it. */
+    synchronized void add(int page, Tuple t) {
+        if (page >= states.length || states[page] == UNKNOWN)
+            return;
+        dirty = true;
+        for (int j = 0; j < fields.length; j++)
+            widen(page, j, ((IntField) t.getField(fields[j])).getValue());
+    }
+
+    private void widen(int page, int j, int v) {
+        int at = 2 * (page * fields.length + j);
+        if (v < bounds[at])
+            bounds[at] = v;
+        if (v > bounds[at + 1])
+            bounds[at + 1] = v;
+    }
+
+    /** Marks a page a tuple was deleted from as having loose bounds. */
+    synchronized void invalidate(int page) {
+        if (page < states.length && states[page] == VALID) {
+            states[page] = STALE;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Widens the bounds of a page to cover every tuple of an image of it,
+     * such as one written to disk; the page's bounds stay unknown if they
+     * were.
+     */
+    void addPage(HeapPage hp) {
+        int page = hp.getId().pageNumber();
+        int[] b = pageBounds(hp);
+        synchronized (this) {
+            if (page >= states.length || states[page] == UNKNOWN)
+                return;
+            dirty = true;
+            for (int j = 0; j < fields.length; j++) {
+                if (b[2 * j] > b[2 * j + 1])
+                    continue; // the image is empty
+                widen(page, j, b[2 * j]);
+                widen(page, j, b[2 * j + 1]);
+            }
+        }
+    }
+
+    /**
+     * Sets the bounds of a page to those of the tuples on it, which must
+     * include every tuple any transaction may still see there.  The caller
+     * holds the page's monitor, so that no tuple is inserted meanwhile.
+     */
+    void setPage(HeapPage hp) {
+        int page = hp.getId().pageNumber();
+        int[] b = pageBounds(hp);
+        synchronized (this) {
+            ensure(page);
+            System.arraycopy(b, 0, bounds, 2 * page * fields.length, b.length);
+            states[page] = VALID;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the min and max of each INT_TYPE field over the tuples of a
+     *         page, read without holding this map's monitor, as the page's
+     *         is taken and writers hold that one while updating the map
+     */
+    private int[] pageBounds(HeapPage hp) {
+        int[] b = new int[2 * fields.length];
+        for (int j = 0; j < fields.length; j++) {
+            b[2 * j] = Integer.MAX_VALUE;
+            b[2 * j + 1] = Integer.MIN_VALUE;
+        }
+        if (fields.length == 0)
+            return b;
+        for (int i = 0; i < hp.getNumSlots(); i++) {
+            Tuple t = hp.getTuple(i, fields, intTd);
+            if (t == null)
+                continue;
+            for (int j = 0; j < fields.length; j++) {
+                int v = ((IntField) t.getField(j)).getValue();
+                b[2 * j] = Math.min(b[2 * j], v);
+                b[2 * j + 1] = Math.max(b[2 * j + 1], v);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Prepares for pages of the heap file to be written: if the side file
+     * holds bounds, it is replaced by one that knows nothing, as the pages
+     * may hold values outside them.  Must be followed by {@link #endWrite}
+     * once the pages are written, or have failed to be.
+     *
+     * @param side the side file of the heap file
+     * @param heap the heap file
+     */
+    synchronized void startWrite(File side, File heap) throws IOException {
+        if (onDisk) {
+            write(side, heap, fields.length, new byte[0], new int[0]);
+            onDisk = false;
+            dirty = true;
+        }
+        writers++;
+    }
+
+    /**
+     * Widens the bounds of pages written to the heap file, which may not
+     * have been changed through it, such as those recovery rolls back.
+     */
+    void endWrite(List<Page> pages) {
+        try {
+            for (Page p : pages)
+                if (p instanceof HeapPage)
+                    addPage((HeapPage) p);
+        } finally {
+            synchronized (this) {
+                writers--;
+            }
+        }
+    }
+
+    /**
+     * Reads the zone map of a heap file from its side file.
+     *
+     * @return the zone map, which knows nothing about any page if the side
+     *         file does not match the heap file; null if there is no side
+     *         file
+     */
+    static ZoneMap read(File side, File heap, TupleDesc td) {
+        if (!side.exists())
+            return null;
+        ZoneMap zm = new ZoneMap(td);
+        try {
+            byte[] data = new byte[(int) side.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(side));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            if (data.length < 8)
+                return zm;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipBytes(data.length - 8);
+            if (in.readLong() != crc.getValue())
+                return zm;
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != MAGIC || in.readLong() != heap.length()
+                    || in.readLong() != heap.lastModified()
+                    || in.readInt() != zm.fields.length)
+                return zm;
+            int pages = in.readInt();
+            zm.ensure(pages - 1);
+            for (int page = 0; page < pages; page++) {
+                zm.states[page] = in.readByte();
+                for (int k = 0; k < 2 * zm.fields.length; k++)
+                    zm.bounds[2 * page * zm.fields.length + k] = in.readInt();
+            }
+        } catch (IOException e) {
+            return new ZoneMap(td);
+        }
+        zm.onDisk = true;
+        zm.dirty = false;
+        return zm;
+    }
+
+    /**
+     * Writes this zone map to the side file of the given heap file, if it
+     * knows bounds the side file does not and no pages of the heap file
+     * are being written.
+     */
+    synchronized void save(File side, File heap) throws IOException {
+        if (!dirty || writers > 0)
+            return;
+        write(side, heap, fields.length, states, bounds);
+        onDisk = true;
+        dirty = false;
+    }
+
+    /**
+     * Writes a zone map with the given bounds to a temporary file, which
+     * then replaces the side file, so that a crash never leaves a torn
+     * one.
+     */
+    private static void write(File side, File heap, int numFields,
+            byte[] states, int[] bounds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(heap.length());
+        out.writeLong(heap.lastModified());
+        out.writeInt(numFields);
+        out.writeInt(states.length);
+        for (int page = 0; page < states.length; page++) {
+            out.writeByte(states[page]);
+            for (int k = 0; k < 2 * numFields; k++)
+                out.writeInt(bounds[2 * page * numFields + k]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        File tmp = new File(side.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        side.delete();
+        if (!tmp.renameTo(side))
+            throw new IOException("Could not write zone map " + side);
+    }
+}
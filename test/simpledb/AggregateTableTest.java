@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class AggregateTableTest {
+
+  /**
+   * Many int keys, so that the table grows several times; every group should
+   * keep its own count, sum, min and max.
+   */
+  @Test public void intKeys() {
+    AggregateTable table = new AggregateTable(Type.INT_TYPE);
+    HashMap<Integer, long[]> expected = new HashMap<Integer, long[]>();
+    Random r = new Random(7);
+    for (int i = 0; i < 200000; i++) {
+      int key = r.nextInt(20000) - 10000;
+      int v = r.nextInt(1000);
+      table.add(table.find(key), v);
+      long[] e = expected.get(key);
+      if (e == null) {
+        e = new long[] { 0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        expected.put(key, e);
+      }
+      e[0]++;
+      e[1] += v;
+      e[2] = Math.min(e[2], v);
+      e[3] = Math.max(e[3], v);
+    }
+
+    assertEquals(expected.size(), table.size());
+    for (int slot = 0; slot < table.size(); slot++) {
+      long[] e = expected.get(table.getIntKey(slot));
+      assertEquals(slot, table.find(table.getIntKey(slot)));
+      assertEquals(e[0], table.getCount(slot));
+      assertEquals(e[1], table.getSum(slot));
+      assertEquals(e[2], table.getMin(slot));
+      assertEquals(e[3], table.getMax(slot));
+      assertEquals((int) (e[1] / e[0]), table.getValue(slot, Aggregator.Op.AVG));
+    }
+  }
+
+  /**
+   * String keys, with pre-summarized values folded in
+   */
+  @Test public void stringKeys() {
+    AggregateTable table = new AggregateTable(Type.STRING_TYPE);
+    for (int i = 0; i < 1000; i++)
+      table.add(table.find("key" + (i % 100)), 2, i, i, i + 1);
+
+    assertEquals(100, table.size());
+    int slot = table.find("key7");
+    assertEquals("key7", table.getStringKey(slot));
+    assertEquals(new StringField("key7", Type.STRING_LEN), table.getKey(slot));
+    assertEquals(20, table.getValue(slot, Aggregator.Op.COUNT));
+    assertEquals(7, table.getValue(slot, Aggregator.Op.MIN));
+    assertEquals(908, table.getValue(slot, Aggregator.Op.MAX));
+    assertEquals(4570, table.getValue(slot, Aggregator.Op.SUM));
+
+    table.clear();
+    assertEquals(0, table.size());
+    assertEquals(0, table.find("key7"));
+    assertEquals(0, table.getCount(0));
+  }
+
+  /**
+   * Keys made of an int and a string field, with two values per group
+   */
+  @Test public void compositeKeys() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE });
+    AggregateTable table = new AggregateTable(
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, 2);
+    int[] fields = new int[] { 1, 0 };
+    Tuple t = new Tuple(td);
+    for (int i = 0; i < 1000; i++) {
+      t.setField(0, new IntField(i % 10));
+      t.setField(1, new StringField("key" + (i % 4), Type.STRING_LEN));
+      t.setField(2, new IntField(i));
+      int slot = table.find(t, fields);
+      table.add(slot, 0, 1, i, i, i);
+      table.add(slot, 1, 1, -i, -i, -i);
+    }
+
+    // i % 10 and i % 4 together take 20 distinct values
+    assertEquals(20, table.size());
+    assertEquals(2, table.numKeyFields());
+    assertEquals(2, table.numValues());
+    t.setField(0, new IntField(7));
+    t.setField(1, new StringField("key3", Type.STRING_LEN));
+    int slot = table.find(t, fields);
+    assertEquals(20, table.size());
+    assertEquals(new StringField("key3", Type.STRING_LEN), table.getKey(slot, 0));
+    assertEquals(new IntField(7), table.getKey(slot, 1));
+    assertEquals(50, table.getValue(slot, 0, Aggregator.Op.COUNT));
+    assertEquals(7, table.getValue(slot, 0, Aggregator.Op.MIN));
+    assertEquals(987, table.getValue(slot, 0, Aggregator.Op.MAX));
+    assertEquals(-987, table.getValue(slot, 1, Aggregator.Op.MIN));
+    assertEquals(-7, table.getValue(slot, 1, Aggregator.Op.MAX));
+    assertEquals(-table.getSum(slot, 0), table.getSum(slot, 1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggregateTableTest.class);
+  }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class BTreeFileTest extends IndexFileBase<BTreeFile> {
+
+  protected BTreeFile newIndex(File f, int tableid) {
+    return new BTreeFile(f, tableid, 0);
+  }
+
+  /**
+   * Unit test for BTreeFile.insertTuple(): entries inserted in random
+   *   order split leaves and nodes, and come back in order
+   */
+  @Test public void insertAndScan() throws Exception {
+    insert(shuffled(1000));
+    assertTrue(index.height() >= 3);
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(0, 1000), keys(index.iterator(tid)));
+    for (int i = 0; i < 1000; i += 97)
+      assertEquals(keys(i, i + 1), keys(index.iterator(tid, key(i), true, key(i), true)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for BTreeFile.iterator() with inclusive and exclusive bounds
+   */
+  @Test public void ranges() throws Exception {
+    insert(shuffled(500));
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(100, 200), keys(index.iterator(tid, key(100), true, key(200), false)));
+    assertEquals(keys(101, 201), keys(index.iterator(tid, key(100), false, key(200), true)));
+    assertEquals(keys(0, 10), keys(index.iterator(tid, null, false, key(10), false)));
+    assertEquals(keys(490, 500), keys(index.iterator(tid, key(489), false, null, false)));
+    assertEquals(0, keys(index.iterator(tid, key(5), false, key(6), false)).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for BTreeFile with many tuples with the same key: their
+   *   entries span several leaves, and are all found
+   */
+  @Test public void duplicates() throws Exception {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++)
+      keys.add(i % 3 == 0 ? 1000 : i);
+    insert(keys);
+    TransactionId tid = new TransactionId();
+    assertEquals(67, keys(index.iterator(tid, key(1000), true, key(1000), true)).size());
+    assertEquals(200, keys(index.iterator(tid)).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for BufferPool.deleteTuple() and aborts on an indexed
+   *   table: the index loses the entries of deleted tuples, and an aborted
+   *   insert leaves no entries behind
+   */
+  @Test public void deleteAndAbort() throws Exception {
+    insert(shuffled(300));
+    deleteBelow(150);
+    insertAndAbort(1000, 1010);
+
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(150, 300), keys(index.iterator(tid)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BTreeFileTest.class);
+  }
+}
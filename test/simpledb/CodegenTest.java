@@ -0,0 +1,151 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CodegenTest extends SimpleDbTestBase {
+
+  // an INT_TYPE field after a string, so its offset is past the string's
+  private static final TupleDesc TD = new TupleDesc(new Type[] {
+      Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+  private static final int[] VALUES = { Integer.MIN_VALUE, -70000, -200, -1,
+      0, 3, 100, 1000, 70000, Integer.MAX_VALUE };
+
+  @After public void enable() {
+    Codegen.enabled = true;
+  }
+
+  private Tuple tuple(int a, String s, int b) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(a));
+    t.setField(1, new StringField(s, Type.STRING_LEN));
+    t.setField(2, new IntField(b));
+    return t;
+  }
+
+  /** @return t encoded as it is on a heap page, after a few other bytes */
+  private byte[] encode(Tuple t) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(bytes);
+    dos.write(new byte[] { 1, 2, 3 });
+    for (int i = 0; i < TD.numFields(); i++)
+      t.getField(i).serialize(dos);
+    return bytes.toByteArray();
+  }
+
+  private boolean passesAll(List<Predicate> preds, Tuple t) {
+    for (Predicate p : preds)
+      if (!p.filter(t))
+        return false;
+    return true;
+  }
+
+  /**
+   * Unit test for Codegen.compileFilter(): generated filters agree with
+   *   Predicate.filter() for every operator, on tuples and on their bytes
+   */
+  @Test public void compiledFilter() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int c : new int[] { -70000, -1, 3, 100, 1000, 70000 }) {
+        List<Predicate> preds = new ArrayList<Predicate>();
+        preds.add(new Predicate(2, op, new IntField(c)));
+        preds.add(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(0)));
+        TupleFilter filter = Codegen.compileFilter(preds, TD);
+        assertFalse(filter instanceof Codegen.InterpretedFilter);
+        assertTrue(filter.bytesOnly());
+        for (int a : VALUES) {
+          for (int b : VALUES) {
+            Tuple t = tuple(a, "x", b);
+            boolean expected = passesAll(preds, t);
+            assertEquals(expected, filter.filter(t));
+            assertEquals(expected, filter.filterBytes(encode(t), 3));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Unit test for Codegen.compileFilter() with a predicate on a string:
+   *   it is left to Predicate.filter(), and to filter() rather than
+   *   filterBytes()
+   */
+  @Test public void stringPredicate() throws Exception {
+    List<Predicate> preds = new ArrayList<Predicate>();
+    preds.add(new Predicate(1, Predicate.Op.LIKE,
+        new StringField("ab", Type.STRING_LEN)));
+    preds.add(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0)));
+    TupleFilter filter = Codegen.compileFilter(preds, TD);
+    assertFalse(filter.bytesOnly());
+    for (String s : new String[] { "xaby", "ba" }) {
+      for (int a : VALUES) {
+        Tuple t = tuple(a, s, 0);
+        assertEquals(passesAll(preds, t), filter.filter(t));
+        assertEquals(a > 0, filter.filterBytes(encode(t), 3));
+      }
+    }
+  }
+
+  /**
+   * Unit test for Codegen.compileProjection()
+   */
+  @Test public void compiledProjection() {
+    TupleDesc out = new TupleDesc(new Type[] { Type.INT_TYPE,
+        Type.STRING_TYPE, Type.INT_TYPE });
+    TupleProjector projector = Codegen.compileProjection(
+        new int[] { 2, 1, 2 }, out);
+    assertFalse(projector instanceof Codegen.InterpretedProjector);
+    Tuple t = tuple(1, "s", 70000);
+    RecordId rid = new RecordId(new HeapPageId(1, 2), 3);
+    t.setRecordId(rid);
+    Tuple p = projector.project(t);
+    assertEquals(out, p.getTupleDesc());
+    assertEquals(new IntField(70000), p.getField(0));
+    assertEquals(t.getField(1), p.getField(1));
+    assertEquals(new IntField(70000), p.getField(2));
+    assertEquals(rid, p.getRecordId());
+  }
+
+  /**
+   * Unit test for Codegen with code generation turned off: the interpreters
+   *   are used instead, and agree with the generated code
+   */
+  @Test public void interpreted() throws Exception {
+    List<Predicate> preds = new ArrayList<Predicate>();
+    preds.add(new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(100)));
+    preds.add(new Predicate(2, Predicate.Op.EQUALS, new IntField(-1)));
+    TupleFilter compiled = Codegen.compileFilter(preds, TD);
+    Codegen.enabled = false;
+    TupleFilter interpreted = Codegen.compileFilter(preds, TD);
+    assertTrue(interpreted instanceof Codegen.InterpretedFilter);
+    assertTrue(Codegen.compileProjection(new int[] { 0 }, Utility.getTupleDesc(1))
+        instanceof Codegen.InterpretedProjector);
+    for (int a : VALUES) {
+      for (int b : VALUES) {
+        Tuple t = tuple(a, "", b);
+        assertEquals(compiled.filter(t), interpreted.filter(t));
+        assertEquals(compiled.filterBytes(encode(t), 3),
+            interpreted.filterBytes(encode(t), 3));
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CodegenTest.class);
+  }
+}
@@ -0,0 +1,211 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  static final int PRODUCERS = 3;
+  static final int ROWS = 2000;
+
+  /**
+   * @return producers that each return ROWS tuples of width 2, producer p
+   *   numbering them p*ROWS, p*ROWS+1, ... in the first field and their
+   *   value mod 17 in the second
+   */
+  private DbIterator[] producers() {
+    DbIterator[] producers = new DbIterator[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      int[] data = new int[2 * ROWS];
+      for (int i = 0; i < ROWS; i++) {
+        data[2 * i] = p * ROWS + i;
+        data[2 * i + 1] = (p * ROWS + i) % 17;
+      }
+      producers[p] = TestUtil.createTupleList(2, data);
+    }
+    return producers;
+  }
+
+  /** @return the first fields of the remaining tuples of it */
+  private List<Integer> drain(DbIterator it) throws Exception {
+    List<Integer> out = new ArrayList<Integer>();
+    while (it.hasNext())
+      out.add(((IntField) it.next().getField(0)).getValue());
+    return out;
+  }
+
+  /**
+   * Drains each consumer on a thread of its own: producers wait for
+   *   whichever queue is full, so reading the consumers one after another
+   *   could stall.
+   */
+  private List<List<Integer>> drainAll(Exchange[] consumers) throws Exception {
+    ExecutorService readers = Executors.newFixedThreadPool(consumers.length);
+    List<Future<List<Integer>>> futures = new ArrayList<Future<List<Integer>>>();
+    for (final Exchange consumer : consumers) {
+      futures.add(readers.submit(new Callable<List<Integer>>() {
+        public List<Integer> call() throws Exception {
+          return drain(consumer);
+        }
+      }));
+    }
+    List<List<Integer>> results = new ArrayList<List<Integer>>();
+    for (Future<List<Integer>> f : futures)
+      results.add(f.get());
+    readers.shutdown();
+    return results;
+  }
+
+  private void assertAllRows(List<Integer> rows) {
+    Collections.sort(rows);
+    assertEquals(PRODUCERS * ROWS, rows.size());
+    for (int i = 0; i < rows.size(); i++)
+      assertEquals(i, rows.get(i).intValue());
+  }
+
+  /**
+   * Unit test for Exchange.gather(): every tuple of every producer comes
+   *   out of the single consumer, and rewinding runs the producers again
+   */
+  @Test(timeout = 10000) public void gather() throws Exception {
+    Exchange ex = Exchange.gather(producers());
+    assertEquals(Exchange.Mode.GATHER, ex.getMode());
+    assertEquals(Utility.getTupleDesc(2), ex.getTupleDesc());
+    ex.open();
+    assertAllRows(drain(ex));
+    ex.rewind();
+    assertAllRows(drain(ex));
+    ex.close();
+  }
+
+  /**
+   * Unit test for Exchange.repartition(): each consumer gets exactly the
+   *   tuples that hash to it, and a rewindable one gets them again once
+   *   rewound
+   */
+  @Test(timeout = 10000) public void repartition() throws Exception {
+    final Exchange[] parts = Exchange.repartition(producers(), 1, 4);
+    assertEquals(4, parts.length);
+    for (Exchange part : parts) {
+      part.setRewindable(true);
+      part.open();
+    }
+    List<List<Integer>> results = drainAll(parts);
+    List<Integer> all = new ArrayList<Integer>();
+    for (int c = 0; c < parts.length; c++) {
+      for (int row : results.get(c))
+        assertEquals(c, Exchange.partitionOf(new IntField(row % 17), 4));
+      all.addAll(results.get(c));
+    }
+    assertAllRows(all);
+
+    // the consumers replay what they returned
+    all.clear();
+    for (Exchange part : parts) {
+      part.rewind();
+      all.addAll(drain(part));
+      part.close();
+    }
+    assertAllRows(all);
+  }
+
+  /**
+   * Unit test for Exchange.broadcast(): every consumer gets every tuple,
+   *   and gets them again once rewound
+   */
+  @Test(timeout = 10000) public void broadcast() throws Exception {
+    Exchange[] copies = Exchange.broadcast(producers(), 3);
+    for (Exchange copy : copies) {
+      copy.setRewindable(true);
+      copy.open();
+    }
+    for (List<Integer> rows : drainAll(copies))
+      assertAllRows(rows);
+    for (Exchange copy : copies) {
+      copy.rewind();
+      assertAllRows(drain(copy));
+      copy.close();
+    }
+  }
+
+  /**
+   * Unit test for Exchange.close(): closing consumers that have not read
+   *   everything stops the producers
+   */
+  @Test(timeout = 10000) public void closeEarly() throws Exception {
+    Exchange[] parts = Exchange.repartition(producers(), 0, 2);
+    parts[0].open();
+    parts[1].open();
+    assertTrue(parts[0].hasNext());
+    parts[0].next();
+    parts[0].close();
+    parts[1].close();
+
+    // the producers start over once opened again
+    parts[0].open();
+    parts[1].open();
+    List<Integer> all = new ArrayList<Integer>();
+    for (List<Integer> rows : drainAll(parts))
+      all.addAll(rows);
+    assertAllRows(all);
+    parts[0].close();
+    parts[1].close();
+  }
+
+  /**
+   * Unit test for Exchange.rewind() on a consumer that was not made
+   *   rewindable: it keeps nothing, so it can only be rewound before it
+   *   returns anything
+   */
+  @Test(timeout = 10000) public void rewindWithoutSpool() throws Exception {
+    Exchange[] parts = Exchange.repartition(producers(), 0, 2);
+    parts[0].open();
+    parts[1].open();
+    parts[0].rewind();
+    assertTrue(parts[0].hasNext());
+    parts[0].next();
+    try {
+      parts[0].rewind();
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    parts[0].close();
+    parts[1].close();
+  }
+
+  /**
+   * Unit test for an Exchange whose producer fails: the consumer throws
+   *   what the producer threw
+   */
+  @Test(timeout = 10000) public void producerError() throws Exception {
+    DbIterator[] producers = producers();
+    producers[1] = new Filter(null, producers[1]);
+    Exchange ex = Exchange.gather(producers);
+    ex.open();
+    try {
+      drain(ex);
+      fail("expected the producer's exception");
+    } catch (NullPointerException e) {
+      // expected
+    }
+    ex.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
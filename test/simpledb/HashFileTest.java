@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class HashFileTest extends IndexFileBase<HashFile> {
+
+  protected HashFile newIndex(File f, int tableid) {
+    return new HashFile(f, tableid, 0);
+  }
+
+  /** @return the keys of the entries an index iterator returns, sorted */
+  private List<String> sorted(DbFileIterator it) throws Exception {
+    List<String> keys = keys(it);
+    Collections.sort(keys);
+    return keys;
+  }
+
+  /** @return the global depth of the index's directory, as on disk */
+  private int depth() {
+    HashPage dir = (HashPage) index.readPage(new HashPageId(index.getId(), 0));
+    return dir.getDepth();
+  }
+
+  /**
+   * Unit test for HashFile.insertTuple(): buckets split and the directory
+   *   grows as entries are added, and every key is found by a lookup
+   */
+  @Test public void insertAndLookup() throws Exception {
+    assertEquals(0, depth());
+    insert(shuffled(1000));
+    assertTrue(depth() >= 5);
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(0, 1000), sorted(index.iterator(tid)));
+    for (int i = 0; i < 1000; i += 37)
+      assertEquals(keys(i, i + 1), keys(index.iterator(tid, key(i))));
+    assertEquals(0, keys(index.iterator(tid, key(1000))).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for HashFile.build(): an index built from a full table
+   *   finds the same entries as one filled by inserts
+   */
+  @Test public void build() throws Exception {
+    insert(shuffled(600));
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    index.build();
+    assertTrue(depth() >= 4);
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(0, 600), sorted(index.iterator(tid)));
+    for (int i = 0; i < 600; i += 41)
+      assertEquals(keys(i, i + 1), keys(index.iterator(tid, key(i))));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for HashFile with many tuples with the same key: they cannot
+   *   be split apart, so their bucket continues on overflow pages
+   */
+  @Test public void duplicates() throws Exception {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++)
+      keys.add(i % 3 == 0 ? 1000 : i);
+    insert(keys);
+    TransactionId tid = new TransactionId();
+    assertEquals(67, keys(index.iterator(tid, key(1000))).size());
+    assertEquals(200, keys(index.iterator(tid)).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for BufferPool.deleteTuple() and aborts on a table with a
+   *   hash index: the index loses the entries of deleted tuples, and an
+   *   aborted insert leaves no entries behind
+   */
+  @Test public void deleteAndAbort() throws Exception {
+    insert(shuffled(300));
+    deleteBelow(150);
+    insertAndAbort(1000, 1100);
+
+    TransactionId tid = new TransactionId();
+    assertEquals(keys(150, 300), sorted(index.iterator(tid)));
+    assertEquals(0, keys(index.iterator(tid, key(100))).size());
+    assertEquals(0, keys(index.iterator(tid, key(1050))).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashFileTest.class);
+  }
+}
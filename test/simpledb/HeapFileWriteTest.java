@@ -43,6 +43,32 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePages(): a run of consecutive pages and a
+     * page past a gap should all land where readPage() finds them.
+     */
+    @Test public void writePages() throws Exception {
+        int tableId = empty.getId();
+        java.util.List<Page> pages = new java.util.ArrayList<Page>();
+        for (int pgNo : new int[] { 0, 1, 3 }) {
+            HeapPage p = new HeapPage(new HeapPageId(tableId, pgNo),
+                    HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            p.markDirty(true, tid);
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        assertEquals(4, empty.numPages());
+        for (Page p : pages) {
+            assertNull(p.isDirty());
+            HeapPage read = (HeapPage) empty.readPage(p.getId());
+            Tuple t = read.iterator().next();
+            assertEquals(new IntField(p.getId().pageNumber()), t.getField(0));
+        }
+        assertFalse(((HeapPage) empty.readPage(new HeapPageId(tableId, 2)))
+                .iterator().hasNext());
+    }
+
     /**
      * JUnit suite target
      */
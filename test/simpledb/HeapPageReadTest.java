@@ -120,6 +120,45 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.matches(): filters on the undecoded page agree
+     *   with the same filters on the decoded tuples
+     */
+    @Test public void matches() throws Exception {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)));
+        filters.add(new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(44947)));
+        TupleFilter filter = Codegen.compileFilter(filters, Utility.getTupleDesc(2));
+
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        HeapPage decoded = new HeapPage(pid, EXAMPLE_DATA);
+        decoded.iterator();
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            boolean expected = EXAMPLE_VALUES[i][0] > 20000
+                && EXAMPLE_VALUES[i][1] <= 44947;
+            assertEquals(expected, page.matches(i, filter));
+            assertEquals(expected, decoded.matches(i, filter));
+        }
+
+        // tuples that were never decoded are written out as they were read
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
+    /**
+     * Unit test for HeapPage.getTuple() with a subset of the columns
+     */
+    @Test public void getTupleColumns() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            Tuple tup = page.getTuple(i, new int[] { 1 }, td);
+            assertEquals(td, tup.getTupleDesc());
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), tup.getField(0));
+            assertEquals(new RecordId(pid, i), tup.getRecordId());
+        }
+        assertEquals(null, page.getTuple(EXAMPLE_VALUES.length, new int[] { 1 }, td));
+    }
+
     /**
      * JUnit suite target
      */
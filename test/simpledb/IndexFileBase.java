@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Fixture shared by the tests of the index files: a table of (name, n)
+ * tuples with an index of type F on its name field, and helpers to fill the
+ * table and read the index.
+ */
+public abstract class IndexFileBase<F extends IndexFile> extends SimpleDbTestBase {
+
+  // string keys: fewer than 30 entries to a page, so indexes grow quickly
+  protected static final TupleDesc TD = new TupleDesc(new Type[] {
+      Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "name", "n" });
+
+  protected HeapFile table;
+  protected F index;
+
+  /** @return a new index on field 0 of the given table, stored in f */
+  protected abstract F newIndex(File f, int tableid);
+
+  @Before public void createTable() throws Exception {
+    File f = File.createTempFile("names", ".dat");
+    f.deleteOnExit();
+    table = new HeapFile(f, TD);
+    Database.getCatalog().addTable(table, "names");
+    File idx = File.createTempFile("names", ".idx");
+    idx.deleteOnExit();
+    index = newIndex(idx, table.getId());
+    Database.getCatalog().addIndex(index);
+    index.build();
+  }
+
+  protected static StringField key(int i) {
+    return new StringField(String.format("k%05d", i), Type.STRING_LEN);
+  }
+
+  /** @return the tuple (key(i), i) */
+  protected static Tuple tuple(int i) {
+    Tuple tup = new Tuple(TD);
+    tup.setField(0, key(i));
+    tup.setField(1, new IntField(i));
+    return tup;
+  }
+
+  /**
+   * Inserts a tuple for each of the given keys, committing every few so
+   *   that the dirty pages fit in the buffer pool
+   */
+  protected void insert(List<Integer> keys) throws Exception {
+    Transaction t = null;
+    for (int i = 0; i < keys.size(); i++) {
+      if (i % 20 == 0) {
+        if (t != null)
+          t.commit();
+        t = new Transaction();
+        t.start();
+      }
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+          tuple(keys.get(i)));
+    }
+    t.commit();
+  }
+
+  /** Deletes, and commits the deletion of, the tuples with n below max */
+  protected void deleteBelow(int max) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    SeqScan scan = new SeqScan(t.getId(), table.getId());
+    scan.addFilter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(max)));
+    Delete delete = new Delete(t.getId(), scan);
+    delete.open();
+    delete.next();
+    delete.close();
+    t.commit();
+  }
+
+  /** Inserts the tuples for keys from to to, then aborts */
+  protected void insertAndAbort(int from, int to) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = from; i < to; i++)
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(), tuple(i));
+    t.transactionComplete(true);
+  }
+
+  /** @return the keys of the entries an index iterator returns, in its order */
+  protected List<String> keys(DbFileIterator it) throws Exception {
+    List<String> keys = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      keys.add(((StringField) it.next().getField(0)).getValue());
+    it.close();
+    return keys;
+  }
+
+  /** @return the keys from to to, in order */
+  protected List<String> keys(int from, int to) {
+    List<String> keys = new ArrayList<String>();
+    for (int i = from; i < to; i++)
+      keys.add(key(i).getValue());
+    return keys;
+  }
+
+  /** @return the numbers below n, in an order that is the same every run */
+  protected List<Integer> shuffled(int n) {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++)
+      keys.add(i);
+    Collections.shuffle(keys, new Random(186));
+    return keys;
+  }
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private ArrayList<ArrayList<Integer>> outerTuples;
+  private ArrayList<ArrayList<Integer>> innerTuples;
+  private HeapFile outer;
+  private HeapFile inner;
+  private BTreeFile index;
+
+  /**
+   * Creates a small outer table and a larger inner one with few tuples to
+   *   each value, with an index on the second field of the inner table
+   */
+  @Before public void createTables() throws Exception {
+    outerTuples = new ArrayList<ArrayList<Integer>>();
+    outer = SystemTestUtil.createRandomHeapFile(2, 50, 20000, null, outerTuples, "o");
+    Database.getCatalog().addTable(outer, "inljo");
+    innerTuples = new ArrayList<ArrayList<Integer>>();
+    inner = SystemTestUtil.createRandomHeapFile(2, 20000, 20000, null, innerTuples, "i");
+    Database.getCatalog().addTable(inner, "inlji");
+    File idx = File.createTempFile("inlji", ".idx");
+    idx.deleteOnExit();
+    index = new BTreeFile(idx, inner.getId(), 1);
+    Database.getCatalog().addIndex(index);
+    index.build();
+  }
+
+  private int expectedMatches() {
+    int n = 0;
+    for (ArrayList<Integer> o : outerTuples)
+      for (ArrayList<Integer> i : innerTuples)
+        if (o.get(0).equals(i.get(1)))
+          n++;
+    return n;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext(): the same tuples as a
+   *   nested loops join, in the order of the outer input, and again after
+   *   a rewind
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    DbIterator expected = new Join(pred, new SeqScan(tid, outer.getId(), "inljo"),
+        new SeqScan(tid, inner.getId(), "inlji"));
+    IndexNestedLoopJoin actual = new IndexNestedLoopJoin(pred,
+        new SeqScan(tid, outer.getId(), "inljo"), new IndexScan(tid, index, "inlji"));
+    expected.open();
+    actual.open();
+    TestUtil.matchAllTuples(expected, actual);
+    actual.rewind();
+    int n = 0;
+    while (actual.hasNext()) {
+      Tuple t = actual.next();
+      assertEquals(t.getField(0), t.getField(3));
+      n++;
+    }
+    assertEquals(expectedMatches(), n);
+    actual.close();
+    expected.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with filters and columns on the inner
+   *   scan: both are applied to the tuples looked up
+   */
+  @Test public void innerFiltersAndColumns() throws Exception {
+    TransactionId tid = new TransactionId();
+    IndexScan scan = new IndexScan(tid, index, "inlji");
+    scan.addFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10000)));
+    scan.setColumns(new int[] { 1 });
+    IndexNestedLoopJoin join = new IndexNestedLoopJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, outer.getId(), "inljo"), scan);
+    assertEquals(3, join.getTupleDesc().numFields());
+    int expected = 0;
+    for (ArrayList<Integer> o : outerTuples)
+      for (ArrayList<Integer> i : innerTuples)
+        if (o.get(0).equals(i.get(1)) && i.get(0) < 10000)
+          expected++;
+    join.open();
+    int n = 0;
+    while (join.hasNext()) {
+      Tuple t = join.next();
+      assertEquals(t.getField(0), t.getField(2));
+      n++;
+    }
+    join.close();
+    assertEquals(expected, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The optimizer should look up the inner tuples of an equality join
+   *   through an index on the inner join field, and cost the join by the
+   *   number of lookups rather than by rescanning the inner table
+   */
+  @Test public void planAndCost() throws Exception {
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("inljo", new TableStats(outer.getId(), 1000));
+    stats.put("inlji", new TableStats(inner.getId(), 1000));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM inljo, inlji WHERE inljo.o0 = inlji.i1;");
+    JoinOptimizer jo = new JoinOptimizer(lp, new java.util.Vector<LogicalJoinNode>());
+    LogicalJoinNode j = new LogicalJoinNode("inljo", "inlji", "o0", "i1",
+        Predicate.Op.EQUALS);
+    double scanCost = stats.get("inlji").estimateScanCost();
+    double nestedLoops = jo.estimateJoinCost(j, 50, 20000, 1000, scanCost);
+    double lookups = jo.estimateJoinCost(j, 50, 20000, 1000, scanCost,
+        stats.get("inlji"));
+    assertTrue(lookups < nestedLoops);
+    // without an index on the outer join field, swapping gains nothing
+    assertEquals(jo.estimateJoinCost(j.swapInnerOuter(), 20000, 50, scanCost, 1000),
+        jo.estimateJoinCost(j.swapInnerOuter(), 20000, 50, scanCost, 1000,
+            stats.get("inljo")), 0.0);
+
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    DbIterator join = ((Operator) plan).getChildren()[0];
+    assertTrue(join instanceof IndexNestedLoopJoin);
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    assertEquals(expectedMatches(), n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -174,4 +174,31 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+	
+	/**
+	 * Join selectivities should follow from where the two histograms overlap.
+	 */
+	@Test public void joinSelectivityTest() {
+		IntHistogram low = new IntHistogram(10, 1, 100);
+		IntHistogram high = new IntHistogram(10, 1, 100);
+		IntHistogram all = new IntHistogram(10, 1, 100);
+		for (int c = 1; c <= 100; c++) {
+			if (c <= 40)
+				low.addValue(c);
+			if (c > 60)
+				high.addValue(c);
+			all.addValue(c);
+		}
+		
+		// Every value of low is below every value of high
+		Assert.assertTrue(low.estimateJoinSelectivity(Op.LESS_THAN, high) > 0.999);
+		Assert.assertTrue(low.estimateJoinSelectivity(Op.GREATER_THAN_OR_EQ, high) < 0.001);
+		Assert.assertTrue(high.estimateJoinSelectivity(Op.GREATER_THAN, low) > 0.999);
+		
+		// A uniform column against itself: about half the pairs either way
+		double sel = all.estimateJoinSelectivity(Op.LESS_THAN, all);
+		Assert.assertTrue(sel > 0.4 && sel < 0.6);
+		sel = all.estimateJoinSelectivity(Op.GREATER_THAN_OR_EQ, all);
+		Assert.assertTrue(sel > 0.4 && sel < 0.6);
+	}
 }
@@ -161,6 +161,48 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		Assert.assertEquals(Boolean.TRUE, ret[0]);
 	}
 
+	/**
+	 * Verify that a sort-merge join is costed, is cheaper than nested loops
+	 * on large inputs, and is chosen and instantiated when it is the cheapest
+	 */
+	@Test public void sortMergeJoinTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"),
+				new Vector<LogicalJoinNode>());
+		LogicalJoinNode equalsJoinNode = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+
+		double unsorted = jo.estimateSortMergeCost(equalsJoinNode, 1000, 10000, 100.0, 1000.0, false);
+		double sorted = jo.estimateSortMergeCost(equalsJoinNode, 1000, 10000, 100.0, 1000.0, true);
+		Assert.assertTrue(sorted > 1100.0);
+		Assert.assertTrue(sorted < unsorted);
+		Assert.assertTrue(unsorted < jo.estimateJoinCost(equalsJoinNode, 1000, 10000, 100.0, 1000.0));
+		LogicalJoinNode likeJoinNode = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LIKE);
+		Assert.assertTrue(Double.isInfinite(jo.estimateSortMergeCost(likeJoinNode, 1000, 10000, 100.0, 1000.0, true)));
+
+		// with no index on either table, an equality join is cheapest merged
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(equalsJoinNode);
+		jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		filterSelectivities.put("t1", 1.0);
+		filterSelectivities.put("t2", 1.0);
+		Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(1, result.size());
+		LogicalJoinNode chosen = result.get(0);
+		Assert.assertTrue(chosen.sortMerge);
+
+		SeqScan ss1 = new SeqScan(tid, tableId1, "t1");
+		SeqScan ss2 = new SeqScan(tid, tableId2, "t2");
+		DbIterator plan = chosen.t1Alias.equals("t1")
+				? JoinOptimizer.instantiateJoin(chosen, ss1, ss2)
+				: JoinOptimizer.instantiateJoin(chosen, ss2, ss1);
+		Assert.assertTrue(plan instanceof SortMergeJoin);
+	}
+
 	/**
 	 * Verify that the join cardinalities produced by estimateJoinCardinality() are reasonable
 	 */
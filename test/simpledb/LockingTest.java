@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,62 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPageForRecords() and BufferPool.lockRecord().
+   * Two transactions lock different records of the same page; a page lock
+   * conflicts with the record locks underneath it.
+   */
+  @Test public void recordLocksOnSamePage() throws Exception {
+    bp.getPageForRecords(tid1, p0, Permissions.READ_WRITE);
+    bp.lockRecord(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+
+    bp.getPageForRecords(tid2, p0, Permissions.READ_WRITE);
+    assertTrue(bp.tryLockRecord(tid2, new RecordId(p0, 1), Permissions.READ_WRITE));
+    assertFalse(bp.tryLockRecord(tid2, new RecordId(p0, 0), Permissions.READ_ONLY));
+
+    grabLock(new TransactionId(), p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for lock escalation: once a transaction holds enough record
+   * locks on a table they are traded for a table lock, which keeps writers
+   * off pages it never touched.
+   */
+  @Test public void recordLocksEscalate() throws Exception {
+    PageId[] pids = { p0, p1 };
+    int locked = 0;
+    for (PageId pid : pids) {
+      HeapPage p = (HeapPage) bp.getPageForRecords(tid1, pid, Permissions.READ_ONLY);
+      for (int i = 0; i < p.getNumSlots() && locked < BufferPool.LOCK_ESCALATION_THRESHOLD; i++, locked++)
+        bp.lockRecord(tid1, new RecordId(pid, i), Permissions.READ_ONLY);
+    }
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for the locks a sequential scan takes: one S lock on each
+   * page it reads, instead of a lock on every record, so scanning more
+   * records than the escalation threshold leaves the pages it did not
+   * read open to writers.
+   */
+  @Test public void scanLocksPages() throws Exception {
+    DbFileIterator it = empty.iterator(tid1, 0, 2);
+    it.open();
+    while (it.hasNext())
+      it.next();
+    it.close();
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p1));
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+  }
+
   /**
    * JUnit suite target
    */
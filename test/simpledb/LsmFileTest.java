@@ -0,0 +1,316 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LsmFileTest extends SimpleDbTestBase {
+
+  private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+  private File manifest;
+  private LsmFile table;
+
+  @Before public void createTable() throws Exception {
+    manifest = File.createTempFile("events", ".lsm");
+    manifest.delete();
+    table = open();
+  }
+
+  @After public void deleteTable() throws Exception {
+    table.awaitBackground();
+    File[] files = manifest.getAbsoluteFile().getParentFile().listFiles();
+    for (File f : files)
+      if (f.getName().startsWith(manifest.getName()))
+        f.delete();
+  }
+
+  /** Opens the table, with a one page memtable, and puts it in the catalog */
+  private LsmFile open() throws Exception {
+    LsmFile f = new LsmFile(manifest, TD, 0);
+    f.setMemtablePages(1);
+    Database.getCatalog().addTable(f, "events");
+    return f;
+  }
+
+  /** Inserts a tuple (k, k % 7) for each key, 100 to a transaction */
+  private void insert(List<Integer> keys) throws Exception {
+    Transaction t = null;
+    for (int i = 0; i < keys.size(); i++) {
+      if (i % 100 == 0) {
+        if (t != null)
+          t.commit();
+        t = new Transaction();
+        t.start();
+      }
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { keys.get(i), keys.get(i) % 7 }));
+    }
+    t.commit();
+  }
+
+  /** @return the keys of the tuples a scan by tid returns, in its order */
+  private List<Integer> keys(TransactionId tid) throws Exception {
+    List<Integer> keys = new ArrayList<Integer>();
+    SeqScan scan = new SeqScan(tid, table.getId(), "events");
+    scan.open();
+    while (scan.hasNext())
+      keys.add(((IntField) scan.next().getField(0)).getValue());
+    scan.close();
+    return keys;
+  }
+
+  private List<Integer> keys() throws Exception {
+    TransactionId tid = new TransactionId();
+    List<Integer> keys = keys(tid);
+    Database.getBufferPool().transactionComplete(tid);
+    return keys;
+  }
+
+  private List<Integer> range(int from, int to) {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = from; i < to; i++)
+      keys.add(i);
+    return keys;
+  }
+
+  private List<Integer> shuffled(int from, int to) {
+    List<Integer> keys = range(from, to);
+    Collections.shuffle(keys, new Random(50));
+    return keys;
+  }
+
+  /**
+   * Unit test for LsmFile.iterator(): tuples inserted in any order are
+   * scanned in key order, across the memtable and runs, and full memtables
+   * are written out as runs that are then merged
+   */
+  @Test public void insertAndScan() throws Exception {
+    int perPage = LsmPage.maxEntries(TD);
+    insert(shuffled(0, 12 * perPage));
+    table.awaitBackground();
+    assertTrue(table.numPages() >= 12);
+    // a memtable written out every four commits, and the runs merged
+    assertTrue(table.numRuns() <= 4);
+    assertEquals(range(0, 12 * perPage), keys());
+  }
+
+  /**
+   * Unit test for LsmFile.deleteTuple() and aborts: deleted tuples are
+   * hidden in older runs, and stay hidden once the runs are merged, and an
+   * aborted transaction's inserts are never seen
+   */
+  @Test public void deleteAndAbort() throws Exception {
+    insert(shuffled(0, 1000));
+    table.flushMemtable();
+    table.awaitBackground();
+
+    Transaction t = new Transaction();
+    t.start();
+    SeqScan scan = new SeqScan(t.getId(), table.getId(), "events");
+    scan.addFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)));
+    Delete delete = new Delete(t.getId(), scan);
+    delete.open();
+    assertEquals(500, ((IntField) delete.next().getField(0)).getValue());
+    delete.close();
+    t.commit();
+
+    t = new Transaction();
+    t.start();
+    for (int i = 0; i < 100; i++)
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 2000 + i, 0 }));
+    t.transactionComplete(true);
+    assertEquals(range(500, 1000), keys());
+
+    // enough runs for every one to be merged, dropping the tombstones
+    for (int i = 0; i < LsmFile.FANOUT; i++) {
+      insert(range(1000 + 10 * i, 1010 + 10 * i));
+      table.flushMemtable();
+    }
+    table.awaitBackground();
+    assertTrue(table.numRuns() < LsmFile.FANOUT);
+    assertEquals(range(500, 1040), keys());
+  }
+
+  /**
+   * Unit test for LsmFile transactions: a transaction sees its own changes
+   * before it commits, and holds the table against other readers until it
+   * does
+   */
+  @Test public void ownChanges() throws Exception {
+    insert(range(0, 10));
+    Transaction writer = new Transaction();
+    writer.start();
+    Database.getBufferPool().insertTuple(writer.getId(), table.getId(),
+        Utility.getHeapTuple(new int[] { 10, 0 }));
+    SeqScan scan = new SeqScan(writer.getId(), table.getId(), "events");
+    scan.open();
+    Tuple first = scan.next();
+    scan.close();
+    Database.getBufferPool().deleteTuple(writer.getId(), first);
+    assertEquals(range(1, 11), keys(writer.getId()));
+
+    TransactionId reader = new TransactionId();
+    try {
+      keys(reader);
+      fail("read a table another transaction is changing");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    Database.getBufferPool().transactionComplete(reader, false);
+    writer.commit();
+    assertEquals(range(1, 11), keys());
+  }
+
+  /**
+   * Unit test for LsmFile table locks: transactions that only insert hold
+   * IX on the table and do not wait for each other, but a reader waits
+   * for them, and they for a reader
+   */
+  @Test public void concurrentInserts() throws Exception {
+    Transaction t1 = new Transaction();
+    t1.start();
+    Transaction t2 = new Transaction();
+    t2.start();
+    for (int i = 0; i < 5; i++) {
+      Database.getBufferPool().insertTuple(t1.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 2 * i, 0 }));
+      Database.getBufferPool().insertTuple(t2.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 2 * i + 1, 0 }));
+    }
+
+    TransactionId reader = new TransactionId();
+    try {
+      keys(reader);
+      fail("read a table other transactions are changing");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    Database.getBufferPool().transactionComplete(reader, false);
+    t1.commit();
+    t2.commit();
+
+    reader = new TransactionId();
+    assertEquals(range(0, 10), keys(reader));
+    Transaction t3 = new Transaction();
+    t3.start();
+    try {
+      Database.getBufferPool().insertTuple(t3.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 10, 0 }));
+      fail("changed a table another transaction is reading");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    t3.transactionComplete(true);
+    Database.getBufferPool().transactionComplete(reader);
+  }
+
+  /**
+   * Unit test for LsmFile commits: a transaction that changes an LSM table
+   * may not change a heap table too, nor the other way round, as the LSM
+   * table commits its changes on its own
+   */
+  @Test public void mixedTransactions() throws Exception {
+    HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+        Utility.getHeapTuple(new int[] { 1, 0 }));
+    try {
+      Database.getBufferPool().insertTuple(t.getId(), heap.getId(),
+          Utility.getHeapTuple(new int[] { 1, 0 }));
+      fail("changed a heap table after an LSM table");
+    } catch (DbException e) {
+      // expected
+    }
+    t.commit();
+
+    t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), heap.getId(),
+        Utility.getHeapTuple(new int[] { 2, 0 }));
+    try {
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 2, 0 }));
+      fail("changed an LSM table after a heap table");
+    } catch (DbException e) {
+      // expected
+    }
+    t.commit();
+
+    assertEquals(range(1, 2), keys());
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, heap.getId(), "heap");
+    scan.open();
+    assertEquals(2, ((IntField) scan.next().getField(0)).getValue());
+    assertTrue(!scan.hasNext());
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for LsmFile background failures: a memtable that cannot be
+   * written out makes the next change to the table fail
+   */
+  @Test public void backgroundFailure() throws Exception {
+    insert(range(0, 10));
+    // the run the memtable is to be written to cannot be created
+    String log = null;
+    for (File f : manifest.getAbsoluteFile().getParentFile().listFiles())
+      if (f.getName().startsWith(manifest.getName() + ".") && f.getName().endsWith(".log"))
+        log = f.getPath();
+    assertTrue(new File(log.substring(0, log.length() - ".log".length())).mkdir());
+    table.flushMemtable();
+    table.awaitBackground();
+
+    Transaction t = new Transaction();
+    t.start();
+    try {
+      Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+          Utility.getHeapTuple(new int[] { 10, 0 }));
+      fail("changed a table whose memtable could not be written out");
+    } catch (DbException e) {
+      // expected
+    }
+    t.abort();
+  }
+
+  /**
+   * Unit test for opening an LsmFile: the tuples of its runs and of the
+   * logs of memtables that were never written out are all there, and new
+   * tuples get new row ids
+   */
+  @Test public void reopen() throws Exception {
+    insert(shuffled(0, 500));
+    table.awaitBackground();
+    assertTrue(table.numRuns() >= 1);
+
+    table = open();
+    assertEquals(range(0, 500), keys());
+    insert(range(0, 10));
+    List<Integer> twice = range(0, 500);
+    twice.addAll(range(0, 10));
+    Collections.sort(twice);
+    assertEquals(twice, keys());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LsmFileTest.class);
+  }
+}
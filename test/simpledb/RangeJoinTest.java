@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RangeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator ltJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 3, 4,
+                    1, 2,
+                    5, 6 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 5, 6, 7,
+                    2, 3, 4,
+                    3, 4, 5 });
+    this.ltJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 3, 4, 5, 6, 7,
+                    1, 2, 2, 3, 4,
+                    1, 2, 3, 4, 5,
+                    1, 2, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for RangeJoin.getNext() using a &lt; predicate; the output
+   * follows the outer input, and the inner tuples come in join field order
+   */
+  @Test public void ltJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    RangeJoin op = new RangeJoin(pred, scan1, scan2);
+    op.open();
+    ltJoin.open();
+    TestUtil.compareDbIterators(ltJoin, op);
+  }
+
+  /**
+   * Unit test for RangeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    RangeJoin op = new RangeJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext())
+      op.next();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    ltJoin.open();
+    TestUtil.compareDbIterators(ltJoin, op);
+  }
+
+  /**
+   * Every supported predicate should give the same tuples as a nested loops
+   * join, on inputs with many duplicate keys.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    TestUtil.matchNestedLoops(new TestUtil.JoinFactory() {
+      public boolean supports(Predicate.Op op) {
+        return RangeJoin.supports(op);
+      }
+
+      public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        return new RangeJoin(p, child1, child2);
+      }
+    });
+  }
+
+  /**
+   * The optimizer should plan inequality joins as range joins, with their
+   * cardinality estimated from the column histograms.
+   */
+  @Test public void planAndCardinality() throws Exception {
+    ArrayList<ArrayList<Integer>> tuplesA = new ArrayList<ArrayList<Integer>>();
+    HeapFile a = SystemTestUtil.createRandomHeapFile(1, 100, 1000, null, tuplesA, "c");
+    Database.getCatalog().addTable(a, "rja");
+    ArrayList<ArrayList<Integer>> tuplesB = new ArrayList<ArrayList<Integer>>();
+    HeapFile b = SystemTestUtil.createRandomHeapFile(1, 100, 1000, null, tuplesB, "c");
+    Database.getCatalog().addTable(b, "rjb");
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("rja", new TableStats(a.getId(), 100));
+    stats.put("rjb", new TableStats(b.getId(), 100));
+
+    HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("rja", a.getId());
+    aliases.put("rjb", b.getId());
+    // uniformly distributed values on each side: about half of the pairs
+    int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.LESS_THAN,
+        "rja", "rjb", "c0", "c0", 100, 100, false, false, stats, aliases);
+    assertTrue(card > 3000 && card < 7000);
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM rja, rjb WHERE rja.c0 < rjb.c0;");
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof RangeJoin);
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    int expected = 0;
+    for (ArrayList<Integer> ta : tuplesA)
+      for (ArrayList<Integer> tb : tuplesB)
+        if (ta.get(0) < tb.get(0))
+          expected++;
+    assertEquals(expected, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RangeJoinTest.class);
+  }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 7, 8,
+                    3, 4,
+                    5, 6,
+                    1, 2 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 5, 6, 7,
+                    2, 3, 4,
+                    3, 4, 5,
+                    1, 2, 3,
+                    4, 5, 6 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate; the inputs
+   * are unsorted, and the output comes out in join field order
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.compareDbIterators(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext())
+      op.next();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.compareDbIterators(eqJoin, op);
+  }
+
+  /**
+   * Every supported predicate should give the same tuples as a nested loops
+   * join, on inputs with many duplicate keys.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    TestUtil.matchNestedLoops(new TestUtil.JoinFactory() {
+      public boolean supports(Predicate.Op op) {
+        return SortMergeJoin.supports(op);
+      }
+
+      public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        return new SortMergeJoin(p, child1, child2);
+      }
+    });
+  }
+
+  /**
+   * JoinOptimizer.instantiateJoin() should merge inputs that are already
+   * sorted on the join fields, and when asked to keep the join order.
+   */
+  @Test public void instantiateJoin() throws Exception {
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "a.f0", "b.f1", Predicate.Op.EQUALS);
+    TupleDesc td1 = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new String[] { "a.f0", "a.f1" });
+    TupleDesc td2 = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new String[] { "b.f0", "b.f1" });
+    DbIterator a = new TupleIterator(td1, new ArrayList<Tuple>());
+    DbIterator b = new TupleIterator(td2, new ArrayList<Tuple>());
+
+    assertTrue(JoinOptimizer.instantiateJoin(lj, a, b) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, a, b, true) instanceof SortMergeJoin);
+    DbIterator j = JoinOptimizer.instantiateJoin(lj,
+        new OrderBy(0, true, a), new OrderBy(1, true, b));
+    assertTrue(j instanceof SortMergeJoin);
+    assertTrue(SortMergeJoin.isSortedOn(j, 0));
+    assertTrue(SortMergeJoin.isSortedOn(j, 3));
+    assertFalse(SortMergeJoin.isSortedOn(j, 1));
+    assertTrue(JoinOptimizer.instantiateJoin(lj,
+        new OrderBy(0, false, a), new OrderBy(1, true, b)) instanceof Join);
+  }
+
+  /**
+   * A query ordered by its join key should be planned as a merge join with
+   * no separate sort, and still come out in order.
+   */
+  @Test public void orderByJoinKey() throws Exception {
+    HeapFile a = SystemTestUtil.createRandomHeapFile(2, 200, 20, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    Database.getCatalog().addTable(a, "smja");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(2, 100, 20, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    Database.getCatalog().addTable(b, "smjb");
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("smja", new TableStats(a.getId(), 100));
+    stats.put("smjb", new TableStats(b.getId(), 100));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM smja, smjb WHERE smja.c0 = smjb.c1 ORDER BY smja.c0;");
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof SortMergeJoin);
+
+    int field = plan.getTupleDesc().fieldNameToIndex("smja.c0");
+    plan.open();
+    Field last = null;
+    while (plan.hasNext()) {
+      Field f = plan.next().getField(field);
+      if (last != null)
+        assertFalse(f.compare(Predicate.Op.LESS_THAN, last));
+      last = f;
+    }
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -149,6 +149,60 @@ public class TestUtil {
         }
     }
 
+    /** Creates the join operator under test, for the predicates it supports. */
+    public interface JoinFactory {
+        /** @return true if the operator can join on op */
+        public boolean supports(Predicate.Op op);
+
+        /** @return the operator joining child1 and child2 on p */
+        public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2);
+    }
+
+    /**
+     * Checks that a join operator gives the same tuples as a nested loops
+     *   {@link Join}, for every predicate it supports, on inputs with many
+     *   duplicate keys: as many tuples, each of them among the other's.
+     */
+    public static void matchNestedLoops(JoinFactory join) throws
+            DbException, TransactionAbortedException {
+        Random r = new Random(42);
+        int[] data1 = new int[2 * 60];
+        int[] data2 = new int[2 * 40];
+        for (int i = 0; i < data1.length; i++)
+            data1[i] = r.nextInt(10);
+        for (int i = 0; i < data2.length; i++)
+            data2[i] = r.nextInt(10);
+
+        for (Predicate.Op op : Predicate.Op.values()) {
+            if (!join.supports(op))
+                continue;
+            JoinPredicate pred = new JoinPredicate(0, op, 1);
+            DbIterator expected = new Join(pred, createTupleList(2, data1),
+                    createTupleList(2, data2));
+            DbIterator actual = join.create(pred, createTupleList(2, data1),
+                    createTupleList(2, data2));
+            expected.open();
+            actual.open();
+            int n = 0;
+            while (expected.hasNext()) {
+                expected.next();
+                n++;
+            }
+            int m = 0;
+            while (actual.hasNext()) {
+                actual.next();
+                m++;
+            }
+            assertEquals(op.toString(), n, m);
+            expected.rewind();
+            matchAllTuples(expected, actual);
+            actual.rewind();
+            matchAllTuples(actual, expected);
+            expected.close();
+            actual.close();
+        }
+    }
+
     /**
      * Verifies that the DbIterator has been exhausted of all elements.
      */
@@ -4,6 +4,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +115,147 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() with record locking.
+   * Two transactions insert into the same page; committing one must not
+   * make the other's insert durable, and aborting the other must not undo
+   * the first.
+   */
+  @Test public void commitAndAbortOnSharedPage() throws Exception {
+    Tuple t1 = Utility.getHeapTuple(new int[] { 6, 830 });
+    Tuple t2 = Utility.getHeapTuple(new int[] { 7, 831 });
+    bp.insertTuple(tid1, empty.getId(), t1);
+    bp.insertTuple(tid2, empty.getId(), t2);
+    assertEquals(t1.getRecordId().getPageId(), t2.getRecordId().getPageId());
+
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+    assertEquals(1, count(6, 830));
+    assertEquals(0, count(7, 831));
+
+    // and the same from disk
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(1, count(6, 830));
+    assertEquals(0, count(7, 831));
+  }
+
+  /**
+   * Unit test for multi-version reads.  A reader keeps seeing its snapshot
+   * while another transaction inserts and commits, without blocking it, and
+   * is aborted if it then deletes from the page that was committed to.
+   */
+  @Test public void snapshotReads() throws Exception {
+    bp.setMultiVersion(true);
+    assertEquals(0, count(tid1, 6, 830));
+
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    bp.insertTuple(tid2, empty.getId(), t);
+    assertEquals(0, count(tid1, 6, 830));
+    bp.transactionComplete(tid2, true);
+    assertEquals(0, count(tid1, 6, 830));
+    assertEquals(1, count(6, 830));
+
+    Tuple neighbour = null;
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    while (it.hasNext()) {
+      Tuple tup = it.next();
+      if (tup.getRecordId().getPageId().equals(t.getRecordId().getPageId()))
+        neighbour = tup;
+    }
+    it.close();
+    try {
+      bp.deleteTuple(tid1, neighbour);
+      fail("expected a write conflict");
+    } catch (TransactionAbortedException e) {
+      bp.transactionComplete(tid1, false);
+    }
+  }
+
+  /**
+   * Unit test for optimistic transactions.  An optimistic insert takes no
+   * locks, is invisible to others until validated, and is durable after
+   * commit.
+   */
+  @Test public void optimisticCommit() throws Exception {
+    bp.beginOptimistic(tid1);
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    bp.insertTuple(tid1, empty.getId(), t);
+    assertEquals(1, count(tid1, 6, 830));
+
+    // a locking transaction is not held up, and sees nothing yet
+    bp.getPage(tid2, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+    bp.transactionComplete(tid2, true);
+    assertEquals(0, count(6, 830));
+
+    bp.validate(tid1);
+    bp.transactionComplete(tid1, true);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(1, count(6, 830));
+  }
+
+  /**
+   * Unit test for optimistic transactions: validation fails if a page the
+   * transaction read was committed to after it read it.
+   */
+  @Test public void optimisticConflict() throws Exception {
+    bp.beginOptimistic(tid1);
+    assertEquals(0, count(tid1, 6, 830));
+
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(new int[] { 6, 830 }));
+    bp.transactionComplete(tid2, true);
+
+    try {
+      bp.validate(tid1);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      bp.transactionComplete(tid1, false);
+    }
+  }
+
+  /**
+   * Unit test for Transaction: the BEGIN record is only written when a
+   * transaction first writes, and read-only transactions never log.
+   */
+  @Test public void beginLoggedOnFirstWrite() throws Exception {
+    Transaction reader = new Transaction();
+    reader.start();
+    count(reader.getId(), 6, 830);
+    assertFalse(Database.getLogFile().hasBegun(reader.getId()));
+    reader.commit();
+
+    Transaction writer = new Transaction();
+    writer.start();
+    assertFalse(Database.getLogFile().hasBegun(writer.getId()));
+    bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(new int[] { 6, 830 }));
+    assertTrue(Database.getLogFile().hasBegun(writer.getId()));
+    writer.commit();
+    assertFalse(Database.getLogFile().hasBegun(writer.getId()));
+    assertEquals(1, count(6, 830));
+  }
+
+  /** Counts the tuples of the heap file with the given fields, in a new transaction. */
+  private int count(int f0, int f1) throws Exception {
+    TransactionId tid = new TransactionId();
+    int count = count(tid, f0, f1);
+    bp.transactionComplete(tid);
+    return count;
+  }
+
+  private int count(TransactionId tid, int f0, int f1) throws Exception {
+    DbFileIterator it = empty.iterator(tid);
+    int count = 0;
+    it.open();
+    while (it.hasNext()) {
+      Tuple tup = it.next();
+      if (((IntField) tup.getField(0)).getValue() == f0
+          && ((IntField) tup.getField(1)).getValue() == f1)
+        count++;
+    }
+    it.close();
+    return count;
+  }
+
   /**
    * JUnit suite target
    */
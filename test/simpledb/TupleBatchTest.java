@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  /**
+   * Reads every batch from an open operator and returns an open iterator
+   * over the tuples they hold, checking that no batch is empty or over-full.
+   */
+  private TupleIterator drain(BatchDbIterator op) throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    TupleBatch batch;
+    while ((batch = op.nextBatch()) != null) {
+      assertTrue(batch.size() > 0);
+      assertTrue(batch.size() <= TupleBatch.DEFAULT_SIZE);
+      for (int i = 0; i < batch.size(); i++)
+        tuples.add(batch.getTuple(i));
+    }
+    assertNull(op.nextBatch());
+    TupleIterator it = new TupleIterator(op.getTupleDesc(), tuples);
+    it.open();
+    return it;
+  }
+
+  private DbIterator opened(DbIterator it) throws Exception {
+    it.open();
+    return it;
+  }
+
+  /**
+   * Unit test for Filter.nextBatch() over more tuples than fit in a batch
+   */
+  @Test public void filterBatches() throws Exception {
+    Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(100));
+    Filter expected = new Filter(pred, new TestUtil.MockScan(0, 3000, 2));
+    Filter op = new Filter(pred, new TestUtil.MockScan(0, 3000, 2));
+    expected.open();
+    op.open();
+    TestUtil.compareDbIterators(expected, drain(op));
+    op.close();
+    expected.close();
+  }
+
+  /**
+   * Unit test for Project.nextBatch(), projecting a column twice
+   */
+  @Test public void projectBatches() throws Exception {
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    fields.add(1);
+    Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(4));
+    Project op = new Project(fields, types,
+        new Filter(pred, TestUtil.createTupleList(2, new int[] { 1, 10, 5, 50, 3, 30 })));
+    op.open();
+    TestUtil.compareDbIterators(opened(TestUtil.createTupleList(2, new int[] { 10, 10, 30, 30 })), drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.nextBatch(), where one build tuple matches
+   * enough probe tuples to fill several output batches
+   */
+  @Test public void hashJoinBatches() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    int[] probe = new int[2 * 2500];
+    int[] joined = new int[3 * 2500];
+    for (int i = 0; i < 2500; i++) {
+      probe[2 * i] = 1;
+      probe[2 * i + 1] = i;
+      joined[3 * i] = 1;
+      joined[3 * i + 1] = 1;
+      joined[3 * i + 2] = i;
+    }
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(1, new int[] { 1, 2 }),
+        TestUtil.createTupleList(2, probe));
+    op.open();
+    TestUtil.compareDbIterators(opened(TestUtil.createTupleList(3, joined)), drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate reading its child a batch at a time
+   */
+  @Test public void aggregateBatches() throws Exception {
+    Aggregate sum = new Aggregate(new TestUtil.MockScan(0, 2000, 2), 1,
+        Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+    sum.open();
+    assertEquals(new IntField(1999 * 1000), sum.next().getField(0));
+    sum.close();
+
+    Aggregate avg = new Aggregate(TestUtil.createTupleList(2,
+        new int[] { 1, 2, 1, 4, 2, 7 }), 1, 0, Aggregator.Op.AVG);
+    avg.open();
+    TestUtil.matchAllTuples(opened(TestUtil.createTupleList(2, new int[] { 1, 3, 2, 7 })), drain(avg));
+    avg.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
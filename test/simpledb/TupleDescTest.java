@@ -131,6 +131,10 @@ public class TupleDescTest extends SimpleDbTestBase {
             TupleDesc td = Utility.getTupleDesc(len);
             assertEquals(len * Type.INT_TYPE.getLen(), td.getSize());
         }
+
+        // strings take their full encoded length, prefix included
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        assertEquals(Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen(), td.getSize());
     }
 
     /**
@@ -0,0 +1,55 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleFileTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for TupleFile: tuples with string fields come back as they
+   *   were added, in order, and again after a rewind
+   */
+  @Test public void stringRoundTrip() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] {
+        Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+    TupleFile file = new TupleFile(td);
+    for (int i = 0; i < 500; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("value" + i, Type.STRING_LEN));
+      t.setField(2, new IntField(-i));
+      file.add(t);
+    }
+    assertEquals(500, file.size());
+
+    DbIterator it = file.iterator();
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < 500; i++) {
+        assertTrue(it.hasNext());
+        Tuple t = it.next();
+        assertEquals(new IntField(i), t.getField(0));
+        assertEquals(new StringField("value" + i, Type.STRING_LEN), t.getField(1));
+        assertEquals(new IntField(-i), t.getField(2));
+      }
+      assertFalse(it.hasNext());
+      it.rewind();
+    }
+    it.close();
+    file.delete();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleFileTest.class);
+  }
+}
@@ -1,5 +1,6 @@
 package simpledb.systemtest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -9,6 +10,10 @@ import simpledb.*;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
@@ -113,6 +118,174 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /** @return the number of temporary tuple files on disk */
+    private static int tupleFiles() {
+        int n = 0;
+        for (File f : new File(System.getProperty("java.io.tmpdir")).listFiles())
+            if (f.getName().startsWith("simpledb") && f.getName().endsWith(".tup"))
+                n++;
+        return n;
+    }
+
+    /**
+     * Group by a column with more distinct values than HashAggregation keeps
+     * in memory, so that partial aggregates are spilled to disk.  There are
+     * too many groups to compare with matchTuples, so they are looked up in
+     * a map instead.  The spilled partitions are deleted when the aggregate
+     * is closed.
+     */
+    private void doSpilledAggregate(Aggregator.Op operation, int threads)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                2, HashAggregation.MAX_GROUPS * 5 / 2, 1 << 20, null, createdTuples);
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : aggregate(createdTuples, operation, 1, 0))
+            expected.put(t.get(0), t.get(1));
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, operation);
+        ag.setParallelism(threads);
+        int files = tupleFiles();
+        ag.open();
+        assertTrue(tupleFiles() > files);
+        int groups = 0;
+        while (ag.hasNext()) {
+            Tuple t = ag.next();
+            Integer key = ((IntField) t.getField(0)).getValue();
+            assertEquals(expected.get(key), (Integer) ((IntField) t.getField(1)).getValue());
+            groups++;
+        }
+        ag.close();
+        assertEquals(expected.size(), groups);
+        assertEquals(files, tupleFiles());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSumSpilled() throws IOException, DbException, TransactionAbortedException {
+        doSpilledAggregate(Aggregator.Op.SUM, 1);
+    }
+
+    /** Each thread spills groups of its own, which are merged at the end */
+    @Test public void testSumSpilledParallel() throws IOException, DbException, TransactionAbortedException {
+        doSpilledAggregate(Aggregator.Op.SUM, 2);
+    }
+
+    @Test public void testCountSpilled() throws IOException, DbException, TransactionAbortedException {
+        doSpilledAggregate(Aggregator.Op.COUNT, 1);
+    }
+
+    private final static Aggregator.Op[] ALL_OPS = { Aggregator.Op.MIN,
+            Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.COUNT,
+            Aggregator.Op.AVG };
+
+    /**
+     * @return the expected rows of every aggregate in ALL_OPS over
+     *         aggregateColumn, grouped by all of groupColumns
+     */
+    private HashMap<ArrayList<Integer>, ArrayList<Integer>> aggregateAll(
+            ArrayList<ArrayList<Integer>> tuples, int aggregateColumn, int[] groupColumns) {
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> values =
+                new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            for (int c : groupColumns) key.add(t.get(c));
+            if (!values.containsKey(key)) values.put(key, new ArrayList<Integer>());
+            values.get(key).add(t.get(aggregateColumn));
+        }
+
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> results =
+                new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (Map.Entry<ArrayList<Integer>, ArrayList<Integer>> e : values.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            for (Aggregator.Op op : ALL_OPS)
+                result.add(computeAggregate(e.getValue(), op));
+            results.put(e.getKey(), result);
+        }
+        return results;
+    }
+
+    /**
+     * Every aggregate over one column at once, grouped by two columns.
+     */
+    private void doMultiAggregate(int rows, int maxValue)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows, maxValue, null, createdTuples);
+        int[] groupColumns = new int[] { 0, 2 };
+        int[] aggregateColumns = new int[ALL_OPS.length];
+        for (int i = 0; i < aggregateColumns.length; i++)
+            aggregateColumns[i] = 1;
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> expected =
+                aggregateAll(createdTuples, 1, groupColumns);
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""),
+                aggregateColumns, groupColumns, ALL_OPS);
+        assertEquals(2 + ALL_OPS.length, ag.getTupleDesc().numFields());
+        ag.open();
+        int groups = 0;
+        while (ag.hasNext()) {
+            ArrayList<Integer> row = SystemTestUtil.tupleToList(ag.next());
+            assertEquals(expected.get(new ArrayList<Integer>(row.subList(0, 2))), row);
+            groups++;
+        }
+        ag.close();
+        assertEquals(expected.size(), groups);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testMultipleAggregates()
+            throws IOException, DbException, TransactionAbortedException {
+        doMultiAggregate(ROWS, MAX_VALUE);
+    }
+
+    @Test public void testMultipleAggregatesSpilled()
+            throws IOException, DbException, TransactionAbortedException {
+        doMultiAggregate(HashAggregation.MAX_GROUPS * 3 / 2, 1 << 20);
+    }
+
+    /**
+     * Aggregate a table of many morsels with several threads, which should
+     * give the same groups as a single thread.  The workers read the table
+     * themselves, so the scan under the aggregate is never opened, and the
+     * aggregate can be rewound and closed without it.
+     */
+    private void doParallelAggregate(Aggregator.Op operation, int groupColumn)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 50 * ROWS, MAX_VALUE, null, createdTuples);
+        assertTrue(table.numPages() > 4 * Aggregate.MORSEL_PAGES);
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, operation, 1, groupColumn);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "") {
+            public void open() {
+                fail("the scan under a parallel aggregate was opened");
+            }
+        };
+        Aggregate ag = new Aggregate(scan, 1, groupColumn, operation);
+        ag.setParallelism(4);
+        SystemTestUtil.matchTuples(ag, expected);
+        ag.open();
+        ag.rewind();
+        ag.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSumParallel()
+            throws IOException, DbException, TransactionAbortedException {
+        doParallelAggregate(Aggregator.Op.SUM, 0);
+    }
+
+    @Test public void testAverageNoGroupParallel()
+            throws IOException, DbException, TransactionAbortedException {
+        doParallelAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -0,0 +1,209 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class IndexScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 1000;
+    /** Keys spread thin enough that an equality filter clearly picks the
+        index over a scan, however the histogram buckets fall. */
+    private static final int SPARSE_MAX_VALUE = 10 * MAX_VALUE;
+
+    /** @return an index on field 0 of f, built from its tuples */
+    private BTreeFile index(HeapFile f) throws IOException {
+        File idx = File.createTempFile("table", ".idx");
+        idx.deleteOnExit();
+        BTreeFile index = new BTreeFile(idx, f.getId(), 0);
+        Database.getCatalog().addIndex(index);
+        index.build();
+        return index;
+    }
+
+    private ArrayList<ArrayList<Integer>> passing(
+            ArrayList<ArrayList<Integer>> tuples, List<Predicate> filters) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            boolean passes = true;
+            for (Predicate p : filters) {
+                IntField v = new IntField(t.get(p.getField()));
+                passes &= v.compare(p.getOp(), p.getOperand());
+            }
+            if (passes)
+                out.add(t);
+        }
+        return out;
+    }
+
+    /** Scans f through index, checking the scan returns what passes filters. */
+    private void scan(BTreeFile index, List<Predicate> filters,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "table");
+        for (Predicate p : filters)
+            scan.addFilter(p);
+        SystemTestUtil.matchTuples(scan, passing(tuples, filters));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static Predicate pred(int field, Predicate.Op op, int v) {
+        return new Predicate(field, op, new IntField(v));
+    }
+
+    private static List<Predicate> preds(Predicate... ps) {
+        List<Predicate> l = new ArrayList<Predicate>();
+        for (Predicate p : ps)
+            l.add(p);
+        return l;
+    }
+
+    /**
+     * An index scan returns the tuples whose key is in the range given by
+     * =, <, <=, > and >= filters, and applies the other filters too.
+     */
+    @Test public void testRanges() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        BTreeFile index = index(f);
+        scan(index, preds(pred(0, Predicate.Op.EQUALS, 500)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.LESS_THAN, 100)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.GREATER_THAN, 900)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.GREATER_THAN_OR_EQ, 200),
+            pred(0, Predicate.Op.LESS_THAN_OR_EQ, 300),
+            pred(0, Predicate.Op.GREATER_THAN, 250)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.LESS_THAN, 500),
+            pred(1, Predicate.Op.EQUALS, 7)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.NOT_EQUALS, 3)), tuples);
+        scan(index, preds(pred(0, Predicate.Op.GREATER_THAN, 600),
+            pred(0, Predicate.Op.LESS_THAN, 400)), tuples);
+    }
+
+    /**
+     * Insert and Delete keep the index up to date, including a Delete that
+     * reads the tuples it deletes through the index.
+     */
+    @Test public void testInsertAndDelete() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        BTreeFile index = index(f);
+
+        ArrayList<ArrayList<Integer>> more = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 200, MAX_VALUE, null, more);
+        Transaction t = new Transaction();
+        t.start();
+        Insert insert = new Insert(t.getId(), new SeqScan(t.getId(), source.getId()), f.getId());
+        insert.open();
+        assertEquals(200, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        t.commit();
+        tuples.addAll(more);
+        scan(index, preds(pred(0, Predicate.Op.LESS_THAN, 50)), tuples);
+
+        t = new Transaction();
+        t.start();
+        IndexScan scan = new IndexScan(t.getId(), index, "table");
+        Predicate deleted = pred(0, Predicate.Op.LESS_THAN, 300);
+        scan.addFilter(deleted);
+        Delete delete = new Delete(t.getId(), scan);
+        delete.open();
+        int n = passing(tuples, preds(deleted)).size();
+        assertEquals(n, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        t.commit();
+
+        tuples = passing(tuples, preds(pred(0, Predicate.Op.GREATER_THAN_OR_EQ, 300)));
+        scan(index, preds(pred(0, Predicate.Op.LESS_THAN, 400)), tuples);
+        scan(index, preds(), tuples);
+    }
+
+    /**
+     * A table declared with an indexed field in the catalog gets an index,
+     * which the planner looks selective filters up in.
+     */
+    @Test public void testCatalogAndPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, SPARSE_MAX_VALUE, null, tuples);
+        String name = dat.getName().replace(".dat", "");
+        File catalog = new File(dat.getParentFile(), name + ".txt");
+        catalog.deleteOnExit();
+        File idx = new File(dat.getParentFile(), name + ".a.idx");
+        idx.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write(name + " (a int index, b int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getPath());
+        assertTrue(idx.exists());
+        int tableid = Database.getCatalog().getTableId(name);
+        IndexFile index = Database.getCatalog().getIndex(tableid, 0);
+        assertNotNull(index);
+        assertNull(Database.getCatalog().getIndex(tableid, 1));
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(tableid, 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+            "SELECT * FROM " + name + " WHERE " + name + ".a = 5;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertSame(index, lp.getScanIndex(name));
+        SystemTestUtil.matchTuples(plan, passing(tuples, preds(pred(0, Predicate.Op.EQUALS, 5))));
+
+        lp = new Parser().generateLogicalPlan(tid,
+            "SELECT * FROM " + name + " WHERE " + name + ".a > 5;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertNull(lp.getScanIndex(name));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A field declared with a hash index in the catalog gets a HashFile,
+     * which the planner looks equality filters up in, but not ranges.
+     */
+    @Test public void testHashCatalogAndPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, SPARSE_MAX_VALUE, null, tuples);
+        String name = dat.getName().replace(".dat", "");
+        File catalog = new File(dat.getParentFile(), name + ".txt");
+        catalog.deleteOnExit();
+        File idx = new File(dat.getParentFile(), name + ".a.hash");
+        idx.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write(name + " (a int hash, b int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getPath());
+        assertTrue(idx.exists());
+        int tableid = Database.getCatalog().getTableId(name);
+        IndexFile index = Database.getCatalog().getIndex(tableid, 0);
+        assertTrue(index instanceof HashFile);
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(tableid, 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+            "SELECT * FROM " + name + " WHERE " + name + ".a = 5;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertSame(index, lp.getScanIndex(name));
+        SystemTestUtil.matchTuples(plan, passing(tuples, preds(pred(0, Predicate.Op.EQUALS, 5))));
+
+        lp = new Parser().generateLogicalPlan(tid,
+            "SELECT * FROM " + name + " WHERE " + name + ".a < 5;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertNull(lp.getScanIndex(name));
+        SystemTestUtil.matchTuples(plan, passing(tuples, preds(pred(0, Predicate.Op.LESS_THAN, 5))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -69,6 +69,96 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A hash join whose build side is larger than HashEquiJoin.MAP_SIZE, so
+     * both inputs are partitioned to disk; it is read twice to check that
+     * rewind repeats the partitioned join.
+     */
+    @Test public void testHashJoinPartitioned()
+            throws IOException, DbException, TransactionAbortedException {
+        int buildRows = HashEquiJoin.MAP_SIZE + 5000;
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, buildRows, 1 << 16, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 500, 1 << 16, null, t2Tuples);
+
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey =
+                new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            if (!byKey.containsKey(t1.get(0)))
+                byKey.put(t1.get(0), new ArrayList<ArrayList<Integer>>());
+            byKey.get(t1.get(0)).add(t1);
+        }
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            if (!byKey.containsKey(t2.get(0)))
+                continue;
+            for (ArrayList<Integer> t1 : byKey.get(t2.get(0))) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join run the way the planner parallelizes equality joins: both
+     * tables are repartitioned on the join field by Exchange operators, each
+     * partition is joined by a HashEquiJoin on a thread of its own, and the
+     * results are gathered.
+     */
+    @Test public void testParallelHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 5000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 1000, null, t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        final int threads = 4;
+        TransactionId tid = new TransactionId();
+        Exchange[] left = Exchange.repartition(new DbIterator[] {
+                new ParallelSeqScan(tid, table1.getId(), "", threads, false) },
+                0, threads);
+        Exchange[] right = Exchange.repartition(new DbIterator[] {
+                new SeqScan(tid, table2.getId(), "") }, 0, threads);
+        DbIterator[] joins = new DbIterator[threads];
+        for (int i = 0; i < threads; i++)
+            joins[i] = new HashEquiJoin(
+                    new JoinPredicate(0, Predicate.Op.EQUALS, 0), left[i], right[i]);
+        Exchange joinOp = Exchange.gather(joins);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,95 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class LsmTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 1000;
+
+    private File catalog;
+
+    @After public void deleteFiles() {
+        String name = catalog.getName().replace(".txt", "");
+        for (File f : catalog.getAbsoluteFile().getParentFile().listFiles())
+            if (f.getName().startsWith(name + "."))
+                f.delete();
+    }
+
+    /** @return the tuples whose second field is below v */
+    private ArrayList<ArrayList<Integer>> below(
+            ArrayList<ArrayList<Integer>> tuples, int v) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) < v)
+                out.add(t);
+        return out;
+    }
+
+    private DbIterator plan(TransactionId tid, String sql, HashMap<String, TableStats> stats)
+            throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /**
+     * A table declared with an lsm field in the catalog is stored as an LSM
+     * tree, which takes inserts, deletes and queries like a heap table.
+     */
+    @Test public void testCatalogAndQueries() throws Exception {
+        catalog = File.createTempFile("events", ".txt");
+        String name = catalog.getName().replace(".txt", "");
+        FileWriter w = new FileWriter(catalog);
+        w.write(name + " (a int lsm, b int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getPath());
+        int tableid = Database.getCatalog().getTableId(name);
+        LsmFile table = (LsmFile) Database.getCatalog().getDbFile(tableid);
+        assertTrue(table.getFile().exists());
+        table.setMemtablePages(2);
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, MAX_VALUE, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        for (ArrayList<Integer> tuple : tuples)
+            Database.getBufferPool().insertTuple(t.getId(), tableid,
+                Utility.getHeapTuple(new int[] { tuple.get(0), tuple.get(1) }));
+        t.commit();
+        table.awaitBackground();
+        SystemTestUtil.matchTuples(table, tuples);
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(tableid, 1000));
+        assertEquals(1000.0 * table.numPages(), stats.get(name).estimateScanCost(), 0.0);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(plan(tid, "SELECT * FROM " + name + " WHERE "
+            + name + ".b < 100;", stats), below(tuples, 100));
+        Database.getBufferPool().transactionComplete(tid);
+
+        t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), plan(t.getId(), "SELECT * FROM "
+            + name + " WHERE " + name + ".b >= 100;", stats));
+        delete.open();
+        assertEquals(ROWS - below(tuples, 100).size(),
+            ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        t.commit();
+        SystemTestUtil.matchTuples(table, below(tuples, 100));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LsmTest.class);
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    // two INT fields per tuple: 504 tuples to a page
+    private static final int ROWS = 5000;
+    private static final int PER_PAGE = 504;
+
+    /**
+     * @return a heap file of ROWS tuples numbered 0, 1, ... in their first
+     *         field, in order, so each page holds a range of those numbers
+     */
+    private HeapFile sortedFile(ArrayList<ArrayList<Integer>> tuples)
+            throws IOException {
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i % 7);
+            tuples.add(t);
+        }
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        new File(temp.getPath() + ".zm").deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.PAGE_SIZE, 2);
+        return Utility.openHeapFile(2, temp);
+    }
+
+    private List<Predicate> atLeast(int v) {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(v)));
+        return filters;
+    }
+
+    /** Scans f with the given filters, checking the scan returns expected. */
+    private void scan(HeapFile f, List<Predicate> filters,
+            ArrayList<ArrayList<Integer>> expected) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        for (Predicate p : filters)
+            scan.addFilter(p);
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<ArrayList<Integer>> atLeast(
+            ArrayList<ArrayList<Integer>> tuples, int v) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) >= v)
+                out.add(t);
+        return out;
+    }
+
+    /**
+     * A scan learns the bounds of each page, after which scans skip the
+     * pages that cannot match, and the scan cost counts only the others.
+     */
+    @Test public void testSkipsPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = sortedFile(tuples);
+        f.createZoneMap();
+        List<Predicate> filters = atLeast(4500);
+        assertEquals(f.numPages(), f.numPagesToScan(filters));
+
+        scan(f, filters, atLeast(tuples, 4500));
+        int pages = f.numPages() - 4500 / PER_PAGE;
+        assertEquals(pages, f.numPagesToScan(filters));
+        assertEquals(f.numPages(), f.numPagesToScan(new ArrayList<Predicate>()));
+        scan(f, filters, atLeast(tuples, 4500));
+
+        TableStats stats = new TableStats(f.getId(), 1000);
+        assertEquals(1000.0 * pages, stats.estimateScanCost(filters), 0.0);
+        assertEquals(1000.0 * f.numPages(), stats.estimateScanCost(), 0.0);
+    }
+
+    /**
+     * Inserting a tuple widens the bounds of its page at once; deleting it
+     * leaves them wide until the page is next read.
+     */
+    @Test public void testInsertAndDelete() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = sortedFile(tuples);
+        f.createZoneMap();
+        scan(f, atLeast(0), tuples);
+        List<Predicate> filters = atLeast(100000);
+        assertEquals(0, f.numPagesToScan(filters));
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(f.getTupleDesc());
+        tup.setField(0, new IntField(100000));
+        tup.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), tup);
+        assertEquals(1, f.numPagesToScan(filters));
+        t.commit();
+
+        ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(100000);
+        row.add(0);
+        inserted.add(row);
+        scan(f, filters, inserted);
+
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "table");
+        scan.addFilter(filters.get(0));
+        Delete delete = new Delete(t.getId(), scan);
+        delete.open();
+        delete.next();
+        delete.close();
+        t.commit();
+        assertEquals(1, f.numPagesToScan(filters));
+
+        scan(f, filters, new ArrayList<ArrayList<Integer>>());
+        assertEquals(0, f.numPagesToScan(filters));
+    }
+
+    /**
+     * The bounds a scan learned are kept in the side file.  Writing pages
+     * of the heap file makes the side file know nothing until the map is
+     * next written out, and a side file that does not match the heap file
+     * or its own checksum is ignored.
+     */
+    @Test public void testSideFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = sortedFile(tuples);
+        assertNull(f.getZoneMap());
+        f.createZoneMap();
+        List<Predicate> filters = atLeast(4500);
+        scan(f, filters, atLeast(tuples, 4500));
+        int pages = f.numPagesToScan(filters);
+        assertTrue(pages < f.numPages());
+
+        HeapFile reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertNotNull(reopened.getZoneMap());
+        assertEquals(pages, reopened.numPagesToScan(filters));
+
+        // a deleted tuple leaves the bounds as wide as they were, and the
+        // page written out must not be skipped by a reopened file
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "table");
+        scan.addFilter(new Predicate(0, Predicate.Op.EQUALS, new IntField(0)));
+        Delete delete = new Delete(t.getId(), scan);
+        delete.open();
+        delete.next();
+        delete.close();
+        t.commit();
+        reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertEquals(f.numPages(), reopened.numPagesToScan(filters));
+        Database.getBufferPool().flushAllPages();
+        reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertEquals(pages, reopened.numPagesToScan(filters));
+
+        long modified = f.getFile().lastModified();
+        assertTrue(f.getFile().setLastModified(modified - 10000));
+        reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertNotNull(reopened.getZoneMap());
+        assertEquals(f.numPages(), reopened.numPagesToScan(filters));
+        assertTrue(f.getFile().setLastModified(modified));
+
+        File side = new File(f.getFile().getPath() + ".zm");
+        RandomAccessFile raf = new RandomAccessFile(side, "rw");
+        raf.seek(side.length() / 2);
+        int b = raf.read();
+        raf.seek(side.length() / 2);
+        raf.write(b ^ 1);
+        raf.close();
+        reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertNotNull(reopened.getZoneMap());
+        assertEquals(f.numPages(), reopened.numPagesToScan(filters));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}